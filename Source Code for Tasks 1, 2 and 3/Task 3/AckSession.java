@@ -0,0 +1,334 @@
+package pubsub;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// At-least-once delivery state for one acknowledging subscriber ("ack" in the
+// handshake). Each message written to it gets the next delivery id and stays
+// in flight, holding a reference, until the subscriber acknowledges it:
+// cumulatively ("ACK 42" covers every id up to 42) or selectively
+// ("ACKS 45,47,50-55"), so one ack can cover a whole burst.
+//
+// In-flight messages sit in a ring indexed by delivery id with their
+// redelivery deadline alongside, and the deadlines go into a TimerWheel, so
+// even hundreds of thousands outstanding cost two array slots and two wheel
+// longs each: no timer thread, task or wrapper object per message. The
+// broker's ack timer advances every session's wheel; expired ids queue for
+// redelivery, and the subscriber's writer sends them again with the same id.
+//
+// A session named with "id=" outlives its connection: when a subscriber with
+// the same id reconnects, everything still unacknowledged is redelivered first.
+public class AckSession {
+    public static final long TICK_MILLIS = 50;
+    private static final int WHEEL_SLOTS = 1024;
+    private static final long PENDING = Long.MAX_VALUE; // deadline of an id queued for redelivery
+    
+    private final String name; // null for an anonymous session that ends with its connection
+    private final int window;
+    private final long timeoutMillis;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final TimerWheel timeouts;
+    
+    // In-flight messages by id & (ring.length - 1); ids in [base, nextId) may be in flight
+    private Message[] ring = new Message[64];
+    private long[] deadlines = new long[64];
+    private long base = 1;
+    private long nextId = 1;
+    private int inFlight = 0;
+    
+    // Ids waiting to be redelivered, oldest first
+    private long[] redeliveries = new long[16];
+    private int redeliveryHead = 0;
+    private int redeliveryCount = 0;
+    
+    private SubscriberQueue attached;
+    private long detachedAtMillis;
+    private long redelivered = 0;
+    
+    public AckSession(String name, int window, long timeoutMillis, long nowMillis) {
+        this.name = name;
+        this.window = Math.max(1, window);
+        this.timeoutMillis = timeoutMillis;
+        this.timeouts = new TimerWheel(WHEEL_SLOTS, TICK_MILLIS, nowMillis);
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
+    // Make queue the session's connection, and queue everything still in
+    // flight for redelivery on it
+    public void attach(SubscriberQueue queue) {
+        lock.lock();
+        try {
+            attached = queue;
+            redeliveryHead = 0;
+            redeliveryCount = 0;
+            for (long id = base; id < nextId; id++) {
+                int index = index(id);
+                if (ring[index] != null) {
+                    deadlines[index] = PENDING;
+                    pushRedelivery(id);
+                }
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public void detach(SubscriberQueue queue, long nowMillis) {
+        lock.lock();
+        try {
+            if (attached == queue) {
+                attached = null;
+                detachedAtMillis = nowMillis;
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    // A named session nobody has reattached to within expiryMillis
+    public boolean isExpired(long nowMillis, long expiryMillis) {
+        lock.lock();
+        try {
+            return attached == null && nowMillis - detachedAtMillis >= expiryMillis;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public boolean hasCapacity() {
+        lock.lock();
+        try {
+            return nextId - base < window;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    // Writer: wait until the window has room or there is something to
+    // redeliver. False once queue is closed or no longer attached.
+    public boolean awaitCapacity(SubscriberQueue queue) {
+        lock.lock();
+        try {
+            while (attached == queue && !queue.isClosed() && nextId - base >= window && redeliveryCount == 0) {
+                changed.await();
+            }
+            return attached == queue && !queue.isClosed();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    // Writer: put a message in flight and return its delivery id. The session
+    // takes its own reference. Only call with capacity.
+    public long track(Message message, long nowMillis) {
+        lock.lock();
+        try {
+            long id = nextId++;
+            if (nextId - base > ring.length) {
+                grow();
+            }
+            int index = index(id);
+            ring[index] = message.retain();
+            deadlines[index] = nowMillis + timeoutMillis;
+            timeouts.schedule(id, deadlines[index]);
+            inFlight++;
+            return id;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    // Writer: next id to redeliver, or -1
+    public long pollRedelivery() {
+        lock.lock();
+        try {
+            while (redeliveryCount > 0) {
+                long id = redeliveries[redeliveryHead];
+                redeliveryHead = (redeliveryHead + 1) % redeliveries.length;
+                redeliveryCount--;
+                if (id >= base && id < nextId && ring[index(id)] != null) {
+                    return id;
+                }
+            }
+            return -1;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    // Writer: the message to send again for id (with a reference for the
+    // caller), restarting its timeout; null if it was acknowledged meanwhile
+    public Message redeliver(long id, long nowMillis) {
+        lock.lock();
+        try {
+            if (id < base || id >= nextId || ring[index(id)] == null) {
+                return null;
+            }
+            int index = index(id);
+            deadlines[index] = nowMillis + timeoutMillis;
+            timeouts.schedule(id, deadlines[index]);
+            redelivered++;
+            return ring[index].retain();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    // Cumulative ack: everything up to and including id. Returns the number released.
+    public int ackUpTo(long id) {
+        lock.lock();
+        try {
+            return release(base, Math.min(id, nextId - 1));
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    // Selective ack of the inclusive range [from, to]. Returns the number released.
+    public int ack(long from, long to) {
+        lock.lock();
+        try {
+            return release(Math.max(from, base), Math.min(to, nextId - 1));
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    private int release(long from, long to) {
+        int released = 0;
+        for (long id = from; id <= to; id++) {
+            int index = index(id);
+            if (ring[index] != null) {
+                ring[index].release();
+                ring[index] = null;
+                inFlight--;
+                released++;
+            }
+        }
+        while (base < nextId && ring[index(base)] == null) {
+            base++;
+        }
+        if (released > 0) {
+            changed.signalAll();
+        }
+        return released;
+    }
+    
+    // Ack timer: queue ids whose deadline passed for redelivery. Returns true
+    // if the attached writer has redeliveries to pick up.
+    public boolean tick(long nowMillis) {
+        lock.lock();
+        try {
+            int before = redeliveryCount;
+            timeouts.advance(nowMillis, id -> {
+                if (id < base || id >= nextId) {
+                    return;
+                }
+                int index = index(id);
+                // Acknowledged, already queued, or rescheduled since: stale entry
+                if (ring[index] == null || deadlines[index] > nowMillis) {
+                    return;
+                }
+                deadlines[index] = PENDING;
+                if (attached != null) {
+                    pushRedelivery(id);
+                }
+            });
+            if (redeliveryCount > before) {
+                changed.signalAll();
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    // Let a writer waiting in awaitCapacity re-check whether its queue closed
+    public void wakeUp() {
+        lock.lock();
+        try {
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public SubscriberQueue getAttached() {
+        lock.lock();
+        try {
+            return attached;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public long getRedelivered() {
+        lock.lock();
+        try {
+            return redelivered;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    // Drop everything still in flight
+    public void close() {
+        lock.lock();
+        try {
+            release(base, nextId - 1);
+            attached = null;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    private int index(long id) {
+        return (int) (id & (ring.length - 1));
+    }
+    
+    // Double the ring, re-placing in-flight entries by their ids
+    private void grow() {
+        Message[] oldRing = ring;
+        long[] oldDeadlines = deadlines;
+        ring = new Message[oldRing.length * 2];
+        deadlines = new long[oldRing.length * 2];
+        for (long id = base; id < nextId - 1; id++) {
+            int oldIndex = (int) (id & (oldRing.length - 1));
+            ring[index(id)] = oldRing[oldIndex];
+            deadlines[index(id)] = oldDeadlines[oldIndex];
+        }
+    }
+    
+    private void pushRedelivery(long id) {
+        if (redeliveryCount == redeliveries.length) {
+            long[] grown = new long[redeliveries.length * 2];
+            for (int i = 0; i < redeliveryCount; i++) {
+                grown[i] = redeliveries[(redeliveryHead + i) % redeliveries.length];
+            }
+            redeliveries = grown;
+            redeliveryHead = 0;
+        }
+        redeliveries[(redeliveryHead + redeliveryCount) % redeliveries.length] = id;
+        redeliveryCount++;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,364 @@
+package pubsub;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Programmatic publisher that batches messages into single writes.
+// send() only appends to the current batch; a sender thread writes a batch
+// once it holds batchMessages messages or batchBytes bytes, or lingerMillis
+// after its first message, whichever comes first. Up to maxPendingBatches full
+// batches may wait for the sender (pipelining) before send() blocks.
+//
+// Each send() returns the future of the batch the message joined. It completes
+// with the batch's message count when the batch has been written to the socket,
+// or exceptionally if the connection fails. The broker does not acknowledge
+// messages, so a completed future means "handed to TCP", not "delivered".
+//
+// When every subscriber to the topic is saturated the broker sends THROTTLE.
+// The sender then holds batches back until RESUME, so send() blocks once
+// maxPendingBatches have piled up and the caller slows to what subscribers take.
+//
+// A broker running heartbeats sends PING; the sender answers with a PONG ahead
+// of its next batch, throttled or not, so an idle or throttled publisher is
+// not taken for a dead one.
+public class BatchingPublisher implements Closeable {
+    private final Socket socket;
+    private final OutputStream out;
+    private final boolean binary;
+    private final int topicId;
+    private final int batchMessages;
+    private final int batchBytes;
+    private final long lingerNanos;
+    private final int maxPendingBatches;
+    
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final Condition spaceAvailable = lock.newCondition();
+    private final ArrayDeque<Batch> ready = new ArrayDeque<>();
+    private Batch current = new Batch();
+    private boolean closed = false;
+    private IOException failure;
+    private boolean throttled = false;
+    private long throttleCount = 0;
+    private boolean pongDue = false;
+    private final Thread sender;
+    private final Thread flowControlReader;
+    
+    private static class Batch {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final CompletableFuture<Integer> future = new CompletableFuture<>();
+        int count = 0;
+        long deadline;
+    }
+    
+    // Connect and send the publisher handshake for topic. A message count or
+    // byte limit of 1 with no linger sends every message on its own.
+    public BatchingPublisher(String host, int port, String topic, boolean binary, int batchMessages, int batchBytes, long lingerMillis) throws IOException {
+        this(host, port, topic, binary, batchMessages, batchBytes, lingerMillis, 16);
+    }
+    
+    public BatchingPublisher(String host, int port, String topic, boolean binary, int batchMessages, int batchBytes, long lingerMillis, int maxPendingBatches) throws IOException {
+        this.binary = binary;
+        this.batchMessages = Math.max(1, batchMessages);
+        this.batchBytes = Math.max(1, batchBytes);
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        this.maxPendingBatches = Math.max(1, maxPendingBatches);
+        
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true); // batching replaces Nagle, and without its delay
+        out = new BufferedOutputStream(socket.getOutputStream(), Math.max(8192, this.batchBytes + 1024));
+        try {
+            if (binary) {
+                out.write(BinaryProtocol.MAGIC);
+            }
+            out.write(("PUBLISHER:" + topic + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            
+            if (binary) {
+                // The server answers a binary publisher with the topic's id
+                BinaryProtocol.Frame announcement = BinaryProtocol.readFrame(new DataInputStream(socket.getInputStream()));
+                if (announcement == null || !announcement.hasFlag(BinaryProtocol.FLAG_CONTROL)) {
+                    throw new IOException("Server did not accept the binary handshake");
+                }
+                topicId = announcement.topicId;
+            } else {
+                topicId = 0;
+            }
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        
+        sender = new Thread(this::runSender, "batching-publisher");
+        sender.setDaemon(true);
+        sender.start();
+        flowControlReader = new Thread(this::readFlowControl, "batching-publisher-flow-control");
+        flowControlReader.setDaemon(true);
+        flowControlReader.start();
+    }
+    
+    // Queue one message. Blocks only while maxPendingBatches full batches are
+    // waiting to be written.
+    public CompletableFuture<Integer> send(String message) throws IOException {
+        return send(message.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    public CompletableFuture<Integer> send(byte[] payload) throws IOException {
+        lock.lock();
+        try {
+            while (ready.size() >= maxPendingBatches && failure == null && !closed) {
+                spaceAvailable.awaitUninterruptibly();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            if (closed) {
+                throw new IOException("Publisher is closed");
+            }
+            
+            Batch batch = current;
+            if (batch.count == 0) {
+                batch.deadline = System.nanoTime() + lingerNanos;
+            }
+            if (binary) {
+                BinaryProtocol.writeFrame(new DataOutputStream(batch.bytes), topicId, (byte) 0, payload);
+            } else {
+                batch.bytes.write(payload);
+                batch.bytes.write('\n');
+            }
+            batch.count++;
+            
+            if (batch.count >= batchMessages || batch.bytes.size() >= batchBytes) {
+                ready.add(batch);
+                current = new Batch();
+                changed.signal();
+            } else if (batch.count == 1) {
+                changed.signal(); // start the linger clock
+            }
+            return batch.future;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    // Hand the current partial batch to the sender without waiting for linger.
+    // Returns its future (already complete if there was nothing to send).
+    public CompletableFuture<Integer> flush() {
+        lock.lock();
+        try {
+            if (current.count == 0) {
+                return CompletableFuture.completedFuture(0);
+            }
+            Batch batch = current;
+            ready.add(batch);
+            current = new Batch();
+            changed.signal();
+            return batch.future;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    private void runSender() {
+        while (true) {
+            Batch batch;
+            lock.lock();
+            try {
+                batch = nextBatch();
+                if (batch == null) {
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+            
+            try {
+                batch.bytes.writeTo(out);
+                out.flush();
+                batch.future.complete(batch.count);
+            } catch (IOException e) {
+                fail(batch, e);
+                return;
+            }
+        }
+    }
+    
+    // Wait for a batch that is full or past its linger time, or a PONG that is
+    // due. Null once closed and drained. Nothing else is sent while throttled,
+    // except to drain on close.
+    private Batch nextBatch() {
+        while (true) {
+            if (pongDue) {
+                pongDue = false;
+                Batch pong = new Batch();
+                pong.bytes.writeBytes(binary ? BinaryProtocol.heartbeatFrame(true) : "PONG\n".getBytes(StandardCharsets.UTF_8));
+                return pong;
+            }
+            if (throttled && !closed) {
+                changed.awaitUninterruptibly();
+                continue;
+            }
+            if (!ready.isEmpty()) {
+                spaceAvailable.signalAll();
+                return ready.poll();
+            }
+            if (current.count > 0) {
+                long wait = current.deadline - System.nanoTime();
+                if (wait <= 0 || closed) {
+                    Batch batch = current;
+                    current = new Batch();
+                    return batch;
+                }
+                try {
+                    changed.awaitNanos(wait);
+                } catch (InterruptedException e) {
+                    // Interrupting the sender closes the publisher after this batch
+                    closed = true;
+                }
+            } else if (closed) {
+                return null;
+            } else {
+                changed.awaitUninterruptibly();
+            }
+        }
+    }
+    
+    // THROTTLE, RESUME and PING from the broker: lines, or FLAG_THROTTLE and
+    // heartbeat frames when binary
+    private void readFlowControl() {
+        try {
+            InputStream in = socket.getInputStream();
+            if (binary) {
+                DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+                BinaryProtocol.Frame frame;
+                while ((frame = BinaryProtocol.readFrame(data)) != null) {
+                    if (BinaryProtocol.isHeartbeat(frame)) {
+                        if (frame.payload[0] == BinaryProtocol.HEARTBEAT_PING) {
+                            answerPing();
+                        }
+                    } else if (frame.hasFlag(BinaryProtocol.FLAG_THROTTLE) && frame.payload.length > 0) {
+                        setThrottled(frame.payload[0] != 0);
+                    }
+                }
+            } else {
+                BufferedReader lines = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+                String line;
+                while ((line = lines.readLine()) != null) {
+                    if (line.equals("THROTTLE")) {
+                        setThrottled(true);
+                    } else if (line.equals("RESUME")) {
+                        setThrottled(false);
+                    } else if (line.equals("PING")) {
+                        answerPing();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // Connection closed; a pending write reports the failure
+        }
+        setThrottled(false); // never leave the sender waiting on a broker that is gone
+    }
+    
+    // The sender writes the PONG, so it never interleaves with a batch
+    private void answerPing() {
+        lock.lock();
+        try {
+            pongDue = true;
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    private void setThrottled(boolean throttle) {
+        lock.lock();
+        try {
+            if (throttle && !throttled) {
+                throttleCount++;
+            }
+            throttled = throttle;
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public boolean isThrottled() {
+        lock.lock();
+        try {
+            return throttled;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    // THROTTLE signals received so far
+    public long getThrottleCount() {
+        lock.lock();
+        try {
+            return throttleCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    // Fail the batch being written and everything still waiting
+    private void fail(Batch batch, IOException e) {
+        batch.future.completeExceptionally(e);
+        lock.lock();
+        try {
+            failure = e;
+            for (Batch waiting : ready) {
+                waiting.future.completeExceptionally(e);
+            }
+            ready.clear();
+            current.future.completeExceptionally(e);
+            current = new Batch();
+            spaceAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    // Send whatever is batched, then "terminate" and close the connection
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            changed.signal();
+            spaceAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        
+        try {
+            sender.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        
+        try {
+            if (failure == null) {
+                if (binary) {
+                    DataOutputStream data = new DataOutputStream(out);
+                    BinaryProtocol.writeFrame(data, topicId, BinaryProtocol.FLAG_TERMINATE, new byte[0]);
+                } else {
+                    out.write("terminate\n".getBytes(StandardCharsets.UTF_8));
+                }
+                out.flush();
+            }
+        } finally {
+            socket.close();
+        }
+    }
+}
\ No newline at end of file
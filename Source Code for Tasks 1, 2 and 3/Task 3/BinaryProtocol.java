@@ -0,0 +1,150 @@
+package pubsub;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+// Length-prefixed binary framing, negotiated by sending MAGIC as the very first
+// byte of the handshake line (MAGIC then "PUBLISHER:TOPIC_A\n"). Without it the
+// connection uses the legacy text protocol.
+//
+// After the handshake every frame in either direction is:
+//   int   length   - bytes that follow (topic id + flags + payload)
+//   int   topicId  - numeric id the broker assigned to the topic
+//   byte  flags    - FLAG_* bits below
+//   byte[] payload - raw message bytes, never decoded by the broker
+//
+// The broker announces each topic id with a FLAG_CONTROL frame whose payload is
+// the UTF-8 topic name, before the first message on that id reaches a client.
+//
+// Flow control has text equivalents: a subscriber sends "CREDIT <messages> [<bytes>]"
+// lines and a publisher receives "THROTTLE" and "RESUME" lines. Acknowledging
+// subscribers send "ACK <id>" (cumulative) and "ACKS <id>,<from>-<to>,..." lines.
+//
+// Either side may send a heartbeat: a FLAG_CONTROL frame on HEARTBEAT_TOPIC_ID,
+// which no topic is assigned, whose one-byte payload is HEARTBEAT_PING (answer
+// with a PONG) or HEARTBEAT_PONG. Text connections send "PING" and "PONG" lines.
+public final class BinaryProtocol {
+    public static final int MAGIC = 0xB7;
+    
+    public static final byte FLAG_CONTROL = 0x01;    // topic announcement
+    public static final byte FLAG_TERMINATE = 0x02;  // client is leaving (same as "terminate")
+    public static final byte FLAG_TRACED = 0x04;     // payload starts with a Trace header
+    public static final byte FLAG_CREDIT = 0x08;     // subscriber grants credit: int messages, int bytes
+    public static final byte FLAG_THROTTLE = 0x10;   // broker to publisher: payload 1 = throttle, 0 = resume
+    public static final byte FLAG_ACKED = 0x20;      // broker to subscriber: payload starts with a long delivery id
+    public static final byte FLAG_ACK = 0x40;        // subscriber acks: long cumulative id (0 for none), then long pairs of inclusive ranges
+    public static final byte FLAG_KEYED = (byte) 0x80; // publisher: payload (after any Trace header) starts with a key, see Message
+    
+    public static final int HEARTBEAT_TOPIC_ID = 0;
+    public static final byte HEARTBEAT_PING = 1;
+    public static final byte HEARTBEAT_PONG = 2;
+    
+    public static final int HEADER_LENGTH = 5;       // topicId + flags
+    public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+    public static final int MAX_HANDSHAKE_LENGTH = 8192;
+    
+    public static class Frame {
+        public final int topicId;
+        public final byte flags;
+        public final byte[] payload;
+        
+        Frame(int topicId, byte flags, byte[] payload) {
+            this.topicId = topicId;
+            this.flags = flags;
+            this.payload = payload;
+        }
+        
+        public boolean hasFlag(byte flag) {
+            return (flags & flag) != 0;
+        }
+    }
+    
+    private BinaryProtocol() {
+    }
+    
+    public static void writeFrame(DataOutputStream out, int topicId, byte flags, byte[] payload) throws IOException {
+        out.writeInt(HEADER_LENGTH + payload.length);
+        out.writeInt(topicId);
+        out.writeByte(flags);
+        out.write(payload);
+    }
+    
+    public static void writeTopicAnnouncement(DataOutputStream out, int topicId, String topic) throws IOException {
+        writeFrame(out, topicId, FLAG_CONTROL, topic.getBytes(StandardCharsets.UTF_8));
+    }
+    
+    public static void writeCredit(DataOutputStream out, int topicId, int messages, int bytes) throws IOException {
+        out.writeInt(HEADER_LENGTH + 8);
+        out.writeInt(topicId);
+        out.writeByte(FLAG_CREDIT);
+        out.writeInt(messages);
+        out.writeInt(bytes);
+    }
+    
+    // Cumulative ack up to upTo (0 for none) plus any inclusive [from, to] ranges
+    public static void writeAck(DataOutputStream out, long upTo, long... ranges) throws IOException {
+        out.writeInt(HEADER_LENGTH + Long.BYTES * (1 + ranges.length));
+        out.writeInt(0);
+        out.writeByte(FLAG_ACK);
+        out.writeLong(upTo);
+        for (long id : ranges) {
+            out.writeLong(id);
+        }
+    }
+    
+    public static void writeThrottle(DataOutputStream out, int topicId, boolean throttle) throws IOException {
+        writeFrame(out, topicId, FLAG_THROTTLE, new byte[] {(byte) (throttle ? 1 : 0)});
+    }
+    
+    public static void writeHeartbeat(DataOutputStream out, boolean pong) throws IOException {
+        writeFrame(out, HEARTBEAT_TOPIC_ID, FLAG_CONTROL, new byte[] {pong ? HEARTBEAT_PONG : HEARTBEAT_PING});
+    }
+    
+    // The complete heartbeat frame, for writers that gather buffers
+    public static byte[] heartbeatFrame(boolean pong) {
+        return new byte[] {0, 0, 0, HEADER_LENGTH + 1, 0, 0, 0, HEARTBEAT_TOPIC_ID, FLAG_CONTROL, pong ? HEARTBEAT_PONG : HEARTBEAT_PING};
+    }
+    
+    public static boolean isHeartbeat(Frame frame) {
+        return frame.topicId == HEARTBEAT_TOPIC_ID && frame.hasFlag(FLAG_CONTROL) && frame.payload.length == 1;
+    }
+    
+    // Returns null at end of stream
+    public static Frame readFrame(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < HEADER_LENGTH || length > MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid frame length " + length);
+        }
+        int topicId = in.readInt();
+        byte flags = in.readByte();
+        byte[] payload = new byte[length - HEADER_LENGTH];
+        in.readFully(payload);
+        return new Frame(topicId, flags, payload);
+    }
+    
+    // Read one "\n"-terminated UTF-8 line byte by byte, so nothing after it is
+    // buffered away from the binary frames that follow. Returns null at end of stream.
+    public static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                return stripCarriageReturn(line.toString(StandardCharsets.UTF_8));
+            }
+            if (line.size() >= MAX_HANDSHAKE_LENGTH) {
+                throw new IOException("Handshake line too long");
+            }
+            line.write(b);
+        }
+        return line.size() == 0 ? null : stripCarriageReturn(line.toString(StandardCharsets.UTF_8));
+    }
+    
+    private static String stripCarriageReturn(String line) {
+        return line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
+    }
+}
\ No newline at end of file
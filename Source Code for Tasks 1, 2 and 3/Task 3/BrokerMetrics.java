@@ -0,0 +1,336 @@
+package pubsub;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import javax.management.*;
+
+// Broker-wide metrics registry. Every update is a LongAdder increment or a
+// histogram bucket increment: no locks and no allocation on the message path.
+// Per-topic counters are created on first use; per-subscriber queue depth and
+// drops are read from the live SubscriberQueues at scrape time.
+//
+// Read through JMX (registerJmx) or as Prometheus text (MetricsHttpServer).
+public class BrokerMetrics implements BrokerMetricsMBean {
+    public static final String JMX_DOMAIN = "PubSubMiddleware";
+    
+    private final Map<String, TopicMetrics> topics = new ConcurrentHashMap<>();
+    private final LongAdder messagesDropped = new LongAdder();
+    private final LongAdder slowSubscriberDisconnects = new LongAdder();
+    private final LongAdder idleDisconnects = new LongAdder();
+    private final LongAdder publisherThrottles = new LongAdder();
+    private final LongAdder messagesRedelivered = new LongAdder();
+    private final LongAdder messagesFiltered = new LongAdder();
+    private final LongAdder connectionsAccepted = new LongAdder();
+    private final LongAdder activePublishers = new LongAdder();
+    private final LongAdder activeSubscribers = new LongAdder();
+    private final LatencyHistogram fanOutLatency = new LatencyHistogram();
+    private volatile Supplier<Collection<SubscriberQueue>> subscriberSource = List::of;
+    private volatile MBeanServer mbeanServer;
+    
+    // The topic's counters, created (and registered with JMX) on first use
+    public TopicMetrics topic(String topic) {
+        TopicMetrics metrics = topics.get(topic);
+        if (metrics != null) {
+            return metrics;
+        }
+        return topics.computeIfAbsent(topic, k -> {
+            TopicMetrics created = new TopicMetrics(k);
+            register(created, topicObjectName(k));
+            return created;
+        });
+    }
+    
+    // Where scrapes find the currently connected subscribers
+    public void setSubscriberSource(Supplier<Collection<SubscriberQueue>> source) {
+        subscriberSource = source;
+    }
+    
+    public void connectionAccepted() {
+        connectionsAccepted.increment();
+    }
+    
+    public void clientConnected(boolean publisher) {
+        (publisher ? activePublishers : activeSubscribers).increment();
+    }
+    
+    public void clientDisconnected(boolean publisher) {
+        (publisher ? activePublishers : activeSubscribers).decrement();
+    }
+    
+    public void messageDropped() {
+        messagesDropped.increment();
+    }
+    
+    public void slowSubscriberDisconnected() {
+        slowSubscriberDisconnects.increment();
+    }
+    
+    public void idleDisconnected() {
+        idleDisconnects.increment();
+    }
+    
+    public void publisherThrottled() {
+        publisherThrottles.increment();
+    }
+    
+    public void messageRedelivered() {
+        messagesRedelivered.increment();
+    }
+    
+    // A live message not queued for a subscriber because its content filter rejected it
+    public void messageFiltered() {
+        messagesFiltered.increment();
+    }
+    
+    // Time to hand one published message to every matching subscriber queue
+    public void recordFanOut(long nanos) {
+        fanOutLatency.record(nanos);
+    }
+    
+    // Register the broker MBean and every topic MBean (now and as topics appear)
+    public void registerJmx() {
+        mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        register(this, objectName(JMX_DOMAIN + ":type=Broker"));
+        for (TopicMetrics metrics : topics.values()) {
+            register(metrics, topicObjectName(metrics.getTopic()));
+        }
+    }
+    
+    public void unregisterJmx() {
+        MBeanServer server = mbeanServer;
+        if (server == null) {
+            return;
+        }
+        mbeanServer = null;
+        try {
+            for (ObjectName name : server.queryNames(objectName(JMX_DOMAIN + ":*"), null)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            Log.warn("Failed to unregister metrics MBeans: " + e.getMessage());
+        }
+    }
+    
+    private void register(Object mbean, ObjectName name) {
+        MBeanServer server = mbeanServer;
+        if (server == null) {
+            return;
+        }
+        try {
+            if (!server.isRegistered(name)) {
+                server.registerMBean(mbean, name);
+            }
+        } catch (JMException e) {
+            Log.warn("Failed to register MBean " + name + ": " + e.getMessage());
+        }
+    }
+    
+    private static ObjectName topicObjectName(String topic) {
+        return objectName(JMX_DOMAIN + ":type=Topic,name=" + ObjectName.quote(topic));
+    }
+    
+    private static ObjectName objectName(String name) {
+        try {
+            return new ObjectName(name);
+        } catch (MalformedObjectNameException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+    
+    // All metrics in the Prometheus text exposition format (version 0.0.4)
+    public String toPrometheus() {
+        StringBuilder out = new StringBuilder(4096);
+        Map<String, TopicMetrics> sorted = new TreeMap<>(topics);
+        
+        header(out, "pubsub_messages_in_total", "counter", "Messages received from publishers");
+        for (TopicMetrics metrics : sorted.values()) {
+            sample(out, "pubsub_messages_in_total", "topic", metrics.getTopic(), metrics.getMessagesIn());
+        }
+        header(out, "pubsub_bytes_in_total", "counter", "Payload bytes received from publishers");
+        for (TopicMetrics metrics : sorted.values()) {
+            sample(out, "pubsub_bytes_in_total", "topic", metrics.getTopic(), metrics.getBytesIn());
+        }
+        header(out, "pubsub_messages_out_total", "counter", "Messages written to subscribers");
+        for (TopicMetrics metrics : sorted.values()) {
+            sample(out, "pubsub_messages_out_total", "topic", metrics.getTopic(), metrics.getMessagesOut());
+        }
+        header(out, "pubsub_bytes_out_total", "counter", "Bytes written to subscribers, framing included");
+        for (TopicMetrics metrics : sorted.values()) {
+            sample(out, "pubsub_bytes_out_total", "topic", metrics.getTopic(), metrics.getBytesOut());
+        }
+        
+        header(out, "pubsub_messages_dropped_total", "counter", "Messages discarded by subscriber overflow policies");
+        sample(out, "pubsub_messages_dropped_total", null, null, messagesDropped.sum());
+        header(out, "pubsub_slow_subscriber_disconnects_total", "counter", "Subscribers disconnected for falling behind");
+        sample(out, "pubsub_slow_subscriber_disconnects_total", null, null, slowSubscriberDisconnects.sum());
+        header(out, "pubsub_idle_disconnects_total", "counter", "Clients disconnected for sending nothing within the idle timeout");
+        sample(out, "pubsub_idle_disconnects_total", null, null, idleDisconnects.sum());
+        header(out, "pubsub_publisher_throttles_total", "counter", "THROTTLE signals sent to publishers whose topic's subscribers were all saturated");
+        sample(out, "pubsub_publisher_throttles_total", null, null, publisherThrottles.sum());
+        header(out, "pubsub_messages_redelivered_total", "counter", "Unacknowledged messages sent again after a timeout or reconnect");
+        sample(out, "pubsub_messages_redelivered_total", null, null, messagesRedelivered.sum());
+        header(out, "pubsub_messages_filtered_total", "counter", "Live deliveries skipped because the subscriber's content filter rejected the message");
+        sample(out, "pubsub_messages_filtered_total", null, null, messagesFiltered.sum());
+        header(out, "pubsub_connections_accepted_total", "counter", "TCP connections accepted");
+        sample(out, "pubsub_connections_accepted_total", null, null, connectionsAccepted.sum());
+        header(out, "pubsub_connections_active", "gauge", "Connected clients by type");
+        sample(out, "pubsub_connections_active", "type", "publisher", activePublishers.sum());
+        sample(out, "pubsub_connections_active", "type", "subscriber", activeSubscribers.sum());
+        
+        header(out, "pubsub_fanout_latency_seconds", "summary", "Time to queue one published message for all its subscribers");
+        for (double quantile : new double[] {0.5, 0.9, 0.99, 0.999}) {
+            out.append("pubsub_fanout_latency_seconds{quantile=\"").append(quantile).append("\"} ")
+                    .append(fanOutLatency.percentile(quantile * 100) / 1e9).append('\n');
+        }
+        out.append("pubsub_fanout_latency_seconds_sum ").append(fanOutLatency.getSum() / 1e9).append('\n');
+        out.append("pubsub_fanout_latency_seconds_count ").append(fanOutLatency.getCount()).append('\n');
+        
+        Collection<SubscriberQueue> subscribers = subscriberSource.get();
+        header(out, "pubsub_subscriber_queue_depth", "gauge", "Messages waiting in each subscriber's outbound queue");
+        for (SubscriberQueue subscriber : subscribers) {
+            sample(out, "pubsub_subscriber_queue_depth", "subscriber", subscriber.getAddr(), subscriber.getQueueDepth());
+        }
+        header(out, "pubsub_subscriber_dropped_total", "counter", "Messages dropped for each connected subscriber");
+        for (SubscriberQueue subscriber : subscribers) {
+            sample(out, "pubsub_subscriber_dropped_total", "subscriber", subscriber.getAddr(), subscriber.getDroppedCount());
+        }
+        return out.toString();
+    }
+    
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+    
+    private static void sample(StringBuilder out, String name, String label, String labelValue, long value) {
+        out.append(name);
+        if (label != null) {
+            out.append('{').append(label).append("=\"");
+            for (int i = 0; i < labelValue.length(); i++) {
+                char c = labelValue.charAt(i);
+                if (c == '\\' || c == '"') {
+                    out.append('\\').append(c);
+                } else if (c == '\n') {
+                    out.append("\\n");
+                } else {
+                    out.append(c);
+                }
+            }
+            out.append("\"}");
+        }
+        out.append(' ').append(value).append('\n');
+    }
+    
+    @Override
+    public long getMessagesIn() {
+        long total = 0;
+        for (TopicMetrics metrics : topics.values()) {
+            total += metrics.getMessagesIn();
+        }
+        return total;
+    }
+    
+    @Override
+    public long getBytesIn() {
+        long total = 0;
+        for (TopicMetrics metrics : topics.values()) {
+            total += metrics.getBytesIn();
+        }
+        return total;
+    }
+    
+    @Override
+    public long getMessagesOut() {
+        long total = 0;
+        for (TopicMetrics metrics : topics.values()) {
+            total += metrics.getMessagesOut();
+        }
+        return total;
+    }
+    
+    @Override
+    public long getBytesOut() {
+        long total = 0;
+        for (TopicMetrics metrics : topics.values()) {
+            total += metrics.getBytesOut();
+        }
+        return total;
+    }
+    
+    @Override
+    public long getMessagesDropped() {
+        return messagesDropped.sum();
+    }
+    
+    @Override
+    public long getSlowSubscriberDisconnects() {
+        return slowSubscriberDisconnects.sum();
+    }
+    
+    @Override
+    public long getIdleDisconnects() {
+        return idleDisconnects.sum();
+    }
+    
+    @Override
+    public long getPublisherThrottles() {
+        return publisherThrottles.sum();
+    }
+    
+    @Override
+    public long getMessagesRedelivered() {
+        return messagesRedelivered.sum();
+    }
+    
+    @Override
+    public long getMessagesFiltered() {
+        return messagesFiltered.sum();
+    }
+    
+    @Override
+    public long getConnectionsAccepted() {
+        return connectionsAccepted.sum();
+    }
+    
+    @Override
+    public long getActivePublishers() {
+        return activePublishers.sum();
+    }
+    
+    @Override
+    public long getActiveSubscribers() {
+        return activeSubscribers.sum();
+    }
+    
+    @Override
+    public long getMaxSubscriberQueueDepth() {
+        long max = 0;
+        for (SubscriberQueue subscriber : subscriberSource.get()) {
+            max = Math.max(max, subscriber.getQueueDepth());
+        }
+        return max;
+    }
+    
+    @Override
+    public double getFanOutLatencyP50Micros() {
+        return fanOutLatency.percentile(50) / 1000.0;
+    }
+    
+    @Override
+    public double getFanOutLatencyP99Micros() {
+        return fanOutLatency.percentile(99) / 1000.0;
+    }
+    
+    @Override
+    public double getFanOutLatencyP999Micros() {
+        return fanOutLatency.percentile(99.9) / 1000.0;
+    }
+    
+    @Override
+    public String[] getTopics() {
+        return new TreeSet<>(topics.keySet()).toArray(new String[0]);
+    }
+}
\ No newline at end of file
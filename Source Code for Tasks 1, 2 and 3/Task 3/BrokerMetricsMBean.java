@@ -0,0 +1,40 @@
+package pubsub;
+
+// JMX view of the broker-wide metrics (PubSubMiddleware:type=Broker)
+public interface BrokerMetricsMBean {
+    long getMessagesIn();
+    
+    long getBytesIn();
+    
+    long getMessagesOut();
+    
+    long getBytesOut();
+    
+    long getMessagesDropped();
+    
+    long getSlowSubscriberDisconnects();
+    
+    long getIdleDisconnects();
+    
+    long getPublisherThrottles();
+    
+    long getMessagesRedelivered();
+    
+    long getMessagesFiltered();
+    
+    long getConnectionsAccepted();
+    
+    long getActivePublishers();
+    
+    long getActiveSubscribers();
+    
+    long getMaxSubscriberQueueDepth();
+    
+    double getFanOutLatencyP50Micros();
+    
+    double getFanOutLatencyP99Micros();
+    
+    double getFanOutLatencyP999Micros();
+    
+    String[] getTopics();
+}
\ No newline at end of file
@@ -0,0 +1,359 @@
+package pubsub;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+// Wire-level regression checks against an in-process PubSubServer, run as a
+// plain main() like the benchmarks. Each check starts a server on its own port,
+// talks to it over real sockets and throws if the broker misbehaves; the run
+// prints one line per check and exits with status 1 if any of them failed.
+//
+// Usage: java pubsub.BrokerRegressionTest [--port 5400]
+public class BrokerRegressionTest {
+    private static final int READ_TIMEOUT_MILLIS = 5000;
+    
+    private interface Check {
+        void run(int port) throws Exception;
+    }
+    
+    public static void main(String[] args) throws Exception {
+        int port = 5400;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--port":
+                    port = Integer.parseInt(args[i + 1]);
+                    break;
+                default:
+                    System.out.println("Unknown option " + args[i]);
+                    System.exit(1);
+            }
+        }
+        
+        Map<String, Check> checks = new LinkedHashMap<>();
+        checks.put("unkeyed text publisher's {...} line is delivered unchanged", BrokerRegressionTest::unkeyedBraceLineUnchanged);
+        checks.put("keyed text publisher's {key} prefix is stripped", BrokerRegressionTest::keyedPrefixStripped);
+        checks.put("a text key too long for its length field is refused", BrokerRegressionTest::oversizedKeyRefused);
+        checks.put("a legacy topic containing ':' is kept whole", BrokerRegressionTest::colonTopicKeptWhole);
+        checks.put("replaying subscribers get every message once while two publishers race", p -> replayWithConcurrentPublishers(p, 0));
+        checks.put("... and when keyed messages spread over dispatch shards", p -> replayWithConcurrentPublishers(p, 4));
+        checks.put("a saturated subscriber throttles and then resumes its publisher", BrokerRegressionTest::throttleThenResume);
+        checks.put("idle batching publishers answer PINGs and outlive the idle timeout", BrokerRegressionTest::batchingPublisherAnswersPing);
+        checks.put("ping and PONG are published when heartbeats are off", BrokerRegressionTest::pingPublishedWithoutHeartbeats);
+        checks.put("only an exact PING is answered when heartbeats are on", BrokerRegressionTest::exactPingAnsweredWithHeartbeats);
+        
+        // The broker logs to stdout; keep the report readable
+        PrintStream report = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        int failed = 0;
+        for (Map.Entry<String, Check> check : checks.entrySet()) {
+            try {
+                check.getValue().run(port++);
+                report.println("PASS  " + check.getKey());
+            } catch (Exception | AssertionError e) {
+                report.println("FAIL  " + check.getKey() + ": " + e.getMessage());
+                failed++;
+            }
+        }
+        report.println((checks.size() - failed) + "/" + checks.size() + " checks passed");
+        System.exit(failed == 0 ? 0 : 1);
+    }
+    
+    private static void unkeyedBraceLineUnchanged(int port) throws Exception {
+        PubSubServer server = startServer(new ServerConfig("127.0.0.1", port));
+        try (TextClient subscriber = new TextClient(port, "SUBSCRIBER:orders");
+             TextClient publisher = new TextClient(port, "PUBLISHER:orders")) {
+            Thread.sleep(200);
+            publisher.send("{\"a\":1} {\"b\":2}");
+            expectPayload(subscriber.read(), "{\"a\":1} {\"b\":2}");
+        } finally {
+            server.stop();
+        }
+    }
+    
+    private static void keyedPrefixStripped(int port) throws Exception {
+        PubSubServer server = startServer(new ServerConfig("127.0.0.1", port));
+        try (TextClient subscriber = new TextClient(port, "SUBSCRIBER:orders");
+             TextClient publisher = new TextClient(port, "PUBLISHER:orders:keyed")) {
+            Thread.sleep(200);
+            publisher.send("{order-17} shipped");
+            expectPayload(subscriber.read(), "shipped");
+        } finally {
+            server.stop();
+        }
+    }
+    
+    private static void oversizedKeyRefused(int port) throws Exception {
+        Path logDir = Files.createTempDirectory("pubsub-regression");
+        ServerConfig config = new ServerConfig("127.0.0.1", port);
+        config.logDir = logDir.toString();
+        PubSubServer server = startServer(config);
+        try (TextClient subscriber = new TextClient(port, "SUBSCRIBER:orders");
+             TextClient publisher = new TextClient(port, "PUBLISHER:orders:keyed")) {
+            Thread.sleep(200);
+            publisher.send("{" + "k".repeat(Message.MAX_KEY_BYTES + 1) + "} lost");
+            publisher.send("{order-17} kept");
+            expectPayload(subscriber.read(), "kept");
+        } finally {
+            server.stop();
+            deleteRecursively(logDir);
+        }
+    }
+    
+    // Anything after the first ':' that is not a known option is topic, as
+    // before handshake options existed
+    private static void colonTopicKeptWhole(int port) throws Exception {
+        PubSubServer server = startServer(new ServerConfig("127.0.0.1", port));
+        try (TextClient subscriber = new TextClient(port, "SUBSCRIBER:sensors:room-1:from=latest");
+             TextClient publisher = new TextClient(port, "PUBLISHER:sensors:room-1")) {
+            Thread.sleep(200);
+            publisher.send("21.5");
+            expectPayload(subscriber.read(), "21.5");
+        } finally {
+            server.stop();
+        }
+    }
+    
+    // Replaying subscribers join while two publishers write to the topic, so
+    // the writer switches from the log to live messages whose offsets the two
+    // handlers (or, keyed, the shards) persist and fan out in either order
+    private static void replayWithConcurrentPublishers(int port, int shards) throws Exception {
+        final int stored = 2000;
+        final int live = 20000;
+        final int subscriberCount = 8;
+        Path logDir = Files.createTempDirectory("pubsub-regression");
+        ServerConfig config = new ServerConfig("127.0.0.1", port);
+        config.logDir = logDir.toString();
+        config.dispatchShards = shards;
+        PubSubServer server = startServer(config);
+        List<TextClient> subscribers = new ArrayList<>();
+        String handshake = shards > 0 ? "PUBLISHER:ledger:keyed" : "PUBLISHER:ledger";
+        try (TextClient first = new TextClient(port, handshake);
+             TextClient second = new TextClient(port, handshake)) {
+            for (int i = 0; i < stored; i++) {
+                first.send("s" + i);
+            }
+            Thread.sleep(500);
+            
+            Thread[] publishers = new Thread[2];
+            for (int p = 0; p < publishers.length; p++) {
+                TextClient publisher = p == 0 ? first : second;
+                String prefix = p == 0 ? "a" : "b";
+                publishers[p] = new Thread(() -> {
+                    for (int i = 0; i < live; i++) {
+                        publisher.send((shards > 0 ? "{k" + i % 16 + "} " : "") + prefix + i);
+                    }
+                });
+                publishers[p].start();
+            }
+            for (int s = 0; s < subscriberCount; s++) {
+                subscribers.add(new TextClient(port, "SUBSCRIBER:ledger:from=earliest"));
+                Thread.sleep(20);
+            }
+            
+            // Read every subscriber at once, so none falls behind far enough to overflow
+            int expected = stored + 2 * live;
+            List<String> failures = Collections.synchronizedList(new ArrayList<>());
+            Thread[] readers = new Thread[subscriberCount];
+            for (int s = 0; s < subscriberCount; s++) {
+                TextClient subscriber = subscribers.get(s);
+                String name = "subscriber " + s;
+                readers[s] = new Thread(() -> {
+                    Set<String> seen = new HashSet<>();
+                    try {
+                        for (int i = 0; i < expected; i++) {
+                            String line = subscriber.read();
+                            if (line == null) {
+                                failures.add(name + " closed after " + i + " messages");
+                                return;
+                            }
+                            String payload = line.substring(line.indexOf(": ") + 2);
+                            if (!seen.add(payload)) {
+                                failures.add(name + " got '" + payload + "' twice");
+                                return;
+                            }
+                        }
+                    } catch (IOException e) {
+                        failures.add(name + " after " + seen.size() + " messages: " + e.getMessage());
+                    }
+                });
+                readers[s].start();
+            }
+            for (Thread publisher : publishers) {
+                publisher.join();
+            }
+            for (Thread reader : readers) {
+                reader.join();
+            }
+            if (!failures.isEmpty()) {
+                throw new AssertionError(String.join("; ", failures));
+            }
+        } finally {
+            for (TextClient subscriber : subscribers) {
+                subscriber.close();
+            }
+            server.stop();
+            deleteRecursively(logDir);
+        }
+    }
+    
+    private static void throttleThenResume(int port) throws Exception {
+        ServerConfig config = new ServerConfig("127.0.0.1", port);
+        config.queueCapacity = 8;
+        PubSubServer server = startServer(config);
+        try (TextClient subscriber = new TextClient(port, "SUBSCRIBER:feed:credit=1");
+             TextClient publisher = new TextClient(port, "PUBLISHER:feed")) {
+            Thread.sleep(200);
+            for (int i = 0; i < 20; i++) {
+                publisher.send("m" + i);
+            }
+            expectLine(publisher.read(), "THROTTLE");
+            subscriber.send("CREDIT 100");
+            expectLine(publisher.read(), "RESUME");
+        } finally {
+            server.stop();
+        }
+    }
+    
+    private static void batchingPublisherAnswersPing(int port) throws Exception {
+        ServerConfig config = new ServerConfig("127.0.0.1", port);
+        config.heartbeatIntervalMillis = 200;
+        config.idleTimeoutMillis = 700;
+        PubSubServer server = startServer(config);
+        try (TextClient subscriber = new TextClient(port, "SUBSCRIBER:metrics");
+             BatchingPublisher text = new BatchingPublisher("127.0.0.1", port, "metrics", false, 1, 1, 0);
+             BatchingPublisher binary = new BatchingPublisher("127.0.0.1", port, "metrics", true, 1, 1, 0)) {
+            // The subscriber answers too, or it would be closed as well
+            long idleUntil = System.currentTimeMillis() + 2000;
+            while (System.currentTimeMillis() < idleUntil) {
+                expectLine(subscriber.read(), "PING");
+                subscriber.send("PONG");
+            }
+            text.send("from text").get(READ_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            binary.send("from binary").get(READ_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            // The two publishers are handled independently, so either may
+            // arrive first
+            Set<String> expected = new HashSet<>(List.of("from text", "from binary"));
+            long deadline = System.currentTimeMillis() + READ_TIMEOUT_MILLIS;
+            while (!expected.isEmpty()) {
+                String line = subscriber.read();
+                while ("PING".equals(line) && System.currentTimeMillis() < deadline) {
+                    subscriber.send("PONG");
+                    line = subscriber.read();
+                }
+                if (line == null) {
+                    throw new AssertionError("expected " + expected + " but the connection closed");
+                }
+                int start = line.indexOf(": ");
+                if (!expected.remove(start < 0 ? line : line.substring(start + 2))) {
+                    throw new AssertionError("expected one of " + expected + " but got '" + line + "'");
+                }
+            }
+        } finally {
+            server.stop();
+        }
+    }
+    
+    private static void pingPublishedWithoutHeartbeats(int port) throws Exception {
+        PubSubServer server = startServer(new ServerConfig("127.0.0.1", port));
+        try (TextClient subscriber = new TextClient(port, "SUBSCRIBER:chat");
+             TextClient publisher = new TextClient(port, "PUBLISHER:chat")) {
+            Thread.sleep(200);
+            for (String payload : new String[] {"ping", "PING", "Pong"}) {
+                publisher.send(payload);
+                expectPayload(subscriber.read(), payload);
+            }
+        } finally {
+            server.stop();
+        }
+    }
+    
+    private static void exactPingAnsweredWithHeartbeats(int port) throws Exception {
+        ServerConfig config = new ServerConfig("127.0.0.1", port);
+        config.heartbeatIntervalMillis = 60_000;
+        PubSubServer server = startServer(config);
+        try (TextClient subscriber = new TextClient(port, "SUBSCRIBER:chat");
+             TextClient publisher = new TextClient(port, "PUBLISHER:chat")) {
+            Thread.sleep(200);
+            publisher.send("ping");
+            expectPayload(subscriber.read(), "ping");
+            publisher.send("PING");
+            expectLine(publisher.read(), "PONG");
+        } finally {
+            server.stop();
+        }
+    }
+    
+    private static void expectLine(String line, String expected) {
+        if (!expected.equals(line)) {
+            throw new AssertionError("expected '" + expected + "' but got '" + line + "'");
+        }
+    }
+    
+    // A text delivery reads "[topic] Publisher <addr>: <payload>"
+    private static void expectPayload(String line, String payload) {
+        if (line == null) {
+            throw new AssertionError("expected '" + payload + "' but the connection closed");
+        }
+        int start = line.indexOf(": ");
+        String actual = start < 0 ? line : line.substring(start + 2);
+        if (!actual.equals(payload)) {
+            throw new AssertionError("expected '" + payload + "' but got '" + line + "'");
+        }
+    }
+    
+    private static void deleteRecursively(Path dir) throws IOException {
+        try (java.util.stream.Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+    
+    private static PubSubServer startServer(ServerConfig config) throws InterruptedException {
+        PubSubServer server = new PubSubServer(config);
+        Thread serverThread = new Thread(server::start);
+        serverThread.setDaemon(true);
+        serverThread.start();
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try (Socket probe = new Socket("127.0.0.1", config.port)) {
+                probe.getOutputStream().write("terminate\n".getBytes(StandardCharsets.UTF_8));
+                return server;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("Server did not start on port " + config.port);
+    }
+    
+    private static class TextClient implements Closeable {
+        final Socket socket;
+        final BufferedReader in;
+        final PrintWriter out;
+        
+        TextClient(int port, String handshake) throws IOException {
+            socket = new Socket("127.0.0.1", port);
+            socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+            out.println(handshake);
+        }
+        
+        void send(String line) {
+            out.println(line);
+        }
+        
+        // Null on end of stream; SocketTimeoutException if nothing arrives in time
+        String read() throws IOException {
+            return in.readLine();
+        }
+        
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,54 @@
+package pubsub;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Pool of fixed-size direct buffers for encoded messages. Direct buffers can be
+// handed to a SocketChannel without the JDK copying them first; pooling them
+// avoids paying for a direct allocation on every publish. Messages larger
+// than a chunk get an ordinary heap buffer that is simply dropped afterwards.
+public class BufferPool {
+    public static final BufferPool SHARED = new BufferPool(4096, 4096);
+    
+    private final int chunkSize;
+    private final int maxPooled;
+    private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+    
+    public BufferPool(int chunkSize, int maxPooled) {
+        this.chunkSize = chunkSize;
+        this.maxPooled = maxPooled;
+    }
+    
+    // A cleared buffer with at least size bytes remaining
+    public ByteBuffer acquire(int size) {
+        if (size > chunkSize) {
+            return ByteBuffer.allocate(size);
+        }
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(chunkSize);
+        }
+        pooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+    
+    // Hand a buffer back once nothing references it any more
+    public void release(ByteBuffer buffer) {
+        if (!buffer.isDirect() || buffer.capacity() != chunkSize) {
+            return;
+        }
+        if (pooled.incrementAndGet() <= maxPooled) {
+            free.offer(buffer);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+    
+    public int getChunkSize() {
+        return chunkSize;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,271 @@
+package pubsub;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Multi-node cluster harness. Starts --nodes brokers as child processes on
+// localhost, meshed through their cluster ports, subscribes to one topic on
+// every node and publishes to it on node 0. Reports, per node, deliveries,
+// delivery throughput and the publish-to-receipt latency, so node 0 (local
+// fan-out) can be compared with the others (one inter-node hop). Publisher
+// and subscribers all run in this process, so the send time carried in each
+// payload is read on the same clock.
+//
+// Usage: java pubsub.ClusterBenchmark [--nodes 3] [--subscribers 2] [--messages 50000]
+//                                     [--rate 50000] [--size 64] [--port 5200]
+// --subscribers is per node; --rate 0 publishes as fast as possible. Brokers use
+// ports PORT+i for clients and PORT+100+i for cluster links.
+public class ClusterBenchmark {
+    private static final String TOPIC = "cluster/bench";
+    private static final long DELIVERY_TIMEOUT_MILLIS = 60_000;
+    private static final String SENT_MARKER = "sent=";
+    
+    // One subscriber connection, recording latency for the measured run
+    private static class Subscriber extends Thread {
+        final int node;
+        final Socket socket;
+        final BufferedReader in;
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicLong received = new AtomicLong();
+        volatile long lastReceivedNanos;
+        volatile boolean measuring;
+        
+        Subscriber(int node, int port) throws IOException {
+            this.node = node;
+            this.socket = new Socket("127.0.0.1", port);
+            socket.setTcpNoDelay(true);
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+            out.println("SUBSCRIBER:" + TOPIC);
+            setDaemon(true);
+        }
+        
+        @Override
+        public void run() {
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    long now = System.nanoTime();
+                    int marker = line.indexOf(SENT_MARKER);
+                    if (marker < 0) {
+                        continue;
+                    }
+                    if (line.startsWith("warmup", marker + SENT_MARKER.length())) {
+                        if (!measuring) {
+                            received.incrementAndGet();
+                        }
+                        continue;
+                    }
+                    if (!measuring) {
+                        continue;
+                    }
+                    int end = line.indexOf(' ', marker);
+                    long sent = Long.parseLong(line.substring(marker + SENT_MARKER.length(), end < 0 ? line.length() : end));
+                    latency.record(now - sent);
+                    lastReceivedNanos = now;
+                    received.incrementAndGet();
+                }
+            } catch (IOException | NumberFormatException e) {
+                // Closed at the end of the run
+            }
+        }
+    }
+    
+    public static void main(String[] args) throws Exception {
+        int nodes = 3;
+        int subscribersPerNode = 2;
+        int messages = 50_000;
+        int rate = 50_000;
+        int size = 64;
+        int port = 5200;
+        
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--nodes":
+                    nodes = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--subscribers":
+                    subscribersPerNode = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--messages":
+                    messages = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--rate":
+                    rate = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--size":
+                    size = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--port":
+                    port = Integer.parseInt(args[i + 1]);
+                    break;
+                default:
+                    System.out.println("Unknown option " + args[i]);
+                    System.exit(1);
+            }
+        }
+        if (nodes < 2) {
+            System.out.println("--nodes must be at least 2");
+            System.exit(1);
+        }
+        
+        List<Process> servers = new ArrayList<>();
+        List<Subscriber> subscribers = new ArrayList<>();
+        try {
+            for (int n = 0; n < nodes; n++) {
+                servers.add(startServer(n, nodes, port, messages));
+            }
+            for (int n = 0; n < nodes; n++) {
+                waitForPort(port + n);
+            }
+            for (int n = 0; n < nodes; n++) {
+                for (int s = 0; s < subscribersPerNode; s++) {
+                    Subscriber subscriber = new Subscriber(n, port + n);
+                    subscriber.start();
+                    subscribers.add(subscriber);
+                }
+            }
+            
+            try (Socket socket = new Socket("127.0.0.1", port)) {
+                socket.setTcpNoDelay(true);
+                Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), 64 * 1024);
+                out.write("PUBLISHER:" + TOPIC + "\n");
+                out.flush();
+                
+                // Links connect and interest propagates asynchronously: publish
+                // probes until every subscriber on every node has seen one
+                if (!warmUp(out, subscribers)) {
+                    System.out.println("Not every node received the warm-up messages; is the mesh up?");
+                    return;
+                }
+                for (Subscriber subscriber : subscribers) {
+                    subscriber.received.set(0);
+                    subscriber.measuring = true;
+                }
+                
+                System.out.println("Publishing " + messages + " messages on node 0 to " + nodes + " nodes x "
+                        + subscribersPerNode + " subscribers" + (rate > 0 ? " at " + rate + " msgs/s" : "") + "...");
+                String padding = "x".repeat(Math.max(0, size - 30));
+                long start = System.nanoTime();
+                long intervalNanos = rate > 0 ? 1_000_000_000L / rate : 0;
+                for (int m = 0; m < messages; m++) {
+                    if (intervalNanos > 0) {
+                        long due = start + m * intervalNanos;
+                        long wait = due - System.nanoTime();
+                        if (wait > 0) {
+                            out.flush();
+                            LockSupport.parkNanos(wait);
+                        }
+                    }
+                    out.write(SENT_MARKER + System.nanoTime() + " " + padding + "\n");
+                }
+                out.flush();
+                
+                long deadline = System.currentTimeMillis() + DELIVERY_TIMEOUT_MILLIS;
+                while (System.currentTimeMillis() < deadline && !allReceived(subscribers, messages)) {
+                    Thread.sleep(20);
+                }
+                report(subscribers, nodes, messages, start);
+                out.write("terminate\n");
+                out.flush();
+            }
+        } finally {
+            for (Subscriber subscriber : subscribers) {
+                try {
+                    subscriber.socket.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+            for (Process server : servers) {
+                server.destroy();
+                server.waitFor();
+            }
+        }
+    }
+    
+    private static Process startServer(int node, int nodes, int port, int messages) throws IOException {
+        List<String> peers = new ArrayList<>();
+        for (int n = 0; n < nodes; n++) {
+            if (n != node) {
+                peers.add("127.0.0.1:" + (port + 100 + n));
+            }
+        }
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                PubSubServer.class.getName(), String.valueOf(port + node),
+                "--cluster-port", String.valueOf(port + 100 + node), "--peers", String.join(",", peers),
+                "--node-id", "node-" + node,
+                // Room for the whole run, so the latency measured is not cut short by drops
+                "--queue-capacity", String.valueOf(Math.max(ServerConfig.DEFAULT_QUEUE_CAPACITY, messages)));
+        builder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+        builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        return builder.start();
+    }
+    
+    private static void waitForPort(int port) throws InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try (Socket probe = new Socket("127.0.0.1", port)) {
+                probe.getOutputStream().write("terminate\n".getBytes(StandardCharsets.UTF_8));
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("Server did not start on port " + port);
+    }
+    
+    private static boolean warmUp(Writer out, List<Subscriber> subscribers) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + 15_000;
+        while (System.currentTimeMillis() < deadline) {
+            out.write(SENT_MARKER + "warmup\n");
+            out.flush();
+            Thread.sleep(100);
+            if (allReceived(subscribers, 1)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private static boolean allReceived(List<Subscriber> subscribers, long count) {
+        for (Subscriber subscriber : subscribers) {
+            if (subscriber.received.get() < count) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static void report(List<Subscriber> subscribers, int nodes, int messages, long start) {
+        System.out.println();
+        System.out.printf("%-7s %-7s %11s %9s %12s %10s %10s %10s%n",
+                "node", "hop", "subscribers", "delivered", "msgs/s/sub", "p50 us", "p99 us", "max us");
+        for (int n = 0; n < nodes; n++) {
+            LatencyHistogram latency = new LatencyHistogram();
+            long delivered = 0;
+            long last = start;
+            int count = 0;
+            for (Subscriber subscriber : subscribers) {
+                if (subscriber.node != n) {
+                    continue;
+                }
+                latency.add(subscriber.latency);
+                delivered += subscriber.received.get();
+                last = Math.max(last, subscriber.lastReceivedNanos);
+                count++;
+            }
+            double seconds = Math.max(1, last - start) / 1e9;
+            System.out.printf("%-7s %-7s %11d %8d%% %12.0f %10.1f %10.1f %10.1f%n",
+                    "node-" + n, n == 0 ? "local" : "remote", count,
+                    count == 0 ? 0 : delivered * 100 / ((long) messages * count),
+                    count == 0 ? 0 : delivered / (double) count / seconds,
+                    latency.percentile(50) / 1000.0, latency.percentile(99) / 1000.0, latency.getMax() / 1000.0);
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,468 @@
+package pubsub;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+// Joins the broker to a full mesh of peer brokers (--cluster-port, --peers).
+//
+// Each node keeps one outbound link to every peer, and all its traffic for
+// that peer is multiplexed over it, whatever the topic or client: interest
+// announcements and forwarded messages, written by a link thread that drains
+// its outbox in batches and flushes once per batch. The peer's inbound side
+// only reads.
+//
+// Interest is the set of subscription patterns (exact or wildcard) with at
+// least one local subscriber. A node announces a pattern when its first
+// subscriber arrives and withdraws it when the last one leaves, and sends the
+// whole set whenever a link (re)connects. A locally published message crosses
+// to a peer only if one of the peer's patterns matches its topic. Messages
+// that came from a peer are delivered locally and never forwarded again, so
+// every node must list every other node as a peer.
+//
+// Forwarding is best effort: a message for a peer that is down, or whose
+// outbox is full, is dropped for that peer and counted.
+public class ClusterNode {
+    private static final byte HELLO = 1;            // UTF node id
+    private static final byte INTEREST_ADD = 2;     // UTF pattern
+    private static final byte INTEREST_REMOVE = 3;  // UTF pattern
+    private static final byte MESSAGE = 4;          // see writeMessage
+    
+    private static final byte HAS_KEY = 0x01;
+    private static final byte HAS_TRACE = 0x02;
+    private static final byte DEFLATED = 0x04;
+    
+    private static final int OUTBOX_CAPACITY = 65536;
+    private static final int WRITE_BATCH = 256;
+    private static final long RECONNECT_MILLIS = 1000;
+    
+    private final String nodeId;
+    private final int clusterPort;
+    private final ToIntFunction<String> topicIds;
+    private final Consumer<Message> delivery;
+    private final List<PeerLink> links = new ArrayList<>();
+    private final Map<String, PeerLink> linksByNode = new ConcurrentHashMap<>();
+    
+    // Patterns with local subscribers and how many; guarded by this
+    private final Map<String, Integer> localInterest = new HashMap<>();
+    // Each peer's announced patterns
+    private final TopicTrie<PeerInterest> remoteInterest = new TopicTrie<>();
+    private final Set<Socket> inbound = ConcurrentHashMap.newKeySet();
+    private volatile boolean running = true;
+    private ServerSocket serverSocket;
+    
+    // What one inbound connection announced, so it can be withdrawn when the peer goes away
+    private static class PeerInterest {
+        final String nodeId;
+        final Set<String> patterns = new HashSet<>();
+        
+        PeerInterest(String nodeId) {
+            this.nodeId = nodeId;
+        }
+    }
+    
+    private static class Outgoing {
+        final byte type;
+        final String pattern;
+        final Message message;
+        
+        Outgoing(byte type, String pattern, Message message) {
+            this.type = type;
+            this.pattern = pattern;
+            this.message = message;
+        }
+    }
+    
+    // Our connection to one peer, redialled while the node runs
+    private class PeerLink implements Runnable {
+        final InetSocketAddress address;
+        final String name; // host:port until the peer says who it is
+        // Bounded to OUTBOX_CAPACITY for messages only; interest changes are never dropped
+        final BlockingQueue<Outgoing> outbox = new LinkedBlockingQueue<>();
+        volatile String peerId;
+        volatile boolean connected;
+        volatile Socket socket;
+        volatile long forwarded; // written by the link thread only
+        final LongAdder dropped = new LongAdder();
+        
+        PeerLink(InetSocketAddress address) {
+            this.address = address;
+            this.name = address.getHostString() + ":" + address.getPort();
+        }
+        
+        @Override
+        public void run() {
+            while (running) {
+                try (Socket link = new Socket()) {
+                    // Resolved on every attempt, so a peer that comes up later is found
+                    link.connect(new InetSocketAddress(address.getHostString(), address.getPort()), (int) RECONNECT_MILLIS);
+                    link.setTcpNoDelay(true);
+                    socket = link;
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(link.getOutputStream(), 64 * 1024));
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(link.getInputStream()));
+                    out.writeByte(HELLO);
+                    out.writeUTF(nodeId);
+                    out.flush();
+                    if (in.readByte() != HELLO) {
+                        throw new IOException("unexpected reply to HELLO");
+                    }
+                    peerId = in.readUTF();
+                    linksByNode.put(peerId, this);
+                    connect();
+                    Log.info("Cluster link to " + peerId + " at " + name + " established");
+                    writeLoop(out);
+                } catch (IOException e) {
+                    if (connected) {
+                        Log.warn("Cluster link to " + (peerId != null ? peerId : name) + " lost: " + e.getMessage());
+                    }
+                } catch (InterruptedException e) {
+                    break;
+                } finally {
+                    disconnect();
+                }
+                sleepBeforeReconnect();
+            }
+        }
+        
+        // Start queueing, beginning with everything we are interested in
+        private void connect() {
+            synchronized (ClusterNode.this) {
+                drainOutbox();
+                for (String pattern : localInterest.keySet()) {
+                    outbox.offer(new Outgoing(INTEREST_ADD, pattern, null));
+                }
+                connected = true;
+            }
+        }
+        
+        private void disconnect() {
+            synchronized (ClusterNode.this) {
+                connected = false;
+            }
+            socket = null;
+            drainOutbox();
+        }
+        
+        // Messages raced in after the link went down are dropped like any other
+        private void drainOutbox() {
+            Outgoing pending;
+            while ((pending = outbox.poll()) != null) {
+                if (pending.message != null) {
+                    pending.message.release();
+                    dropped.increment();
+                }
+            }
+        }
+        
+        private void writeLoop(DataOutputStream out) throws IOException, InterruptedException {
+            List<Outgoing> batch = new ArrayList<>(WRITE_BATCH);
+            while (running) {
+                Outgoing first = outbox.poll(RECONNECT_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                outbox.drainTo(batch, WRITE_BATCH - 1);
+                try {
+                    for (Outgoing outgoing : batch) {
+                        out.writeByte(outgoing.type);
+                        if (outgoing.message != null) {
+                            writeMessage(out, outgoing.message);
+                            forwarded++;
+                        } else {
+                            out.writeUTF(outgoing.pattern);
+                        }
+                    }
+                    out.flush();
+                } finally {
+                    for (Outgoing outgoing : batch) {
+                        if (outgoing.message != null) {
+                            outgoing.message.release();
+                        }
+                    }
+                    batch.clear();
+                }
+            }
+        }
+        
+        // Interest changes are sent holding the node's lock, so they keep
+        // their order relative to the snapshot sent on connect
+        void send(Outgoing outgoing) {
+            if (outgoing.message == null) {
+                if (connected) {
+                    outbox.offer(outgoing);
+                }
+            } else if (!connected || outbox.size() >= OUTBOX_CAPACITY || !outbox.offer(outgoing)) {
+                outgoing.message.release();
+                dropped.increment();
+            }
+        }
+        
+        private void sleepBeforeReconnect() {
+            try {
+                Thread.sleep(RECONNECT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                running = false;
+            }
+        }
+    }
+    
+    // delivery fans a peer's message out to local subscribers and takes over its reference
+    public ClusterNode(String nodeId, int clusterPort, List<InetSocketAddress> peers,
+                       ToIntFunction<String> topicIds, Consumer<Message> delivery) {
+        this.nodeId = nodeId;
+        this.clusterPort = clusterPort;
+        this.topicIds = topicIds;
+        this.delivery = delivery;
+        for (InetSocketAddress peer : peers) {
+            links.add(new PeerLink(peer));
+        }
+    }
+    
+    // Parse "host:port,host:port"
+    public static List<InetSocketAddress> parsePeers(String value) {
+        List<InetSocketAddress> peers = new ArrayList<>();
+        for (String peer : value.split(",")) {
+            peer = peer.trim();
+            int colon = peer.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("Peers must be host:port, got '" + peer + "'");
+            }
+            try {
+                peers.add(InetSocketAddress.createUnresolved(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1))));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid port in peer '" + peer + "'");
+            }
+        }
+        return peers;
+    }
+    
+    public void start() throws IOException {
+        serverSocket = new ServerSocket(clusterPort);
+        Thread acceptor = new Thread(this::acceptLinks, "cluster-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (PeerLink link : links) {
+            Thread thread = new Thread(link, "cluster-link-" + link.name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        Log.info("Cluster node '" + nodeId + "' listening for peers on port " + clusterPort + " with " + links.size() + " peer(s)");
+    }
+    
+    public String getNodeId() {
+        return nodeId;
+    }
+    
+    // A local subscriber registered pattern
+    public synchronized void interestAdded(String pattern) {
+        if (localInterest.merge(pattern, 1, Integer::sum) == 1) {
+            for (PeerLink link : links) {
+                link.send(new Outgoing(INTEREST_ADD, pattern, null));
+            }
+        }
+    }
+    
+    // A local subscriber unregistered pattern
+    public synchronized void interestRemoved(String pattern) {
+        Integer count = localInterest.get(pattern);
+        if (count == null) {
+            return;
+        }
+        if (count > 1) {
+            localInterest.put(pattern, count - 1);
+            return;
+        }
+        localInterest.remove(pattern);
+        for (PeerLink link : links) {
+            link.send(new Outgoing(INTEREST_REMOVE, pattern, null));
+        }
+    }
+    
+    // Send a locally published message to every peer with matching interest.
+    // Returns the number of peers it was queued for.
+    public int forward(Message message) {
+        List<PeerInterest> interested = remoteInterest.match(message.getTopic());
+        if (interested.isEmpty()) {
+            return 0;
+        }
+        int queued = 0;
+        Set<String> seen = interested.size() > 1 ? new HashSet<>() : null;
+        for (PeerInterest peer : interested) {
+            if (seen != null && !seen.add(peer.nodeId)) {
+                continue; // several of its patterns match
+            }
+            PeerLink link = linksByNode.get(peer.nodeId);
+            if (link != null && link.connected) {
+                link.send(new Outgoing(MESSAGE, null, message.retain()));
+                queued++;
+            }
+        }
+        return queued;
+    }
+    
+    // One line per peer link for the topic status
+    public String status() {
+        StringBuilder status = new StringBuilder();
+        for (PeerLink link : links) {
+            status.append("  ").append(link.peerId != null ? link.peerId : "?").append(" at ").append(link.name)
+                    .append(link.connected ? ": connected" : ": down").append(", forwarded ").append(link.forwarded)
+                    .append(", dropped ").append(link.dropped.sum()).append(", outbox ").append(link.outbox.size()).append('\n');
+        }
+        return status.toString();
+    }
+    
+    public void shutdown() {
+        running = false;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            // Ignore
+        }
+        for (Socket socket : inbound) {
+            closeQuietly(socket);
+        }
+        for (PeerLink link : links) {
+            Socket socket = link.socket;
+            if (socket != null) {
+                closeQuietly(socket);
+            }
+        }
+    }
+    
+    private void acceptLinks() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread reader = new Thread(() -> readLink(socket), "cluster-in-" + socket.getRemoteSocketAddress());
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                if (running) {
+                    Log.error("Cluster accept failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+    
+    // A peer's outbound link: its interest announcements and forwarded messages
+    private void readLink(Socket socket) {
+        inbound.add(socket);
+        PeerInterest peer = null;
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            if (in.readByte() != HELLO) {
+                Log.warn("Ignoring cluster connection from " + socket.getRemoteSocketAddress() + " without HELLO");
+                return;
+            }
+            peer = new PeerInterest(in.readUTF());
+            out.writeByte(HELLO);
+            out.writeUTF(nodeId);
+            out.flush();
+            
+            while (running) {
+                byte type = in.readByte();
+                switch (type) {
+                    case INTEREST_ADD: {
+                        String pattern = in.readUTF();
+                        if (peer.patterns.add(pattern)) {
+                            remoteInterest.add(pattern, peer);
+                        }
+                        break;
+                    }
+                    case INTEREST_REMOVE: {
+                        String pattern = in.readUTF();
+                        if (peer.patterns.remove(pattern)) {
+                            remoteInterest.remove(pattern, peer);
+                        }
+                        break;
+                    }
+                    case MESSAGE:
+                        delivery.accept(readMessage(in));
+                        break;
+                    default:
+                        throw new IOException("unknown cluster frame type " + type);
+                }
+            }
+        } catch (EOFException e) {
+            // Peer closed the link
+        } catch (IOException e) {
+            if (running) {
+                Log.warn("Cluster link from " + (peer != null ? peer.nodeId : socket.getRemoteSocketAddress()) + " failed: " + e.getMessage());
+            }
+        } finally {
+            inbound.remove(socket);
+            if (peer != null) {
+                for (String pattern : peer.patterns) {
+                    remoteInterest.remove(pattern, peer);
+                }
+            }
+        }
+    }
+    
+    // flags, topic, sender, [key], [trace], payload length and bytes (deflated
+    // if the message arrived that way, so peers need not inflate it either)
+    private static void writeMessage(DataOutputStream out, Message message) throws IOException {
+        String key = message.getKey();
+        Trace trace = message.getTrace();
+        byte[] compressed = message.getCompressed();
+        out.writeByte((key != null ? HAS_KEY : 0) | (trace != null ? HAS_TRACE : 0) | (compressed != null ? DEFLATED : 0));
+        out.writeUTF(message.getTopic());
+        out.writeUTF(message.getSenderAddr());
+        if (key != null) {
+            out.writeUTF(key);
+        }
+        if (trace != null) {
+            out.writeLong(trace.source);
+            out.writeLong(trace.seq);
+            out.writeLong(trace.publishMicros);
+            out.writeLong(trace.ingressMicros);
+            out.writeLong(trace.egressMicros);
+        }
+        byte[] payload = compressed != null ? compressed : message.getPayload();
+        out.writeInt(payload.length);
+        out.write(payload);
+    }
+    
+    private Message readMessage(DataInputStream in) throws IOException {
+        byte flags = in.readByte();
+        String topic = in.readUTF();
+        String sender = in.readUTF();
+        String key = (flags & HAS_KEY) != 0 ? in.readUTF() : null;
+        Trace trace = null;
+        if ((flags & HAS_TRACE) != 0) {
+            trace = new Trace(in.readLong(), in.readLong(), in.readLong(), in.readLong(), in.readLong());
+        }
+        int length = in.readInt();
+        if (length < 0 || length > BinaryProtocol.MAX_FRAME_LENGTH) {
+            throw new IOException("invalid forwarded message length " + length);
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        int topicId = topicIds.applyAsInt(topic);
+        Message message = (flags & DEFLATED) != 0
+                ? Message.fromCompressed(topic, topicId, sender, payload)
+                : Message.fromBytes(topic, topicId, sender, payload);
+        message.setKey(key);
+        message.setTrace(trace);
+        return message;
+    }
+    
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,159 @@
+package pubsub;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+// Key compaction throughput and its effect on publish latency. Three runs on
+// fresh logs of keyed records (--keys distinct keys, uniformly updated):
+//   standalone  - fill a log, then time one compaction pass over it alone
+//   baseline    - append at --rate with no compactor, recording each append's latency
+//   compacting  - the same appends while a compactor thread runs back to back
+// Run it with --dir on the disk the broker will use: /tmp is often tmpfs.
+//
+// Usage: java pubsub.CompactionBenchmark [--dir compaction-benchmark] [--messages 1000000] [--keys 10000]
+//        [--size 200] [--rate 100000] [--segment-bytes 4194304] [--index-bytes 16777216]
+public class CompactionBenchmark {
+    private static final String TOPIC = "compaction";
+    
+    public static void main(String[] args) throws Exception {
+        Path dir = Paths.get("compaction-benchmark");
+        int messages = 1_000_000;
+        int keys = 10_000;
+        int size = 200;
+        int rate = 100_000;
+        int segmentBytes = 4 * 1024 * 1024;
+        long indexBytes = LogCompactor.DEFAULT_INDEX_BYTES;
+        
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--dir":
+                    dir = Paths.get(args[i + 1]);
+                    break;
+                case "--messages":
+                    messages = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--keys":
+                    keys = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--size":
+                    size = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--rate":
+                    rate = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--segment-bytes":
+                    segmentBytes = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--index-bytes":
+                    indexBytes = Long.parseLong(args[i + 1]);
+                    break;
+                default:
+                    System.out.println("Unknown option " + args[i]);
+                    System.exit(1);
+            }
+        }
+        
+        byte[] payload = new byte[size];
+        new Random(42).nextBytes(payload);
+        System.out.println("Directory: " + dir.toAbsolutePath() + ", " + messages + " messages of " + size + " bytes over "
+                + keys + " keys, segments " + segmentBytes + " bytes");
+        
+        // Standalone: how fast one pass gets through a full log
+        Path runDir = dir.resolve("standalone");
+        deleteRecursively(runDir);
+        MessageStore store = new MessageStore(runDir, segmentBytes, FsyncPolicy.parse("never"), -1, -1);
+        try {
+            TopicLog log = store.log(TOPIC);
+            Random random = new Random(7);
+            for (int m = 0; m < messages; m++) {
+                log.append(System.currentTimeMillis(), (byte) 0, "benchmark", "key-" + random.nextInt(keys), payload);
+            }
+            long before = log.getSizeBytes();
+            LogCompactor compactor = new LogCompactor(indexBytes, LogCompactor.DEFAULT_TOMBSTONE_RETENTION_MILLIS);
+            long start = System.nanoTime();
+            long removed = compactor.compact(log, System.currentTimeMillis());
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("standalone: %d records removed in %.2f s (%.0f records/s, %.1f MB/s scanned), log %d -> %d bytes in %d segment(s)%n",
+                    removed, seconds, messages / seconds, compactor.getBytesScanned() / seconds / (1024 * 1024),
+                    before, log.getSizeBytes(), log.getSegmentCount());
+        } finally {
+            store.close();
+            deleteRecursively(runDir);
+        }
+        
+        System.out.printf("%-12s %10s %12s %12s %12s %12s %12s %12s%n",
+                "run", "msgs/s", "p50 us", "p99 us", "p99.9 us", "max us", "passes", "final bytes");
+        for (boolean compacting : new boolean[] {false, true}) {
+            runDir = dir.resolve(compacting ? "compacting" : "baseline");
+            deleteRecursively(runDir);
+            store = new MessageStore(runDir, segmentBytes, FsyncPolicy.parse("never"), -1, -1);
+            LogCompactor compactor = new LogCompactor(indexBytes, LogCompactor.DEFAULT_TOMBSTONE_RETENTION_MILLIS);
+            Thread compactorThread = null;
+            try {
+                TopicLog log = store.log(TOPIC);
+                if (compacting) {
+                    compactorThread = new Thread(() -> {
+                        while (!Thread.currentThread().isInterrupted()) {
+                            try {
+                                if (compactor.compact(log, System.currentTimeMillis()) == 0) {
+                                    Thread.sleep(1);
+                                }
+                            } catch (IOException e) {
+                                System.out.println("Compaction failed: " + e.getMessage());
+                                return;
+                            } catch (InterruptedException e) {
+                                return;
+                            }
+                        }
+                    }, "log-compactor");
+                    compactorThread.start();
+                }
+                
+                LatencyHistogram latency = new LatencyHistogram();
+                Random random = new Random(7);
+                long interval = rate > 0 ? 1_000_000_000L / rate : 0;
+                long start = System.nanoTime();
+                long next = start;
+                for (int m = 0; m < messages; m++) {
+                    if (interval > 0) {
+                        next += interval;
+                        long wait = next - System.nanoTime();
+                        if (wait > 0) {
+                            LockSupport.parkNanos(wait);
+                        }
+                    }
+                    String key = "key-" + random.nextInt(keys);
+                    long before = System.nanoTime();
+                    log.append(System.currentTimeMillis(), (byte) 0, "benchmark", key, payload);
+                    latency.record(System.nanoTime() - before);
+                }
+                double seconds = (System.nanoTime() - start) / 1e9;
+                if (compactorThread != null) {
+                    compactorThread.interrupt();
+                    compactorThread.join();
+                }
+                System.out.printf("%-12s %10.0f %12.1f %12.1f %12.1f %12.1f %12d %12d%n",
+                        compacting ? "compacting" : "baseline", messages / seconds,
+                        latency.percentile(50) / 1e3, latency.percentile(99) / 1e3, latency.percentile(99.9) / 1e3,
+                        latency.getMax() / 1e3, compactor.getPasses(), log.getSizeBytes());
+            } finally {
+                store.close();
+                deleteRecursively(runDir);
+            }
+        }
+    }
+    
+    private static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(path)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,86 @@
+package pubsub;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Payload compression, negotiated per binary connection with
+// "compress=deflate" in the handshake. On such a connection the payload of
+// every message frame (after any delivery id, trace header and key) starts
+// with a codec byte: CODEC_NONE followed by the raw bytes, or CODEC_DEFLATE
+// followed by a raw deflate stream. Payloads under the sender's threshold go
+// raw, as do ones that deflate would not make smaller.
+//
+// The broker keeps a deflated payload as it arrived and hands the same bytes
+// to every compressing subscriber; it only inflates (once) for a subscriber,
+// log reader or peer that needs the raw bytes.
+public final class Compression {
+    public static final byte CODEC_NONE = 0;
+    public static final byte CODEC_DEFLATE = 1;
+    public static final int DEFAULT_THRESHOLD = 1024;
+    
+    // Deflater and Inflater hold native buffers; each thread reuses its own
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED, true));
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(() -> new Inflater(true));
+    
+    private Compression() {
+    }
+    
+    // The codec named in a handshake: "deflate", or "none" for no compression
+    public static boolean parse(String codec) {
+        switch (codec.toLowerCase()) {
+            case "deflate":
+                return true;
+            case "none":
+                return false;
+            default:
+                throw new IllegalArgumentException("Unknown compression codec '" + codec + "' (expected deflate or none)");
+        }
+    }
+    
+    // The deflated bytes, or null if they would be no smaller than the input
+    public static byte[] deflate(byte[] data) {
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+        byte[] out = new byte[data.length];
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == out.length) {
+                return null;
+            }
+            length += deflater.deflate(out, length, out.length - length);
+        }
+        return length < data.length ? Arrays.copyOf(out, length) : null;
+    }
+    
+    // Inflate a raw deflate stream, refusing to expand past the largest frame
+    // so a small frame cannot inflate without bound
+    public static byte[] inflate(byte[] data) {
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setInput(data);
+        byte[] out = new byte[Math.min(BinaryProtocol.MAX_FRAME_LENGTH, Math.max(64, data.length * 4))];
+        int length = 0;
+        try {
+            while (!inflater.finished()) {
+                if (length == out.length) {
+                    if (out.length == BinaryProtocol.MAX_FRAME_LENGTH) {
+                        throw new IllegalArgumentException("Compressed payload inflates past " + BinaryProtocol.MAX_FRAME_LENGTH + " bytes");
+                    }
+                    out = Arrays.copyOf(out, Math.min(BinaryProtocol.MAX_FRAME_LENGTH, out.length * 2));
+                }
+                int inflated = inflater.inflate(out, length, out.length - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("Truncated compressed payload");
+                }
+                length += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt compressed payload: " + e.getMessage());
+        }
+        return length == out.length ? out : Arrays.copyOf(out, length);
+    }
+}
\ No newline at end of file
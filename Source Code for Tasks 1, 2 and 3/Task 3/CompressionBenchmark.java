@@ -0,0 +1,291 @@
+package pubsub;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Compression benchmark over loopback. Starts the broker as a child process,
+// then for every payload size and fan-out factor publishes the same JSON-like
+// messages twice from one binary publisher to that many binary subscribers:
+// once uncompressed and once with "compress=deflate" on every connection.
+// Reports the bytes on the wire per message in (publisher to broker) and out
+// (per delivery), delivery throughput, and CPU time per message for the
+// broker and for this process (which deflates as publisher and inflates as
+// every subscriber).
+//
+// Usage: java pubsub.CompressionBenchmark [--sizes 256,4096,65536] [--fanouts 1,8,32]
+//                                         [--messages 2000] [--threshold 1024] [--port 5300]
+// --threshold is both the broker's --compress-threshold and the publisher's.
+public class CompressionBenchmark {
+    private static final long DELIVERY_TIMEOUT_MILLIS = 120_000;
+    private static final String[] LEVELS = {"INFO", "INFO", "INFO", "WARN", "DEBUG", "ERROR"};
+    private static final String[] SERVICES = {"orders", "payments", "inventory", "shipping"};
+    
+    // Counts the bytes read through it, so wire bytes include frame headers
+    private static class CountingInputStream extends FilterInputStream {
+        final AtomicLong count;
+        
+        CountingInputStream(InputStream in, AtomicLong count) {
+            super(in);
+            this.count = count;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count.incrementAndGet();
+            }
+            return b;
+        }
+        
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = super.read(buffer, offset, length);
+            if (n > 0) {
+                count.addAndGet(n);
+            }
+            return n;
+        }
+    }
+    
+    // One binary subscriber, decoding every payload as a real client would
+    private static class Subscriber extends Thread {
+        final Socket socket;
+        final boolean compress;
+        final AtomicLong wireBytes;
+        final AtomicLong received;
+        
+        Subscriber(int port, String topic, boolean compress, AtomicLong wireBytes, AtomicLong received) throws IOException {
+            this.socket = new Socket("127.0.0.1", port);
+            this.compress = compress;
+            this.wireBytes = wireBytes;
+            this.received = received;
+            socket.setTcpNoDelay(true);
+            OutputStream out = socket.getOutputStream();
+            out.write(BinaryProtocol.MAGIC);
+            out.write(("SUBSCRIBER:" + topic + (compress ? ":compress=deflate" : "") + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            setDaemon(true);
+        }
+        
+        @Override
+        public void run() {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(new CountingInputStream(socket.getInputStream(), wireBytes), 64 * 1024));
+                BinaryProtocol.Frame frame;
+                while ((frame = BinaryProtocol.readFrame(in)) != null) {
+                    if (frame.hasFlag(BinaryProtocol.FLAG_CONTROL)) {
+                        continue;
+                    }
+                    if (compress && frame.payload[0] == Compression.CODEC_DEFLATE) {
+                        Compression.inflate(Arrays.copyOfRange(frame.payload, 1, frame.payload.length));
+                    }
+                    received.incrementAndGet();
+                }
+            } catch (IOException e) {
+                // Closed at the end of the run
+            }
+        }
+        
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+    
+    public static void main(String[] args) throws Exception {
+        int[] sizes = {256, 4096, 65536};
+        int[] fanouts = {1, 8, 32};
+        int messages = 2000;
+        int threshold = Compression.DEFAULT_THRESHOLD;
+        int port = 5300;
+        
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--sizes":
+                    sizes = Arrays.stream(args[i + 1].split(",")).mapToInt(Integer::parseInt).toArray();
+                    break;
+                case "--fanouts":
+                    fanouts = Arrays.stream(args[i + 1].split(",")).mapToInt(Integer::parseInt).toArray();
+                    break;
+                case "--messages":
+                    messages = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--threshold":
+                    threshold = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--port":
+                    port = Integer.parseInt(args[i + 1]);
+                    break;
+                default:
+                    System.out.println("Unknown option " + args[i]);
+                    System.exit(1);
+            }
+        }
+        
+        Log.setLevel(Log.Level.WARN);
+        Process broker = startServer(port, threshold);
+        try {
+            waitForPort(port);
+            System.out.printf("%8s %7s %7s %11s %11s %10s %12s %14s %14s%n",
+                    "size", "fanout", "codec", "in B/msg", "out B/dlv", "ratio", "dlv/s", "broker us/msg", "client us/msg");
+            int run = 0;
+            for (int size : sizes) {
+                List<byte[]> payloads = payloads(size, messages);
+                for (int fanout : fanouts) {
+                    double rawOut = 0;
+                    for (boolean compress : new boolean[] {false, true}) {
+                        String topic = "compress/" + run++;
+                        double[] result = runOne(broker, port, topic, payloads, fanout, compress, threshold);
+                        if (!compress) {
+                            rawOut = result[1];
+                        }
+                        System.out.printf("%8d %7d %7s %11.0f %11.0f %9.2fx %12.0f %14.1f %14.1f%n",
+                                size, fanout, compress ? "deflate" : "none", result[0], result[1],
+                                result[1] > 0 ? rawOut / result[1] : 0, result[2], result[3], result[4]);
+                    }
+                }
+            }
+        } finally {
+            broker.destroy();
+            broker.waitFor();
+        }
+    }
+    
+    // { in bytes per message, out bytes per delivery, deliveries per second,
+    //   broker CPU micros per message, client CPU micros per message }
+    private static double[] runOne(Process broker, int port, String topic, List<byte[]> payloads, int fanout,
+                                   boolean compress, int threshold) throws Exception {
+        AtomicLong wireOut = new AtomicLong();
+        AtomicLong received = new AtomicLong();
+        List<Subscriber> subscribers = new ArrayList<>();
+        for (int i = 0; i < fanout; i++) {
+            Subscriber subscriber = new Subscriber(port, topic, compress, wireOut, received);
+            subscriber.start();
+            subscribers.add(subscriber);
+        }
+        
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            socket.setTcpNoDelay(true);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+            out.write(BinaryProtocol.MAGIC);
+            out.write(("PUBLISHER:" + topic + (compress ? ":compress=deflate" : "") + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            BinaryProtocol.Frame announcement = BinaryProtocol.readFrame(new DataInputStream(socket.getInputStream()));
+            int topicId = announcement.topicId;
+            // Give the broker a moment to register the subscribers before the first message
+            Thread.sleep(500);
+            
+            long brokerCpuStart = cpuNanos(broker.toHandle());
+            long clientCpuStart = clientCpuNanos();
+            long start = System.nanoTime();
+            long wireIn = 0;
+            for (byte[] payload : payloads) {
+                byte[] body = payload;
+                if (compress) {
+                    byte[] deflated = payload.length >= threshold ? Compression.deflate(payload) : null;
+                    body = new byte[1 + (deflated != null ? deflated.length : payload.length)];
+                    body[0] = deflated != null ? Compression.CODEC_DEFLATE : Compression.CODEC_NONE;
+                    System.arraycopy(deflated != null ? deflated : payload, 0, body, 1, body.length - 1);
+                }
+                BinaryProtocol.writeFrame(out, topicId, (byte) 0, body);
+                wireIn += 4 + BinaryProtocol.HEADER_LENGTH + body.length;
+            }
+            out.flush();
+            
+            long expected = (long) payloads.size() * fanout;
+            long deadline = System.currentTimeMillis() + DELIVERY_TIMEOUT_MILLIS;
+            while (received.get() < expected && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            long brokerCpu = cpuNanos(broker.toHandle()) - brokerCpuStart;
+            long clientCpu = clientCpuNanos() - clientCpuStart;
+            if (received.get() < expected) {
+                System.out.println("  Only " + received.get() + " of " + expected + " deliveries arrived on " + topic);
+            }
+            
+            int count = payloads.size();
+            return new double[] {
+                    (double) wireIn / count,
+                    received.get() > 0 ? (double) wireOut.get() / received.get() : 0,
+                    received.get() / seconds,
+                    brokerCpu / 1e3 / count,
+                    clientCpu / 1e3 / count,
+            };
+        } finally {
+            for (Subscriber subscriber : subscribers) {
+                subscriber.close();
+            }
+        }
+    }
+    
+    // Structured log records, as many as fit in size bytes, with varying fields
+    // so deflate sees realistic repetition rather than one repeated string
+    private static List<byte[]> payloads(int size, int count) {
+        Random random = new Random(42);
+        List<byte[]> payloads = new ArrayList<>(count);
+        for (int m = 0; m < count; m++) {
+            StringBuilder json = new StringBuilder(size + 160).append('[');
+            while (json.length() < size) {
+                if (json.length() > 1) {
+                    json.append(',');
+                }
+                json.append("{\"ts\":").append(1_700_000_000_000L + random.nextInt(1_000_000))
+                        .append(",\"level\":\"").append(LEVELS[random.nextInt(LEVELS.length)])
+                        .append("\",\"service\":\"").append(SERVICES[random.nextInt(SERVICES.length)])
+                        .append("\",\"host\":\"node-").append(random.nextInt(16))
+                        .append("\",\"order\":").append(random.nextInt(100_000))
+                        .append(",\"latency_ms\":").append(random.nextInt(500))
+                        .append(",\"msg\":\"request completed\"}");
+            }
+            json.setLength(size - 1);
+            json.append(']');
+            payloads.add(json.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        return payloads;
+    }
+    
+    private static long cpuNanos(ProcessHandle process) {
+        return process.info().totalCpuDuration().map(Duration::toNanos).orElse(0L);
+    }
+    
+    private static long clientCpuNanos() {
+        if (ManagementFactory.getOperatingSystemMXBean() instanceof com.sun.management.OperatingSystemMXBean os) {
+            return os.getProcessCpuTime();
+        }
+        return 0;
+    }
+    
+    private static Process startServer(int port, int threshold) throws IOException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                PubSubServer.class.getName(), String.valueOf(port),
+                "--overflow-policy", "block", "--block-timeout-ms", "60000",
+                "--compress-threshold", String.valueOf(threshold), "--jmx", "false", "--log-level", "warn");
+        builder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+        builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        return builder.start();
+    }
+    
+    private static void waitForPort(int port) throws InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try (Socket probe = new Socket("127.0.0.1", port)) {
+                probe.getOutputStream().write("terminate\n".getBytes(StandardCharsets.UTF_8));
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("Server did not start on port " + port);
+    }
+}
\ No newline at end of file
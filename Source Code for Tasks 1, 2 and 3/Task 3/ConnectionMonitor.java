@@ -0,0 +1,173 @@
+package pubsub;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Heartbeats and idle timeouts for every connection, driven by one TimerWheel
+// on one timer thread rather than a sleeping thread per connection.
+//
+// Each connection has a single wheel entry: the next time it needs looking
+// at. Handlers only stamp the coarse clock() on their connection whenever
+// something arrives, which is a field write, never a wheel operation. When the
+// entry comes round, a connection silent for the heartbeat interval is sent a
+// PING (answered with a PONG, which counts as traffic) and one silent for the
+// idle timeout is expired; otherwise the entry moves to the new deadline. So
+// the cost is one wheel entry and at most one visit per heartbeat interval per
+// connection, whatever is flowing, and 100k idle connections at a 15 s
+// interval are well under 10k visits a second.
+public class ConnectionMonitor {
+    public static final long TICK_MILLIS = 100;
+    private static final int WHEEL_SLOTS = 1024; // one revolution is about 100 s
+    
+    // What the monitor needs from a connection. heartbeat() and expire() run on
+    // the timer thread and must not block on the connection's socket.
+    public interface Connection {
+        // clock() when the connection last sent anything
+        long lastReceived();
+        
+        // Send a PING, so a live peer answers
+        void heartbeat();
+        
+        // Close the connection, which has been silent for idleMillis
+        void expire(long idleMillis);
+    }
+    
+    private final long heartbeatMillis;   // 0 sends no heartbeats
+    private final long idleTimeoutMillis; // 0 never expires connections
+    private final Map<Long, Connection> connections = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final TimerWheel wheel; // guarded by itself
+    private volatile long clock;
+    private ScheduledExecutorService timer;
+    
+    // Due entries of the current tick; only touched by the timer thread
+    private long[] due = new long[64];
+    private long[] nextCheck = new long[64];
+    private int dueCount = 0;
+    
+    private volatile long heartbeatsSent = 0;
+    private volatile long connectionsExpired = 0;
+    
+    public ConnectionMonitor(long heartbeatMillis, long idleTimeoutMillis) {
+        this.heartbeatMillis = heartbeatMillis;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.clock = System.currentTimeMillis();
+        this.wheel = new TimerWheel(WHEEL_SLOTS, TICK_MILLIS, clock);
+    }
+    
+    public void start() {
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "connection-monitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleWithFixedDelay(this::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+    
+    public void stop() {
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+        connections.clear();
+    }
+    
+    // Wall-clock milliseconds as of the last tick, cheap enough to read per message
+    public long clock() {
+        return clock;
+    }
+    
+    // Start watching a connection whose lastReceived() is about now. Returns
+    // its id for unregister().
+    public long register(Connection connection) {
+        long id = nextId.getAndIncrement();
+        connections.put(id, connection);
+        synchronized (wheel) {
+            wheel.schedule(id, clock + firstCheckMillis());
+        }
+        return id;
+    }
+    
+    // Its wheel entry stays until it comes round, and is ignored then
+    public void unregister(long id) {
+        connections.remove(id);
+    }
+    
+    private long firstCheckMillis() {
+        return heartbeatMillis > 0 ? heartbeatMillis : idleTimeoutMillis;
+    }
+    
+    private void tick() {
+        try {
+            long now = System.currentTimeMillis();
+            clock = now;
+            dueCount = 0;
+            synchronized (wheel) {
+                wheel.advance(now, this::collect);
+            }
+            for (int i = 0; i < dueCount; i++) {
+                nextCheck[i] = check(due[i], now);
+            }
+            // The wheel may not be scheduled on while it fires entries, so this comes after
+            synchronized (wheel) {
+                for (int i = 0; i < dueCount; i++) {
+                    if (nextCheck[i] > 0) {
+                        wheel.schedule(due[i], nextCheck[i]);
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            Log.error("Connection monitor tick failed: " + e);
+        }
+    }
+    
+    private void collect(long id) {
+        if (dueCount == due.length) {
+            due = Arrays.copyOf(due, dueCount * 2);
+            nextCheck = Arrays.copyOf(nextCheck, dueCount * 2);
+        }
+        due[dueCount++] = id;
+    }
+    
+    // Heartbeat or expire one connection as needed. Returns when to look at it
+    // next, or 0 once it is gone.
+    private long check(long id, long now) {
+        Connection connection = connections.get(id);
+        if (connection == null) {
+            return 0;
+        }
+        long last = connection.lastReceived();
+        long idle = now - last;
+        if (idleTimeoutMillis > 0 && idle >= idleTimeoutMillis) {
+            connections.remove(id);
+            connectionsExpired++;
+            connection.expire(idle);
+            return 0;
+        }
+        long next;
+        if (heartbeatMillis > 0 && idle >= heartbeatMillis) {
+            connection.heartbeat();
+            heartbeatsSent++;
+            next = now + heartbeatMillis;
+        } else {
+            next = last + firstCheckMillis();
+        }
+        if (idleTimeoutMillis > 0) {
+            next = Math.min(next, last + idleTimeoutMillis);
+        }
+        return Math.max(next, now + TICK_MILLIS);
+    }
+    
+    public int getConnectionCount() {
+        return connections.size();
+    }
+    
+    public long getHeartbeatsSent() {
+        return heartbeatsSent;
+    }
+    
+    public long getConnectionsExpired() {
+        return connectionsExpired;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,262 @@
+package pubsub;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// Connection-scaling benchmark for the blocking and nio transports.
+// Starts the server as a child process, opens N subscriber connections from a
+// single selector in this process, then reports the server's resident memory
+// and thread count while idle, and delivery throughput once publishers start.
+//
+// Usage: java pubsub.ConnectionScalingBenchmark [--transports blocking,nio] [--counts 1000,10000,50000]
+//                                        [--topics 10] [--messages 20] [--port 5100]
+// Needs "ulimit -n" above the largest count. Server statistics come from /proc (Linux only).
+// Past ~28k connections the client binds extra loopback addresses (127.0.0.2, ...)
+// to avoid running out of ephemeral ports.
+public class ConnectionScalingBenchmark {
+    private static final int CONNECTIONS_PER_SOURCE_ADDRESS = 25000;
+    private static final long DELIVERY_TIMEOUT_MILLIS = 120_000;
+    
+    private static class Result {
+        String transport;
+        int requested;
+        int connected;
+        long baselineRssKb;
+        long idleRssKb;
+        long activeRssKb;
+        long idleThreads;
+        long delivered;
+        long expected;
+        double deliveriesPerSecond;
+    }
+    
+    public static void main(String[] args) throws Exception {
+        List<String> transports = Arrays.asList("blocking", "nio");
+        int[] counts = {1000, 5000, 10000, 50000};
+        int topics = 10;
+        int messages = 20;
+        int port = 5100;
+        
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--transports":
+                    transports = Arrays.asList(args[i + 1].split(","));
+                    break;
+                case "--counts":
+                    counts = Arrays.stream(args[i + 1].split(",")).mapToInt(Integer::parseInt).toArray();
+                    break;
+                case "--topics":
+                    topics = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--messages":
+                    messages = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--port":
+                    port = Integer.parseInt(args[i + 1]);
+                    break;
+                default:
+                    System.out.println("Unknown option " + args[i]);
+                    System.exit(1);
+            }
+        }
+        
+        List<Result> results = new ArrayList<>();
+        for (String transport : transports) {
+            for (int count : counts) {
+                System.out.println("Running " + transport + " with " + count + " connections...");
+                results.add(run(transport, count, topics, messages, port++));
+            }
+        }
+        
+        System.out.println();
+        System.out.printf("%-9s %8s %9s %10s %10s %9s %9s %14s%n",
+                "transport", "conns", "connected", "idle KB/c", "active KB/c", "threads", "delivered", "deliveries/s");
+        for (Result r : results) {
+            double idlePerConn = r.connected == 0 ? 0 : (double) (r.idleRssKb - r.baselineRssKb) / r.connected;
+            double activePerConn = r.connected == 0 ? 0 : (double) (r.activeRssKb - r.baselineRssKb) / r.connected;
+            System.out.printf("%-9s %8d %9d %10.1f %10.1f %9d %8d%% %14.0f%n",
+                    r.transport, r.requested, r.connected, idlePerConn, activePerConn, r.idleThreads,
+                    r.expected == 0 ? 0 : r.delivered * 100 / r.expected, r.deliveriesPerSecond);
+        }
+    }
+    
+    private static Result run(String transport, int count, int topics, int messages, int port) throws Exception {
+        Result result = new Result();
+        result.transport = transport;
+        result.requested = count;
+        
+        Process server = startServer(transport, port);
+        List<SocketChannel> channels = new ArrayList<>();
+        Selector selector = Selector.open();
+        try {
+            waitForPort(port);
+            Thread.sleep(500);
+            result.baselineRssKb = procStatus(server.pid(), "VmRSS");
+            
+            result.connected = connectSubscribers(selector, channels, count, topics, port);
+            Thread.sleep(2000);
+            result.idleRssKb = procStatus(server.pid(), "VmRSS");
+            result.idleThreads = procStatus(server.pid(), "Threads");
+            
+            // Active phase: one publisher per topic, every subscriber of that topic receives each message
+            int perTopic = result.connected / topics;
+            int remainder = result.connected % topics;
+            result.expected = 0;
+            for (int t = 0; t < topics; t++) {
+                result.expected += (long) messages * (perTopic + (t < remainder ? 1 : 0));
+            }
+            
+            final int publisherPort = port;
+            final int topicCount = topics;
+            final int messageCount = messages;
+            Thread publisherThread = new Thread(() -> publish(publisherPort, topicCount, messageCount));
+            
+            long start = System.nanoTime();
+            publisherThread.start();
+            result.delivered = awaitDeliveries(selector, result.expected);
+            long elapsed = System.nanoTime() - start;
+            // The publisher holds its sockets open until interrupted
+            publisherThread.interrupt();
+            publisherThread.join();
+            
+            result.activeRssKb = procStatus(server.pid(), "VmRSS");
+            result.deliveriesPerSecond = result.delivered / (elapsed / 1e9);
+        } finally {
+            for (SocketChannel channel : channels) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+            selector.close();
+            server.destroy();
+            server.waitFor();
+        }
+        return result;
+    }
+    
+    private static Process startServer(String transport, int port) throws IOException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                PubSubServer.class.getName(), String.valueOf(port), "--transport", transport);
+        builder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+        builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        return builder.start();
+    }
+    
+    private static void waitForPort(int port) throws InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try (Socket probe = new Socket("127.0.0.1", port)) {
+                probe.getOutputStream().write("terminate\n".getBytes(StandardCharsets.UTF_8));
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("Server did not start on port " + port);
+    }
+    
+    private static int connectSubscribers(Selector selector, List<SocketChannel> channels, int count, int topics, int port) {
+        InetSocketAddress target = new InetSocketAddress("127.0.0.1", port);
+        try {
+            for (int i = 0; i < count; i++) {
+                SocketChannel channel = SocketChannel.open();
+                int source = 1 + i / CONNECTIONS_PER_SOURCE_ADDRESS;
+                if (source > 1) {
+                    channel.bind(new InetSocketAddress("127.0.0." + source, 0));
+                }
+                channel.connect(target);
+                String handshake = "SUBSCRIBER:topic-" + (i % topics) + "\n";
+                channel.write(ByteBuffer.wrap(handshake.getBytes(StandardCharsets.UTF_8)));
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ);
+                channels.add(channel);
+            }
+        } catch (IOException e) {
+            System.out.println("  Stopped at " + channels.size() + " connections: " + e.getMessage());
+        }
+        return channels.size();
+    }
+    
+    private static void publish(int port, int topics, int messages) {
+        List<Socket> sockets = new ArrayList<>();
+        try {
+            List<PrintWriter> writers = new ArrayList<>();
+            for (int t = 0; t < topics; t++) {
+                Socket socket = new Socket("127.0.0.1", port);
+                sockets.add(socket);
+                PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+                out.println("PUBLISHER:topic-" + t);
+                writers.add(out);
+            }
+            // Give the server a moment to register the publishers before the first message
+            Thread.sleep(200);
+            for (int m = 0; m < messages; m++) {
+                for (PrintWriter out : writers) {
+                    out.println("benchmark message " + m);
+                }
+            }
+            Thread.sleep(DELIVERY_TIMEOUT_MILLIS);
+        } catch (IOException | InterruptedException e) {
+            // Interrupted once deliveries are complete or timed out
+        } finally {
+            for (Socket socket : sockets) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+    
+    // Count newline-terminated messages arriving on every subscriber channel
+    private static long awaitDeliveries(Selector selector, long expected) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        long delivered = 0;
+        long deadline = System.currentTimeMillis() + DELIVERY_TIMEOUT_MILLIS;
+        while (delivered < expected && System.currentTimeMillis() < deadline) {
+            if (selector.select(1000) == 0) {
+                continue;
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                SocketChannel channel = (SocketChannel) key.channel();
+                buffer.clear();
+                int n = channel.read(buffer);
+                if (n < 0) {
+                    key.cancel();
+                    continue;
+                }
+                for (int i = 0; i < n; i++) {
+                    if (buffer.get(i) == '\n') {
+                        delivered++;
+                    }
+                }
+            }
+        }
+        return delivered;
+    }
+    
+    // Read a numeric field such as "VmRSS" or "Threads" from /proc/<pid>/status
+    private static long procStatus(long pid, String field) {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/" + pid + "/status"))) {
+                if (line.startsWith(field + ":")) {
+                    return Long.parseLong(line.substring(field.length() + 1).trim().split("\\s+")[0]);
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Not Linux, or the process is gone
+        }
+        return -1;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,151 @@
+package pubsub;
+
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A shared subscription, e.g. "SUBSCRIBER:orders:group=workers": the members
+// split the subscription's messages, and each message goes to exactly one of
+// them. The group sits in the topic registries like a single subscriber and
+// picks the member for each message in constant time under its DispatchStrategy.
+//
+// Membership changes are rare next to messages, so they rebuild immutable
+// arrays that pick() reads without locking. Key-hash dispatch hashes keys
+// onto a fixed table of PARTITIONS slots, each owned by one member. A join or
+// leave only moves the slots that have to change hands, so a key keeps going
+// to the same member for as long as that member stays.
+public class ConsumerGroup {
+    public static final int PARTITIONS = 256;
+    
+    private final String name;
+    private final String subscription;
+    private final DispatchStrategy strategy;
+    private final AtomicInteger next = new AtomicInteger();
+    private volatile SubscriberQueue[] members = new SubscriberQueue[0];
+    private volatile SubscriberQueue[] partitions = new SubscriberQueue[PARTITIONS]; // key-hash only
+    
+    public ConsumerGroup(String name, String subscription, DispatchStrategy strategy) {
+        this.name = name;
+        this.subscription = subscription;
+        this.strategy = strategy;
+    }
+    
+    public String getName() {
+        return name;
+    }
+    
+    public String getSubscription() {
+        return subscription;
+    }
+    
+    public DispatchStrategy getStrategy() {
+        return strategy;
+    }
+    
+    public synchronized void add(SubscriberQueue member) {
+        SubscriberQueue[] updated = Arrays.copyOf(members, members.length + 1);
+        updated[members.length] = member;
+        members = updated;
+        if (strategy == DispatchStrategy.KEY_HASH) {
+            rebalance(updated);
+        }
+    }
+    
+    // Returns true if the group is empty afterwards
+    public synchronized boolean remove(SubscriberQueue member) {
+        List<SubscriberQueue> updated = new ArrayList<>(Arrays.asList(members));
+        updated.remove(member);
+        members = updated.toArray(new SubscriberQueue[0]);
+        if (strategy == DispatchStrategy.KEY_HASH) {
+            rebalance(members);
+        }
+        return members.length == 0;
+    }
+    
+    public List<SubscriberQueue> getMembers() {
+        return List.of(members);
+    }
+    
+    // The member to deliver message to, or null if there is none
+    public SubscriberQueue pick(Message message) {
+        SubscriberQueue[] current = members;
+        if (current.length <= 1) {
+            return current.length == 0 ? null : current[0];
+        }
+        switch (strategy) {
+            case LEAST_OUTSTANDING:
+                // The better of two random choices: close to checking every member, at constant cost
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                SubscriberQueue first = current[random.nextInt(current.length)];
+                SubscriberQueue second = current[random.nextInt(current.length)];
+                return second.getQueueDepth() < first.getQueueDepth() ? second : first;
+            case KEY_HASH:
+                String key = message.getKey();
+                if (key != null) {
+                    SubscriberQueue owner = partitions[partition(key)];
+                    // A member that just left may still own slots until the rebuild lands
+                    if (owner != null && !owner.isClosed()) {
+                        return owner;
+                    }
+                }
+                return roundRobin(current); // unkeyed messages are spread evenly
+            default:
+                return roundRobin(current);
+        }
+    }
+    
+    private SubscriberQueue roundRobin(SubscriberQueue[] current) {
+        return current[Math.floorMod(next.getAndIncrement(), current.length)];
+    }
+    
+    static int partition(String key) {
+        return mix(key.hashCode()) & (PARTITIONS - 1);
+    }
+    
+    // Similar keys ("order-1", "order-2") have similar hash codes, so spread
+    // them over all the bits (MurmurHash3's finalizer) before taking a slot
+    static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+    
+    // Keep each slot with its owner while the owner is still a member and
+    // within its fair share; hand the others to members below theirs
+    private void rebalance(SubscriberQueue[] current) {
+        SubscriberQueue[] updated = new SubscriberQueue[PARTITIONS];
+        if (current.length == 0) {
+            partitions = updated;
+            return;
+        }
+        int share = (PARTITIONS + current.length - 1) / current.length;
+        Map<SubscriberQueue, Integer> owned = new HashMap<>();
+        for (SubscriberQueue member : current) {
+            owned.put(member, 0);
+        }
+        
+        SubscriberQueue[] previous = partitions;
+        for (int i = 0; i < PARTITIONS; i++) {
+            Integer count = previous[i] == null ? null : owned.get(previous[i]);
+            if (count != null && count < share) {
+                updated[i] = previous[i];
+                owned.put(previous[i], count + 1);
+            }
+        }
+        int candidate = 0;
+        for (int i = 0; i < PARTITIONS; i++) {
+            if (updated[i] != null) {
+                continue;
+            }
+            while (owned.get(current[candidate]) >= share) {
+                candidate = (candidate + 1) % current.length;
+            }
+            updated[i] = current[candidate];
+            owned.merge(current[candidate], 1, Integer::sum);
+        }
+        partitions = updated;
+    }
+}
\ No newline at end of file
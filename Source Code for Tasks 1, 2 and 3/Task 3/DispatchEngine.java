@@ -0,0 +1,173 @@
+package pubsub;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+
+// Routes published messages on a fixed set of single-threaded shards
+// (--dispatch-shards N) instead of on the handler thread that read them.
+//
+// A message goes to the shard its topic hashes to, or its topic and key when
+// it is keyed, so messages on one topic (or one key of a topic) are persisted
+// and fanned out in the order they arrived, while different topics and keys
+// spread over the cores. Each shard drains its own bounded inbox in batches,
+// and nothing else runs on its thread. A full inbox blocks the handler
+// thread submitting to it, and through it the publisher's connection.
+//
+// Shards own their inboxes and threads, not the subscribers: every shard
+// routes through the broker's one TopicRegistry and TopicTrie into the
+// subscribers' own queues. A subscriber's queue and writer serve all of its
+// topics (several names, wildcards, a multiplexed CLIENT's SUB commands), so
+// it cannot belong to the one shard any topic hashes to without splitting its
+// writer or pinning every topic it follows to the same shard. The shared parts
+// are cheap to share instead: registry lookups are lock-free snapshot reads,
+// and a subscriber's queue lock is only held to enqueue. What the shards buy
+// is persistence and fan-out off the handler threads, spread over the cores,
+// in arrival order per topic or key.
+//
+// Keys of one topic can land on different shards, so that topic's offsets
+// reach a subscriber out of order; replaying subscribers cope with that (see
+// SubscriberQueue) and live ones are only promised order per key.
+public class DispatchEngine {
+    public static final int DEFAULT_INBOX_CAPACITY = 8192;
+    private static final int DRAIN_BATCH = 256;
+    private static final Message STOP_SIGNAL = Message.fromText("", 0, "", "<stop>");
+    
+    private final Shard[] shards;
+    private volatile boolean running = true;
+    
+    private static class Shard implements Runnable {
+        final BlockingQueue<Message> inbox;
+        final Consumer<Message> router;
+        Thread thread;
+        
+        Shard(int inboxCapacity, Consumer<Message> router) {
+            this.inbox = new ArrayBlockingQueue<>(inboxCapacity);
+            this.router = router;
+        }
+        
+        @Override
+        public void run() {
+            List<Message> batch = new ArrayList<>(DRAIN_BATCH);
+            try {
+                while (true) {
+                    batch.add(inbox.take());
+                    inbox.drainTo(batch, DRAIN_BATCH - 1);
+                    for (int i = 0; i < batch.size(); i++) {
+                        Message message = batch.get(i);
+                        if (message == STOP_SIGNAL) {
+                            releaseAll(batch, i + 1);
+                            return;
+                        }
+                        try {
+                            router.accept(message);
+                        } catch (RuntimeException e) {
+                            Log.error("Dispatch of a message on topic '" + message.getTopic() + "' failed: " + e);
+                        }
+                    }
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                releaseAll(batch, 0);
+            } finally {
+                Message message;
+                while ((message = inbox.poll()) != null) {
+                    if (message != STOP_SIGNAL) {
+                        message.release();
+                    }
+                }
+            }
+        }
+        
+        private static void releaseAll(List<Message> batch, int from) {
+            for (int i = from; i < batch.size(); i++) {
+                if (batch.get(i) != STOP_SIGNAL) {
+                    batch.get(i).release();
+                }
+            }
+            batch.clear();
+        }
+    }
+    
+    // router persists and fans out one message and takes over its reference
+    public DispatchEngine(int shardCount, int inboxCapacity, Consumer<Message> router) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("A dispatch engine needs at least one shard");
+        }
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(inboxCapacity, router);
+        }
+    }
+    
+    public void start() {
+        for (int i = 0; i < shards.length; i++) {
+            Thread thread = new Thread(shards[i], "dispatch-" + i);
+            thread.setDaemon(true);
+            shards[i].thread = thread;
+            thread.start();
+        }
+    }
+    
+    // Hand message, and the caller's reference to it, to its shard, waiting
+    // while the shard's inbox is full. False (with the message released) once stopped.
+    public boolean submit(Message message) {
+        if (!running) {
+            message.release();
+            return false;
+        }
+        try {
+            shards[shardFor(message.getTopic(), message.getKey())].inbox.put(message);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            message.release();
+            return false;
+        }
+    }
+    
+    public int shardFor(String topic, String key) {
+        int hash = topic.hashCode();
+        if (key != null) {
+            hash = 31 * hash + key.hashCode();
+        }
+        return Math.floorMod(ConsumerGroup.mix(hash), shards.length);
+    }
+    
+    public int getShardCount() {
+        return shards.length;
+    }
+    
+    // Messages waiting in each shard's inbox
+    public int[] getInboxDepths() {
+        int[] depths = new int[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            depths[i] = shards[i].inbox.size();
+        }
+        return depths;
+    }
+    
+    // Let every shard finish what is already in its inbox, waiting up to
+    // timeoutMillis in total, then stop it
+    public void shutdown(long timeoutMillis) {
+        running = false;
+        for (Shard shard : shards) {
+            shard.inbox.offer(STOP_SIGNAL);
+        }
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (Shard shard : shards) {
+            if (shard.thread == null) {
+                continue;
+            }
+            try {
+                shard.thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            shard.thread.interrupt();
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,24 @@
+package pubsub;
+
+// How a consumer group picks the one member that gets each message
+public enum DispatchStrategy {
+    ROUND_ROBIN,        // members in turn
+    LEAST_OUTSTANDING,  // the shorter queue of two members sampled at random
+    KEY_HASH;           // a message key always goes to the same member while it stays in the group
+    
+    // Parse a handshake value such as "round-robin" or "KEY_HASH"
+    public static DispatchStrategy parse(String value) {
+        String name = value.trim().toUpperCase().replace('-', '_');
+        for (DispatchStrategy strategy : values()) {
+            if (strategy.name().equals(name)) {
+                return strategy;
+            }
+        }
+        throw new IllegalArgumentException("Unknown dispatch strategy: " + value);
+    }
+    
+    @Override
+    public String toString() {
+        return name().toLowerCase().replace('_', '-');
+    }
+}
\ No newline at end of file
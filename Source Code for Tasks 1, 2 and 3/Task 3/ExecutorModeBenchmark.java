@@ -0,0 +1,189 @@
+package pubsub;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.*;
+
+// Compares the blocking transport on platform threads against virtual threads.
+// Each mode runs in a fresh JVM with an in-process PubSubServer: it opens N
+// subscriber connections, publishes timestamped messages to all of them and
+// reports connections held, fan-out latency percentiles and heap used.
+// The subscriber channels live in the same JVM, so the heap figures include
+// their (small, identical) client-side cost in both modes.
+//
+// Usage: java pubsub.ExecutorModeBenchmark [--connections 1000,5000] [--messages 50] [--port 5200]
+public class ExecutorModeBenchmark {
+    private static final long MESSAGE_INTERVAL_MILLIS = 20;
+    private static final long DELIVERY_TIMEOUT_MILLIS = 60_000;
+    
+    public static void main(String[] args) throws Exception {
+        String run = null;
+        String connections = "1000,5000";
+        int messages = 50;
+        int port = 5200;
+        
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--run":
+                    run = args[i + 1];
+                    break;
+                case "--connections":
+                    connections = args[i + 1];
+                    break;
+                case "--messages":
+                    messages = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--port":
+                    port = Integer.parseInt(args[i + 1]);
+                    break;
+                default:
+                    System.out.println("Unknown option " + args[i]);
+                    System.exit(1);
+            }
+        }
+        
+        if (run != null) {
+            runMode(run, Integer.parseInt(connections), messages, port);
+            return;
+        }
+        
+        System.out.printf("%-9s %8s %6s %10s %10s %10s %9s %11s %8s%n",
+                "executor", "conns", "held", "p50 ms", "p99 ms", "max ms", "heap MB", "heap KB/c", "threads");
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        for (String count : connections.split(",")) {
+            for (String mode : new String[] {"platform", "virtual"}) {
+                ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                        ExecutorModeBenchmark.class.getName(), "--run", mode, "--connections", count,
+                        "--messages", String.valueOf(messages), "--port", String.valueOf(port++));
+                builder.inheritIO();
+                builder.start().waitFor();
+            }
+        }
+    }
+    
+    private static void runMode(String mode, int count, int messages, int port) throws Exception {
+        PrintStream report = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        
+        long heapBaseline = usedHeap();
+        
+        ServerConfig config = new ServerConfig("127.0.0.1", port);
+        config.executor = mode;
+        PubSubServer server = new PubSubServer(config);
+        Thread serverThread = new Thread(server::start);
+        serverThread.setDaemon(true);
+        serverThread.start();
+        waitForPort(port);
+        
+        Selector selector = Selector.open();
+        int held = 0;
+        try {
+            for (int i = 0; i < count; i++) {
+                SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", port));
+                channel.write(ByteBuffer.wrap("SUBSCRIBER:bench\n".getBytes(StandardCharsets.UTF_8)));
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ, new ByteArrayOutputStream());
+                held++;
+            }
+        } catch (IOException e) {
+            report.println("  " + mode + " stopped at " + held + " connections: " + e.getMessage());
+        }
+        
+        // Let every handler register its subscriber before publishing
+        Thread.sleep(1000 + count / 10);
+        long heapHeld = usedHeap() - heapBaseline;
+        int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+        
+        long[] latencies = new long[held * messages];
+        int received = 0;
+        Socket publisher = new Socket("127.0.0.1", port);
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(publisher.getOutputStream(), StandardCharsets.UTF_8), true);
+        out.println("PUBLISHER:bench");
+        Thread.sleep(200);
+        
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long deadline = System.currentTimeMillis() + DELIVERY_TIMEOUT_MILLIS;
+        int sent = 0;
+        long nextSend = 0;
+        while (received < latencies.length && System.currentTimeMillis() < deadline) {
+            if (sent < messages && System.currentTimeMillis() >= nextSend) {
+                out.println("t=" + System.nanoTime());
+                sent++;
+                nextSend = System.currentTimeMillis() + MESSAGE_INTERVAL_MILLIS;
+            }
+            selector.select(MESSAGE_INTERVAL_MILLIS);
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                buffer.clear();
+                int n = ((SocketChannel) key.channel()).read(buffer);
+                if (n < 0) {
+                    key.cancel();
+                    continue;
+                }
+                long now = System.nanoTime();
+                ByteArrayOutputStream line = (ByteArrayOutputStream) key.attachment();
+                for (int i = 0; i < n; i++) {
+                    byte b = buffer.get(i);
+                    if (b != '\n') {
+                        line.write(b);
+                        continue;
+                    }
+                    String text = line.toString(StandardCharsets.UTF_8).trim();
+                    line.reset();
+                    int at = text.lastIndexOf("t=");
+                    if (at >= 0 && received < latencies.length) {
+                        latencies[received++] = now - Long.parseLong(text.substring(at + 2));
+                    }
+                }
+            }
+        }
+        
+        publisher.close();
+        selector.close();
+        server.stop();
+        
+        Arrays.sort(latencies, 0, received);
+        report.printf("%-9s %8d %6d %10.2f %10.2f %10.2f %9.1f %11.1f %8d%n",
+                mode, count, held,
+                percentile(latencies, received, 0.50), percentile(latencies, received, 0.99),
+                received == 0 ? 0 : latencies[received - 1] / 1e6,
+                heapHeld / (1024.0 * 1024.0), held == 0 ? 0 : heapHeld / 1024.0 / held, threads);
+        if (received < latencies.length) {
+            report.println("  " + mode + ": only " + received + " of " + latencies.length + " deliveries arrived");
+        }
+        System.exit(0);
+    }
+    
+    private static double percentile(long[] sorted, int size, double p) {
+        if (size == 0) {
+            return 0;
+        }
+        int index = (int) Math.min(size - 1, Math.ceil(p * size) - 1);
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+    
+    private static long usedHeap() throws InterruptedException {
+        System.gc();
+        Thread.sleep(100);
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+    
+    private static void waitForPort(int port) throws InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try (Socket probe = new Socket("127.0.0.1", port)) {
+                probe.getOutputStream().write("terminate\n".getBytes(StandardCharsets.UTF_8));
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("Server did not start on port " + port);
+    }
+}
\ No newline at end of file
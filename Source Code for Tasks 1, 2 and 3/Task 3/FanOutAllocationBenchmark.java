@@ -0,0 +1,115 @@
+package pubsub;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+// Allocation-rate benchmark for fanning one published message out to N subscribers.
+// "per-subscriber" is the original forwardToTopicSubscribers: a new PrintWriter
+// and a freshly formatted and encoded line for every subscriber. "encode-once"
+// is the current path: one Message encoded into a pooled buffer, with each
+// subscriber writing a duplicate() slice. Output goes to a sink that discards
+// bytes, so the figures are the broker's own allocation and CPU cost.
+// Allocation is read from the thread's allocated-bytes counter, the same
+// figure JMH's GC profiler reports as gc.alloc.rate.norm.
+//
+// Usage: java pubsub.FanOutAllocationBenchmark [--subscribers 1,100,10000] [--messages 2000]
+public class FanOutAllocationBenchmark {
+    private static final String TOPIC = "sports/football/scores";
+    private static final String SENDER = "/127.0.0.1:50000";
+    private static final String PAYLOAD = "{\"home\":\"Lions\",\"away\":\"Tigers\",\"score\":\"2-1\",\"minute\":78}";
+    
+    // Discards everything, like a subscriber socket that always keeps up
+    private static class NullChannel implements WritableByteChannel {
+        long written;
+        
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            src.position(src.limit());
+            written += n;
+            return n;
+        }
+        
+        public boolean isOpen() {
+            return true;
+        }
+        
+        public void close() {
+        }
+    }
+    
+    public static void main(String[] args) {
+        int[] subscriberCounts = {1, 100, 10000};
+        int messages = 2000;
+        
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--subscribers":
+                    subscriberCounts = Arrays.stream(args[i + 1].split(",")).mapToInt(Integer::parseInt).toArray();
+                    break;
+                case "--messages":
+                    messages = Integer.parseInt(args[i + 1]);
+                    break;
+                default:
+                    System.out.println("Unknown option " + args[i]);
+                    System.exit(1);
+            }
+        }
+        
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().threadId();
+        
+        System.out.printf("%-15s %12s %16s %18s %14s%n", "mode", "subscribers", "bytes/publish", "bytes/delivery", "ns/delivery");
+        for (int subscribers : subscriberCounts) {
+            // Keep the total work per run roughly constant
+            int runs = Math.max(10, messages / Math.max(1, subscribers / 10));
+            for (String mode : new String[] {"per-subscriber", "encode-once"}) {
+                OutputStream[] streams = new OutputStream[subscribers];
+                NullChannel[] channels = new NullChannel[subscribers];
+                for (int s = 0; s < subscribers; s++) {
+                    streams[s] = OutputStream.nullOutputStream();
+                    channels[s] = new NullChannel();
+                }
+                
+                // Warm up so the JIT has compiled both paths before measuring
+                for (int r = 0; r < runs; r++) {
+                    publish(mode, streams, channels);
+                }
+                
+                long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+                long start = System.nanoTime();
+                for (int r = 0; r < runs; r++) {
+                    publish(mode, streams, channels);
+                }
+                long elapsed = System.nanoTime() - start;
+                long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+                
+                long deliveries = (long) runs * subscribers;
+                System.out.printf("%-15s %12d %16.0f %18.1f %14.1f%n", mode, subscribers,
+                        (double) allocated / runs, (double) allocated / deliveries, (double) elapsed / deliveries);
+            }
+        }
+    }
+    
+    private static void publish(String mode, OutputStream[] streams, NullChannel[] channels) {
+        if (mode.equals("per-subscriber")) {
+            for (OutputStream stream : streams) {
+                PrintWriter out = new PrintWriter(stream, true);
+                String formattedMessage = "[" + TOPIC + "] Publisher " + SENDER + ": " + PAYLOAD;
+                out.println(formattedMessage);
+            }
+            return;
+        }
+        
+        Message message = Message.fromText(TOPIC, 1, SENDER, PAYLOAD);
+        ByteBuffer encoded = message.encoded(false);
+        for (NullChannel channel : channels) {
+            message.retain();
+            channel.write(encoded.duplicate());
+            message.release();
+        }
+        message.release();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,76 @@
+package pubsub;
+
+// When TopicLog forces appended records to disk.
+//   every:N     - after every N appends to a topic (every:1 is fully synchronous)
+//   interval:MS - a background flusher forces dirty logs every MS milliseconds
+//   never       - leave write-back to the OS page cache
+// Either way records are visible to readers as soon as they are appended;
+// the policy only decides how much a power loss or kernel crash can take.
+public class FsyncPolicy {
+    public enum Mode {
+        EVERY, INTERVAL, NEVER
+    }
+    
+    public final Mode mode;
+    public final int everyMessages;
+    public final long intervalMillis;
+    
+    private FsyncPolicy(Mode mode, int everyMessages, long intervalMillis) {
+        this.mode = mode;
+        this.everyMessages = everyMessages;
+        this.intervalMillis = intervalMillis;
+    }
+    
+    public static FsyncPolicy every(int messages) {
+        if (messages < 1) {
+            throw new IllegalArgumentException("fsync every:N needs N of at least 1");
+        }
+        return new FsyncPolicy(Mode.EVERY, messages, 0);
+    }
+    
+    public static FsyncPolicy interval(long millis) {
+        if (millis < 1) {
+            throw new IllegalArgumentException("fsync interval:MS needs MS of at least 1");
+        }
+        return new FsyncPolicy(Mode.INTERVAL, 0, millis);
+    }
+    
+    public static FsyncPolicy never() {
+        return new FsyncPolicy(Mode.NEVER, 0, 0);
+    }
+    
+    // Accepts "every:N", "interval:MS" or "never"
+    public static FsyncPolicy parse(String value) {
+        String[] parts = value.trim().toLowerCase().split(":", 2);
+        try {
+            switch (parts[0]) {
+                case "every":
+                    return every(Integer.parseInt(parts[1]));
+                case "interval":
+                    return interval(Long.parseLong(parts[1]));
+                case "never":
+                    if (parts.length == 1) {
+                        return never();
+                    }
+                    break;
+                default:
+                    break;
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            // Fall through to the error below
+        }
+        throw new IllegalArgumentException("Unknown fsync policy '" + value + "' (expected every:N, interval:MS or never)");
+    }
+    
+    @Override
+    public String toString() {
+        switch (mode) {
+            case EVERY:
+                return "every:" + everyMessages;
+            case INTERVAL:
+                return "interval:" + intervalMillis;
+            default:
+                return "never";
+        }
+    }
+}
\ No newline at end of file
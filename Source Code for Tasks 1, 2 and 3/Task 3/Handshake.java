@@ -0,0 +1,82 @@
+package pubsub;
+
+import java.util.*;
+
+// The first line a client sends: "TYPE:TOPIC" optionally followed by
+// ":key=value" (or bare ":key") options, e.g. "SUBSCRIBER:news:from=earliest".
+// Only the trailing parts that are recognised options are split off; the rest
+// after the first ':' is the topic, as it always was, so "PUBLISHER:a:b" still
+// publishes to "a:b". A multiplexed "CLIENT" connection picks its topics later
+// with commands, so its topic (the subscriptions to start with) may be left
+// out: "CLIENT" or "CLIENT::trace".
+public class Handshake {
+    private static final Set<String> OPTIONS = Set.of("from", "from-time", "trace", "credit", "credit-bytes", "ack", "id",
+            "group", "dispatch", "compress", "no-snapshot", "filter", "keyed");
+    
+    public final String type;   // "PUBLISHER", "SUBSCRIBER" or "CLIENT"
+    public final String topic;  // as sent; subscribers may list several, comma-separated
+    public final Map<String, String> options;
+    
+    private Handshake(String type, String topic, Map<String, String> options) {
+        this.type = type;
+        this.topic = topic;
+        this.options = options;
+    }
+    
+    // Throws IllegalArgumentException describing what is wrong with the line
+    public static Handshake parse(String line) {
+        String[] parts = line.trim().split(":", -1);
+        String type = parts[0].trim().toUpperCase();
+        boolean multiplexed = type.equals("CLIENT");
+        if (parts.length < 2 && !multiplexed) {
+            throw new IllegalArgumentException("Invalid client info format: " + line);
+        }
+        
+        if (!type.equals("PUBLISHER") && !type.equals("SUBSCRIBER") && !multiplexed) {
+            throw new IllegalArgumentException("Invalid client type: " + parts[0].trim());
+        }
+        
+        // Options are the longest run of recognised ones at the end
+        int firstOption = parts.length;
+        while (firstOption > 2 && isOption(parts[firstOption - 1])) {
+            firstOption--;
+        }
+        
+        String topic = parts.length > 1 ? String.join(":", Arrays.copyOfRange(parts, 1, firstOption)).trim() : "";
+        if (topic.isEmpty() && !multiplexed) {
+            throw new IllegalArgumentException("Empty topic");
+        }
+        
+        Map<String, String> options = new LinkedHashMap<>();
+        for (int i = firstOption; i < parts.length; i++) {
+            String option = parts[i].trim();
+            if (option.isEmpty()) {
+                continue;
+            }
+            int equals = option.indexOf('=');
+            if (equals < 0) {
+                options.put(option.toLowerCase(), "");
+            } else {
+                options.put(option.substring(0, equals).trim().toLowerCase(), option.substring(equals + 1).trim());
+            }
+        }
+        return new Handshake(type, topic, options);
+    }
+    
+    private static boolean isOption(String part) {
+        int equals = part.indexOf('=');
+        return OPTIONS.contains((equals < 0 ? part : part.substring(0, equals)).trim().toLowerCase());
+    }
+    
+    public String option(String name) {
+        return options.get(name);
+    }
+    
+    public boolean isPublisher() {
+        return type.equals("PUBLISHER");
+    }
+    
+    public boolean isMultiplexed() {
+        return type.equals("CLIENT");
+    }
+}
\ No newline at end of file
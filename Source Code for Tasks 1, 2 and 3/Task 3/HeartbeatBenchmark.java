@@ -0,0 +1,135 @@
+package pubsub;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.*;
+
+// Cost of the ConnectionMonitor's single timer wheel at large connection counts.
+// Registers N in-process connections (no sockets): most answer every PING at
+// once, a few never do and must be expired. Reports the monitor thread's CPU
+// time per second of wall time and per connection, heartbeats sent, and how
+// late the silent connections were closed compared with the idle timeout.
+//
+// Usage: java pubsub.HeartbeatBenchmark [--counts 10000,100000] [--heartbeat-ms 1000]
+//                                       [--idle-timeout-ms 3000] [--seconds 10] [--silent-percent 1]
+public class HeartbeatBenchmark {
+    
+    private static class FakeConnection implements ConnectionMonitor.Connection {
+        final ConnectionMonitor monitor;
+        final boolean answers;
+        volatile long lastReceived;
+        volatile long expiredAt = 0;
+        
+        FakeConnection(ConnectionMonitor monitor, boolean answers) {
+            this.monitor = monitor;
+            this.answers = answers;
+            this.lastReceived = monitor.clock();
+        }
+        
+        @Override
+        public long lastReceived() {
+            return lastReceived;
+        }
+        
+        @Override
+        public void heartbeat() {
+            if (answers) {
+                lastReceived = monitor.clock(); // the PONG
+            }
+        }
+        
+        @Override
+        public void expire(long idleMillis) {
+            expiredAt = System.currentTimeMillis();
+        }
+    }
+    
+    public static void main(String[] args) throws Exception {
+        int[] counts = {10_000, 100_000};
+        long heartbeatMillis = 1000;
+        long idleTimeoutMillis = 3000;
+        int seconds = 10;
+        int silentPercent = 1;
+        
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--counts":
+                    counts = Arrays.stream(args[i + 1].split(",")).mapToInt(Integer::parseInt).toArray();
+                    break;
+                case "--heartbeat-ms":
+                    heartbeatMillis = Long.parseLong(args[i + 1]);
+                    break;
+                case "--idle-timeout-ms":
+                    idleTimeoutMillis = Long.parseLong(args[i + 1]);
+                    break;
+                case "--seconds":
+                    seconds = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--silent-percent":
+                    silentPercent = Integer.parseInt(args[i + 1]);
+                    break;
+                default:
+                    System.out.println("Unknown option " + args[i]);
+                    return;
+            }
+        }
+        
+        System.out.printf("Heartbeat every %d ms, idle timeout %d ms, %d s per run, %d%% silent%n",
+                heartbeatMillis, idleTimeoutMillis, seconds, silentPercent);
+        System.out.printf("%12s %14s %16s %14s %12s %18s%n",
+                "connections", "cpu ms/s", "cpu ns/conn/s", "heartbeats/s", "expired", "expiry late ms");
+        for (int count : counts) {
+            run(count, heartbeatMillis, idleTimeoutMillis, seconds, silentPercent);
+        }
+    }
+    
+    private static void run(int count, long heartbeatMillis, long idleTimeoutMillis, int seconds, int silentPercent) throws InterruptedException {
+        ConnectionMonitor monitor = new ConnectionMonitor(heartbeatMillis, idleTimeoutMillis);
+        monitor.start();
+        List<FakeConnection> silent = new ArrayList<>();
+        long registeredAt = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            boolean answers = silentPercent <= 0 || i % (100 / silentPercent) != 0;
+            FakeConnection connection = new FakeConnection(monitor, answers);
+            monitor.register(connection);
+            if (!answers) {
+                silent.add(connection);
+            }
+        }
+        
+        Thread.sleep(200); // let the timer thread start
+        long threadId = monitorThreadId();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long cpuStart = threads.getThreadCpuTime(threadId);
+        long heartbeatsStart = monitor.getHeartbeatsSent();
+        long wallStart = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        long wallNanos = System.nanoTime() - wallStart;
+        long cpuNanos = threads.getThreadCpuTime(threadId) - cpuStart;
+        long heartbeats = monitor.getHeartbeatsSent() - heartbeatsStart;
+        monitor.stop();
+        
+        long worstLate = 0;
+        int expired = 0;
+        for (FakeConnection connection : silent) {
+            if (connection.expiredAt > 0) {
+                expired++;
+                worstLate = Math.max(worstLate, connection.expiredAt - registeredAt - idleTimeoutMillis);
+            }
+        }
+        double wallSeconds = wallNanos / 1e9;
+        System.out.printf("%12d %14.2f %16.1f %14.0f %7d/%-4d %18d%n",
+                count, cpuNanos / 1e6 / wallSeconds, cpuNanos / wallSeconds / count, heartbeats / wallSeconds,
+                expired, silent.size(), worstLate);
+    }
+    
+    private static long monitorThreadId() {
+        for (ThreadInfo info : ManagementFactory.getThreadMXBean().dumpAllThreads(false, false)) {
+            if (info.getThreadName().equals("connection-monitor")) {
+                return info.getThreadId();
+            }
+        }
+        throw new IllegalStateException("connection-monitor thread not found");
+    }
+}
\ No newline at end of file
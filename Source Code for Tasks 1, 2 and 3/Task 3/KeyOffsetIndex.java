@@ -0,0 +1,104 @@
+package pubsub;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Fixed-size, off-heap hash table from message key to the latest offset
+// seen for it, used by the LogCompactor. Each slot is 16 bytes in one direct
+// buffer: a 64-bit hash of the key, then the offset. Keys are not stored, so
+// memory stays bounded whatever their length; two keys whose hashes collide
+// would be treated as one, which at 64 bits is vanishingly unlikely for the
+// number of keys one pass indexes.
+//
+// Open addressing with linear probing, filled to at most MAX_LOAD so probes
+// stay short. Not thread-safe: the compactor thread owns it.
+public class KeyOffsetIndex {
+    private static final int SLOT_BYTES = 16;
+    private static final double MAX_LOAD = 0.75;
+    
+    private final ByteBuffer slots;
+    private final int capacity;
+    private final int mask;
+    private final int maxEntries;
+    private int size = 0;
+    
+    // An index using at most memoryBytes, rounded down to a power-of-two slot count
+    public KeyOffsetIndex(long memoryBytes) {
+        long slotCount = Long.highestOneBit(Math.max(2, Math.min(memoryBytes, Integer.MAX_VALUE) / SLOT_BYTES));
+        capacity = (int) slotCount;
+        mask = capacity - 1;
+        maxEntries = (int) (capacity * MAX_LOAD);
+        slots = ByteBuffer.allocateDirect(capacity * SLOT_BYTES);
+    }
+    
+    // 64-bit FNV-1a of the key's UTF-8 bytes with a final avalanche mix; never
+    // 0, which marks an empty slot
+    public static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash != 0 ? hash : 1;
+    }
+    
+    // Record offset as the latest for the key. False, changing nothing, if the
+    // key is new and the index is full.
+    public boolean put(long hash, long offset) {
+        int slot = (int) hash & mask;
+        while (true) {
+            int position = slot * SLOT_BYTES;
+            long stored = slots.getLong(position);
+            if (stored == hash) {
+                slots.putLong(position + 8, Math.max(offset, slots.getLong(position + 8)));
+                return true;
+            }
+            if (stored == 0) {
+                if (size == maxEntries) {
+                    return false;
+                }
+                slots.putLong(position, hash);
+                slots.putLong(position + 8, offset);
+                size++;
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+    
+    // The latest offset recorded for the key, or -1
+    public long get(long hash) {
+        int slot = (int) hash & mask;
+        while (true) {
+            int position = slot * SLOT_BYTES;
+            long stored = slots.getLong(position);
+            if (stored == hash) {
+                return slots.getLong(position + 8);
+            }
+            if (stored == 0) {
+                return -1;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+    
+    public void clear() {
+        for (int position = 0; position < capacity * SLOT_BYTES; position += 8) {
+            slots.putLong(position, 0);
+        }
+        size = 0;
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,123 @@
+package pubsub;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Fixed-size log-linear histogram in the style of HdrHistogram. Values below
+// 128 get their own bucket; above that every power of two is split into 64
+// buckets, so any recorded value is reported within about 1.6%. Covers the
+// whole positive long range in ~3.7k buckets, and recording never allocates.
+// Totals are striped LongAdders, so concurrent recorders only meet when they
+// land in the same bucket.
+public class LatencyHistogram {
+    private static final int SUB_BITS = 7;
+    private static final int LINEAR = 1 << SUB_BITS;       // exact buckets for 0..127
+    private static final int HALF = LINEAR / 2;             // buckets per power of two above that
+    private static final int BUCKETS = LINEAR + (63 - SUB_BITS) * HALF;
+    
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+    
+    private static int index(long value) {
+        if (value < LINEAR) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (magnitude - SUB_BITS + 1)) - HALF;
+        return LINEAR + (magnitude - SUB_BITS) * HALF + sub;
+    }
+    
+    // Smallest value that falls into the bucket
+    private static long lowestValue(int index) {
+        if (index < LINEAR) {
+            return index;
+        }
+        int magnitude = (index - LINEAR) / HALF + SUB_BITS;
+        long sub = (index - LINEAR) % HALF + HALF;
+        return sub << (magnitude - SUB_BITS + 1);
+    }
+    
+    // Record one value; negative values count as 0
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(index(value));
+        count.increment();
+        sum.add(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // Retry
+        }
+    }
+    
+    // Value at the given percentile (0-100), e.g. percentile(99.9)
+    public long percentile(double percentile) {
+        long total = count.sum();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(lowestValue(i), max.get());
+            }
+        }
+        return max.get();
+    }
+    
+    public long getCount() {
+        return count.sum();
+    }
+    
+    public long getSum() {
+        return sum.sum();
+    }
+    
+    public long getMax() {
+        return max.get();
+    }
+    
+    public double getMean() {
+        long total = count.sum();
+        return total == 0 ? 0 : (double) sum.sum() / total;
+    }
+    
+    // Add another histogram's counts to this one
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = other.counts.get(i);
+            if (c != 0) {
+                counts.addAndGet(i, c);
+            }
+        }
+        count.add(other.count.sum());
+        sum.add(other.sum.sum());
+        long current;
+        long otherMax = other.max.get();
+        while (otherMax > (current = max.get()) && !max.compareAndSet(current, otherMax)) {
+            // Retry
+        }
+    }
+    
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+    
+    // One-line summary with values divided by unitDivisor, e.g. 1000 to print nanoseconds as microseconds
+    public String summary(double unitDivisor, String unit) {
+        return String.format("p50=%.1f%s p90=%.1f%s p99=%.1f%s p99.9=%.1f%s max=%.1f%s",
+                percentile(50) / unitDivisor, unit, percentile(90) / unitDivisor, unit, percentile(99) / unitDivisor, unit,
+                percentile(99.9) / unitDivisor, unit, getMax() / unitDivisor, unit);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,85 @@
+package pubsub;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Subscriber-side view of traced messages (see Trace). Splits each message's
+// journey into the hops its timestamps allow, so the summary shows which one
+// dominates the tail:
+//   end-to-end          publish -> received by this subscriber
+//   publish->broker     publish -> broker ingress
+//   broker queueing     broker ingress -> broker egress (fan-out and the subscriber's queue)
+//   broker->subscriber  broker egress -> received
+// and checks each publisher stream's sequence numbers for gaps (messages
+// dropped or not yet seen) and late arrivals (reordered or duplicated).
+public class LatencyTracker {
+    private final LatencyHistogram endToEnd = new LatencyHistogram();
+    private final LatencyHistogram publishToBroker = new LatencyHistogram();
+    private final LatencyHistogram brokerQueueing = new LatencyHistogram();
+    private final LatencyHistogram brokerToSubscriber = new LatencyHistogram();
+    private final Map<Long, Long> lastSeqBySource = new HashMap<>();
+    private long traced = 0;
+    private long untraced = 0;
+    private long missing = 0;    // sequence numbers skipped over
+    private long late = 0;       // at or below the highest sequence already seen
+    private long clockSkew = 0;  // hops that came out negative, recorded as 0
+    
+    // receivedMicros should be taken as soon as the message is read, on Trace.nowMicros()
+    public synchronized void record(Trace trace, long receivedMicros) {
+        traced++;
+        recordHop(endToEnd, trace.publishMicros, receivedMicros);
+        if (trace.ingressMicros != 0) {
+            recordHop(publishToBroker, trace.publishMicros, trace.ingressMicros);
+        }
+        if (trace.ingressMicros != 0 && trace.egressMicros != 0) {
+            recordHop(brokerQueueing, trace.ingressMicros, trace.egressMicros);
+        }
+        if (trace.egressMicros != 0) {
+            recordHop(brokerToSubscriber, trace.egressMicros, receivedMicros);
+        }
+        
+        Long last = lastSeqBySource.get(trace.source);
+        if (last == null || trace.seq == last + 1) {
+            lastSeqBySource.put(trace.source, trace.seq);
+        } else if (trace.seq > last + 1) {
+            missing += trace.seq - last - 1;
+            lastSeqBySource.put(trace.source, trace.seq);
+        } else {
+            late++;
+        }
+    }
+    
+    // A message without a trace header, e.g. replayed from the log
+    public synchronized void recordUntraced() {
+        untraced++;
+    }
+    
+    private void recordHop(LatencyHistogram histogram, long fromMicros, long toMicros) {
+        if (toMicros < fromMicros) {
+            clockSkew++;
+        }
+        histogram.record(toMicros - fromMicros);
+    }
+    
+    public synchronized String summary() {
+        StringBuilder summary = new StringBuilder();
+        summary.append(String.format("Traced messages: %d from %d publisher stream(s), %d untraced%n",
+                traced, lastSeqBySource.size(), untraced));
+        summary.append(String.format("Sequence: %d missing, %d late or duplicate%n", missing, late));
+        appendHop(summary, "end-to-end", endToEnd);
+        appendHop(summary, "publish->broker", publishToBroker);
+        appendHop(summary, "broker queueing", brokerQueueing);
+        appendHop(summary, "broker->subscriber", brokerToSubscriber);
+        if (clockSkew > 0) {
+            summary.append(String.format("%d hop(s) measured negative and counted as 0; check clock sync between hosts%n", clockSkew));
+        }
+        return summary.toString();
+    }
+    
+    private static void appendHop(StringBuilder summary, String name, LatencyHistogram histogram) {
+        if (histogram.getCount() == 0) {
+            return;
+        }
+        summary.append(String.format("  %-19s %s mean=%.1fus%n", name, histogram.summary(1, "us"), histogram.getMean()));
+    }
+}
\ No newline at end of file
@@ -0,0 +1,50 @@
+package pubsub;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+// Incremental newline framing for non-blocking reads. Bytes are fed in as they
+// arrive and every complete line is handed to the consumer without its "\n"
+// (or "\r\n") terminator. A partial line is kept until the rest arrives.
+public class LineFramer {
+    private final int maxLineLength;
+    private byte[] buffer = new byte[256];
+    private int length = 0;
+    
+    public LineFramer(int maxLineLength) {
+        this.maxLineLength = maxLineLength;
+    }
+    
+    // Consume everything remaining in data. Throws if a line grows past the limit
+    // so a client that never sends a newline can't exhaust memory.
+    public void feed(ByteBuffer data, Consumer<String> onLine) throws IOException {
+        while (data.hasRemaining()) {
+            byte b = data.get();
+            if (b == '\n') {
+                int end = length;
+                if (end > 0 && buffer[end - 1] == '\r') {
+                    end--;
+                }
+                String line = new String(buffer, 0, end, StandardCharsets.UTF_8);
+                length = 0;
+                onLine.accept(line);
+            } else {
+                if (length == buffer.length) {
+                    if (length >= maxLineLength) {
+                        throw new IOException("Line exceeds " + maxLineLength + " bytes");
+                    }
+                    buffer = Arrays.copyOf(buffer, Math.min(length * 2, maxLineLength));
+                }
+                buffer[length++] = b;
+            }
+        }
+    }
+    
+    // Bytes of the current incomplete line
+    public int pending() {
+        return length;
+    }
+}
\ No newline at end of file
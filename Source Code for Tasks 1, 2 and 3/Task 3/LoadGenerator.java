@@ -0,0 +1,188 @@
+package pubsub;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// PubSubClient's LOADGEN mode: publishes through a BatchingPublisher and
+// receives the same messages on a subscriber connection in this process, so
+// the send time carried in each payload gives end-to-end latency on one clock.
+// Runs once for every combination of the --batch-messages and --linger-ms lists.
+//
+// Usage: java pubsub.PubSubClient <SERVER_IP> <SERVER_PORT> LOADGEN <TOPIC> [--messages 200000] [--size 100]
+//        [--rate 0] [--batch-messages 1,16,256] [--batch-bytes 65536] [--linger-ms 0,1] [--binary] [--credit 0]
+// --rate limits publishing to that many messages per second (0 = as fast as possible).
+// --credit N puts the receiving subscriber under credit-based flow control with
+// an N-message window; THROTTLE signals the publisher got are reported after the latency.
+public class LoadGenerator {
+    private final String host;
+    private final int port;
+    private final String topic;
+    private int messages = 200_000;
+    private int size = 100;
+    private int rate = 0;
+    private int[] batchMessages = {1, 16, 256};
+    private int batchBytes = 64 * 1024;
+    private int[] lingerMillis = {0, 1};
+    private boolean binary = false;
+    private int credit = 0;
+    
+    public LoadGenerator(String host, int port, String topic) {
+        this.host = host;
+        this.port = port;
+        this.topic = topic;
+    }
+    
+    // Parse the options after the topic. Throws IllegalArgumentException.
+    public void parseOptions(String[] args, int from) {
+        for (int i = from; i < args.length; i++) {
+            String option = args[i];
+            if (option.equals("--binary")) {
+                binary = true;
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException(option + " needs a value");
+            }
+            String value = args[++i];
+            try {
+                switch (option) {
+                    case "--messages":
+                        messages = Integer.parseInt(value);
+                        break;
+                    case "--size":
+                        size = Integer.parseInt(value);
+                        break;
+                    case "--rate":
+                        rate = Integer.parseInt(value);
+                        break;
+                    case "--batch-messages":
+                        batchMessages = parseList(value);
+                        break;
+                    case "--batch-bytes":
+                        batchBytes = Integer.parseInt(value);
+                        break;
+                    case "--linger-ms":
+                        lingerMillis = parseList(value);
+                        break;
+                    case "--credit":
+                        credit = Integer.parseInt(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + option);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(option + " must be a valid integer");
+            }
+        }
+    }
+    
+    private static int[] parseList(String value) {
+        return Arrays.stream(value.split(",")).mapToInt(v -> Integer.parseInt(v.trim())).toArray();
+    }
+    
+    public void run() throws IOException, InterruptedException {
+        System.out.println("Load test on " + host + ":" + port + " topic '" + topic + "': " + messages + " messages of "
+                + size + " bytes" + (rate > 0 ? " at " + rate + " msg/s" : "") + (binary ? " (binary)" : ""));
+        System.out.printf("%8s %8s %12s %10s %10s  %s%n", "batch", "linger", "msgs/s", "avg batch", "received", "latency");
+        for (int batch : batchMessages) {
+            for (int linger : lingerMillis) {
+                runOnce(batch, linger);
+            }
+        }
+    }
+    
+    private void runOnce(int batch, int linger) throws IOException, InterruptedException {
+        LatencyHistogram latency = new LatencyHistogram();
+        AtomicLong received = new AtomicLong();
+        
+        Socket subscriber = new Socket(host, port);
+        String handshake = "SUBSCRIBER:" + topic + (credit > 0 ? ":credit=" + credit : "");
+        subscriber.getOutputStream().write((handshake + "\n").getBytes(StandardCharsets.UTF_8));
+        subscriber.getOutputStream().flush();
+        Thread receiver = new Thread(() -> receive(subscriber, latency, received, credit), "loadgen-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+        Thread.sleep(200); // let the server register the subscriber first
+        
+        byte[] padding = new byte[Math.max(0, size - 21)];
+        Arrays.fill(padding, (byte) 'x');
+        long batches = 0;
+        long throttles;
+        long start;
+        long elapsed;
+        try (BatchingPublisher publisher = new BatchingPublisher(host, port, topic, binary, batch, batchBytes, linger)) {
+            Thread.sleep(100);
+            CompletableFuture<Integer> last = null;
+            long interval = rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+            start = System.nanoTime();
+            for (int i = 0; i < messages; i++) {
+                if (interval > 0) {
+                    long due = start + i * interval;
+                    while (System.nanoTime() < due) {
+                        LockSupport.parkNanos(due - System.nanoTime());
+                    }
+                }
+                CompletableFuture<Integer> future = publisher.send(payload(System.nanoTime(), padding));
+                if (future != last) {
+                    batches++;
+                    last = future;
+                }
+            }
+            publisher.flush().join();
+            elapsed = System.nanoTime() - start;
+            throttles = publisher.getThrottleCount();
+        }
+        
+        // Wait until everything arrived or nothing more arrives for a second
+        long seen = -1;
+        while (received.get() < messages && received.get() != seen) {
+            seen = received.get();
+            Thread.sleep(1000);
+        }
+        subscriber.close();
+        
+        System.out.printf("%8d %6dms %12.0f %10.1f %10d  %s%s%n", batch, linger, messages / (elapsed / 1e9),
+                (double) messages / batches, received.get(), latency.summary(1000.0, "us"),
+                throttles > 0 ? " throttled=" + throttles : "");
+    }
+    
+    private static byte[] payload(long sentNanos, byte[] padding) {
+        byte[] stamp = ("t" + sentNanos + " ").getBytes(StandardCharsets.UTF_8);
+        byte[] payload = Arrays.copyOf(stamp, stamp.length + padding.length);
+        System.arraycopy(padding, 0, payload, stamp.length, padding.length);
+        return payload;
+    }
+    
+    // Text subscriber: "[topic] Publisher addr: t<nanos> xxx..."
+    private static void receive(Socket socket, LatencyHistogram latency, AtomicLong received, int credit) {
+        int refill = Math.max(1, credit / 2);
+        int sinceGrant = 0;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8), 1 << 16)) {
+            OutputStream out = socket.getOutputStream();
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (credit > 0 && ++sinceGrant >= refill) {
+                    out.write(("CREDIT " + sinceGrant + "\n").getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                    sinceGrant = 0;
+                }
+                int stamp = line.indexOf(": t");
+                if (stamp < 0) {
+                    continue;
+                }
+                int end = line.indexOf(' ', stamp + 3);
+                long sent = Long.parseLong(line.substring(stamp + 3, end < 0 ? line.length() : end));
+                latency.record(System.nanoTime() - sent);
+                received.incrementAndGet();
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Connection closed at the end of the run
+        }
+    }
+}
\ No newline at end of file
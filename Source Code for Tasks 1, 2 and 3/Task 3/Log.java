@@ -0,0 +1,198 @@
+package pubsub;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Leveled logger for the broker with an asynchronous ring-buffer appender.
+// Callers claim a slot in a fixed-size ring with one CAS and return; a single
+// writer thread formats entries and prints them in batches. When the ring is
+// full the entry is dropped (and counted) instead of making the caller wait,
+// so a slow console can never stall a publisher or subscriber thread.
+//
+// Per-message logging is separate from the level: sampleMessage() is false
+// unless a sample rate is set, and then true for about one message in N.
+public final class Log {
+    public enum Level {
+        ERROR, WARN, INFO, DEBUG
+    }
+    
+    private static final int RING_SIZE = 8192; // power of two
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+    
+    private static volatile Level level = Level.INFO;
+    private static volatile int messageSampleRate = 0;
+    private static volatile PrintStream out = System.out;
+    
+    private static final AtomicReferenceArray<Entry> ring = new AtomicReferenceArray<>(RING_SIZE);
+    private static final AtomicLong head = new AtomicLong();  // next slot to claim
+    private static volatile long tail = 0;                    // next slot the writer reads
+    private static volatile long printed = 0;                 // slots before this one are printed
+    private static final LongAdder dropped = new LongAdder();
+    private static volatile Thread writer;
+    
+    private static class Entry {
+        final Level level;
+        final long millis;
+        final String message;
+        
+        Entry(Level level, long millis, String message) {
+            this.level = level;
+            this.millis = millis;
+            this.message = message;
+        }
+    }
+    
+    private Log() {
+    }
+    
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+    
+    public static Level getLevel() {
+        return level;
+    }
+    
+    // Log about one in every rate messages; 0 turns per-message logging off
+    public static void setMessageSampleRate(int rate) {
+        messageSampleRate = rate;
+    }
+    
+    // Send output somewhere other than System.out (benchmarks)
+    public static void setOutput(PrintStream stream) {
+        flush();
+        out = stream;
+    }
+    
+    public static boolean isDebugEnabled() {
+        return level.compareTo(Level.DEBUG) >= 0;
+    }
+    
+    // Whether the caller should log this message. Uses a thread-local random
+    // number, so sampled logging adds no shared counter to the hot path.
+    public static boolean sampleMessage() {
+        int rate = messageSampleRate;
+        return rate > 0 && (rate == 1 || ThreadLocalRandom.current().nextInt(rate) == 0);
+    }
+    
+    public static void error(String message) {
+        log(Level.ERROR, message);
+    }
+    
+    public static void warn(String message) {
+        log(Level.WARN, message);
+    }
+    
+    public static void info(String message) {
+        log(Level.INFO, message);
+    }
+    
+    public static void debug(String message) {
+        log(Level.DEBUG, message);
+    }
+    
+    public static void log(Level entryLevel, String message) {
+        if (entryLevel.compareTo(level) > 0) {
+            return;
+        }
+        long slot;
+        do {
+            slot = head.get();
+            if (slot - tail >= RING_SIZE) {
+                dropped.increment();
+                return;
+            }
+        } while (!head.compareAndSet(slot, slot + 1));
+        ring.set((int) (slot & (RING_SIZE - 1)), new Entry(entryLevel, System.currentTimeMillis(), message));
+        startWriter();
+    }
+    
+    private static void startWriter() {
+        if (writer != null) {
+            return;
+        }
+        synchronized (Log.class) {
+            if (writer == null) {
+                Thread thread = new Thread(Log::runWriter, "log-writer");
+                thread.setDaemon(true);
+                thread.start();
+                writer = thread;
+            }
+        }
+    }
+    
+    private static void runWriter() {
+        StringBuilder batch = new StringBuilder(16 * 1024);
+        long reportedDrops = 0;
+        while (true) {
+            // Take every entry that is ready, in order
+            long next = tail;
+            Entry entry;
+            while ((entry = ring.get((int) (next & (RING_SIZE - 1)))) != null) {
+                ring.set((int) (next & (RING_SIZE - 1)), null);
+                next++;
+                tail = next;
+                format(batch, entry);
+                if (batch.length() >= 16 * 1024) {
+                    break;
+                }
+            }
+            
+            long drops = dropped.sum();
+            if (drops > reportedDrops) {
+                format(batch, new Entry(Level.WARN, System.currentTimeMillis(), (drops - reportedDrops) + " log entries dropped (log buffer full)"));
+                reportedDrops = drops;
+            }
+            
+            if (batch.length() > 0) {
+                PrintStream stream = out;
+                stream.print(batch);
+                stream.flush();
+                batch.setLength(0);
+                printed = next;
+            } else {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+            }
+        }
+    }
+    
+    private static void format(StringBuilder batch, Entry entry) {
+        TIME_FORMAT.formatTo(Instant.ofEpochMilli(entry.millis), batch);
+        batch.append(' ').append(entry.level.name());
+        for (int i = entry.level.name().length(); i < 5; i++) {
+            batch.append(' ');
+        }
+        batch.append(' ').append(entry.message).append(System.lineSeparator());
+    }
+    
+    // Entries discarded because the ring was full
+    public static long getDroppedCount() {
+        return dropped.sum();
+    }
+    
+    // Wait (up to a couple of seconds) until everything logged so far is printed
+    public static void flush() {
+        long target = head.get();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (writer != null && printed < target && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+    
+    // Accepts error, warn, info or debug
+    public static Level parseLevel(String value) {
+        try {
+            return Level.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown log level '" + value + "' (expected error, warn, info or debug)");
+        }
+    }
+}
\ No newline at end of file
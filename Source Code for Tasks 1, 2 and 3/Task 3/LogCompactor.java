@@ -0,0 +1,164 @@
+package pubsub;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Background key compaction for the topic logs: in sealed segments only the
+// latest record for each key is kept, and a tombstone (a keyed message with
+// an empty payload) removes its key altogether once it is older than the
+// tombstone retention. Records without a key are never removed.
+//
+// One pass over a log:
+//  1. Index the dirty segments (sealed, above the log's clean offset) into the
+//     off-heap KeyOffsetIndex: key hash to the latest offset. Indexing stops at
+//     a segment boundary when the index is full, so memory stays bounded and
+//     the rest waits for the next pass.
+//  2. Rewrite every sealed segment up to there, oldest first, dropping keyed
+//     records the index has a later offset for. Each copy is written beside
+//     the segment and swapped in (see TopicLog.replaceSegment); a segment with
+//     nothing to drop is left alone.
+//  3. Move the clean offset to the end of what was indexed.
+//
+// Appends only touch the active segment, which is never compacted, so this
+// runs on its own thread without holding up publishers.
+public class LogCompactor {
+    public static final String CLEANED_SUFFIX = ".log.cleaned";
+    public static final long DEFAULT_TOMBSTONE_RETENTION_MILLIS = 24L * 60 * 60 * 1000;
+    public static final long DEFAULT_INDEX_BYTES = 16L * 1024 * 1024;
+    
+    private final KeyOffsetIndex index;
+    private final long tombstoneRetentionMillis;
+    private final AtomicLong passes = new AtomicLong();
+    private final AtomicLong recordsRemoved = new AtomicLong();
+    private final AtomicLong bytesReclaimed = new AtomicLong();
+    private final AtomicLong bytesScanned = new AtomicLong();
+    
+    public LogCompactor(long indexBytes, long tombstoneRetentionMillis) {
+        this.index = new KeyOffsetIndex(indexBytes);
+        this.tombstoneRetentionMillis = tombstoneRetentionMillis;
+    }
+    
+    // Run one pass over the log if it has dirty sealed segments. Returns the
+    // number of records removed.
+    public long compact(TopicLog log, long now) throws IOException {
+        List<LogSegment> sealed = log.sealedSegments();
+        long cleanOffset = log.getCleanOffset();
+        if (sealed.isEmpty() || sealed.get(sealed.size() - 1).getNextOffset() <= cleanOffset) {
+            return 0;
+        }
+        
+        index.clear();
+        long indexedEnd = -1;
+        for (LogSegment segment : sealed) {
+            if (segment.getNextOffset() <= cleanOffset) {
+                continue;
+            }
+            if (indexSegment(segment)) {
+                indexedEnd = segment.getNextOffset();
+                continue;
+            }
+            // Keys indexed from the part that fitted are safe to use: their
+            // records are newer than anything rewritten below indexedEnd
+            if (indexedEnd < 0) {
+                // Not even one segment fits; compact it against what did rather than never progress
+                Log.warn("Compaction index holds " + index.getMaxEntries() + " keys, too few for one segment of topic '"
+                        + log.getTopic() + "'; raise --compact-index-bytes");
+                indexedEnd = segment.getNextOffset();
+            }
+            break;
+        }
+        
+        long removed = 0;
+        for (LogSegment segment : sealed) {
+            if (segment.getBaseOffset() >= indexedEnd) {
+                break;
+            }
+            removed += rewrite(log, segment, now);
+        }
+        log.setCleanOffset(indexedEnd);
+        passes.incrementAndGet();
+        recordsRemoved.addAndGet(removed);
+        return removed;
+    }
+    
+    // Add a segment's keys to the index. False if the index filled up part way.
+    private boolean indexSegment(LogSegment segment) {
+        int end = segment.getEnd();
+        for (int position = 0; position < end; position = segment.next(position)) {
+            LogRecord record = segment.read(position);
+            if (record.key != null && !index.put(KeyOffsetIndex.hash(record.key), record.offset)) {
+                return false;
+            }
+        }
+        bytesScanned.addAndGet(end);
+        return true;
+    }
+    
+    private boolean keep(LogRecord record, long now) {
+        if (record.key == null) {
+            return true;
+        }
+        if (index.get(KeyOffsetIndex.hash(record.key)) > record.offset) {
+            return false; // superseded
+        }
+        return !record.hasAttribute(LogRecord.TOMBSTONE) || record.timestamp >= now - tombstoneRetentionMillis;
+    }
+    
+    // Copy the records to keep into a new file and swap it in. Returns the number removed.
+    private long rewrite(TopicLog log, LogSegment segment, long now) throws IOException {
+        int end = segment.getEnd();
+        long dropped = 0;
+        int keptBytes = 0;
+        for (int position = 0; position < end; position = segment.next(position)) {
+            LogRecord record = segment.read(position);
+            if (keep(record, now)) {
+                keptBytes += segment.next(position) - position;
+            } else {
+                dropped++;
+            }
+        }
+        bytesScanned.addAndGet(end);
+        if (dropped == 0) {
+            return 0;
+        }
+        
+        Path cleanedPath = null;
+        if (keptBytes > 0) {
+            cleanedPath = segment.getPath().resolveSibling(String.format("%020d", segment.getBaseOffset()) + CLEANED_SUFFIX);
+            LogSegment cleaned = LogSegment.createAt(cleanedPath, segment.getBaseOffset(), keptBytes);
+            try {
+                for (int position = 0; position < end; position = segment.next(position)) {
+                    LogRecord record = segment.read(position);
+                    if (keep(record, now)) {
+                        cleaned.copy(record);
+                    }
+                }
+            } finally {
+                cleaned.close();
+            }
+        }
+        if (!log.replaceSegment(segment, cleanedPath)) {
+            return 0; // retention got there first
+        }
+        bytesReclaimed.addAndGet(end - keptBytes);
+        return dropped;
+    }
+    
+    public long getPasses() {
+        return passes.get();
+    }
+    
+    public long getRecordsRemoved() {
+        return recordsRemoved.get();
+    }
+    
+    public long getBytesReclaimed() {
+        return bytesReclaimed.get();
+    }
+    
+    public long getBytesScanned() {
+        return bytesScanned.get();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,30 @@
+package pubsub;
+
+// One message as stored in a TopicLog segment
+public class LogRecord {
+    // attributes bits: the payload is stored deflated (see Compression); the
+    // record has a key; the record is a tombstone, deleting its key on compaction
+    public static final byte DEFLATED = 0x01;
+    public static final byte KEYED = 0x02;
+    public static final byte TOMBSTONE = 0x04;
+    
+    public final long offset;
+    public final long timestamp;     // broker receive time, epoch millis
+    public final byte attributes;    // per-record flags, e.g. DEFLATED
+    public final String senderAddr;
+    public final String key;         // null unless KEYED
+    public final byte[] payload;
+    
+    public LogRecord(long offset, long timestamp, byte attributes, String senderAddr, String key, byte[] payload) {
+        this.offset = offset;
+        this.timestamp = timestamp;
+        this.attributes = attributes;
+        this.senderAddr = senderAddr;
+        this.key = key;
+        this.payload = payload;
+    }
+    
+    public boolean hasAttribute(byte attribute) {
+        return (attributes & attribute) != 0;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,246 @@
+package pubsub;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.zip.CRC32C;
+
+// One fixed-size file of a TopicLog, named after the offset of its first record
+// and written through a MappedByteBuffer. Records are laid out back to back:
+//   int    size        - bytes that follow this field
+//   int    crc         - CRC32C of everything after this field
+//   long   offset
+//   long   timestamp   - epoch millis
+//   byte   attributes
+//   short  senderLength, then the sender address in UTF-8
+//   short  keyLength, then the key in UTF-8 - only with the KEYED attribute
+//   byte[] payload
+// The unused tail of the file is zeros, so a size of 0 marks the end. On open
+// the records are scanned and validated, which also discards a record torn by
+// a crash. Offsets increase by one per record, except in a segment rewritten
+// by the LogCompactor, which keeps the offsets of the records it kept.
+//
+// Only the TopicLog append lock writes a segment. Readers may run concurrently:
+// they only look below the volatile end position, which moves after a record is
+// completely written.
+public class LogSegment {
+    public static final int RECORD_OVERHEAD = 4 + 4 + 8 + 8 + 1 + 2;
+    // Longest sender (and key) a record can hold, behind its unsigned short length
+    public static final int MAX_FIELD_BYTES = 0xFFFF;
+    
+    private final Path path;
+    private final long baseOffset;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private volatile int end;
+    private volatile long nextOffset;
+    private volatile long lastTimestamp = -1;
+    private int flushedEnd;
+    
+    private LogSegment(Path path, long baseOffset, FileChannel channel, MappedByteBuffer buffer) {
+        this.path = path;
+        this.baseOffset = baseOffset;
+        this.channel = channel;
+        this.buffer = buffer;
+        this.nextOffset = baseOffset;
+    }
+    
+    public static String fileName(long baseOffset) {
+        return String.format("%020d.log", baseOffset);
+    }
+    
+    // A new empty segment of the given size, starting at baseOffset
+    public static LogSegment create(Path dir, long baseOffset, int size) throws IOException {
+        return createAt(dir.resolve(fileName(baseOffset)), baseOffset, size);
+    }
+    
+    // A new empty segment at any path, such as a compacted copy being written
+    public static LogSegment createAt(Path path, long baseOffset, int size) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return new LogSegment(path, baseOffset, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+    }
+    
+    // Reopen an existing segment and find the end of its valid records
+    public static LogSegment open(Path path) throws IOException {
+        String name = path.getFileName().toString();
+        long baseOffset = Long.parseLong(name.substring(0, name.length() - ".log".length()));
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        LogSegment segment = new LogSegment(path, baseOffset, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+        segment.recover();
+        return segment;
+    }
+    
+    private void recover() {
+        ByteBuffer view = buffer.duplicate();
+        int position = 0;
+        long expected = baseOffset;
+        long timestamp = -1;
+        while (position + RECORD_OVERHEAD <= view.capacity()) {
+            int size = view.getInt(position);
+            if (size < RECORD_OVERHEAD - 4 || position + 4 + size > view.capacity()) {
+                break;
+            }
+            int crc = view.getInt(position + 4);
+            long offset = view.getLong(position + 8);
+            if (crc != checksum(view, position + 8, size - 4) || offset < expected) {
+                break;
+            }
+            timestamp = view.getLong(position + 16);
+            expected = offset + 1;
+            position += 4 + size;
+        }
+        end = position;
+        flushedEnd = position;
+        nextOffset = expected;
+        lastTimestamp = timestamp;
+    }
+    
+    private static int checksum(ByteBuffer view, int from, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(view.slice(from, length));
+        return (int) crc.getValue();
+    }
+    
+    public static int recordSize(byte[] sender, byte[] key, byte[] payload) {
+        return RECORD_OVERHEAD + sender.length + (key != null ? 2 + key.length : 0) + payload.length;
+    }
+    
+    // Append the record with the next offset. Returns false, writing nothing,
+    // if it does not fit in the space left. A key (or null) needs the KEYED attribute.
+    public boolean append(long timestamp, byte attributes, byte[] sender, byte[] key, byte[] payload) {
+        return write(nextOffset, timestamp, attributes, sender, key, payload);
+    }
+    
+    // Append a record read from another segment, keeping its offset, which
+    // must be above every offset here. Returns false if it does not fit.
+    public boolean copy(LogRecord record) {
+        byte[] key = record.key != null ? record.key.getBytes(StandardCharsets.UTF_8) : null;
+        return write(record.offset, record.timestamp, record.attributes, record.senderAddr.getBytes(StandardCharsets.UTF_8), key, record.payload);
+    }
+    
+    private boolean write(long offset, long timestamp, byte attributes, byte[] sender, byte[] key, byte[] payload) {
+        if (sender.length > MAX_FIELD_BYTES || (key != null && key.length > MAX_FIELD_BYTES)) {
+            throw new IllegalArgumentException("Sender or key is longer than a record can hold");
+        }
+        int size = recordSize(sender, key, payload);
+        int position = end;
+        if (position + size > buffer.capacity()) {
+            return false;
+        }
+        ByteBuffer view = buffer.duplicate();
+        view.position(position + 8);
+        view.putLong(offset);
+        view.putLong(timestamp);
+        view.put(attributes);
+        view.putShort((short) sender.length);
+        view.put(sender);
+        if (key != null) {
+            view.putShort((short) key.length);
+            view.put(key);
+        }
+        view.put(payload);
+        view.putInt(position + 4, checksum(view, position + 8, size - 8));
+        view.putInt(position, size - 4);
+        
+        lastTimestamp = timestamp;
+        nextOffset = offset + 1;
+        end = position + size;
+        return true;
+    }
+    
+    // Force everything appended since the last flush to disk
+    public void flush() {
+        int position = end;
+        if (position > flushedEnd) {
+            buffer.force(flushedEnd, position - flushedEnd);
+            flushedEnd = position;
+        }
+    }
+    
+    // Byte position of the record with the given offset, scanning from the
+    // start of the segment, or the end position if the offset is past the last record
+    public int positionOf(long offset) {
+        ByteBuffer view = buffer.duplicate();
+        int position = 0;
+        int limit = end;
+        while (position < limit && view.getLong(position + 8) < offset) {
+            position += 4 + view.getInt(position);
+        }
+        return position;
+    }
+    
+    // Position of the first record stamped at or after the given time
+    public int positionOfTime(long timestamp) {
+        ByteBuffer view = buffer.duplicate();
+        int position = 0;
+        int limit = end;
+        while (position < limit && view.getLong(position + 16) < timestamp) {
+            position += 4 + view.getInt(position);
+        }
+        return position;
+    }
+    
+    // Decode the record at a position returned by positionOf() or an earlier read
+    public LogRecord read(int position) {
+        ByteBuffer view = buffer.duplicate();
+        int size = view.getInt(position);
+        view.position(position + 8);
+        long offset = view.getLong();
+        long timestamp = view.getLong();
+        byte attributes = view.get();
+        byte[] sender = new byte[view.getShort() & 0xFFFF];
+        view.get(sender);
+        String key = null;
+        int keyBytes = 0;
+        if ((attributes & LogRecord.KEYED) != 0) {
+            byte[] keyData = new byte[view.getShort() & 0xFFFF];
+            view.get(keyData);
+            key = new String(keyData, StandardCharsets.UTF_8);
+            keyBytes = 2 + keyData.length;
+        }
+        byte[] payload = new byte[size - (RECORD_OVERHEAD - 4) - sender.length - keyBytes];
+        view.get(payload);
+        return new LogRecord(offset, timestamp, attributes, new String(sender, StandardCharsets.UTF_8), key, payload);
+    }
+    
+    // Position just after the record at the given position
+    public int next(int position) {
+        return position + 4 + buffer.getInt(position);
+    }
+    
+    public long getBaseOffset() {
+        return baseOffset;
+    }
+    
+    // Offset the next appended record would get
+    public long getNextOffset() {
+        return nextOffset;
+    }
+    
+    public long getLastTimestamp() {
+        return lastTimestamp;
+    }
+    
+    // Bytes of valid records
+    public int getEnd() {
+        return end;
+    }
+    
+    public Path getPath() {
+        return path;
+    }
+    
+    public void close() throws IOException {
+        flush();
+        channel.close();
+    }
+    
+    // The mapping stays valid for readers still holding this segment
+    public void delete() throws IOException {
+        channel.close();
+        Files.deleteIfExists(path);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,95 @@
+package pubsub;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Stream;
+
+// Append throughput of TopicLog under each fsync policy. Run it with --dir on
+// the disk the broker will use: /tmp is often tmpfs, which makes every fsync free.
+// Each policy writes to a fresh log for a fixed time and the data is deleted
+// afterwards. The interval policy is flushed by a MessageStore background thread,
+// as in the broker.
+//
+// Usage: java pubsub.LogThroughputBenchmark [--dir log-benchmark] [--size 256] [--seconds 3]
+//        [--segment-bytes 67108864] [--policies never,interval:100,every:1000,every:100,every:1]
+public class LogThroughputBenchmark {
+    public static void main(String[] args) throws IOException {
+        Path dir = Paths.get("log-benchmark");
+        int size = 256;
+        int seconds = 3;
+        int segmentBytes = ServerConfig.DEFAULT_SEGMENT_BYTES;
+        String[] policies = {"never", "interval:100", "every:1000", "every:100", "every:1"};
+        
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--dir":
+                    dir = Paths.get(args[i + 1]);
+                    break;
+                case "--size":
+                    size = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--seconds":
+                    seconds = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--segment-bytes":
+                    segmentBytes = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--policies":
+                    policies = args[i + 1].split(",");
+                    break;
+                default:
+                    System.out.println("Unknown option " + args[i]);
+                    System.exit(1);
+            }
+        }
+        
+        byte[] payload = new byte[size];
+        new Random(42).nextBytes(payload);
+        
+        System.out.println("Directory: " + dir.toAbsolutePath() + ", payload " + size + " bytes, segments " + segmentBytes + " bytes");
+        System.out.printf("%-14s %14s %10s %10s %10s%n", "fsync", "messages/s", "MB/s", "segments", "us/append");
+        for (String policy : policies) {
+            Path runDir = dir.resolve("run-" + policy.replace(':', '-'));
+            deleteRecursively(runDir);
+            MessageStore store = new MessageStore(runDir, segmentBytes, FsyncPolicy.parse(policy), -1, -1);
+            try {
+                TopicLog log = store.log("benchmark");
+                
+                // Warm up, then measure
+                long warmupEnd = System.nanoTime() + 500_000_000L;
+                while (System.nanoTime() < warmupEnd) {
+                    log.append(System.currentTimeMillis(), "benchmark", payload);
+                }
+                
+                long first = log.getEndOffset();
+                long start = System.nanoTime();
+                long deadline = start + seconds * 1_000_000_000L;
+                while (System.nanoTime() < deadline) {
+                    for (int i = 0; i < 64; i++) {
+                        log.append(System.currentTimeMillis(), "benchmark", payload);
+                    }
+                }
+                long elapsed = System.nanoTime() - start;
+                long messages = log.getEndOffset() - first;
+                double rate = messages / (elapsed / 1e9);
+                System.out.printf("%-14s %14.0f %10.1f %10d %10.2f%n", policy, rate, rate * size / (1024 * 1024),
+                        log.getSegmentCount(), elapsed / 1000.0 / messages);
+            } finally {
+                store.close();
+                deleteRecursively(runDir);
+            }
+        }
+    }
+    
+    private static void deleteRecursively(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(path)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,93 @@
+package pubsub;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+// Cost of the broker's diagnostics on the message path. Each thread plays a
+// connection handler and "handles" messages as fast as it can, doing only what
+// the broker logs per message:
+//   println     - the old code: two synchronous System.out-style println calls
+//                 (autoflush PrintStream) per message
+//   off         - Log with per-message logging off (the new default)
+//   sampled     - Log sampling 1 in 1000 messages
+//   async-all   - Log with every message logged through the ring buffer
+// Output goes to --sink (a file by default; use /dev/tty to see a real console).
+//
+// Usage: java pubsub.LoggingBenchmark [--threads 1,4] [--seconds 3] [--sink logging-benchmark.out]
+public class LoggingBenchmark {
+    public static void main(String[] args) throws Exception {
+        int[] threadCounts = {1, 4};
+        int seconds = 3;
+        String sink = "logging-benchmark.out";
+        
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--threads":
+                    threadCounts = Arrays.stream(args[i + 1].split(",")).mapToInt(Integer::parseInt).toArray();
+                    break;
+                case "--seconds":
+                    seconds = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--sink":
+                    sink = args[i + 1];
+                    break;
+                default:
+                    System.out.println("Unknown option " + args[i]);
+                    System.exit(1);
+            }
+        }
+        
+        PrintStream console = new PrintStream(new FileOutputStream(sink), true);
+        Log.setOutput(console);
+        
+        System.out.println("Sink: " + sink);
+        System.out.printf("%-10s %8s %16s %14s%n", "mode", "threads", "messages/s", "log dropped");
+        for (String mode : new String[] {"println", "off", "sampled", "async-all"}) {
+            for (int threads : threadCounts) {
+                // Warm up, then measure
+                run(mode, threads, 1, console);
+                long droppedBefore = Log.getDroppedCount();
+                double rate = run(mode, threads, seconds, console);
+                System.out.printf("%-10s %8d %16.0f %14d%n", mode, threads, rate, Log.getDroppedCount() - droppedBefore);
+            }
+        }
+        Log.flush();
+        console.close();
+        if (sink.equals("logging-benchmark.out")) {
+            new File(sink).delete();
+        }
+    }
+    
+    private static double run(String mode, int threads, int seconds, PrintStream console) throws Exception {
+        Log.setMessageSampleRate(mode.equals("sampled") ? 1000 : mode.equals("async-all") ? 1 : 0);
+        LongAdder handled = new LongAdder();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            String addr = "/127.0.0.1:" + (40000 + t);
+            pool.submit(() -> {
+                long local = 0;
+                while (System.nanoTime() < deadline) {
+                    String message = "message " + local;
+                    if (mode.equals("println")) {
+                        console.println("Received from PUBLISHER " + addr + " on topic 'bench': " + message);
+                        console.println("Message queued for 1 subscriber(s) on topic 'bench'");
+                    } else if (Log.sampleMessage()) {
+                        Log.info("Received from PUBLISHER " + addr + " on topic 'bench': " + message);
+                        Log.info("Message queued for 1 subscriber(s) on topic 'bench'");
+                    }
+                    local++;
+                }
+                handled.add(local);
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(seconds + 30L, TimeUnit.SECONDS);
+        long elapsed = System.nanoTime() - start;
+        Log.flush();
+        return handled.sum() / (elapsed / 1e9);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,323 @@
+package pubsub;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A published message as it travels through the broker. It keeps whichever
+// form it arrived in (text line or raw binary payload) and converts to the
+// other form at most once, however many subscribers need it.
+//
+// The bytes each subscriber receives are encoded once per wire format into a
+// shared buffer (pooled and direct when small enough). Every subscriber writes
+// its own duplicate() of that buffer, so fan-out copies nothing. Messages are
+// reference counted: the publisher holds one reference while fanning out,
+// each queued delivery holds another, and the encoded buffers go back to the
+// pool when the last one is released.
+//
+// A publisher may key a message, for key-hash consumer-group dispatch: a text
+// line starting "{key} " from a publisher that opted in with the "keyed"
+// handshake option, or a FLAG_KEYED frame whose payload starts with the key
+// (unsigned short length, then UTF-8), in both cases after any trace
+// header. The broker strips the key on ingress and keeps it beside the
+// message, like a trace.
+//
+// A payload that arrives deflated (see Compression) is kept that way and
+// inflated only if something needs the raw bytes. Compressing subscribers
+// share one more encoding, holding the deflated bytes behind a codec byte.
+//
+// Content filters read the payload's named fields, parsed once on first use
+// and shared by every filter that looks at the message.
+public class Message {
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+    
+    private final String topic;
+    private final int topicId;
+    private final String senderAddr;
+    private final BufferPool pool;
+    private final AtomicInteger refCount = new AtomicInteger(1);
+    private String text;
+    private byte[] payload;
+    private String textLine;
+    private ByteBuffer textEncoding;
+    private ByteBuffer binaryEncoding;
+    private byte[] compressed;         // the deflated payload, if it arrived so or was deflated for a subscriber
+    private ByteBuffer codecEncoding;  // frame for compressing subscribers
+    private Map<String, Object> fields; // payload fields for content filters
+    private volatile long offset = -1; // position in the topic's log, -1 if not stored
+    private volatile Trace trace;      // set by tracing publishers, kept out of the encodings
+    private volatile String key;       // set by keying publishers, kept out of the encodings
+    private volatile long retainedSeq = -1; // stamped by the RetainedCache, -1 if not retained
+    private volatile boolean logged;   // sampled for per-message logging (--log-messages) on ingress
+    
+    private Message(String topic, int topicId, String senderAddr, String text, byte[] payload, byte[] compressed, BufferPool pool) {
+        this.topic = topic;
+        this.topicId = topicId;
+        this.senderAddr = senderAddr;
+        this.text = text;
+        this.payload = payload;
+        this.compressed = compressed;
+        this.pool = pool;
+    }
+    
+    public static Message fromText(String topic, int topicId, String senderAddr, String text) {
+        return new Message(topic, topicId, senderAddr, text, null, null, BufferPool.SHARED);
+    }
+    
+    public static Message fromBytes(String topic, int topicId, String senderAddr, byte[] payload) {
+        return new Message(topic, topicId, senderAddr, null, payload, null, BufferPool.SHARED);
+    }
+    
+    // A message whose payload arrived deflated
+    public static Message fromCompressed(String topic, int topicId, String senderAddr, byte[] compressed) {
+        return new Message(topic, topicId, senderAddr, null, null, compressed, BufferPool.SHARED);
+    }
+    
+    public String getTopic() {
+        return topic;
+    }
+    
+    public int getTopicId() {
+        return topicId;
+    }
+    
+    public String getSenderAddr() {
+        return senderAddr;
+    }
+    
+    public long getOffset() {
+        return offset;
+    }
+    
+    public void setOffset(long offset) {
+        this.offset = offset;
+    }
+    
+    public boolean isLogged() {
+        return logged;
+    }
+    
+    public void setLogged(boolean logged) {
+        this.logged = logged;
+    }
+    
+    public long getRetainedSeq() {
+        return retainedSeq;
+    }
+    
+    public void setRetainedSeq(long retainedSeq) {
+        this.retainedSeq = retainedSeq;
+    }
+    
+    public Trace getTrace() {
+        return trace;
+    }
+    
+    public void setTrace(Trace trace) {
+        this.trace = trace;
+    }
+    
+    public String getKey() {
+        return key;
+    }
+    
+    public void setKey(String key) {
+        this.key = key;
+    }
+    
+    // Keys are framed and stored behind an unsigned short length
+    public static final int MAX_KEY_BYTES = 0xFFFF;
+    
+    public static boolean fitsKey(String key) {
+        // Three UTF-8 bytes per char at most, so short keys need no encoding
+        return key.length() <= MAX_KEY_BYTES / 3 || key.getBytes(StandardCharsets.UTF_8).length <= MAX_KEY_BYTES;
+    }
+    
+    // Length of a "{key} " prefix on a text line, or 0 if it has none
+    public static int textKeyLength(String line) {
+        if (!line.startsWith("{")) {
+            return 0;
+        }
+        int close = line.indexOf("} ");
+        return close > 1 ? close + 2 : 0;
+    }
+    
+    // The key in a text line's prefix of textKeyLength(line) characters
+    public static String textKey(String line, int prefixLength) {
+        return line.substring(1, prefixLength - 2);
+    }
+    
+    // Bytes taken by the key at the start of a FLAG_KEYED payload, or -1 if it is too short
+    public static int binaryKeyLength(byte[] payload) {
+        if (payload.length < 2) {
+            return -1;
+        }
+        int length = 2 + (((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF));
+        return length <= payload.length ? length : -1;
+    }
+    
+    public static String binaryKey(byte[] payload, int keyLength) {
+        return new String(payload, 2, keyLength - 2, StandardCharsets.UTF_8);
+    }
+    
+    public static byte[] binaryKeyPrefix(String key) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_KEY_BYTES) {
+            throw new IllegalArgumentException("Key of " + bytes.length + " bytes is longer than " + MAX_KEY_BYTES);
+        }
+        byte[] prefix = new byte[2 + bytes.length];
+        prefix[0] = (byte) (bytes.length >>> 8);
+        prefix[1] = (byte) bytes.length;
+        System.arraycopy(bytes, 0, prefix, 2, bytes.length);
+        return prefix;
+    }
+    
+    // Raw payload for binary subscribers, encoded from the text or inflated on first use
+    public synchronized byte[] getPayload() {
+        if (payload == null) {
+            if (text != null) {
+                payload = text.getBytes(StandardCharsets.UTF_8);
+            } else {
+                try {
+                    payload = Compression.inflate(compressed);
+                } catch (IllegalArgumentException e) {
+                    // Only found now, as the broker forwards deflated bytes unchecked
+                    Log.warn("Delivering an empty payload on topic '" + topic + "' from " + senderAddr + ": " + e.getMessage());
+                    payload = new byte[0];
+                }
+            }
+        }
+        return payload;
+    }
+    
+    // The deflated payload, or null if it has not been deflated
+    public synchronized byte[] getCompressed() {
+        return compressed;
+    }
+    
+    public synchronized String getText() {
+        if (text == null) {
+            text = new String(getPayload(), StandardCharsets.UTF_8);
+        }
+        return text;
+    }
+    
+    // The payload's named fields (see MessageFields)
+    public synchronized Map<String, Object> getFields() {
+        if (fields == null) {
+            fields = MessageFields.parse(getText());
+        }
+        return fields;
+    }
+    
+    // The line text subscribers receive
+    public synchronized String getTextLine() {
+        if (textLine == null) {
+            textLine = "[" + topic + "] Publisher " + senderAddr + ": " + getText();
+        }
+        return textLine;
+    }
+    
+    // Bytes held in whichever forms the message has now, for cache budgets
+    public synchronized long footprint() {
+        long bytes = 0;
+        if (text != null) {
+            bytes += text.length();
+        }
+        if (payload != null) {
+            bytes += payload.length;
+        }
+        if (compressed != null) {
+            bytes += compressed.length;
+        }
+        return bytes;
+    }
+    
+    // A keyed message with an empty payload deletes its key from compacted logs
+    public synchronized boolean isTombstone() {
+        if (key == null) {
+            return false;
+        }
+        return text != null ? text.isEmpty() : payload != null && payload.length == 0;
+    }
+    
+    public int getPayloadLength() {
+        return getPayload().length;
+    }
+    
+    // The complete wire bytes for one subscriber format: a text line with its
+    // separator, or a binary frame with its header. Encoded on first request
+    // only. Callers must write a duplicate() and never modify the original.
+    public synchronized ByteBuffer encoded(boolean binary) {
+        if (binary) {
+            if (binaryEncoding == null) {
+                byte[] data = getPayload();
+                ByteBuffer buffer = pool.acquire(4 + BinaryProtocol.HEADER_LENGTH + data.length);
+                buffer.putInt(BinaryProtocol.HEADER_LENGTH + data.length);
+                buffer.putInt(topicId);
+                buffer.put((byte) 0);
+                buffer.put(data);
+                buffer.flip();
+                binaryEncoding = buffer;
+            }
+            return binaryEncoding;
+        }
+        
+        if (textEncoding == null) {
+            byte[] line = getTextLine().getBytes(StandardCharsets.UTF_8);
+            ByteBuffer buffer = pool.acquire(line.length + LINE_SEPARATOR.length);
+            buffer.put(line);
+            buffer.put(LINE_SEPARATOR);
+            buffer.flip();
+            textEncoding = buffer;
+        }
+        return textEncoding;
+    }
+    
+    // The binary frame for compressing subscribers: the codec byte, then the
+    // deflated payload if it has one. A raw payload of at least threshold
+    // bytes is deflated here, once, for all of them.
+    public synchronized ByteBuffer encodedCompressed(int threshold) {
+        if (codecEncoding == null) {
+            if (compressed == null && getPayload().length >= threshold) {
+                compressed = Compression.deflate(payload);
+            }
+            byte[] data = compressed != null ? compressed : payload;
+            ByteBuffer buffer = pool.acquire(4 + BinaryProtocol.HEADER_LENGTH + 1 + data.length);
+            buffer.putInt(BinaryProtocol.HEADER_LENGTH + 1 + data.length);
+            buffer.putInt(topicId);
+            buffer.put((byte) 0);
+            buffer.put(compressed != null ? Compression.CODEC_DEFLATE : Compression.CODEC_NONE);
+            buffer.put(data);
+            buffer.flip();
+            codecEncoding = buffer;
+        }
+        return codecEncoding;
+    }
+    
+    public Message retain() {
+        refCount.incrementAndGet();
+        return this;
+    }
+    
+    // Drop one reference; the last one returns the encoded buffers to the pool
+    public void release() {
+        if (refCount.decrementAndGet() == 0) {
+            synchronized (this) {
+                if (textEncoding != null) {
+                    pool.release(textEncoding);
+                    textEncoding = null;
+                }
+                if (binaryEncoding != null) {
+                    pool.release(binaryEncoding);
+                    binaryEncoding = null;
+                }
+                if (codecEncoding != null) {
+                    pool.release(codecEncoding);
+                    codecEncoding = null;
+                }
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,194 @@
+package pubsub;
+
+import java.util.*;
+
+// The named fields of a message payload, for SubscriptionFilter. A payload
+// that is a JSON object gives its fields, nested objects flattened with dots
+// ("order.total"); anything else is read as "name=value" pairs separated by
+// spaces, commas, semicolons or '&'. Numbers become Double, true/false
+// Boolean and the rest String; JSON nulls and arrays are left out.
+// Parsed at most once per message (see Message.getFields).
+public final class MessageFields {
+    private MessageFields() {
+    }
+    
+    public static Map<String, Object> parse(String text) {
+        Map<String, Object> fields = new HashMap<>();
+        String trimmed = text.trim();
+        if (trimmed.startsWith("{")) {
+            try {
+                new JsonReader(trimmed).readObject("", fields);
+                return fields;
+            } catch (IllegalArgumentException e) {
+                fields.clear(); // not JSON after all; try pairs
+            }
+        }
+        for (String pair : trimmed.split("[\\s,;&]+")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0) {
+                fields.put(pair.substring(0, equals), scalar(pair.substring(equals + 1)));
+            }
+        }
+        return fields;
+    }
+    
+    private static Object scalar(String value) {
+        if (value.length() >= 2 && (value.charAt(0) == '"' || value.charAt(0) == '\'') && value.charAt(value.length() - 1) == value.charAt(0)) {
+            return value.substring(1, value.length() - 1);
+        }
+        if (value.equalsIgnoreCase("true") || value.equalsIgnoreCase("false")) {
+            return Boolean.valueOf(value);
+        }
+        if (!value.isEmpty() && (Character.isDigit(value.charAt(0)) || value.charAt(0) == '-' || value.charAt(0) == '.')) {
+            try {
+                return Double.valueOf(value);
+            } catch (NumberFormatException e) {
+                // Not a number after all
+            }
+        }
+        return value;
+    }
+    
+    // Just enough JSON to pull out scalar fields; throws IllegalArgumentException on malformed input
+    private static class JsonReader {
+        private final String text;
+        private int position = 0;
+        
+        JsonReader(String text) {
+            this.text = text;
+        }
+        
+        void readObject(String prefix, Map<String, Object> fields) {
+            expect('{');
+            skipSpace();
+            if (peek() == '}') {
+                position++;
+                return;
+            }
+            while (true) {
+                skipSpace();
+                String name = readString();
+                skipSpace();
+                expect(':');
+                skipSpace();
+                readValue(prefix + name, fields);
+                skipSpace();
+                char next = next();
+                if (next == '}') {
+                    return;
+                }
+                if (next != ',') {
+                    throw new IllegalArgumentException("Expected ',' or '}' at " + (position - 1));
+                }
+            }
+        }
+        
+        private void readValue(String name, Map<String, Object> fields) {
+            char c = peek();
+            if (c == '{') {
+                readObject(name + ".", fields);
+            } else if (c == '[') {
+                skipArray();
+            } else if (c == '"') {
+                fields.put(name, readString());
+            } else {
+                int start = position;
+                while (position < text.length() && ",}] \t\r\n".indexOf(text.charAt(position)) < 0) {
+                    position++;
+                }
+                String literal = text.substring(start, position);
+                if (literal.equals("null")) {
+                    return;
+                }
+                Object value = scalar(literal);
+                if (value instanceof String) {
+                    throw new IllegalArgumentException("Invalid JSON value '" + literal + "'");
+                }
+                fields.put(name, value);
+            }
+        }
+        
+        private void skipArray() {
+            expect('[');
+            int depth = 1;
+            while (depth > 0) {
+                char c = next();
+                if (c == '"') {
+                    position--;
+                    readString();
+                } else if (c == '[') {
+                    depth++;
+                } else if (c == ']') {
+                    depth--;
+                }
+            }
+        }
+        
+        private String readString() {
+            expect('"');
+            StringBuilder value = new StringBuilder();
+            while (true) {
+                char c = next();
+                if (c == '"') {
+                    return value.toString();
+                }
+                if (c == '\\') {
+                    char escaped = next();
+                    switch (escaped) {
+                        case 'n':
+                            value.append('\n');
+                            break;
+                        case 't':
+                            value.append('\t');
+                            break;
+                        case 'r':
+                            value.append('\r');
+                            break;
+                        case 'b':
+                            value.append('\b');
+                            break;
+                        case 'f':
+                            value.append('\f');
+                            break;
+                        case 'u':
+                            if (position + 4 > text.length()) {
+                                throw new IllegalArgumentException("Truncated escape");
+                            }
+                            value.append((char) Integer.parseInt(text.substring(position, position + 4), 16));
+                            position += 4;
+                            break;
+                        default:
+                            value.append(escaped);
+                    }
+                } else {
+                    value.append(c);
+                }
+            }
+        }
+        
+        private void skipSpace() {
+            while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+                position++;
+            }
+        }
+        
+        private char peek() {
+            if (position >= text.length()) {
+                throw new IllegalArgumentException("Unexpected end of JSON");
+            }
+            return text.charAt(position);
+        }
+        
+        private char next() {
+            char c = peek();
+            position++;
+            return c;
+        }
+        
+        private void expect(char expected) {
+            if (next() != expected) {
+                throw new IllegalArgumentException("Expected '" + expected + "' at " + (position - 1));
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,188 @@
+package pubsub;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// The broker's persistent message store: one TopicLog per topic under a base
+// directory ("topic-" plus the URL-encoded topic name, so "/" in topics is safe).
+// A background thread runs the interval fsync policy and retention; key
+// compaction, when enabled, runs on a second one so a long pass never delays
+// a flush.
+public class MessageStore {
+    private static final long RETENTION_CHECK_MILLIS = 5000;
+    
+    private final Path dir;
+    private final int segmentBytes;
+    private final FsyncPolicy fsyncPolicy;
+    private final long retentionMillis;
+    private final long retentionBytes;
+    private final Map<String, TopicLog> logs = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService maintenance;
+    private ScheduledExecutorService compaction;
+    private LogCompactor compactor;
+    
+    public MessageStore(Path dir, int segmentBytes, FsyncPolicy fsyncPolicy, long retentionMillis, long retentionBytes) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.fsyncPolicy = fsyncPolicy;
+        this.retentionMillis = retentionMillis;
+        this.retentionBytes = retentionBytes;
+        
+        Files.createDirectories(dir);
+        try (DirectoryStream<Path> topicDirs = Files.newDirectoryStream(dir, "topic-*")) {
+            for (Path topicDir : topicDirs) {
+                String topic = URLDecoder.decode(topicDir.getFileName().toString().substring("topic-".length()), StandardCharsets.UTF_8);
+                logs.put(topic, TopicLog.open(topic, topicDir, segmentBytes, fsyncPolicy));
+            }
+        }
+        
+        maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "message-store");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (fsyncPolicy.mode == FsyncPolicy.Mode.INTERVAL) {
+            maintenance.scheduleWithFixedDelay(this::flushAll, fsyncPolicy.intervalMillis, fsyncPolicy.intervalMillis, TimeUnit.MILLISECONDS);
+        }
+        if (retentionMillis >= 0 || retentionBytes >= 0) {
+            maintenance.scheduleWithFixedDelay(this::enforceRetention, RETENTION_CHECK_MILLIS, RETENTION_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    public static MessageStore open(ServerConfig config) throws IOException {
+        MessageStore store = new MessageStore(Paths.get(config.logDir), config.segmentBytes, config.fsyncPolicy, config.retentionMillis, config.retentionBytes);
+        if (config.compactIntervalMillis > 0) {
+            store.startCompaction(config.compactIntervalMillis, new LogCompactor(config.compactIndexBytes, config.compactTombstoneMillis));
+        }
+        return store;
+    }
+    
+    // Compact every log every intervalMillis on the compaction thread
+    public void startCompaction(long intervalMillis, LogCompactor compactor) {
+        this.compactor = compactor;
+        compaction = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "log-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compaction.scheduleWithFixedDelay(this::compactAll, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    // The compactor, or null when compaction is off
+    public LogCompactor getCompactor() {
+        return compactor;
+    }
+    
+    // The topic's log, created on first use
+    public TopicLog log(String topic) throws IOException {
+        TopicLog log = logs.get(topic);
+        if (log != null) {
+            return log;
+        }
+        synchronized (logs) {
+            log = logs.get(topic);
+            if (log == null) {
+                Path topicDir = dir.resolve("topic-" + URLEncoder.encode(topic, StandardCharsets.UTF_8));
+                log = TopicLog.open(topic, topicDir, segmentBytes, fsyncPolicy);
+                logs.put(topic, log);
+            }
+            return log;
+        }
+    }
+    
+    // The topic's log, or null if nothing was ever stored for it
+    public TopicLog existingLog(String topic) {
+        return logs.get(topic);
+    }
+    
+    // Append a message to its topic's log and return the assigned offset
+    public long append(String topic, long timestamp, String senderAddr, byte[] payload) throws IOException {
+        return log(topic).append(timestamp, senderAddr, payload);
+    }
+    
+    public long append(String topic, long timestamp, byte attributes, String senderAddr, byte[] payload) throws IOException {
+        return log(topic).append(timestamp, attributes, senderAddr, payload);
+    }
+    
+    // A keyed append; key may be null
+    public long append(String topic, long timestamp, byte attributes, String senderAddr, String key, byte[] payload) throws IOException {
+        return log(topic).append(timestamp, attributes, senderAddr, key, payload);
+    }
+    
+    public Collection<TopicLog> getLogs() {
+        return logs.values();
+    }
+    
+    public FsyncPolicy getFsyncPolicy() {
+        return fsyncPolicy;
+    }
+    
+    private void flushAll() {
+        for (TopicLog log : logs.values()) {
+            try {
+                log.flush();
+            } catch (java.io.UncheckedIOException e) {
+                Log.error("Flush failed for topic '" + log.getTopic() + "': " + e.getMessage());
+            }
+        }
+    }
+    
+    private void enforceRetention() {
+        long now = System.currentTimeMillis();
+        for (TopicLog log : logs.values()) {
+            try {
+                int deleted = log.enforceRetention(retentionMillis, retentionBytes, now);
+                if (deleted > 0) {
+                    Log.info("Retention removed " + deleted + " segment(s) from topic '" + log.getTopic() + "'");
+                }
+            } catch (IOException e) {
+                Log.error("Retention failed for topic '" + log.getTopic() + "': " + e.getMessage());
+            }
+        }
+    }
+    
+    private void compactAll() {
+        long now = System.currentTimeMillis();
+        for (TopicLog log : logs.values()) {
+            try {
+                long removed = compactor.compact(log, now);
+                if (removed > 0) {
+                    Log.info("Compaction removed " + removed + " record(s) from topic '" + log.getTopic() + "'");
+                }
+            } catch (IOException | RuntimeException e) {
+                Log.error("Compaction failed for topic '" + log.getTopic() + "': " + e.getMessage());
+            }
+        }
+    }
+    
+    // Stop background work and flush and close every log
+    public void close() {
+        if (compaction != null) {
+            // Let a pass in progress finish; its swaps leave every log consistent
+            compaction.shutdown();
+            try {
+                compaction.awaitTermination(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        maintenance.shutdown();
+        try {
+            maintenance.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (TopicLog log : logs.values()) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                Log.error("Failed to close log for topic '" + log.getTopic() + "': " + e.getMessage());
+            }
+        }
+    }
+}
\ No newline at end of file
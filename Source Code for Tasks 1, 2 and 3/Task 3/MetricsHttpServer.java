@@ -0,0 +1,58 @@
+package pubsub;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+// Serves BrokerMetrics at http://host:port/metrics in Prometheus text format,
+// using the JDK's built-in HTTP server on one daemon thread
+public class MetricsHttpServer {
+    private final HttpServer server;
+    
+    public MetricsHttpServer(String host, int port, BrokerMetrics metrics) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        server.createContext("/metrics", exchange -> respond(exchange, metrics));
+        server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "metrics-http");
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+    
+    private static void respond(HttpExchange exchange, BrokerMetrics metrics) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("GET") && !exchange.getRequestMethod().equals("HEAD")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = metrics.toPrometheus().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            if (exchange.getRequestMethod().equals("HEAD")) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+    
+    public void start() {
+        server.start();
+    }
+    
+    public void stop() {
+        server.stop(0);
+    }
+    
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,441 @@
+package pubsub;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Selector-based transport speaking the same "PUBLISHER:TOPIC" / "terminate"
+// line protocol as PubSubServer. Connections are spread over a fixed set of
+// event-loop threads instead of getting a thread each, and output is queued
+// per connection and written whenever the socket is writable.
+public class NioPubSubServer {
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_LINE_LENGTH = 1024 * 1024;
+    private static final int WRITE_BATCH = 64;
+    
+    private String host;
+    private int port;
+    private int queueCapacity;
+    private OverflowPolicy overflowPolicy;
+    private TopicRegistry<Connection> publishers;
+    private TopicRegistry<Connection> subscribers;
+    private Set<Connection> clients;
+    private volatile boolean running = true;
+    private ServerSocketChannel serverChannel;
+    private EventLoop[] eventLoops;
+    
+    // One selector and thread; owns every channel registered with it
+    private class EventLoop implements Runnable {
+        final Selector selector;
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        Thread thread;
+        
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+        
+        // Run a task on this loop's thread, waking the selector if it is blocked
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+        
+        boolean inLoop() {
+            return Thread.currentThread() == thread;
+        }
+        
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                    
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection conn = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                conn.onReadable(readBuffer);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                conn.onWritable();
+                            }
+                        } catch (IOException | CancelledKeyException e) {
+                            conn.close();
+                        }
+                    }
+                } catch (IOException e) {
+                    if (running) {
+                        Log.error("Event loop error: " + e.getMessage());
+                    }
+                } catch (ClosedSelectorException e) {
+                    break;
+                }
+            }
+        }
+    }
+    
+    // Per-connection state. Reads, writes and close only happen on the owning loop;
+    // other loops hand it output through the outbound queue.
+    private class Connection {
+        final SocketChannel channel;
+        final EventLoop loop;
+        final String addr;
+        final LineFramer framer = new LineFramer(MAX_LINE_LENGTH);
+        SelectionKey key;
+        String type;
+        String topic;
+        
+        // Filled by any loop, drained by the owning loop. Each queued message holds a reference.
+        final Queue<Message> outbound = new ConcurrentLinkedQueue<>();
+        final AtomicInteger queued = new AtomicInteger();
+        final AtomicBoolean writeScheduled = new AtomicBoolean();
+        final AtomicLong dropped = new AtomicLong();
+        volatile boolean closed = false;
+        
+        // Messages taken off the outbound queue and not yet fully written,
+        // alongside this connection's slice of each one's shared encoding
+        final Message[] batch = new Message[WRITE_BATCH];
+        final ByteBuffer[] batchBuffers = new ByteBuffer[WRITE_BATCH];
+        int batchSize = 0;
+        
+        Connection(SocketChannel channel, EventLoop loop, String addr) {
+            this.channel = channel;
+            this.loop = loop;
+            this.addr = addr;
+        }
+        
+        void register() {
+            try {
+                key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+            } catch (IOException e) {
+                close();
+            }
+        }
+        
+        void onReadable(ByteBuffer readBuffer) throws IOException {
+            readBuffer.clear();
+            int n = channel.read(readBuffer);
+            if (n < 0) {
+                close();
+                return;
+            }
+            readBuffer.flip();
+            framer.feed(readBuffer, this::onLine);
+        }
+        
+        void onLine(String line) {
+            if (closed) {
+                return;
+            }
+            if (type == null) {
+                handshake(line.trim());
+                return;
+            }
+            
+            String message = line.trim();
+            if (message.toLowerCase().equals("terminate")) {
+                Log.info("Client " + addr + " sent terminate command");
+                close();
+                return;
+            }
+            
+            if (type.equals("PUBLISHER")) {
+                forwardToTopicSubscribers(message, topic, addr);
+            }
+        }
+        
+        // First line: "PUBLISHER:TOPIC_A" or "SUBSCRIBER:TOPIC_A"
+        void handshake(String clientInfo) {
+            String[] parts = clientInfo.split(":", 2);
+            if (parts.length != 2) {
+                Log.warn("Invalid client info format from " + addr + ": " + clientInfo);
+                close();
+                return;
+            }
+            
+            String clientType = parts[0].toUpperCase();
+            String clientTopic = parts[1].trim();
+            
+            if (!clientType.equals("PUBLISHER") && !clientType.equals("SUBSCRIBER")) {
+                Log.warn("Invalid client type from " + addr + ": " + clientType);
+                close();
+                return;
+            }
+            
+            if (clientTopic.isEmpty()) {
+                Log.warn("Empty topic from " + addr);
+                close();
+                return;
+            }
+            
+            type = clientType;
+            topic = clientTopic;
+            (type.equals("PUBLISHER") ? publishers : subscribers).add(topic, this);
+            Log.info((type.equals("PUBLISHER") ? "Publisher" : "Subscriber") + " connected from " + addr + " for topic '" + topic + "'");
+        }
+        
+        // Called from any loop. Takes its own reference to the message while queued.
+        boolean enqueue(Message message) {
+            if (closed) {
+                return false;
+            }
+            
+            if (queued.incrementAndGet() > queueCapacity) {
+                switch (overflowPolicy) {
+                    case DROP_OLDEST:
+                        Message evicted = outbound.poll();
+                        if (evicted != null) {
+                            evicted.release();
+                            queued.decrementAndGet();
+                            dropped.incrementAndGet();
+                        }
+                        break;
+                    case DISCONNECT:
+                        queued.decrementAndGet();
+                        dropped.incrementAndGet();
+                        loop.execute(this::close);
+                        return false;
+                    default:
+                        // DROP_NEWEST; BLOCK would stall an event loop, so it drops the new message too
+                        queued.decrementAndGet();
+                        dropped.incrementAndGet();
+                        return true;
+                }
+            }
+            
+            outbound.add(message.retain());
+            if (closed) {
+                // close() may have drained the queue between the check above and
+                // the add; closed is set before it drains, so seeing it here means
+                // our message may have been missed and has to be released by us
+                drainOutbound();
+                return false;
+            }
+            scheduleWrite();
+            return true;
+        }
+        
+        // Safe from any thread: each poll hands a message to exactly one caller
+        void drainOutbound() {
+            Message pending;
+            while ((pending = outbound.poll()) != null) {
+                queued.decrementAndGet();
+                pending.release();
+            }
+        }
+        
+        void scheduleWrite() {
+            if (writeScheduled.compareAndSet(false, true)) {
+                if (loop.inLoop()) {
+                    enableWrite();
+                } else {
+                    loop.execute(this::enableWrite);
+                }
+            }
+        }
+        
+        void enableWrite() {
+            if (!closed && key != null && key.isValid()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+        
+        void onWritable() throws IOException {
+            while (true) {
+                Message next;
+                while (batchSize < WRITE_BATCH && (next = outbound.poll()) != null) {
+                    queued.decrementAndGet();
+                    batch[batchSize] = next;
+                    batchBuffers[batchSize] = next.encoded(false).duplicate();
+                    batchSize++;
+                }
+                if (batchSize == 0) {
+                    break;
+                }
+                
+                channel.write(batchBuffers, 0, batchSize);
+                
+                int done = 0;
+                while (done < batchSize && !batchBuffers[done].hasRemaining()) {
+                    batch[done].release();
+                    done++;
+                }
+                System.arraycopy(batch, done, batch, 0, batchSize - done);
+                System.arraycopy(batchBuffers, done, batchBuffers, 0, batchSize - done);
+                Arrays.fill(batch, batchSize - done, batchSize, null);
+                Arrays.fill(batchBuffers, batchSize - done, batchSize, null);
+                batchSize -= done;
+                
+                if (batchSize > 0) {
+                    // Socket buffer is full; stay interested in OP_WRITE
+                    return;
+                }
+            }
+            
+            // Drained: stop watching for writability, then re-check for output
+            // that raced in before the flag was cleared
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            writeScheduled.set(false);
+            if (!outbound.isEmpty()) {
+                scheduleWrite();
+            }
+        }
+        
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+            drainOutbound();
+            for (int i = 0; i < batchSize; i++) {
+                batch[i].release();
+                batch[i] = null;
+                batchBuffers[i] = null;
+            }
+            batchSize = 0;
+            clients.remove(this);
+            
+            if (type != null) {
+                (type.equals("PUBLISHER") ? publishers : subscribers).remove(topic, this);
+                Log.info(type + " " + addr + " disconnected from topic '" + topic + "'"
+                        + (type.equals("SUBSCRIBER") ? " (dropped " + dropped.get() + ")" : ""));
+            }
+        }
+    }
+    
+    public NioPubSubServer(ServerConfig config) throws IOException {
+        this.host = config.host;
+        this.port = config.port;
+        this.queueCapacity = config.queueCapacity;
+        this.overflowPolicy = config.overflowPolicy;
+        this.publishers = new TopicRegistry<>();
+        this.subscribers = new TopicRegistry<>();
+        this.clients = ConcurrentHashMap.newKeySet();
+        this.eventLoops = new EventLoop[config.eventLoops];
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new EventLoop();
+        }
+    }
+    
+    private void forwardToTopicSubscribers(String message, String topic, String senderAddr) {
+        List<Connection> topicSubscribers = subscribers.get(topic);
+        if (topicSubscribers.isEmpty()) {
+            return;
+        }
+        
+        // Encode once into a pooled buffer; each subscriber writes its own slice of it
+        Message encoded = Message.fromText(topic, 0, senderAddr, message);
+        encoded.encoded(false);
+        try {
+            for (Connection subscriber : topicSubscribers) {
+                subscriber.enqueue(encoded);
+            }
+        } finally {
+            encoded.release();
+        }
+    }
+    
+    private void shutdownServer() {
+        Log.info("Initiating server shutdown...");
+        running = false;
+        
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            // Ignore
+        }
+        
+        for (Connection conn : clients) {
+            try {
+                conn.channel.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+        clients.clear();
+        publishers.clear();
+        subscribers.clear();
+        
+        for (EventLoop loop : eventLoops) {
+            loop.selector.wakeup();
+            try {
+                if (loop.thread != null) {
+                    loop.thread.join(5000);
+                }
+                loop.selector.close();
+            } catch (InterruptedException | IOException e) {
+                // Ignore
+            }
+        }
+        Log.flush();
+    }
+    
+    public void start() {
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port), 4096);
+            Log.info("NIO server starting on " + host + ":" + port + " with " + eventLoops.length + " event loop(s)");
+            Log.info("Server listening on port " + port + "...");
+            Log.info("Waiting for client connections...");
+            Log.info("Press Ctrl+C to shutdown server");
+            
+            Runtime.getRuntime().addShutdownHook(new Thread(this::shutdownServer));
+            
+            for (int i = 0; i < eventLoops.length; i++) {
+                eventLoops[i].thread = new Thread(eventLoops[i], "nio-event-loop-" + i);
+                eventLoops[i].thread.start();
+            }
+            
+            // Accept on this thread and hand connections to the loops round-robin
+            int next = 0;
+            while (running) {
+                try {
+                    SocketChannel channel = serverChannel.accept();
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    
+                    EventLoop loop = eventLoops[next];
+                    next = (next + 1) % eventLoops.length;
+                    
+                    Connection conn = new Connection(channel, loop, channel.getRemoteAddress().toString());
+                    clients.add(conn);
+                    loop.execute(conn::register);
+                } catch (IOException e) {
+                    if (!running || !serverChannel.isOpen()) {
+                        break;
+                    }
+                    // e.g. out of file descriptors: keep serving existing connections
+                    Log.error("Socket error: " + e.getMessage());
+                }
+            }
+            
+        } catch (IOException e) {
+            Log.error("Server error: " + e.getMessage());
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,25 @@
+package pubsub;
+
+// What a subscriber's outbound queue does when a publisher enqueues into it while it is full
+public enum OverflowPolicy {
+    DROP_OLDEST,    // evict the oldest queued message to make room for the new one
+    DROP_NEWEST,    // discard the message being enqueued
+    BLOCK,          // wait up to the block timeout for room, then discard the new message
+    DISCONNECT;     // treat the subscriber as too slow and disconnect it
+    
+    // Parse a command line value such as "drop-oldest" or "DISCONNECT"
+    public static OverflowPolicy parse(String value) {
+        String name = value.trim().toUpperCase().replace('-', '_');
+        for (OverflowPolicy policy : values()) {
+            if (policy.name().equals(name)) {
+                return policy;
+            }
+        }
+        throw new IllegalArgumentException("Unknown overflow policy: " + value);
+    }
+    
+    @Override
+    public String toString() {
+        return name().toLowerCase().replace('_', '-');
+    }
+}
\ No newline at end of file
@@ -1,20 +1,101 @@
+package pubsub;
+
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 public class PubSubClient {
     private String host;
     private int port;
     private String clientType;
     private String topic;
+    private boolean binary;
     private Socket socket;
     private volatile boolean running = true;
     
+    // Latency tracing (--trace): publishers send a Trace header with each
+    // message, subscribers ask the broker for them and record every hop
+    private boolean trace;
+    private final long traceSource = ThreadLocalRandom.current().nextLong();
+    private long traceSeq = 0;
+    private LatencyTracker tracker;
+    
+    // Flow control (--credit N): a subscriber grants the broker N messages and
+    // tops the credit back up each time half of it has been received
+    private int creditWindow = 0;
+    private int receivedSinceGrant = 0;
+    private PrintWriter textOut;
+    private DataOutputStream binaryOut;
+    
+    // At-least-once delivery (--ack [--id NAME]): the broker numbers every
+    // message and redelivers it until acked. Messages arrive in id order, so
+    // one cumulative ACK of the highest id seen covers them; it is sent when
+    // the receive buffer runs dry or every ACK_BATCH messages.
+    private static final int ACK_BATCH = 64;
+    private boolean ack;
+    private String ackId;
+    private long highestDelivered = 0;
+    private long highestAcked = 0;
+    
+    // Compression (--compress, binary only): every payload carries a codec
+    // byte, and a publisher deflates payloads of at least this many bytes
+    private int compressThreshold = -1;
+    
+    // Keepalive (--keepalive-ms N): PING the broker every N ms and give up on
+    // it after KEEPALIVE_MISSES intervals without hearing anything. PINGs from
+    // the broker are always answered. Only use it against a broker running
+    // heartbeats or idle timeouts: any other treats a text PING as a message.
+    private static final int KEEPALIVE_MISSES = 3;
+    private long keepaliveMillis = 0;
+    private volatile long lastHeard = System.currentTimeMillis();
+    private ScheduledExecutorService keepaliveTimer;
+    
     public PubSubClient(String host, int port, String clientType, String topic) {
+        this(host, port, clientType, topic, false);
+    }
+    
+    public PubSubClient(String host, int port, String clientType, String topic, boolean binary) {
+        this(host, port, clientType, topic, binary, false);
+    }
+    
+    public PubSubClient(String host, int port, String clientType, String topic, boolean binary, boolean trace) {
         this.host = host;
         this.port = port;
         this.clientType = clientType.toUpperCase();
         this.topic = topic;
+        this.binary = binary;
+        this.trace = trace;
+    }
+    
+    // Must be set before connecting; 0 leaves flow control off
+    public void setCreditWindow(int messages) {
+        this.creditWindow = messages;
+    }
+    
+    // Must be set before connecting. A named session (id not null) keeps the
+    // unacknowledged messages for redelivery when this subscriber reconnects.
+    public void setAcknowledging(boolean ack, String id) {
+        this.ack = ack;
+        this.ackId = id;
+    }
+    
+    // Must be set before connecting; -1 leaves compression off. Binary only.
+    public void setCompression(int threshold) {
+        this.compressThreshold = threshold;
+    }
+    
+    // Must be set before connecting; 0 leaves keepalive off
+    public void setKeepalive(long millis) {
+        this.keepaliveMillis = millis;
     }
     
     // Thread class to receive messages from server (for subscribers)
@@ -34,11 +115,129 @@ public class PubSubClient {
                     if (message == null) {
                         break;
                     }
+                    lastHeard = System.currentTimeMillis();
+                    if (message.equals("PING")) {
+                        sendHeartbeat(true);
+                        continue;
+                    }
+                    if (message.equals("PONG")) {
+                        continue;
+                    }
+                    
+                    // "@<id> " from an acknowledging subscription comes first
+                    long deliveryId = 0;
+                    if (ack && message.startsWith("@")) {
+                        int space = message.indexOf(' ');
+                        try {
+                            deliveryId = Long.parseLong(message.substring(1, space));
+                            message = message.substring(space + 1);
+                        } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+                            // Not an id after all: show the line as it is
+                        }
+                    }
+                    
+                    if (tracker != null) {
+                        long received = Trace.nowMicros();
+                        Trace header = Trace.parseText(message);
+                        if (header != null) {
+                            tracker.record(header, received);
+                            message = message.substring(Trace.textHeaderLength(message));
+                        } else {
+                            tracker.recordUntraced();
+                        }
+                    }
                     
                     message = message.trim();
+                    received();
                     System.out.println("\n" + message);
                     System.out.print("> ");
                     System.out.flush();
+                    acknowledge(deliveryId, in.ready());
+                    
+                } catch (IOException e) {
+                    if (running) {
+                        System.out.println("\nServer disconnected");
+                    }
+                    break;
+                }
+            }
+        }
+    }
+    
+    // Receiver for the binary protocol: frames carry topic ids, announced by control frames
+    private class BinaryMessageReceiver extends Thread {
+        private DataInputStream in;
+        private Map<Integer, String> topicNames = new HashMap<>();
+        
+        public BinaryMessageReceiver(DataInputStream in) {
+            this.in = in;
+            this.setDaemon(true);
+        }
+        
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    BinaryProtocol.Frame frame = BinaryProtocol.readFrame(in);
+                    if (frame == null) {
+                        break;
+                    }
+                    long received = Trace.nowMicros();
+                    lastHeard = System.currentTimeMillis();
+                    
+                    if (BinaryProtocol.isHeartbeat(frame)) {
+                        if (frame.payload[0] == BinaryProtocol.HEARTBEAT_PING) {
+                            sendHeartbeat(true);
+                        }
+                        continue;
+                    }
+                    if (frame.hasFlag(BinaryProtocol.FLAG_THROTTLE)) {
+                        System.out.println("\n" + (frame.payload.length > 0 && frame.payload[0] == 1 ? "THROTTLE" : "RESUME"));
+                        continue;
+                    }
+                    if (frame.hasFlag(BinaryProtocol.FLAG_CONTROL)) {
+                        topicNames.put(frame.topicId, new String(frame.payload, StandardCharsets.UTF_8));
+                        continue;
+                    }
+                    
+                    int payloadStart = 0;
+                    long deliveryId = 0;
+                    if (frame.hasFlag(BinaryProtocol.FLAG_ACKED) && frame.payload.length >= Long.BYTES) {
+                        deliveryId = ByteBuffer.wrap(frame.payload).getLong();
+                        payloadStart = Long.BYTES;
+                    }
+                    if (frame.hasFlag(BinaryProtocol.FLAG_TRACED)) {
+                        Trace header = Trace.readBinary(frame.payload, payloadStart);
+                        if (header != null) {
+                            payloadStart += Trace.BINARY_LENGTH;
+                            if (tracker != null) {
+                                tracker.record(header, received);
+                            }
+                        }
+                    } else if (tracker != null) {
+                        tracker.recordUntraced();
+                    }
+                    
+                    received();
+                    String frameTopic = topicNames.getOrDefault(frame.topicId, "#" + frame.topicId);
+                    String text;
+                    if (compressThreshold >= 0 && payloadStart < frame.payload.length) {
+                        byte[] body = Arrays.copyOfRange(frame.payload, payloadStart + 1, frame.payload.length);
+                        try {
+                            if (frame.payload[payloadStart] == Compression.CODEC_DEFLATE) {
+                                body = Compression.inflate(body);
+                            }
+                            text = new String(body, StandardCharsets.UTF_8);
+                        } catch (IllegalArgumentException e) {
+                            text = "<" + e.getMessage() + ">";
+                        }
+                    } else {
+                        text = new String(frame.payload, payloadStart, frame.payload.length - payloadStart, StandardCharsets.UTF_8);
+                    }
+                    System.out.println("\n[" + frameTopic + "] " + text);
+                    System.out.print("> ");
+                    System.out.flush();
+                    acknowledge(deliveryId, in.available() > 0);
                     
                 } catch (IOException e) {
                     if (running) {
@@ -51,11 +250,17 @@ public class PubSubClient {
     }
     
     public void connectAndCommunicate() {
+        if (binary) {
+            connectAndCommunicateBinary();
+            return;
+        }
+        
         try {
             socket = new Socket(host, port);
             
             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            textOut = out;
             Scanner scanner = new Scanner(System.in);
             
             // Connect to server
@@ -63,19 +268,30 @@ public class PubSubClient {
             System.out.println("Connected to server!");
             
             // Send client type and topic to server (format: "PUBLISHER:TOPIC_A")
-            String clientInfo = clientType + ":" + topic;
-            out.println(clientInfo);
+            out.println(handshakeLine());
             
             // Start receiving thread for subscribers
             if (clientType.equals("SUBSCRIBER")) {
+                startTracking();
                 MessageReceiver receiver = new MessageReceiver(in);
                 receiver.start();
                 System.out.println("Listening for messages on topic '" + topic + "'...");
             }
             
+            // A multiplexed client both receives and sends commands
+            if (clientType.equals("CLIENT")) {
+                startTracking();
+                MessageReceiver receiver = new MessageReceiver(in);
+                receiver.start();
+                System.out.println("Commands: SUB <topics>, UNSUB <topics>, PUB <topic> <message>");
+            }
+            
             if (clientType.equals("PUBLISHER")) {
+                // Only THROTTLE, RESUME and heartbeats come back to a publisher
+                new MessageReceiver(in).start();
                 System.out.println("Ready to publish messages on topic '" + topic + "'");
             }
+            startKeepalive();
             
             System.out.println("Type your messages (type 'terminate' to quit):");
             
@@ -88,7 +304,15 @@ public class PubSubClient {
                     String message = scanner.nextLine();
                     
                     // Send message to server
-                    out.println(message);
+                    if (trace && clientType.equals("PUBLISHER") && !message.toLowerCase().equals("terminate")) {
+                        out.println(nextTrace().toText() + message);
+                    } else if (trace && clientType.equals("CLIENT") && message.regionMatches(true, 0, "PUB ", 0, 4)) {
+                        // The trace header goes in front of the message, after "PUB <topic> "
+                        String[] command = message.split(" ", 3);
+                        out.println(command[0] + " " + command[1] + " " + nextTrace().toText() + (command.length > 2 ? command[2] : ""));
+                    } else {
+                        out.println(message);
+                    }
                     
                     // Check if user wants to terminate
                     if (message.toLowerCase().equals("terminate")) {
@@ -124,14 +348,325 @@ public class PubSubClient {
         }
     }
     
+    // Same interactive loop as connectAndCommunicate, using length-prefixed binary frames
+    private void connectAndCommunicateBinary() {
+        try {
+            socket = new Socket(host, port);
+            
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            binaryOut = out;
+            Scanner scanner = new Scanner(System.in);
+            
+            System.out.println("Connecting to server " + host + ":" + port + " as " + clientType + " for topic '" + topic + "' (binary)...");
+            System.out.println("Connected to server!");
+            
+            // Magic byte, then the usual "PUBLISHER:TOPIC_A" handshake line
+            out.write(BinaryProtocol.MAGIC);
+            out.write((handshakeLine() + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            
+            int topicId = 0;
+            if (clientType.equals("SUBSCRIBER")) {
+                startTracking();
+                BinaryMessageReceiver receiver = new BinaryMessageReceiver(in);
+                receiver.start();
+                System.out.println("Listening for messages on topic '" + topic + "'...");
+            } else {
+                // The server answers a publisher with the topic's id
+                BinaryProtocol.Frame announcement = BinaryProtocol.readFrame(in);
+                if (announcement == null || !announcement.hasFlag(BinaryProtocol.FLAG_CONTROL)) {
+                    System.out.println("Error: Server did not accept the binary handshake");
+                    return;
+                }
+                topicId = announcement.topicId;
+                new BinaryMessageReceiver(in).start();
+                System.out.println("Ready to publish messages on topic '" + topic + "' (id " + topicId + ")");
+            }
+            startKeepalive();
+            boolean keyed = Handshake.parse(handshakeLine()).option("keyed") != null;
+            
+            System.out.println("Type your messages (type 'terminate' to quit):");
+            
+            while (running) {
+                try {
+                    String prompt = clientType.equals("PUBLISHER") ? "[" + topic + "] > " : "> ";
+                    System.out.print(prompt);
+                    
+                    String message = scanner.nextLine();
+                    
+                    if (message.toLowerCase().equals("terminate")) {
+                        synchronized (out) {
+                            BinaryProtocol.writeFrame(out, topicId, BinaryProtocol.FLAG_TERMINATE, new byte[0]);
+                            out.flush();
+                        }
+                        System.out.println("Terminating connection...");
+                        running = false;
+                        break;
+                    }
+                    
+                    if (clientType.equals("PUBLISHER")) {
+                        // With ":keyed", "{key} message" is sent as a keyed frame, as the text protocol would
+                        String key = null;
+                        int keyLength = keyed ? Message.textKeyLength(message) : 0;
+                        if (keyLength > 0) {
+                            key = Message.textKey(message, keyLength);
+                            if (!Message.fitsKey(key)) {
+                                System.out.println("Error: keys are limited to " + Message.MAX_KEY_BYTES + " bytes");
+                                continue;
+                            }
+                            message = message.substring(keyLength);
+                        }
+                        byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+                        byte flags = 0;
+                        if (compressThreshold >= 0) {
+                            byte[] deflated = payload.length >= compressThreshold ? Compression.deflate(payload) : null;
+                            payload = deflated != null
+                                    ? concat(new byte[] {Compression.CODEC_DEFLATE}, deflated)
+                                    : concat(new byte[] {Compression.CODEC_NONE}, payload);
+                        }
+                        if (key != null) {
+                            payload = concat(Message.binaryKeyPrefix(key), payload);
+                            flags |= BinaryProtocol.FLAG_KEYED;
+                        }
+                        if (trace) {
+                            payload = concat(nextTrace().toBinary(), payload);
+                            flags |= BinaryProtocol.FLAG_TRACED;
+                        }
+                        // The receiver may be answering a PING on the same stream
+                        synchronized (out) {
+                            BinaryProtocol.writeFrame(out, topicId, flags, payload);
+                            out.flush();
+                        }
+                    }
+                    
+                } catch (Exception e) {
+                    System.out.println("Error sending message: " + e.getMessage());
+                    break;
+                }
+            }
+            
+            scanner.close();
+            
+        } catch (ConnectException e) {
+            System.out.println("Error: Could not connect to server " + host + ":" + port);
+            System.out.println("Make sure the server is running and the address is correct.");
+        } catch (IOException e) {
+            System.out.println("Socket error: " + e.getMessage());
+        } finally {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+    
+    // "PUBLISHER:TOPIC_A", plus ":compress=deflate" when compressing and
+    // ":trace", ":credit=N" and ":ack[:id=NAME]" for subscribers using them.
+    // A multiplexed CLIENT given "-" starts with no subscriptions.
+    private String handshakeLine() {
+        String line = clientType + ":" + (clientType.equals("CLIENT") && topic.equals("-") ? "" : topic);
+        if (compressThreshold >= 0) {
+            line += ":compress=deflate";
+        }
+        if (!clientType.equals("PUBLISHER")) {
+            if (trace) {
+                line += ":trace";
+            }
+            if (creditWindow > 0) {
+                line += ":credit=" + creditWindow;
+            }
+            if (ack) {
+                line += ":ack" + (ackId != null ? ":id=" + ackId : "");
+            }
+        }
+        return line;
+    }
+    
+    private void startKeepalive() {
+        if (keepaliveMillis <= 0) {
+            return;
+        }
+        keepaliveTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "keepalive");
+            thread.setDaemon(true);
+            return thread;
+        });
+        keepaliveTimer.scheduleAtFixedRate(() -> {
+            if (System.currentTimeMillis() - lastHeard > KEEPALIVE_MISSES * keepaliveMillis) {
+                System.out.println("\nServer not responding; disconnecting");
+                running = false;
+                try {
+                    socket.close(); // unblocks the receiver; the input loop ends on the next line
+                } catch (IOException e) {
+                    // Ignore
+                }
+                keepaliveTimer.shutdown();
+                return;
+            }
+            sendHeartbeat(false);
+        }, keepaliveMillis, keepaliveMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    // PING the broker, or answer its PING
+    private void sendHeartbeat(boolean pong) {
+        if (binaryOut != null) {
+            synchronized (binaryOut) {
+                try {
+                    BinaryProtocol.writeHeartbeat(binaryOut, pong);
+                    binaryOut.flush();
+                } catch (IOException e) {
+                    // The receiver sees the disconnect
+                }
+            }
+        } else {
+            textOut.println(pong ? "PONG" : "PING");
+        }
+    }
+    
+    // Called by the receivers for every message shown
+    private void received() {
+        if (creditWindow <= 0 || ++receivedSinceGrant < Math.max(1, creditWindow / 2)) {
+            return;
+        }
+        int grant = receivedSinceGrant;
+        receivedSinceGrant = 0;
+        if (binaryOut != null) {
+            synchronized (binaryOut) {
+                try {
+                    BinaryProtocol.writeCredit(binaryOut, 0, grant, 0);
+                    binaryOut.flush();
+                } catch (IOException e) {
+                    // The receiver sees the disconnect
+                }
+            }
+        } else {
+            textOut.println("CREDIT " + grant);
+        }
+    }
+    
+    // Called by the receivers after every message; deliveryId is 0 when not acknowledging
+    private void acknowledge(long deliveryId, boolean moreBuffered) {
+        if (deliveryId == 0) {
+            return;
+        }
+        highestDelivered = Math.max(highestDelivered, deliveryId);
+        if (moreBuffered && highestDelivered - highestAcked < ACK_BATCH) {
+            return;
+        }
+        highestAcked = highestDelivered;
+        if (binaryOut != null) {
+            synchronized (binaryOut) {
+                try {
+                    BinaryProtocol.writeAck(binaryOut, highestAcked);
+                    binaryOut.flush();
+                } catch (IOException e) {
+                    // The receiver sees the disconnect
+                }
+            }
+        } else {
+            textOut.println("ACK " + highestAcked);
+        }
+    }
+    
+    private static byte[] concat(byte[] header, byte[] payload) {
+        byte[] joined = new byte[header.length + payload.length];
+        System.arraycopy(header, 0, joined, 0, header.length);
+        System.arraycopy(payload, 0, joined, header.length, payload.length);
+        return joined;
+    }
+    
+    private Trace nextTrace() {
+        return new Trace(traceSource, traceSeq++, Trace.nowMicros(), 0, 0);
+    }
+    
+    // Record traced messages and print the per-hop histograms when the client exits
+    private void startTracking() {
+        if (!trace) {
+            return;
+        }
+        tracker = new LatencyTracker();
+        LatencyTracker exiting = tracker;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.print("\nLatency trace summary\n" + exiting.summary())));
+    }
+    
     public static void main(String[] args) {
+        // LOADGEN mode measures throughput and latency through a BatchingPublisher
+        if (args.length >= 4 && args[2].equalsIgnoreCase("LOADGEN")) {
+            runLoadGenerator(args);
+            return;
+        }
+        
         // Check if Server IP, PORT, CLIENT_TYPE, and TOPIC arguments are provided
-        if (args.length != 4) {
-            System.out.println("Usage: java PubSubClient <SERVER_IP> <SERVER_PORT> <CLIENT_TYPE> <TOPIC>");
-            System.out.println("Example: java PubSubClient 192.168.10.2 5000 PUBLISHER TOPIC_A");
-            System.out.println("Example: java PubSubClient 192.168.10.2 5000 SUBSCRIBER TOPIC_A");
-            System.out.println("Example: java PubSubClient 127.0.0.1 5000 PUBLISHER SPORTS");
-            System.out.println("Example: java PubSubClient 127.0.0.1 5000 SUBSCRIBER SPORTS");
+        boolean binary = false;
+        boolean trace = false;
+        int credit = 0;
+        boolean ack = false;
+        String ackId = null;
+        int compress = -1;
+        long keepalive = 0;
+        boolean validFlags = true;
+        for (int i = 4; i < args.length; i++) {
+            if (args[i].equals("--binary")) {
+                binary = true;
+            } else if (args[i].equals("--trace")) {
+                trace = true;
+            } else if (args[i].equals("--credit") && i + 1 < args.length) {
+                try {
+                    credit = Integer.parseInt(args[++i]);
+                } catch (NumberFormatException e) {
+                    validFlags = false;
+                }
+            } else if (args[i].equals("--ack")) {
+                ack = true;
+            } else if (args[i].equals("--id") && i + 1 < args.length) {
+                ackId = args[++i];
+            } else if (args[i].equals("--keepalive-ms") && i + 1 < args.length) {
+                try {
+                    keepalive = Long.parseLong(args[++i]);
+                } catch (NumberFormatException e) {
+                    validFlags = false;
+                }
+            } else if (args[i].equals("--compress")) {
+                compress = Compression.DEFAULT_THRESHOLD;
+            } else if (args[i].equals("--compress-threshold") && i + 1 < args.length) {
+                try {
+                    compress = Integer.parseInt(args[++i]);
+                } catch (NumberFormatException e) {
+                    validFlags = false;
+                }
+            } else {
+                validFlags = false;
+            }
+        }
+        if ((ackId != null && !ack) || (compress >= 0 && !binary) || (binary && args.length >= 3 && args[2].equalsIgnoreCase("CLIENT"))) {
+            validFlags = false;
+        }
+        if (args.length < 4 || !validFlags) {
+            System.out.println("Usage: java pubsub.PubSubClient <SERVER_IP> <SERVER_PORT> <CLIENT_TYPE> <TOPIC> [--binary] [--trace] [--credit N] [--ack [--id NAME]]");
+            System.out.println("       [--compress | --compress-threshold BYTES]   (deflate payloads; needs --binary)");
+            System.out.println("       [--keepalive-ms MS]   (PING the broker every MS, give up after " + KEEPALIVE_MISSES + " silent intervals)");
+            System.out.println("       CLIENT_TYPE CLIENT multiplexes one text connection: TOPIC is its first subscriptions (or -),");
+            System.out.println("       then type SUB <topics>, UNSUB <topics> or PUB <topic> <message>");
+            System.out.println("Example: java pubsub.PubSubClient 192.168.10.2 5000 PUBLISHER TOPIC_A");
+            System.out.println("Example: java pubsub.PubSubClient 192.168.10.2 5000 SUBSCRIBER TOPIC_A");
+            System.out.println("Example: java pubsub.PubSubClient 127.0.0.1 5000 PUBLISHER SPORTS");
+            System.out.println("Example: java pubsub.PubSubClient 127.0.0.1 5000 SUBSCRIBER SPORTS");
+            System.out.println("Example: java pubsub.PubSubClient 127.0.0.1 5000 SUBSCRIBER SPORTS --binary");
+            System.out.println("Example: java pubsub.PubSubClient 127.0.0.1 5000 SUBSCRIBER SPORTS:from=earliest");
+            System.out.println("Example: java pubsub.PubSubClient 127.0.0.1 5000 SUBSCRIBER SPORTS --trace   (latency histograms on exit)");
+            System.out.println("Example: java pubsub.PubSubClient 127.0.0.1 5000 SUBSCRIBER SPORTS --credit 100   (flow control)");
+            System.out.println("Example: java pubsub.PubSubClient 127.0.0.1 5000 SUBSCRIBER ORDERS --ack --id billing   (at-least-once, resumes by id)");
+            System.out.println("Example: java pubsub.PubSubClient 127.0.0.1 5000 PUBLISHER LOGS --binary --compress   (deflates payloads of " + Compression.DEFAULT_THRESHOLD + "+ bytes)");
+            System.out.println("Example: java pubsub.PubSubClient 127.0.0.1 5000 SUBSCRIBER ORDERS:group=workers:dispatch=key-hash   (shares ORDERS by key)");
+            System.out.println("Example: java pubsub.PubSubClient 127.0.0.1 5000 PUBLISHER ORDERS:keyed   (then e.g. {order-17} shipped)");
+            System.out.println("Example: java pubsub.PubSubClient 127.0.0.1 5000 CLIENT SPORTS,NEWS   (then e.g. PUB WEATHER sunny)");
+            System.out.println("Example: java pubsub.PubSubClient 127.0.0.1 5000 SUBSCRIBER \"QUOTES:filter=price > 100 && region == 'EU'\"   (JSON or name=value payloads)");
+            System.out.println("Load test: java pubsub.PubSubClient <SERVER_IP> <SERVER_PORT> LOADGEN <TOPIC> [--messages N] [--size BYTES] [--rate MSGS_PER_SEC]");
+            System.out.println("           [--batch-messages 1,16,256] [--batch-bytes BYTES] [--linger-ms 0,1] [--binary] [--credit N]");
             System.exit(1);
         }
         
@@ -148,8 +683,8 @@ public class PubSubClient {
             return;
         }
         
-        if (!clientType.toUpperCase().equals("PUBLISHER") && !clientType.toUpperCase().equals("SUBSCRIBER")) {
-            System.out.println("Error: CLIENT_TYPE must be either 'PUBLISHER' or 'SUBSCRIBER'");
+        if (!clientType.toUpperCase().equals("PUBLISHER") && !clientType.toUpperCase().equals("SUBSCRIBER") && !clientType.toUpperCase().equals("CLIENT")) {
+            System.out.println("Error: CLIENT_TYPE must be 'PUBLISHER', 'SUBSCRIBER' or 'CLIENT'");
             System.exit(1);
         }
         
@@ -158,9 +693,39 @@ public class PubSubClient {
             System.exit(1);
         }
         
-        PubSubClient client = new PubSubClient(host, port, clientType, topic);
+        PubSubClient client = new PubSubClient(host, port, clientType, topic, binary, trace);
+        client.setCreditWindow(credit);
+        client.setAcknowledging(ack, ackId);
+        client.setCompression(compress);
+        client.setKeepalive(keepalive);
         client.connectAndCommunicate();
         
         System.out.println("Client terminated.");
     }
+    
+    private static void runLoadGenerator(String[] args) {
+        int port;
+        try {
+            port = Integer.parseInt(args[1]);
+        } catch (NumberFormatException e) {
+            System.out.println("Error: PORT must be a valid integer");
+            System.exit(1);
+            return;
+        }
+        
+        LoadGenerator generator = new LoadGenerator(args[0], port, args[3]);
+        try {
+            generator.parseOptions(args, 4);
+            generator.run();
+        } catch (IllegalArgumentException e) {
+            System.out.println("Error: " + e.getMessage());
+            System.exit(1);
+        } catch (ConnectException e) {
+            System.out.println("Error: Could not connect to server " + args[0] + ":" + port);
+        } catch (IOException e) {
+            System.out.println("Socket error: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 }
\ No newline at end of file
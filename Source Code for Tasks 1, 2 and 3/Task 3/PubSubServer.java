@@ -1,141 +1,369 @@
+package pubsub;
+
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class PubSubServer {
+    private static final long FLOW_CONTROL_INTERVAL_MILLIS = 10;
+    // Signals queued for a publisher's control writer
+    private static final int SIGNAL_THROTTLE = 0;
+    private static final int SIGNAL_RESUME = 1;
+    private static final int SIGNAL_PING = 2;
+    private static final int SIGNAL_PONG = 3;
+    
     private String host;
     private int port;
-    private Map<String, List<Socket>> publishers;
-    private Map<String, List<Socket>> subscribers;
+    // Per-topic copy-on-write registries: publishers read subscriber snapshots
+    // without locking and joins/leaves only serialize within their own topic
+    private TopicRegistry<Socket> publishers;
+    private TopicRegistry<SubscriberQueue> subscribers;
+    // Subscriptions containing "+" or "#"; exact topics stay in the registry above
+    private TopicTrie<SubscriberQueue> wildcardSubscribers;
+    // Consumer groups, registered per subscription like a single subscriber
+    // and found by "<group>:<subscription>" (neither can contain ':')
+    private TopicRegistry<ConsumerGroup> groups = new TopicRegistry<>();
+    private TopicTrie<ConsumerGroup> wildcardGroups = new TopicTrie<>();
+    private final Map<String, ConsumerGroup> consumerGroups = new ConcurrentHashMap<>();
+    // Compiled content filters by canonical expression, shared by every
+    // subscriber using the same one and dropped with the last of them
+    private final Map<String, SubscriptionFilter> filters = new ConcurrentHashMap<>();
     private Map<Socket, ClientInfo> clients;
-    private final Object clientsLock = new Object();
+    // Numeric ids for the binary protocol, assigned on first use and never reused
+    private Map<String, Integer> topicIds;
+    private AtomicInteger nextTopicId = new AtomicInteger(1);
     private volatile boolean running = true;
     private ServerSocket serverSocket;
     private ExecutorService threadPool;
+    private ServerConfig config;
+    // Persistent per-topic logs, or null when --log-dir is not set
+    private MessageStore store;
+    // Logs the topic status every --status-interval-sec, or null when that is off
+    private ScheduledExecutorService statusReporter;
+    private final BrokerMetrics metrics = new BrokerMetrics();
+    private MetricsHttpServer metricsServer;
+    // Publishers told to THROTTLE, checked for RESUME by the flow-control timer
+    private final Set<ClientInfo> throttledPublishers = ConcurrentHashMap.newKeySet();
+    private ScheduledExecutorService flowControlTimer;
+    // At-least-once subscribers: named sessions survive reconnects until they
+    // expire; the ack timer advances every live session's redelivery timeouts
+    private final Map<String, AckSession> namedAckSessions = new ConcurrentHashMap<>();
+    private final Set<AckSession> ackSessions = ConcurrentHashMap.newKeySet();
+    private ScheduledExecutorService ackTimer;
+    // Routes messages by topic and key when --dispatch-shards is set, otherwise null
+    private DispatchEngine dispatcher;
+    // Links to peer brokers when --cluster-port is set, otherwise null
+    private ClusterNode cluster;
+    // Latest messages per topic for new subscribers when --retain is set, otherwise null
+    private RetainedCache retained;
+    // Heartbeats and idle timeouts for every connection when either is set, otherwise null
+    private ConnectionMonitor monitor;
     
     // Inner class to store client information
     private static class ClientInfo {
         String type;
         String topic;
+        Collection<String> subscriptions; // a publisher's single topic, or a subscriber's patterns
         String addr;
+        boolean binary;
+        boolean compressed;    // negotiated "compress=deflate": payloads carry a codec byte
+        boolean keyed;         // text publishers that asked for "keyed": lines may start "{key} "
+        SubscriptionFilter filter; // subscribers only: shared content filter, or null
+        Map<String, TopicMetrics> published; // multiplexed clients only: topics sent with PUB
+        SubscriberQueue queue; // only set for subscribers
+        String group;          // consumer group the subscriber joined, or null
+        int topicId;           // publishers only
+        DataOutputStream out;  // publishers only: THROTTLE/RESUME and heartbeats, written by the control writer
         
-        ClientInfo(String type, String topic, String addr) {
+        // Publishers only. Heartbeats, flow-control state changes and the
+        // signals that announce them are queued together under controlLock, which is never
+        // held for I/O; one pool task at a time writes them, so a publisher
+        // that stops reading only blocks that task.
+        final ReentrantLock controlLock = new ReentrantLock();
+        final Queue<Integer> controlSignals = new ArrayDeque<>();
+        boolean controlWriterRunning;
+        volatile boolean throttled;
+        volatile long lastReceived; // monitor clock when the client last sent anything
+        long monitorId;             // 0 unless the connection monitor watches it
+        
+        ClientInfo(String type, String topic, Collection<String> subscriptions, String addr, boolean binary) {
             this.type = type;
             this.topic = topic;
+            this.subscriptions = subscriptions;
             this.addr = addr;
+            this.binary = binary;
         }
     }
     
     public PubSubServer(String host, int port) {
-        this.host = host;
-        this.port = port;
-        this.publishers = new ConcurrentHashMap<>();
-        this.subscribers = new ConcurrentHashMap<>();
+        this(new ServerConfig(host, port));
+    }
+    
+    public PubSubServer(ServerConfig config) {
+        this.host = config.host;
+        this.port = config.port;
+        this.config = config;
+        this.publishers = new TopicRegistry<>();
+        this.subscribers = new TopicRegistry<>();
+        this.wildcardSubscribers = new TopicTrie<>();
         this.clients = new ConcurrentHashMap<>();
-        this.threadPool = Executors.newCachedThreadPool();
+        this.topicIds = new ConcurrentHashMap<>();
+        if (config.executor.equals("virtual")) {
+            // One virtual thread per connection handler and per subscriber writer
+            this.threadPool = Executors.newVirtualThreadPerTaskExecutor();
+        } else {
+            this.threadPool = Executors.newCachedThreadPool();
+        }
+        metrics.setSubscriberSource(this::connectedSubscribers);
+    }
+    
+    private Collection<SubscriberQueue> connectedSubscribers() {
+        List<SubscriberQueue> queues = new ArrayList<>();
+        for (ClientInfo info : clients.values()) {
+            if (info.queue != null) {
+                queues.add(info.queue);
+            }
+        }
+        return queues;
+    }
+    
+    public BrokerMetrics getMetrics() {
+        return metrics;
     }
     
     private void handleClient(Socket conn) {
         String clientAddr = conn.getRemoteSocketAddress().toString();
-        System.out.println("Connected by " + clientAddr);
+        Log.info("Connected by " + clientAddr);
         
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(conn.getInputStream()));
-             PrintWriter out = new PrintWriter(conn.getOutputStream(), true)) {
+        try (BufferedInputStream in = new BufferedInputStream(conn.getInputStream());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(conn.getOutputStream()))) {
             
-            // First, receive client type and topic (format: "PUBLISHER:TOPIC_A" or "SUBSCRIBER:TOPIC_A")
-            String clientInfo = in.readLine();
+            // A client that never finishes its handshake is not monitored yet,
+            // so the socket itself gives up on it after the idle timeout
+            if (config.idleTimeoutMillis > 0) {
+                conn.setSoTimeout((int) Math.min(Integer.MAX_VALUE, config.idleTimeoutMillis));
+            }
+            
+            // A leading magic byte selects the binary framing; anything else is the text protocol
+            in.mark(1);
+            boolean binary = in.read() == BinaryProtocol.MAGIC;
+            if (!binary) {
+                in.reset();
+            }
+            
+            // First, receive client type and topic (format: "PUBLISHER:TOPIC_A" or "SUBSCRIBER:TOPIC_A").
+            // Subscribers may list several comma-separated topics and use the
+            // MQTT wildcards "+" and "#", e.g. "SUBSCRIBER:sports/+/scores,news/#",
+            // and may ask for stored messages first, e.g. "SUBSCRIBER:news:from=earliest",
+            // or for latency-trace headers, e.g. "SUBSCRIBER:news:trace", or grant
+            // flow-control credit, e.g. "SUBSCRIBER:news:credit=100:credit-bytes=65536",
+            // or acknowledge every message, e.g. "SUBSCRIBER:orders:ack:id=billing",
+            // or share the topic's messages with a consumer group, e.g.
+            // "SUBSCRIBER:orders:group=workers:dispatch=key-hash". With --retain,
+            // subscribers start with the topic's latest messages unless they
+            // replay or opt out, e.g. "SUBSCRIBER:prices:no-snapshot". Binary clients
+            // may negotiate payload compression, e.g. "PUBLISHER:logs:compress=deflate".
+            // Subscribers may filter on payload fields, e.g.
+            // "SUBSCRIBER:quotes:filter=price > 100 && region == 'EU'" (see SubscriptionFilter).
+            // Text publishers key messages with a "{key} " prefix only after
+            // opting in, e.g. "PUBLISHER:orders:keyed", so other lines that
+            // happen to start with '{' are published untouched.
+            // A text "CLIENT" connection (optionally "CLIENT:<topics>" to start
+            // subscribed) publishes and subscribes to any number of topics with
+            // "SUB <topics>", "UNSUB <topics>" and "PUB <topic> <message>" lines.
+            String clientInfo = BinaryProtocol.readLine(in);
             if (clientInfo == null) {
                 return;
             }
             
-            clientInfo = clientInfo.trim();
-            
-            // Parse client type and topic
-            String[] parts = clientInfo.split(":", 2);
-            if (parts.length != 2) {
-                System.out.println("Invalid client info format from " + clientAddr + ": " + clientInfo);
+            // Parse client type, topic and options
+            Handshake handshake;
+            try {
+                handshake = Handshake.parse(clientInfo);
+            } catch (IllegalArgumentException e) {
+                Log.warn(e.getMessage() + " from " + clientAddr);
                 return;
             }
             
-            String clientType = parts[0].toUpperCase();
-            String topic = parts[1].trim();
+            String clientType = handshake.type;
+            String topic = handshake.topic;
+            conn.setSoTimeout(0);
             
-            if (!clientType.equals("PUBLISHER") && !clientType.equals("SUBSCRIBER")) {
-                System.out.println("Invalid client type from " + clientAddr + ": " + clientType);
+            if (handshake.isMultiplexed() && binary) {
+                Log.warn("Multiplexed connections use the text protocol; rejecting binary client " + clientAddr);
                 return;
             }
             
-            if (topic.isEmpty()) {
-                System.out.println("Empty topic from " + clientAddr);
+            // A multiplexed client's subscriptions come and go with its commands
+            List<String> subscriptions = handshake.isMultiplexed() ? List.of() : parseSubscriptions(clientType, topic, clientAddr);
+            if (subscriptions == null) {
                 return;
             }
             
-            // Add client to appropriate topic lists
-            synchronized (clientsLock) {
-                // Store client info
-                clients.put(conn, new ClientInfo(clientType, topic, clientAddr));
-                
-                if (clientType.equals("PUBLISHER")) {
-                    publishers.computeIfAbsent(topic, k -> new ArrayList<>()).add(conn);
-                    System.out.println("Publisher connected from " + clientAddr + " for topic '" + topic + "'");
-                } else { // SUBSCRIBER
-                    subscribers.computeIfAbsent(topic, k -> new ArrayList<>()).add(conn);
-                    System.out.println("Subscriber connected from " + clientAddr + " for topic '" + topic + "'");
-                }
-                
-                // Display current topic status
-                displayTopicStatus();
+            // Store client info
+            ClientInfo info = new ClientInfo(clientType, topic, handshake.isMultiplexed() ? new LinkedHashSet<>() : subscriptions, clientAddr, binary);
+            clients.put(conn, info);
+            int topicId = clientType.equals("PUBLISHER") ? topicId(topic) : 0;
+            info.topicId = topicId;
+            info.out = out;
+            info.keyed = handshake.option("keyed") != null;
+            if (!negotiateCompression(handshake, info)) {
+                return;
             }
             
-            // Handle messages
-            String message;
-            while (running && (message = in.readLine()) != null) {
-                message = message.trim();
-                
-                if (message.toLowerCase().equals("terminate")) {
-                    System.out.println("Client " + clientAddr + " sent terminate command");
-                    break;
+            // Add client to appropriate topic list
+            if (clientType.equals("PUBLISHER")) {
+                if (binary) {
+                    // The publisher needs the topic id for its frames
+                    BinaryProtocol.writeTopicAnnouncement(out, topicId, topic);
+                    out.flush();
                 }
-                
-                // Display message on server
-                System.out.println("Received from " + clientType + " " + clientAddr + " on topic '" + topic + "': " + message);
-                
-                // If it's a publisher, forward to subscribers of the same topic
-                if (clientType.equals("PUBLISHER")) {
-                    forwardToTopicSubscribers(message, topic, clientAddr);
+                publishers.add(topic, conn);
+                metrics.clientConnected(true);
+                Log.info("Publisher connected from " + clientAddr + " for topic '" + topic + "'"
+                        + (binary ? " (binary)" : ""));
+            } else if (handshake.isMultiplexed()) {
+                // One queue and writer for every topic the client subscribes to, now or later
+                if (!openQueue(handshake, info, conn)) {
+                    return;
+                }
+                if (handshake.option("group") != null || handshake.option("from") != null || handshake.option("from-time") != null) {
+                    Log.warn("Consumer groups and replay need a SUBSCRIBER connection; ignoring them from " + clientAddr);
+                }
+                if (handshake.option("filter") != null && !applyFilter(handshake.option("filter"), info)) {
+                    return;
+                }
+                info.published = new HashMap<>();
+                subscribe(info, topic);
+                threadPool.submit(info.queue);
+                Log.info("Multiplexed client connected from " + clientAddr
+                        + (info.subscriptions.isEmpty() ? "" : " subscribed to '" + String.join(",", info.subscriptions) + "'"));
+            } else { // SUBSCRIBER
+                if (!openQueue(handshake, info, conn)) {
+                    return;
+                }
+                DispatchStrategy dispatch;
+                try {
+                    String strategy = handshake.option("dispatch");
+                    dispatch = strategy == null ? DispatchStrategy.ROUND_ROBIN : DispatchStrategy.parse(strategy);
+                } catch (IllegalArgumentException e) {
+                    Log.warn(e.getMessage() + " from " + clientAddr);
+                    return;
+                }
+                info.group = handshake.option("group");
+                if (info.group != null && info.group.isEmpty()) {
+                    Log.warn("Empty consumer group name from " + clientAddr);
+                    return;
+                }
+                if (info.group != null) {
+                    // Replaying the log to one member would repeat work the group already did
+                    if (handshake.option("from") != null || handshake.option("from-time") != null) {
+                        Log.warn("Replay is not supported for consumer group members; delivering live messages only to " + clientAddr);
+                    }
+                    // The group picks a member before any filter could be asked, so one would only lose messages
+                    if (handshake.option("filter") != null) {
+                        Log.warn("Filters are not supported for consumer group members; delivering every message to " + clientAddr);
+                    }
+                } else if (handshake.option("filter") != null && !applyFilter(handshake.option("filter"), info)) {
+                    return;
+                } else if (!requestReplay(handshake, subscriptions, info.queue, clientAddr)) {
+                    return;
                 }
+                for (String subscription : subscriptions) {
+                    if (info.group != null) {
+                        joinGroup(info.group, subscription, dispatch, info.queue);
+                    } else if (TopicTrie.isWildcard(subscription)) {
+                        wildcardSubscribers.add(subscription, info.queue);
+                    } else {
+                        subscribers.add(subscription, info.queue);
+                    }
+                    if (cluster != null) {
+                        cluster.interestAdded(subscription);
+                    }
+                }
+                // Registered first, so whatever the snapshot misses arrives live
+                if (retained != null && info.group == null && handshake.option("no-snapshot") == null
+                        && handshake.option("from") == null && handshake.option("from-time") == null) {
+                    retained.snapshot(subscriptions, info.queue);
+                }
+                threadPool.submit(info.queue);
+                Log.info("Subscriber connected from " + clientAddr + " for topic '" + topic + "'"
+                        + (info.group != null ? " in group '" + info.group + "'" : "")
+                        + (binary ? " (binary)" : ""));
+            }
+            
+            if (monitor != null) {
+                watch(conn, info);
+            }
+            
+            // Display current topic status
+            logTopicStatus();
+            
+            // Handle messages
+            if (binary) {
+                handleBinaryMessages(new DataInputStream(in), info, clientType, topic, topicId, clientAddr);
+            } else {
+                handleTextMessages(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)), info, clientType, topic, topicId, clientAddr);
             }
             
         } catch (IOException e) {
-            System.out.println("Client " + clientAddr + " disconnected unexpectedly");
+            Log.info("Client " + clientAddr + " disconnected unexpectedly");
         } finally {
             // Remove client from lists
-            synchronized (clientsLock) {
-                ClientInfo clientInfo = clients.get(conn);
-                if (clientInfo != null) {
-                    String clientType = clientInfo.type;
-                    String topic = clientInfo.topic;
-                    
-                    // Remove from appropriate topic list
-                    if (clientType.equals("PUBLISHER") && publishers.containsKey(topic)) {
-                        publishers.get(topic).remove(conn);
-                        if (publishers.get(topic).isEmpty()) {
-                            publishers.remove(topic);
+            ClientInfo clientInfo = clients.remove(conn);
+            if (clientInfo != null) {
+                if (clientInfo.monitorId != 0) {
+                    monitor.unregister(clientInfo.monitorId);
+                }
+                throttledPublishers.remove(clientInfo);
+                String clientType = clientInfo.type;
+                String topic = clientInfo.topic;
+                
+                // Remove from appropriate topic list
+                if (clientType.equals("PUBLISHER")) {
+                    publishers.remove(topic, conn);
+                    metrics.clientDisconnected(true);
+                } else if (clientInfo.queue != null) {
+                    metrics.clientDisconnected(false);
+                    // Only the topics this connection used, however many others there are
+                    if (clientInfo.published != null) {
+                        for (String published : clientInfo.published.keySet()) {
+                            publishers.remove(published, conn);
+                        }
+                    }
+                    for (String subscription : clientInfo.subscriptions) {
+                        if (cluster != null) {
+                            cluster.interestRemoved(subscription);
                         }
-                    } else if (clientType.equals("SUBSCRIBER") && subscribers.containsKey(topic)) {
-                        subscribers.get(topic).remove(conn);
-                        if (subscribers.get(topic).isEmpty()) {
-                            subscribers.remove(topic);
+                        if (clientInfo.group != null) {
+                            leaveGroup(clientInfo.group, subscription, clientInfo.queue);
+                        } else if (TopicTrie.isWildcard(subscription)) {
+                            wildcardSubscribers.remove(subscription, clientInfo.queue);
+                        } else {
+                            subscribers.remove(subscription, clientInfo.queue);
                         }
                     }
-                    
-                    // Remove from clients map
-                    clients.remove(conn);
-                    
-                    System.out.println(clientType + " " + clientAddr + " disconnected from topic '" + topic + "'");
-                    displayTopicStatus();
                 }
+                
+                if (clientInfo.filter != null) {
+                    releaseFilter(clientInfo.filter);
+                }
+                if (clientInfo.queue != null) {
+                    clientInfo.queue.close();
+                    detachAckSession(clientInfo.queue);
+                    String from = clientInfo.published != null ? "" : " from topic '" + topic + "'";
+                    Log.info(clientType + " " + clientAddr + " disconnected" + from + " ("
+                            + clientInfo.queue.getDroppedCount() + " message(s) dropped)");
+                } else {
+                    Log.info(clientType + " " + clientAddr + " disconnected from topic '" + topic + "'");
+                }
+                logTopicStatus();
             }
             
             try {
@@ -146,87 +374,1042 @@ public class PubSubServer {
         }
     }
     
-    private void forwardToTopicSubscribers(String message, String topic, String senderAddr) {
-        synchronized (clientsLock) {
-            if (!subscribers.containsKey(topic)) {
-                System.out.println("No subscribers for topic '" + topic + "'");
+    // The topics a client registers under, or null (after logging why) if the
+    // handshake names an invalid one. Publishers always name one concrete topic.
+    private List<String> parseSubscriptions(String clientType, String topic, String clientAddr) {
+        if (clientType.equals("PUBLISHER")) {
+            if (TopicTrie.isWildcard(topic)) {
+                Log.warn("Publisher " + clientAddr + " cannot publish to wildcard topic '" + topic + "'");
+                return null;
+            }
+            return List.of(topic);
+        }
+        
+        // Duplicates are dropped so a repeated topic does not deliver twice
+        Set<String> subscriptions = new LinkedHashSet<>();
+        for (String subscription : topic.split(",")) {
+            subscription = subscription.trim();
+            if (subscription.isEmpty()) {
+                continue;
+            }
+            try {
+                TopicTrie.validate(subscription);
+            } catch (IllegalArgumentException e) {
+                Log.warn("Invalid subscription from " + clientAddr + ": " + e.getMessage());
+                return null;
+            }
+            subscriptions.add(subscription);
+        }
+        if (subscriptions.isEmpty()) {
+            Log.warn("Empty topic from " + clientAddr);
+            return null;
+        }
+        return new ArrayList<>(subscriptions);
+    }
+    
+    // Apply a subscriber's "from=earliest", "from=<offset>" or "from-time=<epoch
+    // millis>" option to each exact topic it subscribes to. Returns false (after
+    // logging why) if the option is invalid.
+    private boolean requestReplay(Handshake handshake, List<String> subscriptions, SubscriberQueue queue, String clientAddr) throws IOException {
+        String from = handshake.option("from");
+        String fromTime = handshake.option("from-time");
+        if (from == null && fromTime == null || "latest".equals(from)) {
+            return true;
+        }
+        if (store == null) {
+            Log.warn("Subscriber " + clientAddr + " asked for replay but no --log-dir is set; delivering live messages only");
+            return true;
+        }
+        
+        long offset = 0;
+        long timestamp = 0;
+        try {
+            if (fromTime != null) {
+                timestamp = Long.parseLong(fromTime);
+            } else if (!from.equals("earliest")) {
+                offset = Long.parseLong(from);
+            }
+        } catch (NumberFormatException e) {
+            Log.warn("Invalid replay position from " + clientAddr + ": " + (fromTime != null ? fromTime : from));
+            return false;
+        }
+        
+        for (String subscription : subscriptions) {
+            if (TopicTrie.isWildcard(subscription)) {
+                Log.warn("Replay is not supported for wildcard subscription '" + subscription + "'; delivering live messages only");
+                continue;
+            }
+            TopicLog log = store.log(subscription);
+            long start = fromTime != null ? log.offsetForTime(timestamp) : offset;
+            queue.replayFrom(subscription, topicId(subscription), log, start);
+            Log.info("Replaying topic '" + subscription + "' for " + clientAddr + " from offset "
+                    + Math.max(start, log.getStartOffset()) + " (log end " + log.getEndOffset() + ")");
+        }
+        return true;
+    }
+    
+    private void handleTextMessages(BufferedReader in, ClientInfo info, String clientType, String topic, int topicId, String clientAddr) throws IOException {
+        TopicMetrics topicMetrics = clientType.equals("PUBLISHER") ? metrics.topic(topic) : null;
+        String message;
+        while (running && (message = in.readLine()) != null) {
+            message = message.trim();
+            received(info);
+            
+            // With heartbeats on, "PING" asks for a "PONG" and either only shows
+            // the client is alive. Otherwise they are ordinary lines, so a
+            // publisher can still send them (or "ping", in any case) as payloads.
+            if (info.monitorId != 0) {
+                if (message.equals("PING")) {
+                    sendHeartbeat(info, true);
+                    continue;
+                }
+                if (message.equals("PONG")) {
+                    continue;
+                }
+            }
+            
+            if (message.toLowerCase().equals("terminate")) {
+                Log.info("Client " + clientAddr + " sent terminate command");
+                break;
+            }
+            
+            // "CREDIT <messages> [<bytes>]" from a flow-controlled subscriber
+            if (info.queue != null && message.regionMatches(true, 0, "CREDIT", 0, 6)) {
+                grantCredit(info, message.substring(6).trim().split("\\s+"));
+                continue;
+            }
+            
+            // "ACK <id>" or "ACKS <id>,<from>-<to>,..." from an acknowledging subscriber
+            if (info.queue != null && message.regionMatches(true, 0, "ACK", 0, 3)) {
+                acknowledge(info, message);
+                continue;
+            }
+            
+            // "SUB <topics>", "UNSUB <topics>" or "PUB <topic> <message>" from a multiplexed client
+            if (info.published != null) {
+                handleCommand(info, message);
+                continue;
+            }
+            
+            // Per-message logging is off unless sampling is enabled (--log-messages)
+            boolean logged = Log.sampleMessage();
+            if (logged) {
+                Log.info("Received from " + clientType + " " + clientAddr + " on topic '" + topic + "': " + message);
+            }
+            
+            // If it's a publisher, forward to subscribers of the same topic
+            if (clientType.equals("PUBLISHER")) {
+                publishText(topic, topicId, topicMetrics, clientAddr, message, info.keyed, logged);
+                throttleIfSaturated(info);
+            }
+        }
+    }
+    
+    private void publishText(String topic, int topicId, TopicMetrics topicMetrics, String clientAddr, String message, boolean keyed, boolean logged) {
+        // A tracing publisher's header is split off and stamped with our ingress time
+        Trace trace = null;
+        int headerLength = Trace.textHeaderLength(message);
+        if (headerLength > 0) {
+            long ingress = Trace.nowMicros();
+            trace = Trace.parseText(message);
+            if (trace != null) {
+                trace = trace.withIngress(ingress);
+                message = message.substring(headerLength);
+            }
+        }
+        
+        // Then the "{key} " prefix, if the publisher opted in to keys
+        String key = null;
+        int keyLength = keyed ? Message.textKeyLength(message) : 0;
+        if (keyLength > 0) {
+            key = Message.textKey(message, keyLength);
+            if (!Message.fitsKey(key)) {
+                Log.warn("Ignoring message on topic '" + topic + "' from " + clientAddr + ": key longer than "
+                        + Message.MAX_KEY_BYTES + " bytes");
+                return;
+            }
+            message = message.substring(keyLength);
+        }
+        
+        topicMetrics.recordIn(message.length()); // chars, which is bytes for ASCII text
+        Message published = Message.fromText(topic, topicId, clientAddr, message);
+        published.setTrace(trace);
+        published.setKey(key);
+        dispatch(published, logged);
+    }
+    
+    // A multiplexed client's command line; anything else is logged and ignored.
+    // Commands and teardown all run on the client's handler thread, so its
+    // subscription set and published topics need no lock.
+    private void handleCommand(ClientInfo info, String line) {
+        int space = line.indexOf(' ');
+        String command = (space < 0 ? line : line.substring(0, space)).toUpperCase();
+        String argument = space < 0 ? "" : line.substring(space + 1).trim();
+        switch (command) {
+            case "SUB":
+                subscribe(info, argument);
+                break;
+            case "UNSUB":
+                unsubscribe(info, argument);
+                break;
+            case "PUB":
+                publish(info, argument);
+                break;
+            default:
+                Log.warn("Ignoring unknown command '" + command + "' from " + info.addr);
+        }
+    }
+    
+    // Add comma-separated topics (wildcards allowed) the client is not already
+    // subscribed to; invalid ones are logged and skipped. Live messages only:
+    // replay, snapshots and groups need a SUBSCRIBER connection.
+    private void subscribe(ClientInfo info, String topics) {
+        for (String subscription : topics.split(",")) {
+            subscription = subscription.trim();
+            if (subscription.isEmpty()) {
+                continue;
+            }
+            try {
+                TopicTrie.validate(subscription);
+            } catch (IllegalArgumentException e) {
+                Log.warn("Invalid subscription from " + info.addr + ": " + e.getMessage());
+                continue;
+            }
+            if (!info.subscriptions.add(subscription)) {
+                continue;
+            }
+            if (TopicTrie.isWildcard(subscription)) {
+                wildcardSubscribers.add(subscription, info.queue);
+            } else {
+                subscribers.add(subscription, info.queue);
+            }
+            if (cluster != null) {
+                cluster.interestAdded(subscription);
+            }
+            Log.debug("Client " + info.addr + " subscribed to '" + subscription + "'");
+        }
+    }
+    
+    // Messages already queued for a dropped topic are still delivered
+    private void unsubscribe(ClientInfo info, String topics) {
+        for (String subscription : topics.split(",")) {
+            subscription = subscription.trim();
+            if (!info.subscriptions.remove(subscription)) {
+                continue;
+            }
+            if (TopicTrie.isWildcard(subscription)) {
+                wildcardSubscribers.remove(subscription, info.queue);
+            } else {
+                subscribers.remove(subscription, info.queue);
+            }
+            if (cluster != null) {
+                cluster.interestRemoved(subscription);
+            }
+            Log.debug("Client " + info.addr + " unsubscribed from '" + subscription + "'");
+        }
+    }
+    
+    // "<topic> <message>": the first message on a topic registers the client
+    // as one of its publishers. Multiplexed clients are never sent THROTTLE,
+    // since their output is the subscriber writer's.
+    private void publish(ClientInfo info, String argument) {
+        int space = argument.indexOf(' ');
+        String topic = space < 0 ? argument : argument.substring(0, space);
+        String message = space < 0 ? "" : argument.substring(space + 1);
+        TopicMetrics topicMetrics = info.published.get(topic);
+        if (topicMetrics == null) {
+            if (topic.isEmpty() || TopicTrie.isWildcard(topic) || topic.indexOf(',') >= 0) {
+                Log.warn("Ignoring PUB without a single concrete topic from " + info.addr);
                 return;
             }
+            topicMetrics = metrics.topic(topic);
+            info.published.put(topic, topicMetrics);
+            publishers.add(topic, info.queue.getSocket());
+        }
+        boolean logged = Log.sampleMessage();
+        if (logged) {
+            Log.info("Received from CLIENT " + info.addr + " on topic '" + topic + "': " + message);
+        }
+        publishText(topic, topicId(topic), topicMetrics, info.addr, message, info.keyed, logged);
+    }
+    
+    private void handleBinaryMessages(DataInputStream in, ClientInfo info, String clientType, String topic, int topicId, String clientAddr) throws IOException {
+        TopicMetrics topicMetrics = clientType.equals("PUBLISHER") ? metrics.topic(topic) : null;
+        BinaryProtocol.Frame frame;
+        while (running && (frame = BinaryProtocol.readFrame(in)) != null) {
+            if (frame.hasFlag(BinaryProtocol.FLAG_TERMINATE)) {
+                Log.info("Client " + clientAddr + " sent terminate command");
+                break;
+            }
+            received(info);
             
-            List<Socket> disconnectedSubscribers = new ArrayList<>();
-            List<Socket> topicSubscribers = subscribers.get(topic);
-            int subscribersCount = topicSubscribers.size();
+            if (BinaryProtocol.isHeartbeat(frame)) {
+                if (frame.payload[0] == BinaryProtocol.HEARTBEAT_PING) {
+                    sendHeartbeat(info, true);
+                }
+                continue;
+            }
             
-            for (Socket subscriber : topicSubscribers) {
-                try {
-                    PrintWriter out = new PrintWriter(subscriber.getOutputStream(), true);
-                    String formattedMessage = "[" + topic + "] Publisher " + senderAddr + ": " + message;
-                    out.println(formattedMessage);
-                } catch (IOException e) {
-                    // Mark for removal if send fails
-                    disconnectedSubscribers.add(subscriber);
+            if (frame.topicId != topicId) {
+                Log.warn("Ignoring frame for unknown topic id " + frame.topicId + " from " + clientAddr);
+                continue;
+            }
+            
+            if (frame.hasFlag(BinaryProtocol.FLAG_CREDIT)) {
+                if (info.queue != null && frame.payload.length >= 8) {
+                    DataInputStream grant = new DataInputStream(new ByteArrayInputStream(frame.payload));
+                    grantCredit(info, grant.readInt(), grant.readInt());
+                }
+                continue;
+            }
+            
+            if (frame.hasFlag(BinaryProtocol.FLAG_ACK)) {
+                if (info.queue != null) {
+                    acknowledge(info, frame.payload);
                 }
+                continue;
+            }
+            
+            // The payload is forwarded as-is; it is only decoded if a text subscriber needs it
+            boolean logged = Log.sampleMessage();
+            if (logged) {
+                Log.info("Received " + frame.payload.length + " bytes from " + clientType + " " + clientAddr + " on topic '" + topic + "'");
             }
             
-            // Remove disconnected subscribers
-            for (Socket subscriber : disconnectedSubscribers) {
-                topicSubscribers.remove(subscriber);
-                clients.remove(subscriber);
+            if (clientType.equals("PUBLISHER")) {
+                byte[] payload = frame.payload;
+                Trace trace = null;
+                if (frame.hasFlag(BinaryProtocol.FLAG_TRACED)) {
+                    long ingress = Trace.nowMicros();
+                    trace = Trace.readBinary(payload);
+                    if (trace == null) {
+                        Log.warn("Ignoring traced frame too short for its header from " + clientAddr);
+                        continue;
+                    }
+                    trace = trace.withIngress(ingress);
+                    payload = Arrays.copyOfRange(payload, Trace.BINARY_LENGTH, payload.length);
+                }
+                String key = null;
+                if (frame.hasFlag(BinaryProtocol.FLAG_KEYED)) {
+                    int keyLength = Message.binaryKeyLength(payload);
+                    if (keyLength < 0) {
+                        Log.warn("Ignoring keyed frame too short for its key from " + clientAddr);
+                        continue;
+                    }
+                    key = Message.binaryKey(payload, keyLength);
+                    payload = Arrays.copyOfRange(payload, keyLength, payload.length);
+                }
+                
+                boolean deflated = false;
+                if (info.compressed) {
+                    if (payload.length == 0 || (payload[0] != Compression.CODEC_NONE && payload[0] != Compression.CODEC_DEFLATE)) {
+                        Log.warn("Ignoring frame without a known codec byte from " + clientAddr);
+                        continue;
+                    }
+                    deflated = payload[0] == Compression.CODEC_DEFLATE;
+                    payload = Arrays.copyOfRange(payload, 1, payload.length);
+                }
+                
+                // A deflated payload stays deflated; compressing subscribers get it as it came
+                topicMetrics.recordIn(payload.length);
+                Message published = deflated
+                        ? Message.fromCompressed(topic, topicId, clientAddr, payload)
+                        : Message.fromBytes(topic, topicId, clientAddr, payload);
+                published.setTrace(trace);
+                published.setKey(key);
+                dispatch(published, logged);
+                throttleIfSaturated(info);
+            }
+        }
+    }
+    
+    // Compression is on when a binary client's handshake asks for a known codec.
+    // False (after logging why) for an unknown one, which the client would go on to send.
+    private static boolean negotiateCompression(Handshake handshake, ClientInfo info) {
+        String codec = handshake.option("compress");
+        if (codec == null) {
+            return true;
+        }
+        try {
+            info.compressed = Compression.parse(codec);
+        } catch (IllegalArgumentException e) {
+            Log.warn(e.getMessage() + " from " + info.addr);
+            return false;
+        }
+        if (info.compressed && !info.binary) {
+            Log.warn("Compression needs the binary protocol; sending uncompressed lines to " + info.addr);
+            info.compressed = false;
+        }
+        return true;
+    }
+    
+    // Credit-based flow control is on when the handshake grants initial credit
+    private static boolean enableCredit(Handshake handshake, SubscriberQueue queue, String clientAddr) {
+        String messages = handshake.option("credit");
+        String bytes = handshake.option("credit-bytes");
+        if (messages == null && bytes == null) {
+            return true;
+        }
+        try {
+            queue.enableCredit(messages == null ? 0 : Long.parseLong(messages), bytes == null ? 0 : Long.parseLong(bytes));
+            return true;
+        } catch (NumberFormatException e) {
+            Log.warn("Invalid credit from " + clientAddr + ": " + (messages != null ? messages : bytes));
+            return false;
+        }
+    }
+    
+    private static void grantCredit(ClientInfo info, String[] amounts) {
+        try {
+            grantCredit(info, Long.parseLong(amounts[0]), amounts.length > 1 ? Long.parseLong(amounts[1]) : 0);
+        } catch (NumberFormatException e) {
+            Log.warn("Ignoring invalid CREDIT from " + info.addr);
+        }
+    }
+    
+    private static void grantCredit(ClientInfo info, long messages, long bytes) {
+        if (!info.queue.hasCreditMode()) {
+            Log.warn("Ignoring CREDIT from " + info.addr + ", which did not ask for flow control in its handshake");
+            return;
+        }
+        info.queue.grantCredit(messages, bytes);
+    }
+    
+    // Have the connection monitor heartbeat the client and close it once idle
+    private void watch(Socket conn, ClientInfo info) {
+        info.lastReceived = monitor.clock();
+        info.monitorId = monitor.register(new ConnectionMonitor.Connection() {
+            @Override
+            public long lastReceived() {
+                return info.lastReceived;
             }
             
-            // Remove topic if no more subscribers
-            if (topicSubscribers.isEmpty()) {
-                subscribers.remove(topic);
+            @Override
+            public void heartbeat() {
+                sendHeartbeat(info, false);
             }
             
-            int deliveredCount = subscribersCount - disconnectedSubscribers.size();
-            System.out.println("Message delivered to " + deliveredCount + " subscriber(s) on topic '" + topic + "'");
+            @Override
+            public void expire(long idleMillis) {
+                Log.warn("Closing " + info.type + " " + info.addr + ": nothing received for " + idleMillis + " ms");
+                metrics.idleDisconnected();
+                try {
+                    conn.close(); // ends its handler, which cleans up
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        });
+    }
+    
+    // Stamp the client as alive. The clock only moves once a tick, so this is
+    // a read and, at most once a tick, a write.
+    private void received(ClientInfo info) {
+        if (monitor != null) {
+            long now = monitor.clock();
+            if (info.lastReceived != now) {
+                info.lastReceived = now;
+            }
+        }
+    }
+    
+    // Send a PING, or a PONG answering the client's, without blocking the
+    // caller: a subscriber's writer sends it between messages, and a
+    // publisher's control writer alongside THROTTLE/RESUME
+    private void sendHeartbeat(ClientInfo info, boolean pong) {
+        if (info.queue != null) {
+            info.queue.sendHeartbeat(pong);
+            return;
+        }
+        sendControl(info, pong ? SIGNAL_PONG : SIGNAL_PING);
+    }
+    
+    // Give a subscribing connection its bounded queue and writer task, set up
+    // from the handshake's connection-wide options. Returns false (after
+    // logging why) if they are invalid.
+    private boolean openQueue(Handshake handshake, ClientInfo info, Socket conn) {
+        info.queue = new SubscriberQueue(conn, info.addr, info.binary, config.queueCapacity, config.overflowPolicy, config.blockTimeoutMillis, metrics);
+        metrics.clientConnected(false);
+        if (handshake.option("trace") != null) {
+            info.queue.enableTracing();
+        }
+        if (info.compressed) {
+            info.queue.enableCompression(config.compressThreshold);
+        }
+        if (!enableCredit(handshake, info.queue, info.addr)) {
+            return false;
+        }
+        if (handshake.option("ack") != null) {
+            attachAckSession(handshake.option("id"), info.queue, info.addr);
         }
+        return true;
     }
     
-    private void displayTopicStatus() {
-        System.out.println("\n=== Current Topic Status ===");
+    // Compile the subscriber's filter, or share the instance already compiled
+    // for the same canonical expression. Returns false (after logging why) if
+    // the expression is invalid.
+    private boolean applyFilter(String expression, ClientInfo info) {
+        SubscriptionFilter compiled;
+        try {
+            compiled = SubscriptionFilter.compile(expression);
+        } catch (IllegalArgumentException e) {
+            Log.warn("Invalid filter from " + info.addr + ": " + e.getMessage());
+            return false;
+        }
+        info.filter = filters.compute(compiled.getCanonical(), (canonical, shared) -> {
+            SubscriptionFilter filter = shared != null ? shared : compiled;
+            filter.users.incrementAndGet();
+            return filter;
+        });
+        info.queue.setFilter(info.filter);
+        return true;
+    }
+    
+    // The last subscriber using a filter drops it from the shared map
+    private void releaseFilter(SubscriptionFilter filter) {
+        filters.computeIfPresent(filter.getCanonical(), (canonical, shared) ->
+                shared == filter && filter.users.decrementAndGet() == 0 ? null : shared);
+    }
+    
+    // Add a member to the group for one subscription, creating and
+    // registering the group when it is the first
+    private void joinGroup(String name, String subscription, DispatchStrategy dispatch, SubscriberQueue queue) {
+        consumerGroups.compute(name + ":" + subscription, (key, group) -> {
+            if (group == null) {
+                group = new ConsumerGroup(name, subscription, dispatch);
+                if (TopicTrie.isWildcard(subscription)) {
+                    wildcardGroups.add(subscription, group);
+                } else {
+                    groups.add(subscription, group);
+                }
+            } else if (group.getStrategy() != dispatch) {
+                Log.warn("Group '" + name + "' on '" + subscription + "' already dispatches " + group.getStrategy()
+                        + "; ignoring " + dispatch + " from " + queue.getAddr());
+            }
+            group.add(queue);
+            return group;
+        });
+    }
+    
+    // The last member to leave unregisters the group
+    private void leaveGroup(String name, String subscription, SubscriberQueue queue) {
+        consumerGroups.computeIfPresent(name + ":" + subscription, (key, group) -> {
+            if (!group.remove(queue)) {
+                return group;
+            }
+            if (TopicTrie.isWildcard(subscription)) {
+                wildcardGroups.remove(subscription, group);
+            } else {
+                groups.remove(subscription, group);
+            }
+            return null;
+        });
+    }
+    
+    // Give an acknowledging subscriber its session: the named one it had
+    // before, with its unacknowledged messages to redeliver, or a new one
+    private void attachAckSession(String name, SubscriberQueue queue, String clientAddr) {
+        long now = System.currentTimeMillis();
+        AckSession session;
+        if (name == null) {
+            session = new AckSession(null, config.ackWindow, config.ackTimeoutMillis, now);
+            session.attach(queue);
+        } else {
+            // Attached within the map's lock so the ack timer cannot expire it in between
+            session = namedAckSessions.compute(name, (n, existing) -> {
+                AckSession named = existing != null ? existing : new AckSession(n, config.ackWindow, config.ackTimeoutMillis, now);
+                named.attach(queue);
+                return named;
+            });
+        }
+        queue.setAckSession(session);
+        ackSessions.add(session);
+        int inFlight = session.getInFlight();
+        Log.info("Subscriber " + clientAddr + " acknowledges deliveries"
+                + (name != null ? " as '" + name + "'" : "")
+                + (inFlight > 0 ? "; redelivering " + inFlight + " unacknowledged message(s)" : ""));
+    }
+    
+    // Anonymous sessions end with their connection; named ones wait for a
+    // reconnect until the ack timer expires them
+    private void detachAckSession(SubscriberQueue queue) {
+        AckSession session = queue.getAckSession();
+        if (session == null) {
+            return;
+        }
+        session.detach(queue, System.currentTimeMillis());
+        if (session.getName() == null) {
+            ackSessions.remove(session);
+            session.close();
+        }
+    }
+    
+    private static void acknowledge(ClientInfo info, String line) {
+        AckSession session = info.queue.getAckSession();
+        if (session == null) {
+            Log.warn("Ignoring ACK from " + info.addr + ", which did not ask for acknowledgements in its handshake");
+            return;
+        }
+        try {
+            if (line.regionMatches(true, 0, "ACKS", 0, 4)) {
+                for (String range : line.substring(4).trim().split(",")) {
+                    int dash = range.indexOf('-');
+                    if (dash < 0) {
+                        long id = Long.parseLong(range.trim());
+                        session.ack(id, id);
+                    } else {
+                        session.ack(Long.parseLong(range.substring(0, dash).trim()), Long.parseLong(range.substring(dash + 1).trim()));
+                    }
+                }
+            } else {
+                session.ackUpTo(Long.parseLong(line.substring(3).trim()));
+            }
+        } catch (NumberFormatException e) {
+            Log.warn("Ignoring invalid acknowledgement from " + info.addr + ": " + line);
+        }
+    }
+    
+    // FLAG_ACK payload: long cumulative id (0 for none), then inclusive long ranges
+    private static void acknowledge(ClientInfo info, byte[] payload) {
+        AckSession session = info.queue.getAckSession();
+        if (session == null || payload.length < Long.BYTES) {
+            Log.warn("Ignoring acknowledgement from " + info.addr);
+            return;
+        }
+        ByteBuffer acks = ByteBuffer.wrap(payload);
+        session.ackUpTo(acks.getLong());
+        while (acks.remaining() >= 2 * Long.BYTES) {
+            session.ack(acks.getLong(), acks.getLong());
+        }
+    }
+    
+    // Ack timer: queue timed-out messages for redelivery, waking their
+    // writers, and drop named sessions nobody reconnected to in time
+    private void tickAckSessions() {
+        long now = System.currentTimeMillis();
+        for (AckSession session : ackSessions) {
+            if (session.tick(now)) {
+                SubscriberQueue attached = session.getAttached();
+                if (attached != null) {
+                    attached.wakeForRedelivery();
+                }
+            }
+            if (session.getName() != null && session.isExpired(now, config.ackSessionExpiryMillis)
+                    && namedAckSessions.computeIfPresent(session.getName(),
+                            (name, named) -> named == session && named.isExpired(now, config.ackSessionExpiryMillis) ? null : named) == null) {
+                ackSessions.remove(session);
+                Log.info("Ack session '" + session.getName() + "' expired with " + session.getInFlight()
+                        + " unacknowledged message(s)");
+                session.close();
+            }
+        }
+    }
+    
+    // Tell a publisher to slow down once every subscriber to its topic is
+    // saturated. A topic with one subscriber still keeping up is left to the
+    // overflow policy, so one slow reader cannot throttle everybody.
+    private void throttleIfSaturated(ClientInfo publisher) {
+        if (publisher.throttled) {
+            return;
+        }
+        Collection<SubscriberQueue> matching = flowControlledSubscribers(publisher.topic);
+        if (matching.isEmpty()) {
+            return;
+        }
+        for (SubscriberQueue subscriber : matching) {
+            if (!subscriber.isSaturated()) {
+                return;
+            }
+        }
+        publisher.controlLock.lock();
+        try {
+            if (publisher.throttled) {
+                return;
+            }
+            publisher.throttled = true;
+            throttledPublishers.add(publisher);
+            sendControl(publisher, SIGNAL_THROTTLE);
+        } finally {
+            publisher.controlLock.unlock();
+        }
+        metrics.publisherThrottled();
+        Log.debug("Throttling publisher " + publisher.addr + " on topic '" + publisher.topic + "'");
+    }
+    
+    // Flow-control timer: resume throttled publishers once any subscriber to
+    // their topic has drained (or none is left)
+    private void resumeDrainedPublishers() {
+        for (ClientInfo publisher : throttledPublishers) {
+            Collection<SubscriberQueue> matching = flowControlledSubscribers(publisher.topic);
+            boolean drained = matching.isEmpty();
+            for (SubscriberQueue subscriber : matching) {
+                if (subscriber.isDrained()) {
+                    drained = true;
+                    break;
+                }
+            }
+            if (drained) {
+                publisher.controlLock.lock();
+                try {
+                    throttledPublishers.remove(publisher);
+                    publisher.throttled = false;
+                    sendControl(publisher, SIGNAL_RESUME);
+                } finally {
+                    publisher.controlLock.unlock();
+                }
+                Log.debug("Resuming publisher " + publisher.addr + " on topic '" + publisher.topic + "'");
+            }
+        }
+    }
+    
+    // Queue a signal for the publisher, starting its control writer if none is
+    // running. Never blocks on the socket, so timers and handlers can call it.
+    private void sendControl(ClientInfo publisher, int signal) {
+        publisher.controlLock.lock();
+        try {
+            publisher.controlSignals.add(signal);
+            if (publisher.controlWriterRunning) {
+                return;
+            }
+            publisher.controlWriterRunning = true;
+        } finally {
+            publisher.controlLock.unlock();
+        }
+        try {
+            threadPool.execute(() -> writeControl(publisher));
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+        }
+    }
+    
+    // The publisher's control writer: sends queued signals in order, and
+    // exits once the queue is empty or the publisher has gone away
+    private void writeControl(ClientInfo publisher) {
+        while (true) {
+            int signal;
+            publisher.controlLock.lock();
+            try {
+                Integer next = publisher.controlSignals.poll();
+                if (next == null) {
+                    publisher.controlWriterRunning = false;
+                    return;
+                }
+                signal = next;
+            } finally {
+                publisher.controlLock.unlock();
+            }
+            try {
+                writeSignal(publisher, signal);
+            } catch (IOException e) {
+                // The publisher is going away; its handler cleans up
+                publisher.controlLock.lock();
+                try {
+                    publisher.controlSignals.clear();
+                    publisher.controlWriterRunning = false;
+                } finally {
+                    publisher.controlLock.unlock();
+                }
+                return;
+            }
+        }
+    }
+    
+    private static void writeSignal(ClientInfo publisher, int signal) throws IOException {
+        if (signal == SIGNAL_PING || signal == SIGNAL_PONG) {
+            boolean pong = signal == SIGNAL_PONG;
+            if (publisher.binary) {
+                BinaryProtocol.writeHeartbeat(publisher.out, pong);
+            } else {
+                publisher.out.write((pong ? "PONG\n" : "PING\n").getBytes(StandardCharsets.UTF_8));
+            }
+        } else {
+            boolean throttle = signal == SIGNAL_THROTTLE;
+            if (publisher.binary) {
+                BinaryProtocol.writeThrottle(publisher.out, publisher.topicId, throttle);
+            } else {
+                publisher.out.write((throttle ? "THROTTLE\n" : "RESUME\n").getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        publisher.out.flush();
+    }
+    
+    private int topicId(String topic) {
+        return topicIds.computeIfAbsent(topic, k -> nextTopicId.getAndIncrement());
+    }
+    
+    // Route on the message's dispatch shard, or right here on the handler
+    // thread. Takes over the caller's reference to the message. The sampling
+    // decision travels with the message, so shards log the fan-out too.
+    private void dispatch(Message message, boolean logged) {
+        message.setLogged(logged);
+        if (dispatcher != null) {
+            dispatcher.submit(message);
+            return;
+        }
+        route(message);
+    }
+    
+    // Persist and fan out, logging the result if the message was sampled
+    private void route(Message message) {
+        boolean logged = message.isLogged();
+        int queued = forwardToTopicSubscribers(message);
+        if (logged) {
+            logFanOut(message.getTopic(), queued);
+        }
+    }
+    
+    private static void logFanOut(String topic, int queued) {
+        if (queued == 0) {
+            Log.info("No subscribers for topic '" + topic + "'");
+        } else {
+            Log.info("Message queued for " + queued + " subscriber(s) on topic '" + topic + "'");
+        }
+    }
+    
+    // Takes over the caller's reference to the message. Returns the number of
+    // subscribers it was queued for.
+    private int forwardToTopicSubscribers(Message message) {
+        try {
+            persist(message);
+            if (retained != null) {
+                retained.put(message);
+            }
+            int queued = fanOut(message);
+            if (cluster != null) {
+                cluster.forward(message);
+            }
+            return queued;
+        } finally {
+            message.release();
+        }
+    }
+    
+    // A message a peer broker forwarded: only for local subscribers, since
+    // the publisher's own broker persisted it and sent it to every interested peer
+    private void deliverFromPeer(Message message) {
+        try {
+            if (retained != null) {
+                retained.put(message);
+            }
+            fanOut(message);
+        } finally {
+            message.release();
+        }
+    }
+    
+    // Append to the topic's log before live delivery, so a stored message is
+    // never seen by a subscriber without also being in the log
+    private void persist(Message message) {
+        if (store == null) {
+            return;
+        }
+        try {
+            // A deflated payload is stored deflated and replayed without inflating it.
+            // The key goes with it, for compaction.
+            byte[] compressed = message.getCompressed();
+            byte attributes = compressed != null ? LogRecord.DEFLATED : 0;
+            if (message.isTombstone()) {
+                attributes |= LogRecord.TOMBSTONE;
+            }
+            message.setOffset(store.append(message.getTopic(), System.currentTimeMillis(), attributes, message.getSenderAddr(),
+                    message.getKey(), compressed != null ? compressed : message.getPayload()));
+        } catch (IOException e) {
+            Log.error("Failed to persist message on topic '" + message.getTopic() + "': " + e.getMessage());
+        }
+    }
+    
+    private int fanOut(Message message) {
+        long start = System.nanoTime();
+        String topic = message.getTopic();
+        Collection<SubscriberQueue> topicSubscribers = matchingSubscribers(topic);
+        
+        int queuedCount = 0;
+        
+        // Each queue retains the message and writes a slice of its shared encoding.
+        // Filtered subscribers share their filter's verdict, so each distinct
+        // filter is evaluated once however many subscribers use it.
+        for (SubscriberQueue subscriber : topicSubscribers) {
+            SubscriptionFilter filter = subscriber.getFilter();
+            if (filter != null && !filter.matches(message)) {
+                metrics.messageFiltered();
+                continue;
+            }
+            if (deliver(subscriber, message, topic)) {
+                queuedCount++;
+            }
+        }
+        // ...and each consumer group hands it to just one member
+        for (ConsumerGroup group : matchingGroups(topic)) {
+            SubscriberQueue member = group.pick(message);
+            if (member != null && deliver(member, message, topic)) {
+                queuedCount++;
+            }
+        }
+        metrics.recordFanOut(System.nanoTime() - start);
+        return queuedCount;
+    }
+    
+    private boolean deliver(SubscriberQueue subscriber, Message message, String topic) {
+        if (subscriber.offer(message)) {
+            return true;
+        }
+        // Too slow under the disconnect policy (or already gone): closing the
+        // socket ends its handler, which removes it from the topic lists
+        if (!subscriber.isClosed()) {
+            Log.warn("Disconnecting slow subscriber " + subscriber.getAddr() + " on topic '" + topic + "'");
+            metrics.slowSubscriberDisconnected();
+        }
+        subscriber.close();
+        try {
+            subscriber.getSocket().close();
+        } catch (IOException e) {
+            // Ignore
+        }
+        return false;
+    }
+    
+    // Exact subscribers come from a lock-free registry snapshot and wildcard ones
+    // from the trie's per-topic cache. Only a subscriber holding both kinds of
+    // subscription can appear twice, so the merge is the only case that copies.
+    private Collection<SubscriberQueue> matchingSubscribers(String topic) {
+        List<SubscriberQueue> exact = subscribers.get(topic);
+        List<SubscriberQueue> wildcard = wildcardSubscribers.match(topic);
+        if (wildcard.isEmpty()) {
+            return exact;
+        }
+        if (exact.isEmpty()) {
+            return wildcard;
+        }
+        Set<SubscriberQueue> merged = new LinkedHashSet<>(exact);
+        merged.addAll(wildcard);
+        return merged;
+    }
+    
+    private List<ConsumerGroup> matchingGroups(String topic) {
+        List<ConsumerGroup> exact = groups.get(topic);
+        List<ConsumerGroup> wildcard = wildcardGroups.match(topic);
+        if (wildcard.isEmpty()) {
+            return exact;
+        }
+        if (exact.isEmpty()) {
+            return wildcard;
+        }
+        List<ConsumerGroup> merged = new ArrayList<>(exact);
+        merged.addAll(wildcard);
+        return merged;
+    }
+    
+    // Every queue a topic's publishers feed: plain subscribers plus group members
+    private Collection<SubscriberQueue> flowControlledSubscribers(String topic) {
+        Collection<SubscriberQueue> matching = matchingSubscribers(topic);
+        List<ConsumerGroup> topicGroups = matchingGroups(topic);
+        if (topicGroups.isEmpty()) {
+            return matching;
+        }
+        List<SubscriberQueue> all = new ArrayList<>(matching);
+        for (ConsumerGroup group : topicGroups) {
+            all.addAll(group.getMembers());
+        }
+        return all;
+    }
+    
+    // The full registry dump is only logged on every connect and disconnect at
+    // debug level; --status-interval-sec logs it periodically instead
+    private void logTopicStatus() {
+        if (Log.isDebugEnabled()) {
+            Log.debug(topicStatus());
+        }
+    }
+    
+    private String topicStatus() {
+        StringBuilder status = new StringBuilder();
+        status.append("\n=== Current Topic Status ===\n");
         
         // Display publishers
-        System.out.println("Publishers:");
+        status.append("Publishers:\n");
         if (publishers.isEmpty()) {
-            System.out.println("  None");
+            status.append("  None\n");
         } else {
-            for (Map.Entry<String, List<Socket>> entry : publishers.entrySet()) {
-                System.out.println("  Topic '" + entry.getKey() + "': " + entry.getValue().size() + " publisher(s)");
+            for (Map.Entry<String, List<Socket>> entry : publishers.snapshot().entrySet()) {
+                status.append("  Topic '").append(entry.getKey()).append("': ").append(entry.getValue().size()).append(" publisher(s)\n");
             }
         }
         
         // Display subscribers
-        System.out.println("Subscribers:");
-        if (subscribers.isEmpty()) {
-            System.out.println("  None");
+        status.append("Subscribers:\n");
+        if (subscribers.isEmpty() && wildcardSubscribers.isEmpty()) {
+            status.append("  None\n");
         } else {
-            for (Map.Entry<String, List<Socket>> entry : subscribers.entrySet()) {
-                System.out.println("  Topic '" + entry.getKey() + "': " + entry.getValue().size() + " subscriber(s)");
+            Map<String, List<SubscriberQueue>> subscriptions = new TreeMap<>(subscribers.snapshot());
+            subscriptions.putAll(wildcardSubscribers.snapshot());
+            for (Map.Entry<String, List<SubscriberQueue>> entry : subscriptions.entrySet()) {
+                status.append("  Topic '").append(entry.getKey()).append("': ").append(entry.getValue().size()).append(" subscriber(s)\n");
+                for (SubscriberQueue subscriber : entry.getValue()) {
+                    status.append("    ").append(subscriber.getAddr()).append(": queued ").append(subscriber.getQueueDepth())
+                            .append(", dropped ").append(subscriber.getDroppedCount()).append('\n');
+                }
             }
         }
         
-        System.out.println("============================\n");
+        if (cluster != null) {
+            status.append("Cluster peers of '").append(cluster.getNodeId()).append("':\n").append(cluster.status());
+        }
+        LogCompactor compactor = store != null ? store.getCompactor() : null;
+        if (compactor != null) {
+            status.append("Compaction: ").append(compactor.getPasses()).append(" pass(es), ")
+                    .append(compactor.getRecordsRemoved()).append(" record(s) removed, ")
+                    .append(compactor.getBytesReclaimed()).append(" bytes reclaimed\n");
+        }
+        if (retained != null) {
+            status.append("Retained: ").append(retained.getTopicCount()).append(" topic(s), ")
+                    .append(retained.getBytes()).append(" of ").append(retained.getBudgetBytes()).append(" bytes\n");
+        }
+        if (monitor != null) {
+            status.append("Connection monitor: ").append(monitor.getConnectionCount()).append(" connection(s), ")
+                    .append(monitor.getHeartbeatsSent()).append(" heartbeat(s) sent, ")
+                    .append(monitor.getConnectionsExpired()).append(" idle connection(s) closed\n");
+        }
+        if (!filters.isEmpty()) {
+            status.append("Content filters: ").append(filters.size()).append(" distinct, ")
+                    .append(metrics.getMessagesFiltered()).append(" delivery(ies) filtered out\n");
+        }
+        if (dispatcher != null) {
+            status.append("Dispatch shard inboxes: ").append(Arrays.toString(dispatcher.getInboxDepths())).append('\n');
+        }
+        if (!consumerGroups.isEmpty()) {
+            status.append("Consumer groups:\n");
+            for (ConsumerGroup group : new TreeMap<>(consumerGroups).values()) {
+                status.append("  Group '").append(group.getName()).append("' on '").append(group.getSubscription()).append("' (")
+                        .append(group.getStrategy()).append("): ").append(group.getMembers().size()).append(" member(s)\n");
+            }
+        }
+        
+        status.append("============================");
+        return status.toString();
     }
     
     private void shutdownServer() {
-        System.out.println("Initiating server shutdown...");
+        Log.info("Initiating server shutdown...");
         running = false;
         
         // Close all client connections
-        synchronized (clientsLock) {
-            for (Socket client : clients.keySet()) {
-                try {
-                    client.close();
-                } catch (IOException e) {
-                    // Ignore
-                }
+        for (Map.Entry<Socket, ClientInfo> entry : clients.entrySet()) {
+            if (entry.getValue().queue != null) {
+                entry.getValue().queue.close();
+            }
+            try {
+                entry.getKey().close();
+            } catch (IOException e) {
+                // Ignore
             }
-            clients.clear();
-            publishers.clear();
-            subscribers.clear();
         }
+        clients.clear();
+        publishers.clear();
+        subscribers.clear();
+        wildcardSubscribers.clear();
+        groups.clear();
+        wildcardGroups.clear();
+        consumerGroups.clear();
         
         // Close server socket
         if (serverSocket != null) {
@@ -246,36 +1429,137 @@ public class PubSubServer {
         } catch (InterruptedException e) {
             threadPool.shutdownNow();
         }
+        
+        // Let the shards route what they already took, then close the logs
+        // once nothing can append any more
+        if (dispatcher != null) {
+            dispatcher.shutdown(5000);
+        }
+        if (store != null) {
+            store.close();
+            store = null;
+        }
+        if (statusReporter != null) {
+            statusReporter.shutdownNow();
+        }
+        if (flowControlTimer != null) {
+            flowControlTimer.shutdownNow();
+        }
+        if (ackTimer != null) {
+            ackTimer.shutdownNow();
+        }
+        if (monitor != null) {
+            monitor.stop();
+        }
+        if (cluster != null) {
+            cluster.shutdown();
+        }
+        if (retained != null) {
+            retained.clear();
+        }
+        if (metricsServer != null) {
+            metricsServer.stop();
+        }
+        metrics.unregisterJmx();
+        Log.flush();
     }
     
     public void start() {
         try {
-            serverSocket = new ServerSocket(port);
-            System.out.println("Server starting on " + host + ":" + port);
-            System.out.println("Server listening on port " + port + "...");
-            System.out.println("Waiting for client connections...");
-            System.out.println("Press Ctrl+C to shutdown server");
+            if (config.logDir != null) {
+                store = MessageStore.open(config);
+                Log.info("Persisting topics to " + config.logDir + " (fsync " + config.fsyncPolicy + ")");
+            }
+            if (config.retain > 0) {
+                retained = new RetainedCache(config.retain, config.retainBytes);
+                Log.info("Retaining the latest " + config.retain + " message(s) per topic, up to " + config.retainBytes + " bytes");
+            }
+            
+            // Channel-backed sockets let subscriber writers hand the shared
+            // (direct) message buffers straight to the kernel
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            serverSocket = serverChannel.socket();
+            serverSocket.bind(new InetSocketAddress(port));
+            Log.info("Server starting on " + host + ":" + port);
+            Log.info("Server listening on port " + port + "...");
+            Log.info("Waiting for client connections...");
+            Log.info("Press Ctrl+C to shutdown server");
             
             // Add shutdown hook
             Runtime.getRuntime().addShutdownHook(new Thread(this::shutdownServer));
             
+            if (config.jmx) {
+                metrics.registerJmx();
+            }
+            if (config.metricsPort > 0) {
+                metricsServer = new MetricsHttpServer(host, config.metricsPort, metrics);
+                metricsServer.start();
+                Log.info("Metrics available at http://" + host + ":" + config.metricsPort + "/metrics");
+            }
+            
+            if (config.clusterPort > 0) {
+                String nodeId = config.nodeId != null ? config.nodeId : host + ":" + port;
+                List<InetSocketAddress> peers = config.peers != null ? ClusterNode.parsePeers(config.peers) : List.of();
+                cluster = new ClusterNode(nodeId, config.clusterPort, peers, this::topicId, this::deliverFromPeer);
+                cluster.start();
+            }
+            
+            if (config.dispatchShards > 0) {
+                dispatcher = new DispatchEngine(config.dispatchShards, DispatchEngine.DEFAULT_INBOX_CAPACITY, this::route);
+                dispatcher.start();
+                Log.info("Routing messages on " + config.dispatchShards + " dispatch shard(s)");
+            }
+            
+            flowControlTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "flow-control");
+                thread.setDaemon(true);
+                return thread;
+            });
+            flowControlTimer.scheduleWithFixedDelay(this::resumeDrainedPublishers, FLOW_CONTROL_INTERVAL_MILLIS,
+                    FLOW_CONTROL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+            
+            ackTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "ack-timer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            ackTimer.scheduleWithFixedDelay(this::tickAckSessions, AckSession.TICK_MILLIS,
+                    AckSession.TICK_MILLIS, TimeUnit.MILLISECONDS);
+            
+            if (config.heartbeatIntervalMillis > 0 || config.idleTimeoutMillis > 0) {
+                monitor = new ConnectionMonitor(config.heartbeatIntervalMillis, config.idleTimeoutMillis);
+                monitor.start();
+                Log.info("Heartbeat interval " + config.heartbeatIntervalMillis + " ms, idle timeout " + config.idleTimeoutMillis + " ms (0 is off)");
+            }
+            
+            if (config.statusIntervalSeconds > 0) {
+                statusReporter = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread thread = new Thread(r, "status-reporter");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                statusReporter.scheduleAtFixedRate(() -> Log.info(topicStatus()), config.statusIntervalSeconds,
+                        config.statusIntervalSeconds, TimeUnit.SECONDS);
+            }
+            
             while (running) {
                 try {
                     Socket conn = serverSocket.accept();
+                    metrics.connectionAccepted();
                     if (running) {
                         // Submit client handling to thread pool
                         threadPool.submit(() -> handleClient(conn));
                     }
                 } catch (IOException e) {
                     if (running) {
-                        System.out.println("Socket error: " + e.getMessage());
+                        Log.error("Socket error: " + e.getMessage());
                     }
                     break;
                 }
             }
             
         } catch (IOException e) {
-            System.out.println("Server error: " + e.getMessage());
+            Log.error("Server error: " + e.getMessage());
         } finally {
             if (serverSocket != null) {
                 try {
@@ -287,27 +1571,41 @@ public class PubSubServer {
         }
     }
     
+    // Stop accepting, close every connection and shut down the handler threads
+    public void stop() {
+        shutdownServer();
+    }
+    
     public static void main(String[] args) {
-        if (args.length != 1) {
-            System.out.println("Usage: java PubSubServer <PORT>");
-            System.out.println("Example: java PubSubServer 5000");
-            System.exit(1);
-        }
-        
-        int port;
+        ServerConfig config;
         try {
-            port = Integer.parseInt(args[0]);
-        } catch (NumberFormatException e) {
-            System.out.println("Error: PORT must be a valid integer");
+            config = ServerConfig.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Error: " + e.getMessage());
+            ServerConfig.printUsage();
             System.exit(1);
             return;
         }
         
-        String host = "127.0.0.1";
+        Log.setLevel(config.logLevel);
+        Log.setMessageSampleRate(config.logMessagesEvery);
+        
+        if (config.transport.equals("nio")) {
+            try {
+                NioPubSubServer server = new NioPubSubServer(config);
+                server.start();
+            } catch (IOException e) {
+                Log.error("Server error: " + e.getMessage());
+            }
+            Log.info("Server terminated.");
+            Log.flush();
+            return;
+        }
         
-        PubSubServer server = new PubSubServer(host, port);
+        PubSubServer server = new PubSubServer(config);
         server.start();
         
-        System.out.println("Server terminated.");
+        Log.info("Server terminated.");
+        Log.flush();
     }
 }
\ No newline at end of file
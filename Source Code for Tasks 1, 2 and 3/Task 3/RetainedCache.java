@@ -0,0 +1,189 @@
+package pubsub;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Last-value cache: the most recent messages of each topic (--retain N), so a
+// new subscriber starts from the current state of a topic instead of waiting
+// for its next publish. The cache holds a reference to each Message, which
+// keeps its shared encodings alive, so a snapshot is written from the same
+// bytes live subscribers got, without formatting anything again.
+//
+// Each topic's messages sit behind their own lock, so publishers on different
+// topics do not contend. Past the byte budget (--retain-bytes) whole topics
+// are evicted, least recently published or subscribed first, down to
+// EVICT_TO_FRACTION of the budget so eviction runs in batches.
+//
+// Every retained message is stamped with a global sequence number. A
+// subscriber registers first and then takes its snapshot, recording the last
+// sequence it got per topic; its writer sends the snapshot before anything
+// live and skips the live copies of messages the snapshot already held.
+public class RetainedCache {
+    public static final long DEFAULT_BUDGET_BYTES = 64L * 1024 * 1024;
+    private static final double EVICT_TO_FRACTION = 0.9;
+    private static final long MESSAGE_OVERHEAD = 128; // object headers, fields and the deque slot
+    
+    private final int depth;
+    private final long budgetBytes;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong clock = new AtomicLong(); // orders entries for LRU eviction
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    
+    private static class Retained {
+        final Message message;
+        final long bytes;
+        
+        Retained(Message message, long bytes) {
+            this.message = message;
+            this.bytes = bytes;
+        }
+    }
+    
+    private static class Entry {
+        final String topic;
+        final ArrayDeque<Retained> messages = new ArrayDeque<>(); // guarded by the entry
+        long bytes;                                               // guarded by the entry
+        boolean evicted;                                          // guarded by the entry
+        volatile long lastUsed;
+        
+        Entry(String topic) {
+            this.topic = topic;
+        }
+    }
+    
+    public RetainedCache(int depth, long budgetBytes) {
+        this.depth = depth;
+        this.budgetBytes = budgetBytes;
+    }
+    
+    // Keep a message as the newest of its topic, dropping the oldest past the
+    // depth. Called before fan-out, so every live delivery of a retained
+    // message carries its sequence number.
+    public void put(Message message) {
+        // Its bytes, plus about as much again for the encoding(s) subscribers share
+        long bytes = MESSAGE_OVERHEAD + 2L * message.footprint();
+        while (true) {
+            Entry entry = entries.computeIfAbsent(message.getTopic(), Entry::new);
+            synchronized (entry) {
+                if (entry.evicted) {
+                    continue; // lost a race with eviction; start the topic afresh
+                }
+                message.setRetainedSeq(sequence.incrementAndGet());
+                entry.messages.addLast(new Retained(message.retain(), bytes));
+                entry.bytes += bytes;
+                long added = bytes;
+                while (entry.messages.size() > depth) {
+                    Retained oldest = entry.messages.removeFirst();
+                    oldest.message.release();
+                    entry.bytes -= oldest.bytes;
+                    added -= oldest.bytes;
+                }
+                entry.lastUsed = clock.incrementAndGet();
+                totalBytes.addAndGet(added);
+            }
+            break;
+        }
+        if (totalBytes.get() > budgetBytes) {
+            evict(message.getTopic());
+        }
+    }
+    
+    // Hand the queue a snapshot of every cached topic a subscription matches.
+    // Must be called after the queue is registered and before its writer starts.
+    public void snapshot(List<String> subscriptions, SubscriberQueue queue) {
+        for (Entry entry : entries.values()) {
+            for (String subscription : subscriptions) {
+                if (subscription.equals(entry.topic)
+                        || (TopicTrie.isWildcard(subscription) && TopicTrie.matches(subscription, entry.topic))) {
+                    snapshot(entry, queue);
+                    break;
+                }
+            }
+        }
+    }
+    
+    private void snapshot(Entry entry, SubscriberQueue queue) {
+        List<Message> messages;
+        synchronized (entry) {
+            if (entry.evicted || entry.messages.isEmpty()) {
+                return;
+            }
+            messages = new ArrayList<>(entry.messages.size());
+            for (Retained retained : entry.messages) {
+                messages.add(retained.message.retain());
+            }
+            entry.lastUsed = clock.incrementAndGet();
+        }
+        queue.addSnapshot(entry.topic, messages);
+    }
+    
+    // Evict the least recently used topics until the cache is back under its
+    // low-water mark. One publisher evicts at a time; the others carry on.
+    // The topic just published to goes last, trimmed rather than dropped.
+    private void evict(String current) {
+        if (!evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            long target = (long) (budgetBytes * EVICT_TO_FRACTION);
+            List<Entry> candidates = new ArrayList<>(entries.values());
+            candidates.sort(Comparator.comparingLong(entry -> entry.lastUsed));
+            for (Entry entry : candidates) {
+                if (totalBytes.get() <= target) {
+                    return;
+                }
+                if (!entry.topic.equals(current)) {
+                    remove(entry);
+                }
+            }
+            Entry entry = entries.get(current);
+            if (entry != null) {
+                synchronized (entry) {
+                    while (totalBytes.get() > budgetBytes && entry.messages.size() > 1) {
+                        Retained oldest = entry.messages.removeFirst();
+                        oldest.message.release();
+                        entry.bytes -= oldest.bytes;
+                        totalBytes.addAndGet(-oldest.bytes);
+                    }
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+    
+    private void remove(Entry entry) {
+        synchronized (entry) {
+            entry.evicted = true;
+            for (Retained retained : entry.messages) {
+                retained.message.release();
+            }
+            entry.messages.clear();
+            totalBytes.addAndGet(-entry.bytes);
+            entry.bytes = 0;
+        }
+        entries.remove(entry.topic, entry);
+    }
+    
+    public void clear() {
+        for (Entry entry : new ArrayList<>(entries.values())) {
+            remove(entry);
+        }
+    }
+    
+    public int getTopicCount() {
+        return entries.size();
+    }
+    
+    public long getBytes() {
+        return totalBytes.get();
+    }
+    
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+}
\ No newline at end of file
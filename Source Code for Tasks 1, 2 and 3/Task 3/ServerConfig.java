@@ -0,0 +1,318 @@
+package pubsub;
+
+// Startup options for the broker, parsed from the PubSubServer command line
+public class ServerConfig {
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    public static final OverflowPolicy DEFAULT_OVERFLOW_POLICY = OverflowPolicy.DROP_OLDEST;
+    public static final long DEFAULT_BLOCK_TIMEOUT_MILLIS = 100;
+    public static final int DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+    public static final String DEFAULT_FSYNC_POLICY = "interval:1000";
+    public static final long DEFAULT_RETENTION_MILLIS = 7L * 24 * 60 * 60 * 1000;
+    public static final int DEFAULT_ACK_WINDOW = 10000;
+    public static final long DEFAULT_ACK_TIMEOUT_MILLIS = 30000;
+    public static final long DEFAULT_ACK_SESSION_EXPIRY_MILLIS = 5 * 60 * 1000;
+    
+    public String host = "127.0.0.1";
+    public int port;
+    
+    // Outbound queue settings applied to every subscriber
+    public int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    public OverflowPolicy overflowPolicy = DEFAULT_OVERFLOW_POLICY;
+    public long blockTimeoutMillis = DEFAULT_BLOCK_TIMEOUT_MILLIS;
+    
+    // "blocking" (a handler per connection) or "nio" (selector event loops)
+    public String transport = "blocking";
+    public int eventLoops = Runtime.getRuntime().availableProcessors();
+    
+    // Threads running the blocking transport's handlers: "platform" or "virtual"
+    public String executor = "platform";
+    
+    // Route messages on this many single-threaded dispatch shards; 0 routes on
+    // the handler thread that read each message
+    public int dispatchShards = 0;
+    
+    // Deflate payloads of at least this many bytes for subscribers that
+    // negotiated compression; publishers pick their own threshold
+    public int compressThreshold = Compression.DEFAULT_THRESHOLD;
+    
+    // Last-value cache: the latest N messages of each topic for new
+    // subscribers, within a byte budget across topics; 0 turns it off
+    public int retain = 0;
+    public long retainBytes = RetainedCache.DEFAULT_BUDGET_BYTES;
+    
+    // Persistent topic logs; disabled unless a log directory is given
+    public String logDir = null;
+    public int segmentBytes = DEFAULT_SEGMENT_BYTES;
+    public FsyncPolicy fsyncPolicy = FsyncPolicy.parse(DEFAULT_FSYNC_POLICY);
+    public long retentionMillis = DEFAULT_RETENTION_MILLIS; // -1 keeps segments forever
+    public long retentionBytes = -1;                        // per topic; -1 is unlimited
+    
+    // Key compaction of the logs: how often it runs (0 is off), how long a
+    // tombstone survives it, and the off-heap index it may use per pass
+    public long compactIntervalMillis = 0;
+    public long compactTombstoneMillis = LogCompactor.DEFAULT_TOMBSTONE_RETENTION_MILLIS;
+    public long compactIndexBytes = LogCompactor.DEFAULT_INDEX_BYTES;
+    
+    // At-least-once delivery for subscribers that ask with "ack": unacknowledged
+    // messages per subscriber, when they are redelivered, and how long a named
+    // session waits for its subscriber to reconnect
+    public int ackWindow = DEFAULT_ACK_WINDOW;
+    public long ackTimeoutMillis = DEFAULT_ACK_TIMEOUT_MILLIS;
+    public long ackSessionExpiryMillis = DEFAULT_ACK_SESSION_EXPIRY_MILLIS;
+    
+    // Liveness (blocking transport): PING connections silent this long, and
+    // close those silent for the idle timeout. 0 turns either off.
+    public long heartbeatIntervalMillis = 0;
+    public long idleTimeoutMillis = 0;
+    
+    // Diagnostics: per-message log lines are off unless sampled 1 in N
+    public Log.Level logLevel = Log.Level.INFO;
+    public int logMessagesEvery = 0;
+    public int statusIntervalSeconds = 0;
+    
+    // Metrics: Prometheus text over HTTP when a port is given, and JMX MBeans
+    public int metricsPort = 0;
+    public boolean jmx = true;
+    
+    // Clustering: peer brokers connect to clusterPort, and this node links to
+    // every "host:port" in peers (their cluster ports). Off unless a port is given.
+    public int clusterPort = 0;
+    public String peers = null;
+    public String nodeId = null; // defaults to host:port
+    
+    public ServerConfig() {
+    }
+    
+    public ServerConfig(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+    
+    public static void printUsage() {
+        System.out.println("Usage: java pubsub.PubSubServer <PORT> [OPTIONS]");
+        System.out.println("Options:");
+        System.out.println("  --queue-capacity <N>       Outbound messages buffered per subscriber (default " + DEFAULT_QUEUE_CAPACITY + ")");
+        System.out.println("  --overflow-policy <POLICY> drop-oldest, drop-newest, block or disconnect (default " + DEFAULT_OVERFLOW_POLICY + ")");
+        System.out.println("  --block-timeout-ms <MS>    How long the block policy waits for room (default " + DEFAULT_BLOCK_TIMEOUT_MILLIS + ")");
+        System.out.println("  --transport <TRANSPORT>    blocking (thread per client) or nio (selector event loops) (default blocking)");
+        System.out.println("  --event-loops <N>          Event-loop threads for the nio transport (default: one per core)");
+        System.out.println("  --executor <EXECUTOR>      platform or virtual threads for the blocking transport (default platform)");
+        System.out.println("  --dispatch-shards <N>      Route messages on N single-threaded shards by topic and key (default 0: on the handler thread)");
+        System.out.println("  --compress-threshold <N>   Deflate payloads of N bytes or more for compressing subscribers (default " + Compression.DEFAULT_THRESHOLD + ")");
+        System.out.println("  --retain <N>               Keep the latest N messages per topic for new subscribers (default 0, off)");
+        System.out.println("  --retain-bytes <N>         Memory budget for retained messages across topics (default " + RetainedCache.DEFAULT_BUDGET_BYTES + ")");
+        System.out.println("  --log-dir <DIR>            Persist every topic to an append-only log under DIR (default off)");
+        System.out.println("  --fsync <POLICY>           every:N messages, interval:MS or never (default " + DEFAULT_FSYNC_POLICY + ")");
+        System.out.println("  --segment-bytes <N>        Size of each log segment file (default " + DEFAULT_SEGMENT_BYTES + ")");
+        System.out.println("  --retention-ms <MS>        Delete log segments older than this, -1 to keep (default " + DEFAULT_RETENTION_MILLIS + ")");
+        System.out.println("  --retention-bytes <N>      Delete the oldest log segments above this size per topic (default -1, unlimited)");
+        System.out.println("  --compact-interval-ms <MS> Keep only the latest record per key in sealed log segments, every MS (default 0, off)");
+        System.out.println("  --compact-tombstone-ms <MS> Keep tombstones (empty keyed messages) this long (default " + LogCompactor.DEFAULT_TOMBSTONE_RETENTION_MILLIS + ")");
+        System.out.println("  --compact-index-bytes <N>  Off-heap key index per compaction pass (default " + LogCompactor.DEFAULT_INDEX_BYTES + ")");
+        System.out.println("  --ack-window <N>           Unacknowledged messages in flight per acking subscriber (default " + DEFAULT_ACK_WINDOW + ")");
+        System.out.println("  --ack-timeout-ms <MS>      Redeliver messages not acknowledged within this (default " + DEFAULT_ACK_TIMEOUT_MILLIS + ")");
+        System.out.println("  --ack-session-expiry-ms <MS> Keep a named ack session for a reconnect this long (default " + DEFAULT_ACK_SESSION_EXPIRY_MILLIS + ")");
+        System.out.println("  --heartbeat-interval-ms <MS> PING clients that have sent nothing for MS (default 0, off)");
+        System.out.println("  --idle-timeout-ms <MS>     Close clients that have sent nothing, PONGs included, for MS (default 0, off)");
+        System.out.println("  --log-level <LEVEL>        error, warn, info or debug; debug also dumps the topic status on every connect (default info)");
+        System.out.println("  --log-messages <N>         Log about 1 in N received messages, 0 for none (default 0)");
+        System.out.println("  --status-interval-sec <S>  Log the topic status every S seconds, 0 for never (default 0)");
+        System.out.println("  --metrics-port <PORT>      Serve Prometheus metrics at http://HOST:PORT/metrics (default off)");
+        System.out.println("  --jmx <true|false>         Register metrics MBeans under " + BrokerMetrics.JMX_DOMAIN + " (default true)");
+        System.out.println("  --cluster-port <PORT>      Accept links from peer brokers on PORT (default off)");
+        System.out.println("  --peers <HOST:PORT,...>    Cluster ports of every other broker in the mesh");
+        System.out.println("  --node-id <NAME>           This broker's name in the cluster (default HOST:PORT)");
+        System.out.println("Example: java pubsub.PubSubServer 5000");
+        System.out.println("Example: java pubsub.PubSubServer 5000 --queue-capacity 256 --overflow-policy disconnect");
+        System.out.println("Example: java pubsub.PubSubServer 5000 --transport nio");
+        System.out.println("Example: java pubsub.PubSubServer 5000 --executor virtual");
+        System.out.println("Example: java pubsub.PubSubServer 5000 --dispatch-shards 8");
+        System.out.println("Example: java pubsub.PubSubServer 5000 --log-dir data --fsync every:100");
+        System.out.println("Example: java pubsub.PubSubServer 5000 --log-dir data --compact-interval-ms 60000");
+        System.out.println("Example: java pubsub.PubSubServer 5000 --retain 1 --retain-bytes 268435456");
+        System.out.println("Example: java pubsub.PubSubServer 5000 --heartbeat-interval-ms 15000 --idle-timeout-ms 45000");
+        System.out.println("Example: java pubsub.PubSubServer 5001 --cluster-port 6001 --peers 127.0.0.1:6002,127.0.0.1:6003");
+    }
+    
+    // Parse "<PORT> [--option value]...". Throws IllegalArgumentException with a
+    // message suitable for printing after "Error: ".
+    public static ServerConfig parse(String[] args) {
+        if (args.length < 1 || args.length % 2 != 1) {
+            throw new IllegalArgumentException("Expected a PORT followed by option/value pairs");
+        }
+        
+        ServerConfig config = new ServerConfig();
+        config.port = parseInt("PORT", args[0]);
+        
+        for (int i = 1; i < args.length; i += 2) {
+            String option = args[i];
+            String value = args[i + 1];
+            switch (option) {
+                case "--queue-capacity":
+                    config.queueCapacity = parseInt(option, value);
+                    break;
+                case "--overflow-policy":
+                    config.overflowPolicy = OverflowPolicy.parse(value);
+                    break;
+                case "--block-timeout-ms":
+                    config.blockTimeoutMillis = parseLong(option, value);
+                    break;
+                case "--transport":
+                    config.transport = value.toLowerCase();
+                    break;
+                case "--event-loops":
+                    config.eventLoops = parseInt(option, value);
+                    break;
+                case "--executor":
+                    config.executor = value.toLowerCase();
+                    break;
+                case "--dispatch-shards":
+                    config.dispatchShards = parseInt(option, value);
+                    break;
+                case "--compress-threshold":
+                    config.compressThreshold = parseInt(option, value);
+                    break;
+                case "--retain":
+                    config.retain = parseInt(option, value);
+                    break;
+                case "--retain-bytes":
+                    config.retainBytes = parseLong(option, value);
+                    break;
+                case "--log-dir":
+                    config.logDir = value;
+                    break;
+                case "--fsync":
+                    config.fsyncPolicy = FsyncPolicy.parse(value);
+                    break;
+                case "--segment-bytes":
+                    config.segmentBytes = parseInt(option, value);
+                    break;
+                case "--retention-ms":
+                    config.retentionMillis = parseLong(option, value);
+                    break;
+                case "--retention-bytes":
+                    config.retentionBytes = parseLong(option, value);
+                    break;
+                case "--compact-interval-ms":
+                    config.compactIntervalMillis = parseLong(option, value);
+                    break;
+                case "--compact-tombstone-ms":
+                    config.compactTombstoneMillis = parseLong(option, value);
+                    break;
+                case "--compact-index-bytes":
+                    config.compactIndexBytes = parseLong(option, value);
+                    break;
+                case "--ack-window":
+                    config.ackWindow = parseInt(option, value);
+                    break;
+                case "--ack-timeout-ms":
+                    config.ackTimeoutMillis = parseLong(option, value);
+                    break;
+                case "--ack-session-expiry-ms":
+                    config.ackSessionExpiryMillis = parseLong(option, value);
+                    break;
+                case "--heartbeat-interval-ms":
+                    config.heartbeatIntervalMillis = parseLong(option, value);
+                    break;
+                case "--idle-timeout-ms":
+                    config.idleTimeoutMillis = parseLong(option, value);
+                    break;
+                case "--log-level":
+                    config.logLevel = Log.parseLevel(value);
+                    break;
+                case "--log-messages":
+                    config.logMessagesEvery = parseInt(option, value);
+                    break;
+                case "--status-interval-sec":
+                    config.statusIntervalSeconds = parseInt(option, value);
+                    break;
+                case "--metrics-port":
+                    config.metricsPort = parseInt(option, value);
+                    break;
+                case "--jmx":
+                    if (!value.equalsIgnoreCase("true") && !value.equalsIgnoreCase("false")) {
+                        throw new IllegalArgumentException("--jmx must be either 'true' or 'false'");
+                    }
+                    config.jmx = Boolean.parseBoolean(value);
+                    break;
+                case "--cluster-port":
+                    config.clusterPort = parseInt(option, value);
+                    break;
+                case "--peers":
+                    config.peers = value;
+                    break;
+                case "--node-id":
+                    config.nodeId = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + option);
+            }
+        }
+        
+        if (config.queueCapacity < 1) {
+            throw new IllegalArgumentException("--queue-capacity must be at least 1");
+        }
+        if (config.blockTimeoutMillis < 0) {
+            throw new IllegalArgumentException("--block-timeout-ms cannot be negative");
+        }
+        if (config.peers != null) {
+            if (config.clusterPort <= 0) {
+                throw new IllegalArgumentException("--peers needs a --cluster-port");
+            }
+            ClusterNode.parsePeers(config.peers);
+        }
+        if (!config.transport.equals("blocking") && !config.transport.equals("nio")) {
+            throw new IllegalArgumentException("--transport must be either 'blocking' or 'nio'");
+        }
+        if (config.eventLoops < 1) {
+            throw new IllegalArgumentException("--event-loops must be at least 1");
+        }
+        if (!config.executor.equals("platform") && !config.executor.equals("virtual")) {
+            throw new IllegalArgumentException("--executor must be either 'platform' or 'virtual'");
+        }
+        if (config.dispatchShards < 0) {
+            throw new IllegalArgumentException("--dispatch-shards cannot be negative");
+        }
+        if (config.retain < 0 || config.retainBytes < 1) {
+            throw new IllegalArgumentException("--retain cannot be negative and --retain-bytes must be at least 1");
+        }
+        if (config.compressThreshold < 0) {
+            throw new IllegalArgumentException("--compress-threshold cannot be negative");
+        }
+        if (config.logMessagesEvery < 0 || config.statusIntervalSeconds < 0) {
+            throw new IllegalArgumentException("--log-messages and --status-interval-sec cannot be negative");
+        }
+        if (config.ackWindow < 1 || config.ackTimeoutMillis < AckSession.TICK_MILLIS) {
+            throw new IllegalArgumentException("--ack-window must be at least 1 and --ack-timeout-ms at least " + AckSession.TICK_MILLIS);
+        }
+        if (config.compactIntervalMillis < 0 || config.compactTombstoneMillis < 0 || config.compactIndexBytes < 1024) {
+            throw new IllegalArgumentException("--compact-interval-ms and --compact-tombstone-ms cannot be negative, and --compact-index-bytes must be at least 1024");
+        }
+        if (config.heartbeatIntervalMillis < 0 || config.idleTimeoutMillis < 0) {
+            throw new IllegalArgumentException("--heartbeat-interval-ms and --idle-timeout-ms cannot be negative");
+        }
+        if (config.heartbeatIntervalMillis > 0 && config.idleTimeoutMillis > 0 && config.idleTimeoutMillis <= config.heartbeatIntervalMillis) {
+            throw new IllegalArgumentException("--idle-timeout-ms must be longer than --heartbeat-interval-ms, so live clients can answer a PING");
+        }
+        if (config.segmentBytes < 4096) {
+            throw new IllegalArgumentException("--segment-bytes must be at least 4096");
+        }
+        return config;
+    }
+    
+    private static int parseInt(String name, String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " must be a valid integer");
+        }
+    }
+    
+    private static long parseLong(String name, String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " must be a valid integer");
+        }
+    }
+}
\ No newline at end of file
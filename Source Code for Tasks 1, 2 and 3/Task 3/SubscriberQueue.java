@@ -0,0 +1,799 @@
+package pubsub;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Bounded outbound queue and writer for a single subscriber connection.
+// Publishers only enqueue; the writer task drains the queue onto the socket,
+// so a slow subscriber only ever stalls its own writer.
+//
+// A subscriber can also ask for stored messages first (replay). The writer then
+// streams the topic's log from the requested offset before touching the live
+// queue, reading in large sequential batches on its own thread. Live messages
+// carry their log offset, so the switch-over needs no lock against publishers.
+// The replay position stays as a watermark for the life of the subscription:
+// concurrent publishers persist and fan out in either order, so live messages
+// below it (already supplied by the log or live) are always skipped, and a gap
+// in front of a live message is filled from the log.
+//
+// With credit-based flow control the subscriber grants the writer a number of
+// messages and/or bytes it may send ("credit=" in the handshake, then CREDIT
+// lines or frames). Out of credit, the writer stops taking from the queue, so
+// the backlog waits there, bounded by its capacity and the overflow policy.
+//
+// An acknowledging subscriber has an AckSession: every message written gets a
+// delivery id ("@<id> " before a text line, FLAG_ACKED and the id ahead of a
+// binary payload) and stays in flight until acked. A full in-flight window
+// stops the writer like missing credit does, and timed-out or reconnect
+// redeliveries are written ahead of new messages.
+//
+// A subscriber to topics in the RetainedCache first gets a snapshot of their
+// latest messages, written ahead of anything live; live copies of messages
+// the snapshot already held are skipped, by their retained sequence number.
+//
+// A binary subscriber that negotiated compression gets each message's
+// compressed encoding instead (see Compression), shared like the others.
+//
+// Heartbeats (PING, or PONG answering the subscriber's PING) are written by
+// the writer too, whenever it has just flushed: between messages, while it
+// waits for credit, or woken from an empty queue. A writer stuck on a socket
+// nobody reads therefore never sends one, and the idle timeout closes it.
+//
+// A subscriber with a content filter (see SubscriptionFilter) only receives
+// messages it matches. The broker applies it to live messages before they are
+// queued; the writer applies it to replayed and snapshot messages.
+public class SubscriberQueue implements Runnable {
+    private static final long UNLIMITED = Long.MAX_VALUE;
+    private static final Message CLOSE_SIGNAL = Message.fromText("", 0, "", "<close>");
+    private static final Message REDELIVER_SIGNAL = Message.fromText("", 0, "", "<redeliver>");
+    private static final Message HEARTBEAT_SIGNAL = Message.fromText("", 0, "", "<heartbeat>");
+    private static final int PING_DUE = 1;
+    private static final int PONG_DUE = 2;
+    private static final int WRITE_BATCH = 64;
+    private static final int REPLAY_BATCH_BYTES = 256 * 1024;
+    
+    private final Socket socket;
+    private final String addr;
+    private final boolean binary;
+    private final BlockingQueue<Message> queue;
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final long blockTimeoutMillis;
+    private final BrokerMetrics metrics; // may be null
+    private final AtomicLong enqueuedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private volatile boolean closed = false;
+    
+    // Replayed topics and their watermarks. The keys are fixed before the queue
+    // is shared; the values are only touched by the writer once it runs.
+    private final Map<String, Replay> replays = new HashMap<>();
+    private final ArrayDeque<Message> snapshot = new ArrayDeque<>();
+    private final Map<String, Long> snapshotUpTo = new HashMap<>(); // last retained sequence sent per topic
+    // While replaying, a replayed topic's live message that finds the queue full
+    // is turned away whatever the policy, and not counted as dropped: it is
+    // already in the log, which the writer reads to its end once more after
+    // catching up. Everything else goes through the policy as usual.
+    private volatile boolean catchingUp = false;
+    // Send each traced message's Trace header, stamped with the egress time
+    private boolean tracing = false;
+    private int compressThreshold = -1; // -1 unless the subscriber negotiated compression
+    private volatile SubscriptionFilter filter; // content filter, or null for every message
+    private final AtomicInteger heartbeatsDue = new AtomicInteger(); // PING_DUE and PONG_DUE bits
+    
+    // Remaining credit, UNLIMITED for whichever the subscriber does not grant.
+    // A message may overdraw the byte credit, so one larger than any grant
+    // cannot stall the subscriber; the next grant pays off the debt.
+    private final ReentrantLock creditLock = new ReentrantLock();
+    private final Condition creditGranted = creditLock.newCondition();
+    private boolean creditMode = false;
+    private long messageCredit = UNLIMITED;
+    private long byteCredit = UNLIMITED;
+    
+    // At-least-once delivery, or null for fire-and-forget
+    private AckSession ackSession;
+    
+    // Write batch: messages being written and the buffers that carry them
+    private final Message[] batch = new Message[WRITE_BATCH];
+    private final ByteBuffer[] buffers = new ByteBuffer[WRITE_BATCH * 3];
+    private int batchSize = 0;
+    private int bufferCount = 0;
+    private final BitSet announcedTopics = new BitSet();
+    private WritableByteChannel out;
+    
+    private static class Replay {
+        final String topic;
+        final int topicId;
+        final TopicLog.Reader reader;
+        // Records the reader returned past where the last catch-up stopped
+        final ArrayDeque<LogRecord> readAhead = new ArrayDeque<>();
+        long nextOffset; // watermark: every offset below it was written or skipped
+        
+        Replay(String topic, int topicId, TopicLog log, long fromOffset) {
+            this.topic = topic;
+            this.topicId = topicId;
+            this.reader = log.reader(fromOffset);
+            this.nextOffset = fromOffset;
+        }
+    }
+    
+    public SubscriberQueue(Socket socket, String addr, boolean binary, int capacity, OverflowPolicy policy, long blockTimeoutMillis) {
+        this(socket, addr, binary, capacity, policy, blockTimeoutMillis, null);
+    }
+    
+    public SubscriberQueue(Socket socket, String addr, boolean binary, int capacity, OverflowPolicy policy, long blockTimeoutMillis, BrokerMetrics metrics) {
+        this.socket = socket;
+        this.addr = addr;
+        this.binary = binary;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.capacity = capacity;
+        this.policy = policy;
+        this.blockTimeoutMillis = blockTimeoutMillis;
+        this.metrics = metrics;
+    }
+    
+    // Deliver the topic's stored messages from fromOffset before any live ones.
+    // Must be called before the writer starts.
+    public void replayFrom(String topic, int topicId, TopicLog log, long fromOffset) {
+        replays.put(topic, new Replay(topic, topicId, log, Math.max(fromOffset, log.getStartOffset())));
+        catchingUp = true;
+    }
+    
+    // Must be called before the writer starts
+    public void enableTracing() {
+        tracing = true;
+    }
+    
+    // Send codec-prefixed frames, deflating payloads of at least threshold bytes.
+    // Must be called before the writer starts.
+    public void enableCompression(int threshold) {
+        compressThreshold = threshold;
+    }
+    
+    // Only deliver messages the filter matches. Must be called before the writer starts.
+    public void setFilter(SubscriptionFilter filter) {
+        this.filter = filter;
+    }
+    
+    public SubscriptionFilter getFilter() {
+        return filter;
+    }
+    
+    // Whether the content filter, if any, lets the message through
+    private boolean passes(Message message) {
+        SubscriptionFilter current = filter;
+        return current == null || current.matches(message);
+    }
+    
+    // The shared encoding this subscriber receives
+    private ByteBuffer encoding(Message message) {
+        return compressThreshold >= 0 ? message.encodedCompressed(compressThreshold) : message.encoded(binary);
+    }
+    
+    // Switch to credit-based flow control with the handshake's initial grant
+    // (0 leaves that dimension unlimited). Must be called before the writer starts.
+    public void enableCredit(long messages, long bytes) {
+        creditMode = true;
+        messageCredit = messages > 0 ? messages : UNLIMITED;
+        byteCredit = bytes > 0 ? bytes : UNLIMITED;
+    }
+    
+    // Must be called before the writer starts
+    public void setAckSession(AckSession session) {
+        this.ackSession = session;
+    }
+    
+    public AckSession getAckSession() {
+        return ackSession;
+    }
+    
+    // Ack timer: the session has redeliveries. A writer blocked on the empty
+    // queue needs waking; a busy one picks them up before its next batch.
+    public void wakeForRedelivery() {
+        if (queue.isEmpty()) {
+            queue.offer(REDELIVER_SIGNAL);
+        }
+    }
+    
+    // Have the writer send a PING, or a PONG answering the subscriber's. Never
+    // blocks: a writer waiting on the empty queue or for credit is woken, a
+    // busy one sends it after its current batch.
+    public void sendHeartbeat(boolean pong) {
+        heartbeatsDue.getAndUpdate(due -> due | (pong ? PONG_DUE : PING_DUE));
+        if (queue.isEmpty()) {
+            queue.offer(HEARTBEAT_SIGNAL);
+        }
+        if (creditMode) {
+            creditLock.lock();
+            try {
+                creditGranted.signalAll();
+            } finally {
+                creditLock.unlock();
+            }
+        }
+    }
+    
+    public boolean hasCreditMode() {
+        return creditMode;
+    }
+    
+    // Add to the subscriber's credit. Called from its connection handler.
+    public void grantCredit(long messages, long bytes) {
+        creditLock.lock();
+        try {
+            if (messageCredit != UNLIMITED && messages > 0) {
+                messageCredit = Math.min(UNLIMITED - 1, messageCredit + messages);
+            }
+            if (byteCredit != UNLIMITED && bytes > 0) {
+                byteCredit = Math.min(UNLIMITED - 1, byteCredit + bytes);
+            }
+            creditGranted.signalAll();
+        } finally {
+            creditLock.unlock();
+        }
+    }
+    
+    // Enqueue a message for delivery. Returns false if the subscriber should be
+    // disconnected (closed already, or full under the DISCONNECT policy).
+    // The queue takes its own reference to the message while it holds it.
+    public boolean offer(Message message) {
+        if (closed) {
+            return false;
+        }
+        
+        // Encode on the publisher's thread; only the first subscriber per format pays for it
+        encoding(message);
+        message.retain();
+        
+        if (catchingUp && message.getOffset() >= 0 && replays.containsKey(message.getTopic())) {
+            if (queue.offer(message)) {
+                enqueuedCount.incrementAndGet();
+            } else {
+                message.release();
+            }
+            return true;
+        }
+        
+        switch (policy) {
+            case DROP_OLDEST:
+                while (!queue.offer(message)) {
+                    Message evicted = queue.poll();
+                    if (evicted == CLOSE_SIGNAL) {
+                        // Lost a race with close(): put its signal back and drop
+                        // the new message, which never made it into the queue
+                        message.release();
+                        queue.offer(CLOSE_SIGNAL);
+                        return false;
+                    }
+                    // A wake-up signal is not a message; the new one wakes the writer as well
+                    if (evicted != null && !isSignal(evicted)) {
+                        evicted.release();
+                        dropped();
+                    }
+                }
+                break;
+            case DROP_NEWEST:
+                if (!queue.offer(message)) {
+                    message.release();
+                    dropped();
+                    return true;
+                }
+                break;
+            case BLOCK:
+                try {
+                    if (!queue.offer(message, blockTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                        message.release();
+                        dropped();
+                        return true;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    message.release();
+                    dropped();
+                    return true;
+                }
+                break;
+            case DISCONNECT:
+                if (!queue.offer(message)) {
+                    message.release();
+                    dropped();
+                    return false;
+                }
+                break;
+        }
+        
+        enqueuedCount.incrementAndGet();
+        return true;
+    }
+    
+    // Writer loop: replay any stored backlog, then block for one message, drain
+    // whatever else is queued and write the whole burst with one gathering write
+    // of the shared encoded buffers
+    @Override
+    public void run() {
+        Message[] taken = new Message[WRITE_BATCH];
+        int takenCount = 0;
+        try {
+            SocketChannel channel = socket.getChannel();
+            out = channel != null ? channel : Channels.newChannel(socket.getOutputStream());
+            
+            for (Replay replay : replays.values()) {
+                catchUp(replay, Long.MAX_VALUE);
+            }
+            catchingUp = false;
+            // Pick up whatever was appended, and maybe turned away, during the first pass
+            for (Replay replay : replays.values()) {
+                catchUp(replay, Long.MAX_VALUE);
+            }
+            Message retained;
+            while (!closed && (retained = snapshot.poll()) != null) {
+                if (passes(retained)) {
+                    add(retained);
+                } else {
+                    retained.release();
+                }
+            }
+            flush();
+            
+            while (!closed) {
+                if (ackSession != null) {
+                    redeliverPending();
+                }
+                // Leave messages in the queue, under the overflow policy, until there is credit to send them
+                if (creditMode && !awaitCredit()) {
+                    break;
+                }
+                taken[takenCount++] = queue.take();
+                while (takenCount < WRITE_BATCH && (taken[takenCount] = queue.poll()) != null) {
+                    takenCount++;
+                }
+                
+                boolean closing = false;
+                for (int i = 0; i < takenCount; i++) {
+                    Message message = taken[i];
+                    taken[i] = null;
+                    if (message == CLOSE_SIGNAL) {
+                        closing = true;
+                    } else if (message == REDELIVER_SIGNAL || message == HEARTBEAT_SIGNAL) {
+                        continue; // redeliveries go out at the top of the loop, heartbeats with the flush
+                    } else if (closing || !inOrder(message) || inSnapshot(message)) {
+                        message.release();
+                    } else {
+                        add(message);
+                    }
+                }
+                takenCount = 0;
+                flush();
+                
+                if (closing) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            // Write failed: close the socket so the handler's read loop ends and cleans up
+            close();
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Ignore
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (int i = 0; i < takenCount; i++) {
+                if (taken[i] != null && !isSignal(taken[i])) {
+                    taken[i].release();
+                }
+            }
+            releaseBatch();
+            releaseQueued();
+            Message retained;
+            while ((retained = snapshot.poll()) != null) {
+                retained.release();
+            }
+        }
+    }
+    
+    // Queue the latest retained messages of a topic, oldest first, to be written
+    // before anything live. Takes over the references. Must be called before
+    // the writer starts.
+    public void addSnapshot(String topic, List<Message> messages) {
+        snapshot.addAll(messages);
+        snapshotUpTo.put(topic, messages.get(messages.size() - 1).getRetainedSeq());
+    }
+    
+    // Whether a live message was already written as part of the snapshot
+    private boolean inSnapshot(Message message) {
+        if (snapshotUpTo.isEmpty() || message.getRetainedSeq() < 0) {
+            return false;
+        }
+        Long upTo = snapshotUpTo.get(message.getTopic());
+        return upTo != null && message.getRetainedSeq() <= upTo;
+    }
+    
+    // Decide whether a live message on a replayed topic should be written, first
+    // filling any gap between the watermark and the message from the log, and
+    // move the watermark past it
+    private boolean inOrder(Message message) throws IOException {
+        if (replays.isEmpty() || message.getOffset() < 0) {
+            return true;
+        }
+        Replay replay = replays.get(message.getTopic());
+        if (replay == null) {
+            return true;
+        }
+        if (message.getOffset() < replay.nextOffset) {
+            return false; // already sent, from the log or live
+        }
+        if (message.getOffset() > replay.nextOffset) {
+            catchUp(replay, message.getOffset());
+        }
+        replay.nextOffset = message.getOffset() + 1;
+        while (!replay.readAhead.isEmpty() && replay.readAhead.peek().offset < replay.nextOffset) {
+            replay.readAhead.poll();
+        }
+        return true;
+    }
+    
+    // Write stored messages from the watermark up to (not including)
+    // untilOffset or the current end of the log
+    private void catchUp(Replay replay, long untilOffset) throws IOException {
+        while (!closed && replay.nextOffset < untilOffset) {
+            LogRecord record = replay.readAhead.poll();
+            if (record == null) {
+                List<LogRecord> records = replay.reader.next(REPLAY_BATCH_BYTES);
+                if (records.isEmpty()) {
+                    break;
+                }
+                replay.readAhead.addAll(records);
+                continue;
+            }
+            if (record.offset < replay.nextOffset) {
+                continue;
+            }
+            if (record.offset >= untilOffset) {
+                replay.readAhead.addFirst(record); // for the next gap
+                break;
+            }
+            Message message = (record.attributes & LogRecord.DEFLATED) != 0
+                    ? Message.fromCompressed(replay.topic, replay.topicId, record.senderAddr, record.payload)
+                    : Message.fromBytes(replay.topic, replay.topicId, record.senderAddr, record.payload);
+            message.setOffset(record.offset);
+            message.setKey(record.key);
+            replay.nextOffset = record.offset + 1;
+            if (!passes(message)) {
+                message.release();
+                continue;
+            }
+            encoding(message);
+            add(message);
+        }
+        flush();
+    }
+    
+    // Queue a message in the write batch, writing the batch out first if it is full.
+    // The batch takes over the caller's reference.
+    private void add(Message message) throws IOException {
+        if (creditMode && !takeCredit(encoding(message).remaining())) {
+            message.release(); // closed while waiting for credit
+            return;
+        }
+        long deliveryId = 0;
+        if (ackSession != null) {
+            deliveryId = track(message);
+            if (deliveryId < 0) {
+                message.release(); // closed while the window was full
+                return;
+            }
+        }
+        append(message, deliveryId);
+    }
+    
+    // Put a message in flight, first writing out the batch and waiting (while
+    // sending any redeliveries) if the window is full. -1 once closed.
+    private long track(Message message) throws IOException {
+        while (!ackSession.hasCapacity()) {
+            flush();
+            if (!ackSession.awaitCapacity(this)) {
+                return -1;
+            }
+            redeliverPending();
+        }
+        return ackSession.track(message, System.currentTimeMillis());
+    }
+    
+    private void redeliverPending() throws IOException {
+        boolean any = false;
+        long id;
+        while ((id = ackSession.pollRedelivery()) >= 0) {
+            Message message = ackSession.redeliver(id, System.currentTimeMillis());
+            if (message != null) {
+                append(message, id);
+                any = true;
+                if (metrics != null) {
+                    metrics.messageRedelivered();
+                }
+            }
+        }
+        if (any) {
+            flush();
+        }
+    }
+    
+    // Batch a message for writing with its per-subscriber header, if it needs
+    // one: the delivery id (0 for none) and the egress-stamped trace
+    private void append(Message message, long deliveryId) throws IOException {
+        if (batchSize == WRITE_BATCH) {
+            flush();
+        }
+        batch[batchSize++] = message;
+        // Tell a binary client the topic name before the first frame carrying its id
+        if (binary && !announcedTopics.get(message.getTopicId())) {
+            buffers[bufferCount++] = topicAnnouncement(message);
+            announcedTopics.set(message.getTopicId());
+        }
+        Trace trace = tracing ? message.getTrace() : null;
+        if (trace == null && deliveryId == 0) {
+            buffers[bufferCount++] = encoding(message).duplicate();
+            return;
+        }
+        
+        // Only the small header is per subscriber; the message bytes are still the shared encoding
+        if (trace != null) {
+            trace = trace.withEgress(Trace.nowMicros());
+        }
+        if (binary) {
+            ByteBuffer encoded = encoding(message).duplicate();
+            int extra = (deliveryId != 0 ? Long.BYTES : 0) + (trace != null ? Trace.BINARY_LENGTH : 0);
+            ByteBuffer header = ByteBuffer.allocate(4 + BinaryProtocol.HEADER_LENGTH + extra);
+            header.putInt(encoded.getInt() + extra);
+            header.putInt(encoded.getInt());
+            byte flags = encoded.get();
+            if (deliveryId != 0) {
+                flags |= BinaryProtocol.FLAG_ACKED;
+            }
+            if (trace != null) {
+                flags |= BinaryProtocol.FLAG_TRACED;
+            }
+            header.put(flags);
+            if (deliveryId != 0) {
+                header.putLong(deliveryId);
+            }
+            if (trace != null) {
+                trace.writeBinary(header);
+            }
+            header.flip();
+            buffers[bufferCount++] = header;
+            buffers[bufferCount++] = encoded; // positioned past its frame header
+        } else {
+            if (deliveryId == 0) {
+                buffers[bufferCount++] = trace.toTextBuffer();
+            } else {
+                String prefix = "@" + deliveryId + " " + (trace != null ? trace.toText() : "");
+                buffers[bufferCount++] = ByteBuffer.wrap(prefix.getBytes(StandardCharsets.US_ASCII));
+            }
+            buffers[bufferCount++] = message.encoded(false).duplicate();
+        }
+    }
+    
+    // Wait until the subscriber has some credit. False once closed.
+    private boolean awaitCredit() throws IOException {
+        creditLock.lock();
+        try {
+            awaitGrant();
+            return !closed;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            creditLock.unlock();
+        }
+    }
+    
+    // With creditLock held and nothing batched: wait for a grant (or close),
+    // sending any heartbeat that comes due meanwhile, since those need no credit
+    private void awaitGrant() throws InterruptedException, IOException {
+        while (!closed && (messageCredit <= 0 || byteCredit <= 0)) {
+            if (heartbeatsDue.get() != 0) {
+                creditLock.unlock();
+                try {
+                    flush();
+                } finally {
+                    creditLock.lock();
+                }
+                continue;
+            }
+            creditGranted.await();
+        }
+    }
+    
+    // Spend credit on one message of the given size, first writing out what
+    // is batched and waiting for a grant if there is none left. False once closed.
+    private boolean takeCredit(int bytes) throws IOException {
+        creditLock.lock();
+        try {
+            if (messageCredit <= 0 || byteCredit <= 0) {
+                // Everything batched was already paid for; let the subscriber have it
+                creditLock.unlock();
+                try {
+                    flush();
+                } finally {
+                    creditLock.lock();
+                }
+                awaitGrant();
+                if (closed) {
+                    return false;
+                }
+            }
+            if (messageCredit != UNLIMITED) {
+                messageCredit--;
+            }
+            if (byteCredit != UNLIMITED) {
+                byteCredit -= bytes;
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            creditLock.unlock();
+        }
+    }
+    
+    private void flush() throws IOException {
+        if (batchSize > 0) {
+            writeFully(out, buffers, bufferCount);
+            if (metrics != null) {
+                for (int i = 0; i < batchSize; i++) {
+                    metrics.topic(batch[i].getTopic()).recordOut(encoding(batch[i]).remaining());
+                }
+            }
+            releaseBatch();
+        }
+        // Between whole messages now, where a heartbeat can go
+        if (heartbeatsDue.get() != 0) {
+            writeHeartbeats();
+        }
+    }
+    
+    private void writeHeartbeats() throws IOException {
+        int due = heartbeatsDue.getAndSet(0);
+        if ((due & PING_DUE) != 0) {
+            writeFully(out, new ByteBuffer[] {heartbeat(false)}, 1);
+        }
+        if ((due & PONG_DUE) != 0) {
+            writeFully(out, new ByteBuffer[] {heartbeat(true)}, 1);
+        }
+    }
+    
+    private ByteBuffer heartbeat(boolean pong) {
+        if (binary) {
+            return ByteBuffer.wrap(BinaryProtocol.heartbeatFrame(pong));
+        }
+        return ByteBuffer.wrap((pong ? "PONG" : "PING").concat(System.lineSeparator()).getBytes(StandardCharsets.US_ASCII));
+    }
+    
+    private void releaseBatch() {
+        Arrays.fill(buffers, 0, bufferCount, null);
+        bufferCount = 0;
+        for (int i = 0; i < batchSize; i++) {
+            batch[i].release();
+            batch[i] = null;
+        }
+        batchSize = 0;
+    }
+    
+    private static ByteBuffer topicAnnouncement(Message message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryProtocol.writeTopicAnnouncement(new DataOutputStream(bytes), message.getTopicId(), message.getTopic());
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+    
+    private static void writeFully(WritableByteChannel out, ByteBuffer[] buffers, int count) throws IOException {
+        if (out instanceof GatheringByteChannel) {
+            GatheringByteChannel gathering = (GatheringByteChannel) out;
+            int first = 0;
+            while (first < count) {
+                gathering.write(buffers, first, count - first);
+                while (first < count && !buffers[first].hasRemaining()) {
+                    first++;
+                }
+            }
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            while (buffers[i].hasRemaining()) {
+                out.write(buffers[i]);
+            }
+        }
+    }
+    
+    private void releaseQueued() {
+        List<Message> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        for (Message message : remaining) {
+            if (!isSignal(message)) {
+                message.release();
+            }
+        }
+    }
+    
+    private static boolean isSignal(Message message) {
+        return message == CLOSE_SIGNAL || message == REDELIVER_SIGNAL || message == HEARTBEAT_SIGNAL;
+    }
+    
+    private void dropped() {
+        droppedCount.incrementAndGet();
+        if (metrics != null) {
+            metrics.messageDropped();
+        }
+    }
+    
+    // Stop the writer. Messages still queued are discarded.
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        releaseQueued();
+        queue.offer(CLOSE_SIGNAL);
+        if (ackSession != null) {
+            ackSession.wakeUp();
+        }
+        if (creditMode) {
+            creditLock.lock();
+            try {
+                creditGranted.signalAll();
+            } finally {
+                creditLock.unlock();
+            }
+        }
+    }
+    
+    // Queue at least three-quarters full: the subscriber is not keeping up
+    // (or has run out of credit) and publishers to its topics may be throttled
+    public boolean isSaturated() {
+        return closed || queue.size() >= capacity - capacity / 4;
+    }
+    
+    // Queue back under a quarter full: throttled publishers may resume
+    public boolean isDrained() {
+        return !closed && queue.size() <= capacity / 4;
+    }
+    
+    public boolean isClosed() {
+        return closed;
+    }
+    
+    public Socket getSocket() {
+        return socket;
+    }
+    
+    public String getAddr() {
+        return addr;
+    }
+    
+    public boolean isBinary() {
+        return binary;
+    }
+    
+    public int getQueueDepth() {
+        return queue.size();
+    }
+    
+    public long getEnqueuedCount() {
+        return enqueuedCount.get();
+    }
+    
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+}
\ No newline at end of file
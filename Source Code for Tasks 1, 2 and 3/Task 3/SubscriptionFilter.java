@@ -0,0 +1,559 @@
+package pubsub;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A subscriber's content filter, from "filter=<expression>" in the handshake:
+//   SUBSCRIBER:quotes:filter=price > 100 && region == 'EU'
+// Operands are payload fields (see MessageFields), $topic, $key, or literals:
+// numbers, 'quoted' or "quoted" strings, true, false. Operators are
+// == (or =), !=, <, <=, >, >=, "in (a, b, ...)", && / and, || / or, ! / not
+// and parentheses; a field on its own is true when present and not false,
+// zero or empty. A comparison with a missing field is false. Expressions
+// cannot contain ':' because that separates handshake options.
+//
+// The expression is compiled once into a predicate tree. Subscribers with the
+// same canonical expression share one instance (see PubSubServer.applyFilter
+// and releaseFilter), and matches() remembers its answer for the last
+// message, so fan-out evaluates each distinct filter once per message however
+// many subscribers use it.
+public class SubscriptionFilter {
+    private final Node root;
+    private final String canonical;
+    private volatile Verdict last;
+    
+    // Subscribers sharing this instance; managed by PubSubServer
+    final AtomicInteger users = new AtomicInteger();
+    
+    private SubscriptionFilter(Node root) {
+        this.root = root;
+        this.canonical = root.toString();
+    }
+    
+    // Throws IllegalArgumentException if the expression is malformed
+    public static SubscriptionFilter compile(String expression) {
+        Parser parser = new Parser(expression);
+        Node root = parser.parseOr();
+        if (parser.peek() != null) {
+            throw new IllegalArgumentException("Unexpected '" + parser.peek() + "' in filter");
+        }
+        return new SubscriptionFilter(root);
+    }
+    
+    public boolean matches(Message message) {
+        Verdict verdict = last;
+        if (verdict != null && verdict.message == message) {
+            return verdict.result;
+        }
+        boolean result = root.test(message);
+        last = new Verdict(message, result);
+        return result;
+    }
+    
+    // Normalised form; equal for expressions that differ only in spacing, quoting or keyword spelling
+    public String getCanonical() {
+        return canonical;
+    }
+    
+    @Override
+    public String toString() {
+        return canonical;
+    }
+    
+    private static final class Verdict {
+        final Message message;
+        final boolean result;
+        
+        Verdict(Message message, boolean result) {
+            this.message = message;
+            this.result = result;
+        }
+    }
+    
+    // ---- Predicate tree ----
+    
+    private interface Node {
+        boolean test(Message message);
+    }
+    
+    private interface Operand {
+        Object value(Message message);
+    }
+    
+    private static final class Or implements Node {
+        private final Node left, right;
+        
+        Or(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+        
+        public boolean test(Message message) {
+            return left.test(message) || right.test(message);
+        }
+        
+        @Override
+        public String toString() {
+            return "(" + left + " || " + right + ")";
+        }
+    }
+    
+    private static final class And implements Node {
+        private final Node left, right;
+        
+        And(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+        
+        public boolean test(Message message) {
+            return left.test(message) && right.test(message);
+        }
+        
+        @Override
+        public String toString() {
+            return "(" + left + " && " + right + ")";
+        }
+    }
+    
+    private static final class Not implements Node {
+        private final Node inner;
+        
+        Not(Node inner) {
+            this.inner = inner;
+        }
+        
+        public boolean test(Message message) {
+            return !inner.test(message);
+        }
+        
+        @Override
+        public String toString() {
+            return inner instanceof Or || inner instanceof And ? "!" + inner : "!(" + inner + ")";
+        }
+    }
+    
+    private static final class Truthy implements Node {
+        private final Operand operand;
+        
+        Truthy(Operand operand) {
+            this.operand = operand;
+        }
+        
+        public boolean test(Message message) {
+            Object value = operand.value(message);
+            if (value instanceof Boolean) {
+                return (Boolean) value;
+            }
+            if (value instanceof Double) {
+                return (Double) value != 0;
+            }
+            return value != null && !value.toString().isEmpty();
+        }
+        
+        @Override
+        public String toString() {
+            return operand.toString();
+        }
+    }
+    
+    private static final class Compare implements Node {
+        private final Operand left, right;
+        private final String operator;
+        
+        Compare(Operand left, String operator, Operand right) {
+            this.left = left;
+            this.operator = operator;
+            this.right = right;
+        }
+        
+        public boolean test(Message message) {
+            Object a = left.value(message);
+            Object b = right.value(message);
+            if (a == null || b == null) {
+                return false;
+            }
+            switch (operator) {
+                case "==":
+                    return same(a, b);
+                case "!=":
+                    return !same(a, b);
+                default:
+                    Integer order = order(a, b);
+                    if (order == null) {
+                        return false;
+                    }
+                    switch (operator) {
+                        case "<":
+                            return order < 0;
+                        case "<=":
+                            return order <= 0;
+                        case ">":
+                            return order > 0;
+                        default:
+                            return order >= 0;
+                    }
+            }
+        }
+        
+        @Override
+        public String toString() {
+            return left + " " + operator + " " + right;
+        }
+    }
+    
+    private static final class In implements Node {
+        private final Operand operand;
+        private final List<Object> values;
+        
+        In(Operand operand, List<Object> values) {
+            this.operand = operand;
+            this.values = values;
+        }
+        
+        public boolean test(Message message) {
+            Object value = operand.value(message);
+            if (value == null) {
+                return false;
+            }
+            for (Object candidate : values) {
+                if (same(value, candidate)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder(operand.toString()).append(" in (");
+            for (int i = 0; i < values.size(); i++) {
+                text.append(i == 0 ? "" : ", ").append(literal(values.get(i)));
+            }
+            return text.append(')').toString();
+        }
+    }
+    
+    private static final class Field implements Operand {
+        private final String name;
+        
+        Field(String name) {
+            this.name = name;
+        }
+        
+        public Object value(Message message) {
+            switch (name) {
+                case "$topic":
+                    return message.getTopic();
+                case "$key":
+                    return message.getKey();
+                default:
+                    return message.getFields().get(name);
+            }
+        }
+        
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+    
+    private static final class Literal implements Operand {
+        private final Object value;
+        
+        Literal(Object value) {
+            this.value = value;
+        }
+        
+        public Object value(Message message) {
+            return value;
+        }
+        
+        @Override
+        public String toString() {
+            return literal(value);
+        }
+    }
+    
+    // Numbers compare numerically, strings and booleans by value; a string that reads as a number matches it
+    private static boolean same(Object a, Object b) {
+        Integer order = order(a, b);
+        return order != null ? order == 0 : a.equals(b);
+    }
+    
+    private static Integer order(Object a, Object b) {
+        if (a instanceof String && b instanceof String) {
+            return Integer.signum(((String) a).compareTo((String) b));
+        }
+        Double x = number(a);
+        Double y = number(b);
+        if (x == null || y == null) {
+            return null;
+        }
+        return Double.compare(x, y);
+    }
+    
+    private static Double number(Object value) {
+        if (value instanceof Double) {
+            return (Double) value;
+        }
+        if (value instanceof String) {
+            try {
+                return Double.valueOf((String) value);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+    
+    private static String literal(Object value) {
+        if (value instanceof String) {
+            return "'" + ((String) value).replace("\\", "\\\\").replace("'", "\\'") + "'";
+        }
+        if (value instanceof Double && (Double) value == Math.rint((Double) value) && Math.abs((Double) value) < 1e15) {
+            return Long.toString(((Double) value).longValue());
+        }
+        return String.valueOf(value);
+    }
+    
+    // ---- Parser ----
+    
+    // Recursive descent over: or := and (OR and)*, and := unary (AND unary)*,
+    // unary := NOT unary | '(' or ')' | operand [op operand | IN '(' literals ')']
+    private static final class Parser {
+        private final List<Object> tokens = new ArrayList<>();
+        private int position = 0;
+        
+        Parser(String expression) {
+            tokenize(expression);
+            if (tokens.isEmpty()) {
+                throw new IllegalArgumentException("Empty filter");
+            }
+        }
+        
+        Object peek() {
+            return position < tokens.size() ? tokens.get(position) : null;
+        }
+        
+        private boolean accept(String symbol) {
+            if (symbol.equals(peek())) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+        
+        private void expect(String symbol) {
+            if (!accept(symbol)) {
+                Object found = peek();
+                throw new IllegalArgumentException("Expected '" + symbol + "' in filter but found " + (found == null ? "end" : "'" + found + "'"));
+            }
+        }
+        
+        Node parseOr() {
+            Node node = parseAnd();
+            while (accept("||")) {
+                node = new Or(node, parseAnd());
+            }
+            return node;
+        }
+        
+        private Node parseAnd() {
+            Node node = parseUnary();
+            while (accept("&&")) {
+                node = new And(node, parseUnary());
+            }
+            return node;
+        }
+        
+        private Node parseUnary() {
+            if (accept("!")) {
+                return new Not(parseUnary());
+            }
+            if (accept("(")) {
+                Node node = parseOr();
+                expect(")");
+                return node;
+            }
+            Operand left = parseOperand();
+            Object next = peek();
+            if ("in".equals(next)) {
+                position++;
+                expect("(");
+                List<Object> values = new ArrayList<>();
+                do {
+                    Operand value = parseOperand();
+                    if (!(value instanceof Literal)) {
+                        throw new IllegalArgumentException("'in' takes literals, not '" + value + "'");
+                    }
+                    values.add(((Literal) value).value);
+                } while (accept(","));
+                expect(")");
+                return new In(left, values);
+            }
+            if (next instanceof String && isComparison((String) next)) {
+                position++;
+                return new Compare(left, (String) next, parseOperand());
+            }
+            return new Truthy(left);
+        }
+        
+        private Operand parseOperand() {
+            Object token = peek();
+            if (token == null) {
+                throw new IllegalArgumentException("Filter ends where a value was expected");
+            }
+            position++;
+            if (token instanceof FieldName) {
+                return new Field(((FieldName) token).name);
+            }
+            if (token instanceof String) {
+                throw new IllegalArgumentException("Unexpected '" + token + "' in filter");
+            }
+            return new Literal(token instanceof Quoted ? ((Quoted) token).text : token);
+        }
+        
+        private static boolean isComparison(String token) {
+            switch (token) {
+                case "==":
+                case "!=":
+                case "<":
+                case "<=":
+                case ">":
+                case ">=":
+                    return true;
+                default:
+                    return false;
+            }
+        }
+        
+        // Tokens: String for operators and keywords, FieldName, Quoted, Double, Boolean
+        private void tokenize(String text) {
+            int i = 0;
+            while (i < text.length()) {
+                char c = text.charAt(i);
+                if (Character.isWhitespace(c)) {
+                    i++;
+                } else if (c == '\'' || c == '"') {
+                    StringBuilder value = new StringBuilder();
+                    int j = i + 1;
+                    while (true) {
+                        if (j >= text.length()) {
+                            throw new IllegalArgumentException("Unterminated string in filter");
+                        }
+                        char d = text.charAt(j++);
+                        if (d == c) {
+                            break;
+                        }
+                        if (d == '\\' && j < text.length()) {
+                            d = text.charAt(j++);
+                        }
+                        value.append(d);
+                    }
+                    tokens.add(new Quoted(value.toString()));
+                    i = j;
+                } else if (Character.isDigit(c) || ((c == '-' || c == '.') && i + 1 < text.length() && Character.isDigit(text.charAt(i + 1)))) {
+                    int j = i + 1;
+                    while (j < text.length() && (Character.isLetterOrDigit(text.charAt(j)) || text.charAt(j) == '.'
+                            || ((text.charAt(j) == '-' || text.charAt(j) == '+') && (text.charAt(j - 1) == 'e' || text.charAt(j - 1) == 'E')))) {
+                        j++;
+                    }
+                    try {
+                        tokens.add(Double.valueOf(text.substring(i, j)));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Invalid number '" + text.substring(i, j) + "' in filter");
+                    }
+                    i = j;
+                } else if (Character.isLetter(c) || c == '_' || c == '$') {
+                    int j = i + 1;
+                    while (j < text.length() && (Character.isLetterOrDigit(text.charAt(j)) || text.charAt(j) == '_' || text.charAt(j) == '.')) {
+                        j++;
+                    }
+                    String word = text.substring(i, j);
+                    switch (word.toLowerCase()) {
+                        case "and":
+                            tokens.add("&&");
+                            break;
+                        case "or":
+                            tokens.add("||");
+                            break;
+                        case "not":
+                            tokens.add("!");
+                            break;
+                        case "in":
+                            tokens.add("in");
+                            break;
+                        case "true":
+                        case "false":
+                            tokens.add(Boolean.valueOf(word.toLowerCase()));
+                            break;
+                        default:
+                            if (word.startsWith("$") && !word.equals("$topic") && !word.equals("$key")) {
+                                throw new IllegalArgumentException("Unknown field '" + word + "' in filter");
+                            }
+                            tokens.add(new FieldName(word));
+                    }
+                    i = j;
+                } else {
+                    String two = i + 1 < text.length() ? text.substring(i, i + 2) : "";
+                    switch (two) {
+                        case "==":
+                        case "!=":
+                        case "<=":
+                        case ">=":
+                        case "&&":
+                        case "||":
+                            tokens.add(two);
+                            i += 2;
+                            continue;
+                        default:
+                            break;
+                    }
+                    switch (c) {
+                        case '=':
+                            tokens.add("==");
+                            break;
+                        case '<':
+                        case '>':
+                        case '!':
+                        case '(':
+                        case ')':
+                        case ',':
+                            tokens.add(String.valueOf(c));
+                            break;
+                        default:
+                            throw new IllegalArgumentException("Unexpected '" + c + "' in filter");
+                    }
+                    i++;
+                }
+            }
+        }
+    }
+    
+    private static final class FieldName {
+        final String name;
+        
+        FieldName(String name) {
+            this.name = name;
+        }
+        
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+    
+    private static final class Quoted {
+        final String text;
+        
+        Quoted(String text) {
+            this.text = text;
+        }
+        
+        @Override
+        public String toString() {
+            return literal(text);
+        }
+    }
+}
\ No newline at end of file
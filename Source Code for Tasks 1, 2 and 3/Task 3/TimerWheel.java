@@ -0,0 +1,96 @@
+package pubsub;
+
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+// Hashed timer wheel over plain long entries, for timeouts that are common,
+// usually cancelled and only need tick accuracy: each slot covers tickMillis
+// and keeps its entries and their deadlines in two growable primitive arrays,
+// so a million pending timeouts cost two longs each and no objects.
+//
+// There is no cancel. Owners keep the authoritative deadline for each entry
+// and ignore expiries that no longer match it, which makes rescheduling just
+// another schedule() and an acknowledged entry free until its slot comes round.
+// Not thread-safe; callers synchronize.
+public class TimerWheel {
+    private final long tickMillis;
+    private final long[][] entries;
+    private final long[][] deadlines;
+    private final int[] sizes;
+    private final int mask;
+    private long currentTick;
+    private int size = 0;
+    
+    // slots is rounded up to a power of two; one revolution is slots * tickMillis
+    public TimerWheel(int slots, long tickMillis, long nowMillis) {
+        int count = Integer.highestOneBit(Math.max(2, slots) - 1) << 1;
+        this.tickMillis = tickMillis;
+        this.entries = new long[count][];
+        this.deadlines = new long[count][];
+        this.sizes = new int[count];
+        this.mask = count - 1;
+        this.currentTick = nowMillis / tickMillis;
+    }
+    
+    public void schedule(long entry, long deadlineMillis) {
+        // Never behind the wheel: an overdue entry fires on the next advance
+        long tick = Math.max(deadlineMillis / tickMillis, currentTick);
+        int slot = (int) (tick & mask);
+        int n = sizes[slot];
+        if (entries[slot] == null) {
+            entries[slot] = new long[8];
+            deadlines[slot] = new long[8];
+        } else if (n == entries[slot].length) {
+            entries[slot] = Arrays.copyOf(entries[slot], n * 2);
+            deadlines[slot] = Arrays.copyOf(deadlines[slot], n * 2);
+        }
+        entries[slot][n] = entry;
+        deadlines[slot][n] = deadlineMillis;
+        sizes[slot] = n + 1;
+        size++;
+    }
+    
+    // Fire every entry whose deadline is at or before nowMillis, in slot order.
+    // Entries a full revolution or more away stay put. Returns the number fired.
+    // onExpired must not schedule on this wheel; collect and reschedule afterwards.
+    public int advance(long nowMillis, LongConsumer onExpired) {
+        long targetTick = nowMillis / tickMillis;
+        int fired = 0;
+        // Past one revolution every slot has been visited once already
+        long first = Math.max(currentTick, targetTick - mask);
+        for (long tick = first; tick <= targetTick; tick++) {
+            int slot = (int) (tick & mask);
+            long[] slotEntries = entries[slot];
+            long[] slotDeadlines = deadlines[slot];
+            int n = sizes[slot];
+            int i = 0;
+            while (i < n) {
+                if (slotDeadlines[i] <= nowMillis) {
+                    long entry = slotEntries[i];
+                    // Swap the last entry in and look at this index again
+                    n--;
+                    slotEntries[i] = slotEntries[n];
+                    slotDeadlines[i] = slotDeadlines[n];
+                    size--;
+                    fired++;
+                    onExpired.accept(entry);
+                } else {
+                    i++;
+                }
+            }
+            sizes[slot] = n;
+            // Give back the memory of a slot that once held a burst
+            if (n == 0 && slotEntries != null && slotEntries.length > 64) {
+                entries[slot] = null;
+                deadlines[slot] = null;
+            }
+        }
+        currentTick = targetTick;
+        return fired;
+    }
+    
+    // Scheduled entries not yet fired, stale ones included
+    public int size() {
+        return size;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,158 @@
+package pubsub;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+// Multi-topic contention benchmark for the subscriber registry.
+// Each thread publishes to its own topic (so no two threads ever need the same
+// data) while occasionally joining and leaving, and we count fan-out
+// deliveries per second. "global-lock" is the previous design: one monitor
+// around HashMap<String, List> for every join, leave and publish snapshot.
+// "registry" is TopicRegistry. Good scaling means throughput grows with threads.
+//
+// Usage: java pubsub.TopicContentionBenchmark [--threads 1,2,4,8] [--subscribers 16] [--seconds 3] [--churn 1000]
+public class TopicContentionBenchmark {
+    private interface Registry {
+        void add(String topic, Object member);
+        void remove(String topic, Object member);
+        List<Object> get(String topic);
+    }
+    
+    // The pre-registry design: every operation goes through one monitor
+    private static class GlobalLockRegistry implements Registry {
+        private final Object lock = new Object();
+        private final Map<String, List<Object>> topics = new HashMap<>();
+        
+        public void add(String topic, Object member) {
+            synchronized (lock) {
+                topics.computeIfAbsent(topic, k -> new ArrayList<>()).add(member);
+            }
+        }
+        
+        public void remove(String topic, Object member) {
+            synchronized (lock) {
+                List<Object> members = topics.get(topic);
+                if (members != null) {
+                    members.remove(member);
+                    if (members.isEmpty()) {
+                        topics.remove(topic);
+                    }
+                }
+            }
+        }
+        
+        public List<Object> get(String topic) {
+            synchronized (lock) {
+                List<Object> members = topics.get(topic);
+                return members == null ? List.of() : new ArrayList<>(members);
+            }
+        }
+    }
+    
+    private static class CopyOnWriteRegistry implements Registry {
+        private final TopicRegistry<Object> registry = new TopicRegistry<>();
+        
+        public void add(String topic, Object member) {
+            registry.add(topic, member);
+        }
+        
+        public void remove(String topic, Object member) {
+            registry.remove(topic, member);
+        }
+        
+        public List<Object> get(String topic) {
+            return registry.get(topic);
+        }
+    }
+    
+    public static void main(String[] args) throws Exception {
+        int cores = Runtime.getRuntime().availableProcessors();
+        int[] threadCounts = {1, 2, 4, Math.max(8, cores)};
+        int subscribers = 16;
+        int seconds = 3;
+        int churn = 1000;
+        
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--threads":
+                    threadCounts = Arrays.stream(args[i + 1].split(",")).mapToInt(Integer::parseInt).toArray();
+                    break;
+                case "--subscribers":
+                    subscribers = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--seconds":
+                    seconds = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--churn":
+                    churn = Integer.parseInt(args[i + 1]);
+                    break;
+                default:
+                    System.out.println("Unknown option " + args[i]);
+                    System.exit(1);
+            }
+        }
+        
+        System.out.println("Cores: " + cores + ", subscribers per topic: " + subscribers
+                + ", one join+leave every " + churn + " publishes");
+        System.out.printf("%-12s %8s %18s %10s%n", "registry", "threads", "deliveries/s", "scaling");
+        for (String name : new String[] {"global-lock", "registry"}) {
+            double single = 0;
+            for (int threads : threadCounts) {
+                // Warm up, then measure
+                run(name, threads, subscribers, churn, 1);
+                double rate = run(name, threads, subscribers, churn, seconds);
+                if (single == 0) {
+                    single = rate / threads;
+                }
+                System.out.printf("%-12s %8d %18.0f %9.2fx%n", name, threads, rate, rate / single);
+            }
+        }
+    }
+    
+    private static double run(String name, int threads, int subscribers, int churn, int seconds) throws Exception {
+        Registry registry = name.equals("global-lock") ? new GlobalLockRegistry() : new CopyOnWriteRegistry();
+        LongAdder deliveries = new LongAdder();
+        CountDownLatch ready = new CountDownLatch(threads);
+        CountDownLatch go = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        final long[] deadline = new long[1];
+        
+        for (int t = 0; t < threads; t++) {
+            String topic = "topic-" + t;
+            for (int s = 0; s < subscribers; s++) {
+                registry.add(topic, new Object());
+            }
+            pool.submit(() -> {
+                ready.countDown();
+                go.await();
+                long local = 0;
+                long publishes = 0;
+                long sink = 0;
+                while (System.nanoTime() < deadline[0]) {
+                    for (Object subscriber : registry.get(topic)) {
+                        // Stand-in for enqueueing onto the subscriber's queue
+                        sink += subscriber.hashCode();
+                        local++;
+                    }
+                    if (++publishes % churn == 0) {
+                        Object joiner = new Object();
+                        registry.add(topic, joiner);
+                        registry.remove(topic, joiner);
+                    }
+                }
+                deliveries.add(local + (sink == 42 ? 1 : 0));
+                return null;
+            });
+        }
+        
+        ready.await();
+        long start = System.nanoTime();
+        deadline[0] = start + seconds * 1_000_000_000L;
+        go.countDown();
+        pool.shutdown();
+        pool.awaitTermination(seconds + 30L, TimeUnit.SECONDS);
+        long elapsed = System.nanoTime() - start;
+        return deliveries.sum() / (elapsed / 1e9);
+    }
+}
\ No newline at end of file
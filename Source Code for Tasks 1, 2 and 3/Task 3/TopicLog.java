@@ -0,0 +1,301 @@
+package pubsub;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Append-only log of everything published on one topic, kept as a directory of
+// LogSegment files. Offsets start at 0 and increase by one per message, also
+// across restarts. When the active segment is full a new one is started
+// (rollover); retention deletes whole segments from the old end.
+//
+// Readers never take the append lock. A Reader walks the segments sequentially
+// and returns records in batches, so catching a subscriber up costs a few large
+// reads rather than one lookup per message.
+//
+// Keyed topics may be compacted (see LogCompactor): sealed segments are
+// rewritten without superseded records and swapped in, so offsets can have
+// gaps. Appends only ever touch the active segment, which is never compacted,
+// so compaction does not hold up publishers; it only excludes retention.
+public class TopicLog {
+    private final String topic;
+    private final Path dir;
+    private final int segmentBytes;
+    private final FsyncPolicy fsyncPolicy;
+    private final ReentrantLock appendLock = new ReentrantLock();
+    // Keyed by base offset, so floorEntry finds the segment holding an offset
+    private final ConcurrentSkipListMap<Long, LogSegment> segments = new ConcurrentSkipListMap<>();
+    private volatile LogSegment active;
+    private int unflushed = 0; // guarded by appendLock
+    // Serializes segment swaps by the compactor with deletion by retention
+    private final ReentrantLock maintenanceLock = new ReentrantLock();
+    // Offsets below this have been compacted; the compactor starts above it
+    private volatile long cleanOffset = 0;
+    
+    private TopicLog(String topic, Path dir, int segmentBytes, FsyncPolicy fsyncPolicy) {
+        this.topic = topic;
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.fsyncPolicy = fsyncPolicy;
+    }
+    
+    // Open the log in dir, recovering any segments already there
+    public static TopicLog open(String topic, Path dir, int segmentBytes, FsyncPolicy fsyncPolicy) throws IOException {
+        Files.createDirectories(dir);
+        TopicLog log = new TopicLog(topic, dir, segmentBytes, fsyncPolicy);
+        // A compacted copy left by a crash before its swap is redone by the next pass
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + LogCompactor.CLEANED_SUFFIX)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.log")) {
+            for (Path file : files) {
+                LogSegment segment = LogSegment.open(file);
+                log.segments.put(segment.getBaseOffset(), segment);
+            }
+        }
+        if (log.segments.isEmpty()) {
+            log.active = LogSegment.create(dir, 0, segmentBytes);
+            log.segments.put(0L, log.active);
+        } else {
+            log.active = log.segments.lastEntry().getValue();
+        }
+        return log;
+    }
+    
+    // Append one message and return its offset
+    public long append(long timestamp, String senderAddr, byte[] payload) throws IOException {
+        return append(timestamp, (byte) 0, senderAddr, payload);
+    }
+    
+    // Append one message with its LogRecord attributes and return its offset
+    public long append(long timestamp, byte attributes, String senderAddr, byte[] payload) throws IOException {
+        return append(timestamp, attributes, senderAddr, null, payload);
+    }
+    
+    // Append one message, keyed unless key is null (which sets KEYED), and return its offset
+    public long append(long timestamp, byte attributes, String senderAddr, String key, byte[] payload) throws IOException {
+        byte[] sender = senderAddr.getBytes(StandardCharsets.UTF_8);
+        if (sender.length > LogSegment.MAX_FIELD_BYTES) {
+            throw new IOException("Sender address of " + sender.length + " bytes is too long to store");
+        }
+        byte[] keyBytes = null;
+        if (key != null) {
+            keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            if (keyBytes.length > LogSegment.MAX_FIELD_BYTES) {
+                throw new IOException("Key of " + keyBytes.length + " bytes is too long to store");
+            }
+            attributes |= LogRecord.KEYED;
+        }
+        appendLock.lock();
+        try {
+            LogSegment segment = active;
+            long offset = segment.getNextOffset();
+            if (!segment.append(timestamp, attributes, sender, keyBytes, payload)) {
+                segment = roll(LogSegment.recordSize(sender, keyBytes, payload));
+                segment.append(timestamp, attributes, sender, keyBytes, payload);
+            }
+            
+            if (fsyncPolicy.mode == FsyncPolicy.Mode.EVERY && ++unflushed >= fsyncPolicy.everyMessages) {
+                segment.flush();
+                unflushed = 0;
+            }
+            return offset;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+    
+    // Seal the active segment and start a new one big enough for the next record
+    private LogSegment roll(int recordSize) throws IOException {
+        LogSegment previous = active;
+        previous.flush();
+        LogSegment next = LogSegment.create(dir, previous.getNextOffset(), Math.max(segmentBytes, recordSize));
+        segments.put(next.getBaseOffset(), next);
+        active = next;
+        unflushed = 0;
+        return next;
+    }
+    
+    // Force appended records to disk (the interval policy's background flusher)
+    public void flush() {
+        appendLock.lock();
+        try {
+            active.flush();
+            unflushed = 0;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+    
+    // Delete sealed segments whose newest record is older than maxAgeMillis, then
+    // the oldest sealed segments while the log is over maxBytes. A negative limit
+    // disables that check. Returns the number of segments deleted.
+    public int enforceRetention(long maxAgeMillis, long maxBytes, long now) throws IOException {
+        int deleted = 0;
+        maintenanceLock.lock();
+        try {
+            long totalBytes = getSizeBytes();
+            for (LogSegment segment : segments.values()) {
+                if (segment == active) {
+                    break;
+                }
+                boolean expired = maxAgeMillis >= 0 && segment.getLastTimestamp() < now - maxAgeMillis;
+                boolean oversized = maxBytes >= 0 && totalBytes > maxBytes;
+                if (!expired && !oversized) {
+                    break;
+                }
+                segments.remove(segment.getBaseOffset());
+                totalBytes -= segment.getEnd();
+                segment.delete();
+                deleted++;
+            }
+        } finally {
+            maintenanceLock.unlock();
+        }
+        return deleted;
+    }
+    
+    // Sealed segments, oldest first: everything the compactor may rewrite
+    public List<LogSegment> sealedSegments() {
+        List<LogSegment> sealed = new ArrayList<>();
+        LogSegment current = active;
+        for (LogSegment segment : segments.values()) {
+            if (segment == current) {
+                break;
+            }
+            sealed.add(segment);
+        }
+        return sealed;
+    }
+    
+    // Put a compacted copy written at cleanedPath in place of a sealed segment,
+    // or just delete the segment if cleanedPath is null (nothing was kept).
+    // Readers still in the old segment carry on from its mapping. Returns false,
+    // deleting the copy, if retention removed the segment meanwhile.
+    public boolean replaceSegment(LogSegment segment, Path cleanedPath) throws IOException {
+        maintenanceLock.lock();
+        try {
+            if (segments.get(segment.getBaseOffset()) != segment) {
+                if (cleanedPath != null) {
+                    Files.deleteIfExists(cleanedPath);
+                }
+                return false;
+            }
+            if (cleanedPath == null) {
+                segments.remove(segment.getBaseOffset());
+                segment.delete();
+                return true;
+            }
+            Files.move(cleanedPath, segment.getPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            segments.put(segment.getBaseOffset(), LogSegment.open(segment.getPath()));
+            segment.close();
+            return true;
+        } finally {
+            maintenanceLock.unlock();
+        }
+    }
+    
+    public long getCleanOffset() {
+        return cleanOffset;
+    }
+    
+    public void setCleanOffset(long cleanOffset) {
+        this.cleanOffset = cleanOffset;
+    }
+    
+    // Sequential reader over the records from an offset onwards
+    public class Reader {
+        private LogSegment segment;
+        private int position;
+        
+        private Reader(long fromOffset) {
+            Map.Entry<Long, LogSegment> entry = segments.floorEntry(fromOffset);
+            // Offsets retention already removed start at the oldest retained record
+            segment = entry != null ? entry.getValue() : segments.firstEntry().getValue();
+            position = segment.positionOf(fromOffset);
+        }
+        
+        // Up to roughly maxBytes of records, or an empty list at the end of the log
+        public List<LogRecord> next(int maxBytes) {
+            List<LogRecord> records = new ArrayList<>();
+            int bytes = 0;
+            while (bytes < maxBytes) {
+                if (position >= segment.getEnd()) {
+                    // Move to the next segment; without one this is the active segment and may still grow
+                    Map.Entry<Long, LogSegment> next = segments.higherEntry(segment.getBaseOffset());
+                    if (next == null) {
+                        break;
+                    }
+                    segment = next.getValue();
+                    position = 0;
+                    continue;
+                }
+                LogRecord record = segment.read(position);
+                records.add(record);
+                bytes += LogSegment.RECORD_OVERHEAD + record.payload.length;
+                position = segment.next(position);
+            }
+            return records;
+        }
+    }
+    
+    public Reader reader(long fromOffset) {
+        return new Reader(fromOffset);
+    }
+    
+    // Offset of the first record stamped at or after the given time (epoch
+    // millis), or the end offset if every record is older
+    public long offsetForTime(long timestamp) {
+        for (LogSegment segment : segments.values()) {
+            if (segment.getLastTimestamp() >= timestamp) {
+                int position = segment.positionOfTime(timestamp);
+                if (position < segment.getEnd()) {
+                    return segment.read(position).offset;
+                }
+            }
+        }
+        return getEndOffset();
+    }
+    
+    public String getTopic() {
+        return topic;
+    }
+    
+    // Oldest offset still retained
+    public long getStartOffset() {
+        return segments.firstKey();
+    }
+    
+    // Offset the next appended message will get
+    public long getEndOffset() {
+        return active.getNextOffset();
+    }
+    
+    public long getSizeBytes() {
+        long total = 0;
+        for (LogSegment segment : segments.values()) {
+            total += segment.getEnd();
+        }
+        return total;
+    }
+    
+    public int getSegmentCount() {
+        return segments.size();
+    }
+    
+    public void close() throws IOException {
+        appendLock.lock();
+        try {
+            for (LogSegment segment : segments.values()) {
+                segment.close();
+            }
+        } finally {
+            appendLock.unlock();
+        }
+    }
+}
\ No newline at end of file
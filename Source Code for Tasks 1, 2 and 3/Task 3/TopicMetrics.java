@@ -0,0 +1,52 @@
+package pubsub;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Traffic counters for one topic. In counts what publishers sent, out counts
+// what subscriber writers actually wrote, so out/in is the effective fan-out.
+public class TopicMetrics implements TopicMetricsMBean {
+    private final String topic;
+    final LongAdder messagesIn = new LongAdder();
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder messagesOut = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+    
+    TopicMetrics(String topic) {
+        this.topic = topic;
+    }
+    
+    public void recordIn(int bytes) {
+        messagesIn.increment();
+        bytesIn.add(bytes);
+    }
+    
+    public void recordOut(int bytes) {
+        messagesOut.increment();
+        bytesOut.add(bytes);
+    }
+    
+    @Override
+    public String getTopic() {
+        return topic;
+    }
+    
+    @Override
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+    
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+    
+    @Override
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+    
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+}
\ No newline at end of file
@@ -0,0 +1,14 @@
+package pubsub;
+
+// JMX view of one topic's counters (PubSubMiddleware:type=Topic,name="...")
+public interface TopicMetricsMBean {
+    String getTopic();
+    
+    long getMessagesIn();
+    
+    long getBytesIn();
+    
+    long getMessagesOut();
+    
+    long getBytesOut();
+}
\ No newline at end of file
@@ -0,0 +1,103 @@
+package pubsub;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Topic -> members registry with a copy-on-write member list per topic.
+// Readers (publishers fanning out) get the current immutable snapshot without
+// taking any lock. Joins and leaves copy the list under that topic's own lock,
+// so changes on one topic never wait for another.
+public class TopicRegistry<S> {
+    private final Map<String, Topic<S>> topics = new ConcurrentHashMap<>();
+    
+    private static class Topic<S> {
+        final ReentrantLock lock = new ReentrantLock();
+        volatile List<S> members = List.of();
+        boolean removed = false; // guarded by lock; set once the topic left the map
+    }
+    
+    public void add(String topic, S member) {
+        while (true) {
+            Topic<S> entry = topics.computeIfAbsent(topic, k -> new Topic<>());
+            entry.lock.lock();
+            try {
+                if (entry.removed) {
+                    // Lost a race with the last member leaving; retry on the new entry
+                    continue;
+                }
+                List<S> updated = new ArrayList<>(entry.members.size() + 1);
+                updated.addAll(entry.members);
+                updated.add(member);
+                entry.members = Collections.unmodifiableList(updated);
+                return;
+            } finally {
+                entry.lock.unlock();
+            }
+        }
+    }
+    
+    // Returns true if the member was registered on the topic
+    public boolean remove(String topic, S member) {
+        Topic<S> entry = topics.get(topic);
+        if (entry == null) {
+            return false;
+        }
+        
+        entry.lock.lock();
+        try {
+            if (entry.removed || !entry.members.contains(member)) {
+                return false;
+            }
+            List<S> updated = new ArrayList<>(entry.members);
+            updated.remove(member);
+            entry.members = Collections.unmodifiableList(updated);
+            if (updated.isEmpty()) {
+                entry.removed = true;
+                topics.remove(topic, entry);
+            }
+            return true;
+        } finally {
+            entry.lock.unlock();
+        }
+    }
+    
+    // Immutable snapshot of the topic's members; empty if nobody is registered
+    public List<S> get(String topic) {
+        Topic<S> entry = topics.get(topic);
+        return entry == null ? List.of() : entry.members;
+    }
+    
+    public boolean isEmpty() {
+        return topics.isEmpty();
+    }
+    
+    // Snapshot of every topic and its members, sorted by topic name
+    public Map<String, List<S>> snapshot() {
+        Map<String, List<S>> result = new TreeMap<>();
+        for (Map.Entry<String, Topic<S>> entry : topics.entrySet()) {
+            List<S> members = entry.getValue().members;
+            if (!members.isEmpty()) {
+                result.put(entry.getKey(), members);
+            }
+        }
+        return result;
+    }
+    
+    public void clear() {
+        for (String topic : new ArrayList<>(topics.keySet())) {
+            Topic<S> entry = topics.get(topic);
+            if (entry == null) {
+                continue;
+            }
+            entry.lock.lock();
+            try {
+                entry.members = List.of();
+                entry.removed = true;
+                topics.remove(topic, entry);
+            } finally {
+                entry.lock.unlock();
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,222 @@
+package pubsub;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// MQTT-style wildcard subscriptions over "/"-separated topic levels.
+// "+" matches exactly one level and "#" (last level only) matches the parent
+// level and everything below it, so "sports/#" matches "sports" and
+// "sports/football/scores". Patterns are stored in a trie keyed by level, so a
+// lookup walks at most a few branches per level instead of testing every
+// pattern. Results are cached per published topic until the next subscribe or
+// unsubscribe, which makes repeat publishes on a topic a single map lookup.
+public class TopicTrie<S> {
+    private static final int MAX_CACHED_TOPICS = 100_000;
+    
+    private final Node<S> root = new Node<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, List<S>> cache = new ConcurrentHashMap<>();
+    private int size = 0; // guarded by the write lock
+    
+    private static class Node<S> {
+        final Map<String, Node<S>> children = new HashMap<>(); // "+" is stored as an ordinary key
+        final List<S> members = new ArrayList<>();             // patterns ending at this level
+        final List<S> multiLevel = new ArrayList<>();          // "#" patterns below this level
+        
+        boolean isEmpty() {
+            return children.isEmpty() && members.isEmpty() && multiLevel.isEmpty();
+        }
+    }
+    
+    public static boolean isWildcard(String pattern) {
+        return pattern.indexOf('+') >= 0 || pattern.indexOf('#') >= 0;
+    }
+    
+    // Throws IllegalArgumentException unless every wildcard fills a whole level
+    // and "#" only appears as the last level
+    public static void validate(String pattern) {
+        String[] levels = pattern.split("/", -1);
+        for (int i = 0; i < levels.length; i++) {
+            String level = levels[i];
+            if (level.equals("#")) {
+                if (i != levels.length - 1) {
+                    throw new IllegalArgumentException("'#' must be the last level in '" + pattern + "'");
+                }
+            } else if (!level.equals("+") && isWildcard(level)) {
+                throw new IllegalArgumentException("Wildcards must fill a whole level in '" + pattern + "'");
+            }
+        }
+    }
+    
+    // Whether one pattern matches a topic, without building a trie
+    public static boolean matches(String pattern, String topic) {
+        String[] patternLevels = pattern.split("/", -1);
+        String[] topicLevels = topic.split("/", -1);
+        for (int i = 0; i < patternLevels.length; i++) {
+            if (patternLevels[i].equals("#")) {
+                return true;
+            }
+            if (i == topicLevels.length || (!patternLevels[i].equals("+") && !patternLevels[i].equals(topicLevels[i]))) {
+                return false;
+            }
+        }
+        return patternLevels.length == topicLevels.length;
+    }
+    
+    public void add(String pattern, S member) {
+        lock.writeLock().lock();
+        try {
+            String[] levels = pattern.split("/", -1);
+            Node<S> node = root;
+            int depth = levels[levels.length - 1].equals("#") ? levels.length - 1 : levels.length;
+            for (int i = 0; i < depth; i++) {
+                node = node.children.computeIfAbsent(levels[i], k -> new Node<>());
+            }
+            if (depth < levels.length) {
+                node.multiLevel.add(member);
+            } else {
+                node.members.add(member);
+            }
+            size++;
+            cache.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    // Returns true if the member was subscribed with this pattern
+    public boolean remove(String pattern, S member) {
+        lock.writeLock().lock();
+        try {
+            String[] levels = pattern.split("/", -1);
+            boolean removed = remove(root, levels, 0, member);
+            if (removed) {
+                size--;
+                cache.clear();
+            }
+            return removed;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    private boolean remove(Node<S> node, String[] levels, int depth, S member) {
+        if (depth == levels.length - 1 && levels[depth].equals("#")) {
+            return node.multiLevel.remove(member);
+        }
+        if (depth == levels.length) {
+            return node.members.remove(member);
+        }
+        Node<S> child = node.children.get(levels[depth]);
+        if (child == null || !remove(child, levels, depth + 1, member)) {
+            return false;
+        }
+        // Prune branches nobody subscribes under any more
+        if (child.isEmpty()) {
+            node.children.remove(levels[depth]);
+        }
+        return true;
+    }
+    
+    // Every member with a pattern matching the topic, each listed once
+    public List<S> match(String topic) {
+        List<S> cached = cache.get(topic);
+        if (cached != null) {
+            return cached;
+        }
+        
+        // Computing and caching under the read lock means no subscribe or
+        // unsubscribe can slip in between and leave a stale entry behind
+        lock.readLock().lock();
+        try {
+            if (size == 0) {
+                return List.of();
+            }
+            List<S> result = matchUncached(topic);
+            if (cache.size() >= MAX_CACHED_TOPICS) {
+                cache.clear();
+            }
+            cache.put(topic, result);
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    // Walk the trie without consulting or filling the cache
+    public List<S> matchUncached(String topic) {
+        lock.readLock().lock();
+        try {
+            Set<S> matches = new LinkedHashSet<>();
+            collect(root, topic.split("/", -1), 0, matches);
+            return matches.isEmpty() ? List.of() : List.copyOf(matches);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    private void collect(Node<S> node, String[] levels, int depth, Set<S> matches) {
+        matches.addAll(node.multiLevel);
+        if (depth == levels.length) {
+            matches.addAll(node.members);
+            return;
+        }
+        Node<S> exact = node.children.get(levels[depth]);
+        if (exact != null) {
+            collect(exact, levels, depth + 1, matches);
+        }
+        Node<S> single = node.children.get("+");
+        if (single != null) {
+            collect(single, levels, depth + 1, matches);
+        }
+    }
+    
+    public boolean isEmpty() {
+        lock.readLock().lock();
+        try {
+            return size == 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    // Every pattern and its members, sorted by pattern
+    public Map<String, List<S>> snapshot() {
+        Map<String, List<S>> result = new TreeMap<>();
+        lock.readLock().lock();
+        try {
+            snapshot(root, null, result);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return result;
+    }
+    
+    // prefix is null at the root, where patterns have no leading level
+    private void snapshot(Node<S> node, String prefix, Map<String, List<S>> result) {
+        if (!node.multiLevel.isEmpty()) {
+            result.put(prefix == null ? "#" : prefix + "/#", List.copyOf(node.multiLevel));
+        }
+        for (Map.Entry<String, Node<S>> child : node.children.entrySet()) {
+            String pattern = prefix == null ? child.getKey() : prefix + "/" + child.getKey();
+            if (!child.getValue().members.isEmpty()) {
+                result.put(pattern, List.copyOf(child.getValue().members));
+            }
+            snapshot(child.getValue(), pattern, result);
+        }
+    }
+    
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            root.children.clear();
+            root.members.clear();
+            root.multiLevel.clear();
+            size = 0;
+            cache.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,157 @@
+package pubsub;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+
+// Optional latency-tracing header carried in front of a message. A tracing
+// publisher stamps a stream id, a sequence number and its publish time; the
+// broker adds its ingress time when the message arrives and its egress time
+// when a subscriber's writer sends it. Only subscribers that asked for traces
+// ("SUBSCRIBER:news:trace") get them, so everyone else still receives the
+// shared encoding untouched.
+//
+// Text protocol: the line starts with the header, e.g.
+//   publisher -> broker   #[src=1f3a;seq=42;pt=1718000000000123]hello
+//   broker -> subscriber  #[src=1f3a;seq=42;pt=...;in=...;out=...][news] Publisher ...: hello
+// Unknown keys are ignored, so the header can grow.
+//
+// Binary protocol: frames with FLAG_TRACED start with BINARY_LENGTH bytes of
+// src, seq, pt, in and out (longs, big-endian) ahead of the payload. Publishers
+// send in and out as 0.
+//
+// Times are microseconds since the epoch, but only the wall clock is read once:
+// each process anchors System.nanoTime() to it when the class loads, so NTP
+// steps and slews later on cannot make a hop negative or inflate it. Hops
+// measured across machines are still only as good as their clock
+// synchronisation at the time each process started.
+public final class Trace {
+    public static final String TEXT_PREFIX = "#[";
+    public static final int BINARY_LENGTH = 5 * Long.BYTES;
+    
+    public final long source;         // publisher's stream id; seq counts per source
+    public final long seq;
+    public final long publishMicros;
+    public final long ingressMicros;  // 0 until stamped by the broker
+    public final long egressMicros;   // 0 until stamped by the broker
+    
+    public Trace(long source, long seq, long publishMicros, long ingressMicros, long egressMicros) {
+        this.source = source;
+        this.seq = seq;
+        this.publishMicros = publishMicros;
+        this.ingressMicros = ingressMicros;
+        this.egressMicros = egressMicros;
+    }
+    
+    private static final long ANCHOR_MICROS;
+    private static final long ANCHOR_NANOS;
+    
+    static {
+        Instant now = Instant.now();
+        ANCHOR_NANOS = System.nanoTime();
+        ANCHOR_MICROS = now.getEpochSecond() * 1_000_000 + now.getNano() / 1000;
+    }
+    
+    // Monotonic within a process
+    public static long nowMicros() {
+        return ANCHOR_MICROS + (System.nanoTime() - ANCHOR_NANOS) / 1000;
+    }
+    
+    public Trace withIngress(long micros) {
+        return new Trace(source, seq, publishMicros, micros, egressMicros);
+    }
+    
+    public Trace withEgress(long micros) {
+        return new Trace(source, seq, publishMicros, ingressMicros, micros);
+    }
+    
+    // Length of the header at the start of a text line, 0 if it has none
+    public static int textHeaderLength(String line) {
+        if (!line.startsWith(TEXT_PREFIX)) {
+            return 0;
+        }
+        int end = line.indexOf(']');
+        return end < 0 ? 0 : end + 1;
+    }
+    
+    // Parse the header at the start of a line; null if it is missing or malformed
+    public static Trace parseText(String line) {
+        int length = textHeaderLength(line);
+        if (length == 0) {
+            return null;
+        }
+        long source = 0, seq = -1, publish = 0, ingress = 0, egress = 0;
+        try {
+            for (String field : line.substring(TEXT_PREFIX.length(), length - 1).split(";")) {
+                int equals = field.indexOf('=');
+                if (equals < 0) {
+                    continue;
+                }
+                String value = field.substring(equals + 1);
+                switch (field.substring(0, equals)) {
+                    case "src":
+                        source = Long.parseUnsignedLong(value, 16);
+                        break;
+                    case "seq":
+                        seq = Long.parseLong(value);
+                        break;
+                    case "pt":
+                        publish = Long.parseLong(value);
+                        break;
+                    case "in":
+                        ingress = Long.parseLong(value);
+                        break;
+                    case "out":
+                        egress = Long.parseLong(value);
+                        break;
+                    default:
+                        break;
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return seq < 0 ? null : new Trace(source, seq, publish, ingress, egress);
+    }
+    
+    public String toText() {
+        StringBuilder header = new StringBuilder(96).append(TEXT_PREFIX)
+                .append("src=").append(Long.toHexString(source))
+                .append(";seq=").append(seq)
+                .append(";pt=").append(publishMicros);
+        if (ingressMicros != 0) {
+            header.append(";in=").append(ingressMicros);
+        }
+        if (egressMicros != 0) {
+            header.append(";out=").append(egressMicros);
+        }
+        return header.append(']').toString();
+    }
+    
+    public ByteBuffer toTextBuffer() {
+        return ByteBuffer.wrap(toText().getBytes(StandardCharsets.UTF_8));
+    }
+    
+    // Null if the payload is too short to hold a header
+    public static Trace readBinary(byte[] payload) {
+        return readBinary(payload, 0);
+    }
+    
+    public static Trace readBinary(byte[] payload, int offset) {
+        if (payload.length - offset < BINARY_LENGTH) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(payload, offset, BINARY_LENGTH);
+        return new Trace(buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong());
+    }
+    
+    public void writeBinary(ByteBuffer buffer) {
+        buffer.putLong(source).putLong(seq).putLong(publishMicros).putLong(ingressMicros).putLong(egressMicros);
+    }
+    
+    public byte[] toBinary() {
+        ByteBuffer buffer = ByteBuffer.allocate(BINARY_LENGTH);
+        writeBinary(buffer);
+        return buffer.array();
+    }
+}
\ No newline at end of file
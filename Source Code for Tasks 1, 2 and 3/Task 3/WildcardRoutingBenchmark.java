@@ -0,0 +1,119 @@
+package pubsub;
+
+import java.util.*;
+
+// Routing cost per publish with a large wildcard subscription set.
+// Topics look like "site17/device42/temp". Subscriptions are a mix of exact
+// topics, "site17/+/temp" and "site17/device42/#" patterns. "linear" tests
+// every pattern against the topic (what a naive matcher does), "trie" walks
+// TopicTrie without its cache and "cached" is the path the broker uses, where
+// repeat publishes on a topic reuse the previous match.
+//
+// Usage: java pubsub.WildcardRoutingBenchmark [--subscriptions 100000] [--topics 10000] [--publishes 200000]
+public class WildcardRoutingBenchmark {
+    private static final String[] METRICS = {"temp", "humidity", "pressure", "power", "status"};
+    
+    public static void main(String[] args) {
+        int subscriptions = 100_000;
+        int topics = 10_000;
+        int publishes = 200_000;
+        
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--subscriptions":
+                    subscriptions = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--topics":
+                    topics = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--publishes":
+                    publishes = Integer.parseInt(args[i + 1]);
+                    break;
+                default:
+                    System.out.println("Unknown option " + args[i]);
+                    System.exit(1);
+            }
+        }
+        
+        int sites = 100;
+        int devices = Math.max(1, topics / (sites * METRICS.length));
+        Random random = new Random(42);
+        
+        // 70% exact, 20% single-level wildcard, 10% multi-level wildcard
+        List<String> patterns = new ArrayList<>(subscriptions);
+        TopicTrie<Integer> trie = new TopicTrie<>();
+        for (int i = 0; i < subscriptions; i++) {
+            int site = random.nextInt(sites);
+            int device = random.nextInt(devices);
+            String metric = METRICS[random.nextInt(METRICS.length)];
+            int kind = random.nextInt(10);
+            String pattern;
+            if (kind < 7) {
+                pattern = "site" + site + "/device" + device + "/" + metric;
+            } else if (kind < 9) {
+                pattern = "site" + site + "/+/" + metric;
+            } else {
+                pattern = "site" + site + "/device" + device + "/#";
+            }
+            patterns.add(pattern);
+            trie.add(pattern, i);
+        }
+        
+        String[] publishTopics = new String[publishes];
+        for (int i = 0; i < publishes; i++) {
+            publishTopics[i] = "site" + random.nextInt(sites) + "/device" + random.nextInt(devices) + "/"
+                    + METRICS[random.nextInt(METRICS.length)];
+        }
+        
+        System.out.println("Subscriptions: " + subscriptions + ", distinct topics: " + (sites * devices * METRICS.length)
+                + ", publishes: " + publishes);
+        System.out.printf("%-8s %12s %14s %14s%n", "matcher", "publishes", "ns/publish", "matches/pub");
+        
+        // The linear scan is far slower, so it gets a smaller sample
+        int linearPublishes = Math.min(publishes, 2_000);
+        run("linear", publishTopics, linearPublishes, topic -> linearMatch(patterns, topic));
+        run("trie", publishTopics, publishes, trie::matchUncached);
+        run("cached", publishTopics, publishes, trie::match);
+    }
+    
+    private interface Matcher {
+        Collection<?> match(String topic);
+    }
+    
+    private static void run(String name, String[] topics, int publishes, Matcher matcher) {
+        // Warm up on the same topics, then measure
+        for (int i = 0; i < Math.min(publishes, 10_000); i++) {
+            matcher.match(topics[i]);
+        }
+        long matches = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < publishes; i++) {
+            matches += matcher.match(topics[i]).size();
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("%-8s %12d %14.0f %14.1f%n", name, publishes, (double) elapsed / publishes, (double) matches / publishes);
+    }
+    
+    private static List<Integer> linearMatch(List<String> patterns, String topic) {
+        String[] levels = topic.split("/", -1);
+        List<Integer> result = new ArrayList<>();
+        for (int i = 0; i < patterns.size(); i++) {
+            if (matches(patterns.get(i).split("/", -1), levels)) {
+                result.add(i);
+            }
+        }
+        return result;
+    }
+    
+    private static boolean matches(String[] pattern, String[] levels) {
+        for (int i = 0; i < pattern.length; i++) {
+            if (pattern[i].equals("#")) {
+                return true;
+            }
+            if (i >= levels.length || (!pattern[i].equals("+") && !pattern[i].equals(levels[i]))) {
+                return false;
+            }
+        }
+        return pattern.length == levels.length;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,103 @@
+package pubsub.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import pubsub.*;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+// Topic lookup and fan-out as forwardToTopicSubscribers does it: take the
+// exact subscribers' registry snapshot, merge in wildcard matches from the
+// trie, and offer the message to each subscriber's queue, which encodes it
+// once and retains it per delivery.
+//
+// The queues have no writer behind them. Each one holds a single message
+// under DROP_OLDEST, so every offer also evicts and releases the previous
+// delivery, keeping the pooled buffers cycling the way a draining writer would.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanOutBenchmark {
+    private static final String TOPIC = "sports/football/scores";
+    
+    @Param({"1", "100", "10000"})
+    public int subscribers;
+    
+    // Share of subscribers holding a matching wildcard subscription instead of the exact topic
+    @Param({"0", "10"})
+    public int wildcardPercent;
+    
+    @Param({"false", "true"})
+    public boolean binary;
+    
+    private final TopicRegistry<SubscriberQueue> exact = new TopicRegistry<>();
+    private final TopicTrie<SubscriberQueue> wildcard = new TopicTrie<>();
+    private List<SubscriberQueue> queues;
+    private String text;
+    
+    @Setup
+    public void setup() {
+        queues = new ArrayList<>(subscribers);
+        int wildcards = subscribers * wildcardPercent / 100;
+        for (int i = 0; i < subscribers; i++) {
+            SubscriberQueue queue = new SubscriberQueue(null, "subscriber-" + i, binary, 1, OverflowPolicy.DROP_OLDEST, 0);
+            queues.add(queue);
+            if (i < wildcards) {
+                wildcard.add(i % 2 == 0 ? "sports/+/scores" : "sports/#", queue);
+            } else {
+                exact.add(TOPIC, queue);
+            }
+        }
+        // Unrelated subscriptions the lookup has to walk past
+        for (int i = 0; i < 1000; i++) {
+            exact.add("other/topic-" + i, new SubscriberQueue(null, "other-" + i, binary, 1, OverflowPolicy.DROP_OLDEST, 0));
+            wildcard.add("other/topic-" + i + "/#", new SubscriberQueue(null, "other-" + i, binary, 1, OverflowPolicy.DROP_OLDEST, 0));
+        }
+        text = "goal! 1-0 after 23 minutes";
+    }
+    
+    @TearDown
+    public void tearDown() {
+        for (SubscriberQueue queue : queues) {
+            queue.close();
+        }
+    }
+    
+    @Benchmark
+    public int lookup() {
+        return matchingSubscribers(TOPIC).size();
+    }
+    
+    @Benchmark
+    public int lookupAndFanOut() {
+        Message message = Message.fromText(TOPIC, 1, "127.0.0.1:50000", text);
+        try {
+            int queued = 0;
+            for (SubscriberQueue subscriber : matchingSubscribers(TOPIC)) {
+                if (subscriber.offer(message)) {
+                    queued++;
+                }
+            }
+            return queued;
+        } finally {
+            message.release();
+        }
+    }
+    
+    private Collection<SubscriberQueue> matchingSubscribers(String topic) {
+        List<SubscriberQueue> exactMatches = exact.get(topic);
+        List<SubscriberQueue> wildcardMatches = wildcard.match(topic);
+        if (wildcardMatches.isEmpty()) {
+            return exactMatches;
+        }
+        if (exactMatches.isEmpty()) {
+            return wildcardMatches;
+        }
+        Set<SubscriberQueue> merged = new LinkedHashSet<>(exactMatches);
+        merged.addAll(wildcardMatches);
+        return merged;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,54 @@
+package pubsub.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import pubsub.BinaryProtocol;
+import pubsub.Handshake;
+import pubsub.TopicTrie;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+// The first-line work handleClient does for every connection: read the line
+// off the socket stream, parse it into a Handshake, then split, dedupe and
+// validate the subscriber's topic list.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandshakeBenchmark {
+    @Param({"PUBLISHER:news", "SUBSCRIBER:sports/+/scores,news/#:from=earliest", "SUBSCRIBER:a,b,c,d,e,f,g,h"})
+    public String line;
+    
+    private byte[] wire;
+    
+    @Setup
+    public void setup() {
+        wire = (line + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+    
+    @Benchmark
+    public Handshake parse() {
+        return Handshake.parse(line);
+    }
+    
+    @Benchmark
+    public List<String> readParseAndValidate() throws IOException {
+        String received = BinaryProtocol.readLine(new ByteArrayInputStream(wire));
+        Handshake handshake = Handshake.parse(received);
+        if (handshake.isPublisher()) {
+            return List.of(handshake.topic);
+        }
+        Set<String> subscriptions = new LinkedHashSet<>();
+        for (String subscription : handshake.topic.split(",")) {
+            subscription = subscription.trim();
+            TopicTrie.validate(subscription);
+            subscriptions.add(subscription);
+        }
+        return new ArrayList<>(subscriptions);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,197 @@
+package pubsub.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import pubsub.*;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// End to end over loopback: a real PubSubServer in this JVM, N text publishers
+// and M text subscribers on one topic. Each invocation publishes BATCH
+// messages spread across the publishers and waits until every subscriber has
+// received all of them, so the score is published messages per second and
+// deliveries per second are the score times the subscriber count.
+//
+// The broker runs with the BLOCK overflow policy and a long timeout so nothing
+// is dropped and every invocation completes; publishers see back-pressure
+// instead, as they would from a broker that keeps up with its slowest reader.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@OperationsPerInvocation(LoopbackBenchmark.BATCH)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackBenchmark {
+    static final int BATCH = 1000;
+    private static final String TOPIC = "loopback";
+    private static final long DELIVERY_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+    
+    @Param({"1", "4"})
+    public int publishers;
+    
+    @Param({"1", "16"})
+    public int subscribers;
+    
+    @Param({"100"})
+    public int payloadSize;
+    
+    private PubSubServer server;
+    private final List<Socket> sockets = new ArrayList<>();
+    private final List<OutputStream> publisherStreams = new ArrayList<>();
+    private final AtomicLong received = new AtomicLong();
+    private AtomicLongArray receivedBySubscriber;
+    private byte[][] chunks;
+    private long expected;
+    
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        Log.setLevel(Log.Level.WARN);
+        ServerConfig config = new ServerConfig("127.0.0.1", freePort());
+        config.overflowPolicy = OverflowPolicy.BLOCK;
+        config.blockTimeoutMillis = TimeUnit.SECONDS.toMillis(30);
+        config.jmx = false;
+        server = new PubSubServer(config);
+        Thread broker = new Thread(server::start, "loopback-broker");
+        broker.setDaemon(true);
+        broker.start();
+        
+        receivedBySubscriber = new AtomicLongArray(subscribers);
+        for (int i = 0; i < subscribers; i++) {
+            Socket socket = connect(config.port);
+            socket.getOutputStream().write(("SUBSCRIBER:" + TOPIC + "\n").getBytes(StandardCharsets.UTF_8));
+            socket.getOutputStream().flush();
+            int index = i;
+            Thread reader = new Thread(() -> countLines(socket, index), "loopback-subscriber-" + i);
+            reader.setDaemon(true);
+            reader.start();
+        }
+        for (int i = 0; i < publishers; i++) {
+            Socket socket = connect(config.port);
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+            out.write(("PUBLISHER:" + TOPIC + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            publisherStreams.add(out);
+        }
+        
+        // Each publisher's share of a batch, pre-encoded so the clients cost as little as possible
+        char[] text = new char[payloadSize];
+        Arrays.fill(text, 'x');
+        String line = new String(text) + "\n";
+        chunks = new byte[publishers][];
+        for (int i = 0; i < publishers; i++) {
+            int count = BATCH / publishers + (i < BATCH % publishers ? 1 : 0);
+            chunks[i] = line.repeat(count).getBytes(StandardCharsets.UTF_8);
+        }
+        
+        awaitSubscribed();
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (Socket socket : sockets) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+        server.stop();
+    }
+    
+    @Benchmark
+    public long publishAndDeliver() throws IOException {
+        for (int i = 0; i < publishers; i++) {
+            OutputStream out = publisherStreams.get(i);
+            out.write(chunks[i]);
+            out.flush();
+        }
+        expected += (long) BATCH * subscribers;
+        
+        long deadline = System.nanoTime() + DELIVERY_TIMEOUT_NANOS;
+        long count;
+        while ((count = received.get()) < expected) {
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("Only " + count + " of " + expected + " deliveries arrived");
+            }
+            Thread.onSpinWait();
+        }
+        return count;
+    }
+    
+    private Socket connect(int port) throws IOException, InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                Socket socket = new Socket("127.0.0.1", port);
+                socket.setTcpNoDelay(true);
+                sockets.add(socket);
+                return socket;
+            } catch (IOException e) {
+                if (attempt == 100) {
+                    throw e;
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+    
+    // The broker registers a subscription a moment after accepting the
+    // connection, so publish probes until every subscriber has seen one, then
+    // let the stragglers land before counting starts
+    private void awaitSubscribed() throws IOException, InterruptedException {
+        OutputStream probe = publisherStreams.get(0);
+        long deadline = System.nanoTime() + DELIVERY_TIMEOUT_NANOS;
+        while (!allSubscribed()) {
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("Subscribers did not receive the probe");
+            }
+            probe.write("probe\n".getBytes(StandardCharsets.UTF_8));
+            probe.flush();
+            Thread.sleep(20);
+        }
+        Thread.sleep(200);
+        expected = received.get();
+    }
+    
+    private boolean allSubscribed() {
+        for (int i = 0; i < subscribers; i++) {
+            if (receivedBySubscriber.get(i) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private void countLines(Socket socket, int index) {
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = socket.getInputStream()) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                int lines = 0;
+                for (int i = 0; i < read; i++) {
+                    if (buffer[i] == '\n') {
+                        lines++;
+                    }
+                }
+                if (lines > 0) {
+                    receivedBySubscriber.addAndGet(index, lines);
+                    received.addAndGet(lines);
+                }
+            }
+        } catch (IOException e) {
+            // Closed at teardown
+        }
+    }
+    
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,78 @@
+package pubsub.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import pubsub.Message;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+// Formatting and encoding one published message into the wire bytes a
+// subscriber receives: the "[topic] Publisher addr: text" line or a binary
+// frame, including the conversion when publisher and subscriber formats
+// differ, and the return of the encoded buffer to the pool.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageEncodingBenchmark {
+    private static final String TOPIC = "sports/football/scores";
+    private static final String SENDER = "127.0.0.1:50000";
+    
+    @Param({"16", "256", "4096"})
+    public int payloadSize;
+    
+    private String text;
+    private byte[] payload;
+    
+    @Setup
+    public void setup() {
+        char[] chars = new char[payloadSize];
+        Arrays.fill(chars, 'x');
+        text = new String(chars);
+        payload = text.getBytes(StandardCharsets.UTF_8);
+    }
+    
+    @Benchmark
+    public int textToText() {
+        return encode(Message.fromText(TOPIC, 1, SENDER, text), false);
+    }
+    
+    @Benchmark
+    public int textToBinary() {
+        return encode(Message.fromText(TOPIC, 1, SENDER, text), true);
+    }
+    
+    @Benchmark
+    public int binaryToBinary() {
+        return encode(Message.fromBytes(TOPIC, 1, SENDER, payload), true);
+    }
+    
+    @Benchmark
+    public int binaryToText() {
+        return encode(Message.fromBytes(TOPIC, 1, SENDER, payload), false);
+    }
+    
+    // Both wire formats for one message, as when text and binary subscribers share a topic
+    @Benchmark
+    public int textToBoth() {
+        Message message = Message.fromText(TOPIC, 1, SENDER, text);
+        try {
+            return message.encoded(false).remaining() + message.encoded(true).remaining();
+        } finally {
+            message.release();
+        }
+    }
+    
+    private static int encode(Message message, boolean binary) {
+        try {
+            ByteBuffer encoded = message.encoded(binary);
+            return encoded.remaining();
+        } finally {
+            message.release();
+        }
+    }
+}
\ No newline at end of file
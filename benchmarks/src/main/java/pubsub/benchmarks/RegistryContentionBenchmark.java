@@ -0,0 +1,107 @@
+package pubsub.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import pubsub.TopicRegistry;
+import pubsub.TopicTrie;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Subscribers joining and leaving while publishers look the same topics up.
+// Each group runs churn threads that add and remove their own member and
+// lookup threads that read the member list for publishing, on the copy-on-write
+// exact registry and on the wildcard trie (whose per-topic cache every join
+// and leave invalidates). Compare the lookup score with and without churn to
+// see what a join costs the publishers.
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegistryContentionBenchmark {
+    private static final int TOPICS = 16;
+    
+    // Members already on every topic before the churn starts
+    @Param({"16", "1000"})
+    public int members;
+    
+    private final TopicRegistry<Object> registry = new TopicRegistry<>();
+    private final TopicTrie<Object> trie = new TopicTrie<>();
+    private final String[] topics = new String[TOPICS];
+    private final String[] patterns = new String[TOPICS];
+    private final String[] published = new String[TOPICS];
+    
+    @Setup(Level.Trial)
+    public void setup() {
+        for (int t = 0; t < TOPICS; t++) {
+            topics[t] = "topic/" + t;
+            patterns[t] = topics[t] + "/#";
+            published[t] = topics[t] + "/scores";
+            for (int m = 0; m < members; m++) {
+                Object member = new Object();
+                registry.add(topics[t], member);
+                trie.add(patterns[t], member);
+            }
+        }
+    }
+    
+    @State(Scope.Thread)
+    public static class ThreadState {
+        private static final AtomicInteger NEXT = new AtomicInteger();
+        
+        final Object member = new Object();
+        final int first = NEXT.getAndIncrement();
+        int next;
+        
+        String pick(String[] topics) {
+            return topics[(first + next++) % topics.length];
+        }
+    }
+    
+    @Benchmark
+    @Group("registry")
+    @GroupThreads(2)
+    public boolean registryChurn(ThreadState thread) {
+        String topic = thread.pick(topics);
+        registry.add(topic, thread.member);
+        return registry.remove(topic, thread.member);
+    }
+    
+    @Benchmark
+    @Group("registry")
+    @GroupThreads(2)
+    public int registryLookup(ThreadState thread) {
+        return registry.get(thread.pick(topics)).size();
+    }
+    
+    @Benchmark
+    @Group("registryNoChurn")
+    @GroupThreads(2)
+    public int registryLookupAlone(ThreadState thread) {
+        return registry.get(thread.pick(topics)).size();
+    }
+    
+    @Benchmark
+    @Group("trie")
+    @GroupThreads(2)
+    public boolean trieChurn(ThreadState thread) {
+        String pattern = thread.pick(patterns);
+        trie.add(pattern, thread.member);
+        return trie.remove(pattern, thread.member);
+    }
+    
+    @Benchmark
+    @Group("trie")
+    @GroupThreads(2)
+    public int trieLookup(ThreadState thread) {
+        return trie.match(thread.pick(published)).size();
+    }
+    
+    @Benchmark
+    @Group("trieNoChurn")
+    @GroupThreads(2)
+    public int trieLookupAlone(ThreadState thread) {
+        return trie.match(thread.pick(published)).size();
+    }
+}
\ No newline at end of file
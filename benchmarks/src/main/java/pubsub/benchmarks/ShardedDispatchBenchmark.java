@@ -0,0 +1,92 @@
+package pubsub.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import pubsub.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Routing throughput for a many-topic workload: publisher threads send to
+// TOPICS topics, each with a few subscribers, and every message is looked up
+// and fanned out as forwardToTopicSubscribers does it. With shards = 0 the
+// publisher thread routes it itself, as the broker does without
+// --dispatch-shards; otherwise it goes through a DispatchEngine, whose bounded
+// inboxes hold the publishers to the rate the shards route at.
+//
+// Run with as many publisher threads as cores (-t) and compare the scores as
+// shards goes up to the core count; they should grow close to linearly until
+// the shards run out of cores.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(Threads.MAX)
+@Fork(1)
+public class ShardedDispatchBenchmark {
+    private static final int TOPICS = 1024;
+    private static final int SUBSCRIBERS_PER_TOPIC = 4;
+    
+    @Param({"0", "1", "2", "4", "8"})
+    public int shards;
+    
+    private final TopicRegistry<SubscriberQueue> registry = new TopicRegistry<>();
+    private final List<SubscriberQueue> queues = new ArrayList<>();
+    private final String[] topics = new String[TOPICS];
+    private DispatchEngine engine;
+    private Consumer<Message> router;
+    
+    @Setup(Level.Trial)
+    public void setup() {
+        for (int t = 0; t < TOPICS; t++) {
+            topics[t] = "market/instrument-" + t;
+            for (int s = 0; s < SUBSCRIBERS_PER_TOPIC; s++) {
+                // No writer behind it: holding one message under DROP_OLDEST keeps the buffers cycling
+                SubscriberQueue queue = new SubscriberQueue(null, "subscriber-" + t + "-" + s, false, 1, OverflowPolicy.DROP_OLDEST, 0);
+                queues.add(queue);
+                registry.add(topics[t], queue);
+            }
+        }
+        router = message -> {
+            try {
+                for (SubscriberQueue subscriber : registry.get(message.getTopic())) {
+                    subscriber.offer(message);
+                }
+            } finally {
+                message.release();
+            }
+        };
+        if (shards > 0) {
+            engine = new DispatchEngine(shards, DispatchEngine.DEFAULT_INBOX_CAPACITY, router);
+            engine.start();
+        }
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (engine != null) {
+            engine.shutdown(1000);
+        }
+        for (SubscriberQueue queue : queues) {
+            queue.close();
+        }
+    }
+    
+    @State(Scope.Thread)
+    public static class Publisher {
+        int next;
+    }
+    
+    @Benchmark
+    public void publish(Publisher publisher) {
+        String topic = topics[publisher.next++ & (TOPICS - 1)];
+        Message message = Message.fromText(topic, 1, "127.0.0.1:50000", "bid 101.25 ask 101.27");
+        if (engine != null) {
+            engine.submit(message);
+        } else {
+            router.accept(message);
+        }
+    }
+}
\ No newline at end of file